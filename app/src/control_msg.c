@@ -146,10 +146,31 @@ sc_control_msg_serialize(const struct sc_control_msg *msg, unsigned char *buf) {
         case SC_CONTROL_MSG_TYPE_SET_SCREEN_POWER_MODE:
             buf[1] = msg->set_screen_power_mode.mode;
             return 2;
+        case SC_CONTROL_MSG_TYPE_SET_VIDEO_SETTINGS:
+            sc_write32be(&buf[1], msg->set_video_settings.max_size);
+            sc_write32be(&buf[5], msg->set_video_settings.bit_rate);
+            sc_write32be(&buf[9], msg->set_video_settings.max_fps);
+            return 13;
+        case SC_CONTROL_MSG_TYPE_SAVE_REPLAY: {
+            size_t len =
+                write_string(msg->save_replay.path,
+                             SC_CONTROL_MSG_REPLAY_PATH_MAX_LENGTH, &buf[1]);
+            return 1 + len;
+        }
+        case SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT:
+            sc_write64be(&buf[1], msg->capture_screenshot.sequence);
+            buf[9] = msg->capture_screenshot.format;
+            buf[10] = msg->capture_screenshot.quality;
+            sc_write16be(&buf[11], msg->capture_screenshot.max_size);
+            return 13;
+        case SC_CONTROL_MSG_TYPE_GET_LATENCY_STATS:
+            sc_write64be(&buf[1], msg->get_latency_stats.sequence);
+            return 9;
         case SC_CONTROL_MSG_TYPE_EXPAND_NOTIFICATION_PANEL:
         case SC_CONTROL_MSG_TYPE_EXPAND_SETTINGS_PANEL:
         case SC_CONTROL_MSG_TYPE_COLLAPSE_PANELS:
         case SC_CONTROL_MSG_TYPE_ROTATE_DEVICE:
+        case SC_CONTROL_MSG_TYPE_REQUEST_KEY_FRAME:
             // no additional data
             return 1;
         default:
@@ -242,6 +263,31 @@ sc_control_msg_log(const struct sc_control_msg *msg) {
         case SC_CONTROL_MSG_TYPE_ROTATE_DEVICE:
             LOG_CMSG("rotate device");
             break;
+        case SC_CONTROL_MSG_TYPE_REQUEST_KEY_FRAME:
+            LOG_CMSG("request key frame");
+            break;
+        case SC_CONTROL_MSG_TYPE_SET_VIDEO_SETTINGS:
+            LOG_CMSG("video settings max_size=%" PRIi32 " bit_rate=%" PRIi32
+                     " max_fps=%" PRIi32,
+                     msg->set_video_settings.max_size,
+                     msg->set_video_settings.bit_rate,
+                     msg->set_video_settings.max_fps);
+            break;
+        case SC_CONTROL_MSG_TYPE_SAVE_REPLAY:
+            LOG_CMSG("save replay \"%s\"", msg->save_replay.path);
+            break;
+        case SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT:
+            LOG_CMSG("capture screenshot %" PRIu64_ " %s quality=%u"
+                     " max_size=%u", msg->capture_screenshot.sequence,
+                     msg->capture_screenshot.format == SC_IMAGE_FORMAT_JPEG
+                        ? "jpeg" : "png",
+                     (unsigned) msg->capture_screenshot.quality,
+                     (unsigned) msg->capture_screenshot.max_size);
+            break;
+        case SC_CONTROL_MSG_TYPE_GET_LATENCY_STATS:
+            LOG_CMSG("get latency stats %" PRIu64_,
+                     msg->get_latency_stats.sequence);
+            break;
         default:
             LOG_CMSG("unknown type: %u", (unsigned) msg->type);
             break;
@@ -257,6 +303,9 @@ sc_control_msg_destroy(struct sc_control_msg *msg) {
         case SC_CONTROL_MSG_TYPE_SET_CLIPBOARD:
             free(msg->set_clipboard.text);
             break;
+        case SC_CONTROL_MSG_TYPE_SAVE_REPLAY:
+            free(msg->save_replay.path);
+            break;
         default:
             // do nothing
             break;
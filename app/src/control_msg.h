@@ -16,6 +16,7 @@
 #define SC_CONTROL_MSG_INJECT_TEXT_MAX_LENGTH 300
 // type: 1 byte; sequence: 8 bytes; paste flag: 1 byte; length: 4 bytes
 #define SC_CONTROL_MSG_CLIPBOARD_TEXT_MAX_LENGTH (SC_CONTROL_MSG_MAX_SIZE - 14)
+#define SC_CONTROL_MSG_REPLAY_PATH_MAX_LENGTH 4096
 
 #define POINTER_ID_MOUSE UINT64_C(-1)
 #define POINTER_ID_GENERIC_FINGER UINT64_C(-2)
@@ -37,6 +38,11 @@ enum sc_control_msg_type {
     SC_CONTROL_MSG_TYPE_SET_CLIPBOARD,
     SC_CONTROL_MSG_TYPE_SET_SCREEN_POWER_MODE,
     SC_CONTROL_MSG_TYPE_ROTATE_DEVICE,
+    SC_CONTROL_MSG_TYPE_REQUEST_KEY_FRAME,
+    SC_CONTROL_MSG_TYPE_SET_VIDEO_SETTINGS,
+    SC_CONTROL_MSG_TYPE_SAVE_REPLAY,
+    SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT,
+    SC_CONTROL_MSG_TYPE_GET_LATENCY_STATS,
 };
 
 enum sc_screen_power_mode {
@@ -45,6 +51,11 @@ enum sc_screen_power_mode {
     SC_SCREEN_POWER_MODE_NORMAL = 2,
 };
 
+enum sc_image_format {
+    SC_IMAGE_FORMAT_PNG,
+    SC_IMAGE_FORMAT_JPEG,
+};
+
 enum sc_copy_key {
     SC_COPY_KEY_NONE,
     SC_COPY_KEY_COPY,
@@ -92,6 +103,25 @@ struct sc_control_msg {
         struct {
             enum sc_screen_power_mode mode;
         } set_screen_power_mode;
+        struct {
+            // a negative value means unchanged
+            int32_t max_size;
+            int32_t bit_rate;
+            int32_t max_fps;
+        } set_video_settings;
+        struct {
+            // device path of the MP4 file, or empty for a default path
+            char *path; // owned, to be freed by free()
+        } save_replay;
+        struct {
+            uint64_t sequence; // returned in the screenshot device message
+            enum sc_image_format format;
+            uint8_t quality; // JPEG quality (1-100), or 0 for the default
+            uint16_t max_size; // 0 for the display size
+        } capture_screenshot;
+        struct {
+            uint64_t sequence; // returned in the latency stats device message
+        } get_latency_stats;
     };
 };
 
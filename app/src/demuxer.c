@@ -16,8 +16,9 @@
 
 #define SC_PACKET_FLAG_CONFIG    (UINT64_C(1) << 63)
 #define SC_PACKET_FLAG_KEY_FRAME (UINT64_C(1) << 62)
+#define SC_PACKET_FLAG_PARTIAL   (UINT64_C(1) << 61)
 
-#define SC_PACKET_PTS_MASK (SC_PACKET_FLAG_KEY_FRAME - 1)
+#define SC_PACKET_PTS_MASK (SC_PACKET_FLAG_PARTIAL - 1)
 
 static enum AVCodecID
 sc_demuxer_to_avcodec_id(uint32_t codec_id) {
@@ -72,6 +73,21 @@ sc_demuxer_recv_video_size(struct sc_demuxer *demuxer, uint32_t *width,
     return true;
 }
 
+static bool
+sc_demuxer_recv_header(struct sc_demuxer *demuxer, uint64_t *pts_flags,
+                       uint32_t *len) {
+    uint8_t header[SC_PACKET_HEADER_SIZE];
+    ssize_t r = net_recv_all(demuxer->socket, header, SC_PACKET_HEADER_SIZE);
+    if (r < SC_PACKET_HEADER_SIZE) {
+        return false;
+    }
+
+    *pts_flags = sc_read64be(header);
+    *len = sc_read32be(&header[8]);
+    assert(*len);
+    return true;
+}
+
 static bool
 sc_demuxer_recv_packet(struct sc_demuxer *demuxer, AVPacket *packet) {
     // The video stream contains raw packets, without time information. When we
@@ -89,33 +105,59 @@ sc_demuxer_recv_packet(struct sc_demuxer *demuxer, AVPacket *packet) {
     // The most significant bits of the PTS are used for packet flags:
     //
     //  byte 7   byte 6   byte 5   byte 4   byte 3   byte 2   byte 1   byte 0
-    // CK...... ........ ........ ........ ........ ........ ........ ........
-    // ^^<------------------------------------------------------------------->
-    // ||                                PTS
-    // | `- key frame
-    //  `-- config packet
+    // CKP..... ........ ........ ........ ........ ........ ........ ........
+    // ^^^<------------------------------------------------------------------>
+    // |||                               PTS
+    // || `- partial frame (more parts of the same frame follow)
+    // | `-- key frame
+    //  `--- config packet
+    //
+    // In low-latency mode, the server may write the parts of a frame as soon
+    // as the encoder outputs them. They are concatenated to form the packet.
 
-    uint8_t header[SC_PACKET_HEADER_SIZE];
-    ssize_t r = net_recv_all(demuxer->socket, header, SC_PACKET_HEADER_SIZE);
-    if (r < SC_PACKET_HEADER_SIZE) {
+    uint64_t pts_flags;
+    uint32_t len;
+    if (!sc_demuxer_recv_header(demuxer, &pts_flags, &len)) {
         return false;
     }
 
-    uint64_t pts_flags = sc_read64be(header);
-    uint32_t len = sc_read32be(&header[8]);
-    assert(len);
-
     if (av_new_packet(packet, len)) {
         LOG_OOM();
         return false;
     }
 
-    r = net_recv_all(demuxer->socket, packet->data, len);
+    ssize_t r = net_recv_all(demuxer->socket, packet->data, len);
     if (r < 0 || ((uint32_t) r) < len) {
         av_packet_unref(packet);
         return false;
     }
 
+    while (pts_flags & SC_PACKET_FLAG_PARTIAL) {
+        // The flags of the first part apply to the whole frame
+        uint64_t part_flags;
+        if (!sc_demuxer_recv_header(demuxer, &part_flags, &len)) {
+            av_packet_unref(packet);
+            return false;
+        }
+
+        int offset = packet->size;
+        if (av_grow_packet(packet, len)) {
+            LOG_OOM();
+            av_packet_unref(packet);
+            return false;
+        }
+
+        r = net_recv_all(demuxer->socket, packet->data + offset, len);
+        if (r < 0 || ((uint32_t) r) < len) {
+            av_packet_unref(packet);
+            return false;
+        }
+
+        if (!(part_flags & SC_PACKET_FLAG_PARTIAL)) {
+            pts_flags &= ~SC_PACKET_FLAG_PARTIAL;
+        }
+    }
+
     if (pts_flags & SC_PACKET_FLAG_CONFIG) {
         packet->pts = AV_NOPTS_VALUE;
     } else {
@@ -40,6 +40,66 @@ device_msg_deserialize(const unsigned char *buf, size_t len,
             msg->ack_clipboard.sequence = sequence;
             return 9;
         }
+        case DEVICE_MSG_TYPE_SCREENSHOT: {
+            if (len < DEVICE_MSG_SCREENSHOT_HEADER_LENGTH) {
+                return 0; // not available
+            }
+            size_t size = sc_read32be(&buf[14]);
+            if (size > DEVICE_MSG_SCREENSHOT_MAX_LENGTH) {
+                LOGW("Screenshot too large: %" SC_PRIsizet " bytes", size);
+                return -1;
+            }
+            if (size > len - DEVICE_MSG_SCREENSHOT_HEADER_LENGTH) {
+                return 0; // not available
+            }
+            uint8_t *data = NULL;
+            if (size) {
+                data = malloc(size);
+                if (!data) {
+                    LOG_OOM();
+                    return -1;
+                }
+                memcpy(data, &buf[DEVICE_MSG_SCREENSHOT_HEADER_LENGTH], size);
+            }
+
+            msg->screenshot.sequence = sc_read64be(&buf[1]);
+            msg->screenshot.format = buf[9];
+            msg->screenshot.width = sc_read16be(&buf[10]);
+            msg->screenshot.height = sc_read16be(&buf[12]);
+            msg->screenshot.data = data;
+            msg->screenshot.size = size;
+            return DEVICE_MSG_SCREENSHOT_HEADER_LENGTH + size;
+        }
+        case DEVICE_MSG_TYPE_LATENCY_STATS: {
+            if (len < DEVICE_MSG_LATENCY_STATS_HEADER_LENGTH) {
+                return 0; // not available
+            }
+            uint8_t stage_count = buf[9];
+            size_t size = DEVICE_MSG_LATENCY_STATS_HEADER_LENGTH
+                        + stage_count * DEVICE_MSG_LATENCY_STAGE_LENGTH;
+            if (len < size) {
+                return 0; // not available
+            }
+            if (stage_count > DEVICE_MSG_LATENCY_STAGE_MAX_COUNT) {
+                stage_count = DEVICE_MSG_LATENCY_STAGE_MAX_COUNT;
+            }
+
+            msg->latency_stats.sequence = sc_read64be(&buf[1]);
+            msg->latency_stats.stage_count = stage_count;
+            for (unsigned i = 0; i < stage_count; ++i) {
+                const unsigned char *stage =
+                    &buf[DEVICE_MSG_LATENCY_STATS_HEADER_LENGTH
+                         + i * DEVICE_MSG_LATENCY_STAGE_LENGTH];
+                struct device_msg_latency_summary *summary =
+                    &msg->latency_stats.stages[i];
+                summary->count = sc_read64be(stage);
+                summary->p50 = sc_read32be(&stage[8]);
+                summary->p90 = sc_read32be(&stage[12]);
+                summary->p99 = sc_read32be(&stage[16]);
+                summary->max = sc_read32be(&stage[20]);
+            }
+            return size;
+        }
         default:
             LOGW("Unknown device message type: %d", (int) msg->type);
             return -1; // error, we cannot recover
@@ -50,5 +110,7 @@ void
 device_msg_destroy(struct device_msg *msg) {
     if (msg->type == DEVICE_MSG_TYPE_CLIPBOARD) {
         free(msg->clipboard.text);
+    } else if (msg->type == DEVICE_MSG_TYPE_SCREENSHOT) {
+        free(msg->screenshot.data);
     }
 }
@@ -10,10 +10,39 @@
 #define DEVICE_MSG_MAX_SIZE (1 << 18) // 256k
 // type: 1 byte; length: 4 bytes
 #define DEVICE_MSG_TEXT_MAX_LENGTH (DEVICE_MSG_MAX_SIZE - 5)
+// screenshots may be larger than the other messages
+#define DEVICE_MSG_SCREENSHOT_MAX_SIZE (1 << 24) // 16M
+// type: 1 byte; sequence: 8 bytes; format: 1 byte; size: 4 bytes; length: 4 bytes
+#define DEVICE_MSG_SCREENSHOT_HEADER_LENGTH 18
+#define DEVICE_MSG_SCREENSHOT_MAX_LENGTH \
+    (DEVICE_MSG_SCREENSHOT_MAX_SIZE - DEVICE_MSG_SCREENSHOT_HEADER_LENGTH)
+// type: 1 byte; sequence: 8 bytes; stage count: 1 byte
+#define DEVICE_MSG_LATENCY_STATS_HEADER_LENGTH 10
+// count: 8 bytes; p50, p90, p99, max: 4 bytes each
+#define DEVICE_MSG_LATENCY_STAGE_LENGTH 24
+// encode, write, total (the following stages, if any, are ignored)
+#define DEVICE_MSG_LATENCY_STAGE_MAX_COUNT 3
 
 enum device_msg_type {
     DEVICE_MSG_TYPE_CLIPBOARD,
     DEVICE_MSG_TYPE_ACK_CLIPBOARD,
+    DEVICE_MSG_TYPE_SCREENSHOT,
+    DEVICE_MSG_TYPE_LATENCY_STATS,
+};
+
+enum device_msg_latency_stage {
+    DEVICE_MSG_LATENCY_STAGE_ENCODE,
+    DEVICE_MSG_LATENCY_STAGE_WRITE,
+    DEVICE_MSG_LATENCY_STAGE_TOTAL,
+};
+
+// latencies of the video frames, in microseconds
+struct device_msg_latency_summary {
+    uint64_t count;
+    uint32_t p50;
+    uint32_t p90;
+    uint32_t p99;
+    uint32_t max;
 };
 
 struct device_msg {
@@ -25,6 +54,20 @@ struct device_msg {
         struct {
             uint64_t sequence;
         } ack_clipboard;
+        struct {
+            uint64_t sequence; // of the capture request
+            uint8_t format; // enum sc_image_format
+            uint16_t width;
+            uint16_t height;
+            uint8_t *data; // owned, to be freed by free(), NULL on failure
+            size_t size; // 0 on failure
+        } screenshot;
+        struct {
+            uint64_t sequence; // of the request
+            uint8_t stage_count;
+            struct device_msg_latency_summary
+                stages[DEVICE_MSG_LATENCY_STAGE_MAX_COUNT];
+        } latency_stats;
     };
 };
 
@@ -47,6 +47,25 @@ process_msg(struct sc_receiver *receiver, struct device_msg *msg) {
                  msg->ack_clipboard.sequence);
             sc_acksync_ack(receiver->acksync, msg->ack_clipboard.sequence);
             break;
+        case DEVICE_MSG_TYPE_SCREENSHOT:
+            // Only requested by other clients of the control protocol
+            LOGD("Screenshot sequence=%" PRIu64_ ": %ux%u, %" SC_PRIsizet
+                 " bytes", msg->screenshot.sequence,
+                 (unsigned) msg->screenshot.width,
+                 (unsigned) msg->screenshot.height, msg->screenshot.size);
+            break;
+        case DEVICE_MSG_TYPE_LATENCY_STATS: {
+            static const char *const names[] = {"encode", "write", "total"};
+            for (unsigned i = 0; i < msg->latency_stats.stage_count; ++i) {
+                const struct device_msg_latency_summary *stage =
+                    &msg->latency_stats.stages[i];
+                LOGD("Latency %s: p50=%" PRIu32 "us p90=%" PRIu32 "us p99=%"
+                     PRIu32 "us max=%" PRIu32 "us (%" PRIu64_ " frames)",
+                     names[i], stage->p50, stage->p90, stage->p99,
+                     stage->max, stage->count);
+            }
+            break;
+        }
     }
 }
 
@@ -78,13 +97,14 @@ static int
 run_receiver(void *data) {
     struct sc_receiver *receiver = data;
 
-    static unsigned char buf[DEVICE_MSG_MAX_SIZE];
+    // large enough for the largest message (a screenshot)
+    static unsigned char buf[DEVICE_MSG_SCREENSHOT_MAX_SIZE];
     size_t head = 0;
 
     for (;;) {
-        assert(head < DEVICE_MSG_MAX_SIZE);
+        assert(head < DEVICE_MSG_SCREENSHOT_MAX_SIZE);
         ssize_t r = net_recv(receiver->control_socket, buf + head,
-                             DEVICE_MSG_MAX_SIZE - head);
+                             DEVICE_MSG_SCREENSHOT_MAX_SIZE - head);
         if (r <= 0) {
             LOGD("Receiver stopped");
             break;
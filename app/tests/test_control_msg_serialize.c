@@ -322,6 +322,108 @@ static void test_serialize_rotate_device(void) {
     assert(!memcmp(buf, expected, sizeof(expected)));
 }
 
+static void test_serialize_request_key_frame(void) {
+    struct sc_control_msg msg = {
+        .type = SC_CONTROL_MSG_TYPE_REQUEST_KEY_FRAME,
+    };
+
+    unsigned char buf[SC_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_control_msg_serialize(&msg, buf);
+    assert(size == 1);
+
+    const unsigned char expected[] = {
+        SC_CONTROL_MSG_TYPE_REQUEST_KEY_FRAME,
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_serialize_set_video_settings(void) {
+    struct sc_control_msg msg = {
+        .type = SC_CONTROL_MSG_TYPE_SET_VIDEO_SETTINGS,
+        .set_video_settings = {
+            .max_size = 1024,
+            .bit_rate = -1,
+            .max_fps = 30,
+        },
+    };
+
+    unsigned char buf[SC_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_control_msg_serialize(&msg, buf);
+    assert(size == 13);
+
+    const unsigned char expected[] = {
+        SC_CONTROL_MSG_TYPE_SET_VIDEO_SETTINGS,
+        0x00, 0x00, 0x04, 0x00, // 1024
+        0xff, 0xff, 0xff, 0xff, // -1 (unchanged)
+        0x00, 0x00, 0x00, 0x1e, // 30
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_serialize_save_replay(void) {
+    struct sc_control_msg msg = {
+        .type = SC_CONTROL_MSG_TYPE_SAVE_REPLAY,
+        .save_replay = {
+            .path = "/sdcard/a.mp4",
+        },
+    };
+
+    unsigned char buf[SC_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_control_msg_serialize(&msg, buf);
+    assert(size == 18);
+
+    const unsigned char expected[] = {
+        SC_CONTROL_MSG_TYPE_SAVE_REPLAY,
+        0x00, 0x00, 0x00, 0x0d, // path length
+        '/', 's', 'd', 'c', 'a', 'r', 'd', '/', 'a', '.', 'm', 'p', '4',
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_serialize_capture_screenshot(void) {
+    struct sc_control_msg msg = {
+        .type = SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT,
+        .capture_screenshot = {
+            .sequence = UINT64_C(0x0102030405060708),
+            .format = SC_IMAGE_FORMAT_JPEG,
+            .quality = 80,
+            .max_size = 1920,
+        },
+    };
+
+    unsigned char buf[SC_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_control_msg_serialize(&msg, buf);
+    assert(size == 13);
+
+    const unsigned char expected[] = {
+        SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT,
+        0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, // sequence
+        SC_IMAGE_FORMAT_JPEG,
+        80, // quality
+        0x07, 0x80, // max size
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_serialize_get_latency_stats(void) {
+    struct sc_control_msg msg = {
+        .type = SC_CONTROL_MSG_TYPE_GET_LATENCY_STATS,
+        .get_latency_stats = {
+            .sequence = UINT64_C(0x0102030405060708),
+        },
+    };
+
+    unsigned char buf[SC_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_control_msg_serialize(&msg, buf);
+    assert(size == 9);
+
+    const unsigned char expected[] = {
+        SC_CONTROL_MSG_TYPE_GET_LATENCY_STATS,
+        0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, // sequence
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
 int main(int argc, char *argv[]) {
     (void) argc;
     (void) argv;
@@ -340,5 +442,10 @@ int main(int argc, char *argv[]) {
     test_serialize_set_clipboard_long();
     test_serialize_set_screen_power_mode();
     test_serialize_rotate_device();
+    test_serialize_request_key_frame();
+    test_serialize_set_video_settings();
+    test_serialize_save_replay();
+    test_serialize_capture_screenshot();
+    test_serialize_get_latency_stats();
     return 0;
 }
@@ -61,6 +61,79 @@ static void test_deserialize_ack_set_clipboard(void) {
     assert(msg.ack_clipboard.sequence == UINT64_C(0x0102030405060708));
 }
 
+static void test_deserialize_screenshot(void) {
+    const unsigned char input[] = {
+        DEVICE_MSG_TYPE_SCREENSHOT,
+        0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, // sequence
+        0x01, // format
+        0x04, 0x38, 0x09, 0x60, // 1080x2400
+        0x00, 0x00, 0x00, 0x04, // length
+        0x89, 'P', 'N', 'G',
+    };
+
+    struct device_msg msg;
+    // incomplete
+    ssize_t r = device_msg_deserialize(input, sizeof(input) - 1, &msg);
+    assert(r == 0);
+
+    r = device_msg_deserialize(input, sizeof(input), &msg);
+    assert(r == 22);
+
+    assert(msg.type == DEVICE_MSG_TYPE_SCREENSHOT);
+    assert(msg.screenshot.sequence == UINT64_C(0x0102030405060708));
+    assert(msg.screenshot.format == 1);
+    assert(msg.screenshot.width == 1080);
+    assert(msg.screenshot.height == 2400);
+    assert(msg.screenshot.size == 4);
+    assert(!memcmp(msg.screenshot.data, "\x89PNG", 4));
+
+    device_msg_destroy(&msg);
+}
+
+static void test_deserialize_latency_stats(void) {
+    const unsigned char input[] = {
+        DEVICE_MSG_TYPE_LATENCY_STATS,
+        0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, // sequence
+        0x02, // stage count
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, // count
+        0x00, 0x00, 0x27, 0x10, // p50
+        0x00, 0x00, 0x3A, 0x98, // p90
+        0x00, 0x00, 0x4E, 0x20, // p99
+        0x00, 0x01, 0x86, 0xA0, // max
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, // count
+        0x00, 0x00, 0x03, 0xE8, // p50
+        0x00, 0x00, 0x07, 0xD0, // p90
+        0x00, 0x00, 0x0B, 0xB8, // p99
+        0x00, 0x00, 0x0F, 0xA0, // max
+    };
+
+    struct device_msg msg;
+    // incomplete
+    ssize_t r = device_msg_deserialize(input, sizeof(input) - 1, &msg);
+    assert(r == 0);
+
+    r = device_msg_deserialize(input, sizeof(input), &msg);
+    assert(r == 58);
+
+    assert(msg.type == DEVICE_MSG_TYPE_LATENCY_STATS);
+    assert(msg.latency_stats.sequence == UINT64_C(0x0102030405060708));
+    assert(msg.latency_stats.stage_count == 2);
+    const struct device_msg_latency_summary *encode =
+        &msg.latency_stats.stages[DEVICE_MSG_LATENCY_STAGE_ENCODE];
+    assert(encode->count == 256);
+    assert(encode->p50 == 10000);
+    assert(encode->p90 == 15000);
+    assert(encode->p99 == 20000);
+    assert(encode->max == 100000);
+    const struct device_msg_latency_summary *write =
+        &msg.latency_stats.stages[DEVICE_MSG_LATENCY_STAGE_WRITE];
+    assert(write->count == 256);
+    assert(write->p50 == 1000);
+    assert(write->max == 4000);
+
+    device_msg_destroy(&msg);
+}
+
 int main(int argc, char *argv[]) {
     (void) argc;
     (void) argv;
@@ -68,5 +141,7 @@ int main(int argc, char *argv[]) {
     test_deserialize_clipboard();
     test_deserialize_clipboard_big();
     test_deserialize_ack_set_clipboard();
+    test_deserialize_screenshot();
+    test_deserialize_latency_stats();
     return 0;
 }
@@ -0,0 +1,126 @@
+package com.genymobile.scrcpy;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Benchmark of the packet writes (syscalls per packet and per second), executed on the device.
+ * <p>
+ * It is not part of the server: it is built separately, and loaded with the server classes:
+ *
+ * <pre>
+ * ./gradlew :server:benchmarkJar
+ * adb push scrcpy-server /data/local/tmp/scrcpy-server.jar
+ * adb push server/build/benchmark/scrcpy-benchmark.jar /data/local/tmp/
+ * adb shell CLASSPATH=/data/local/tmp/scrcpy-server.jar:/data/local/tmp/scrcpy-benchmark.jar app_process / \
+ *     com.genymobile.scrcpy.WriteBenchmark
+ * </pre>
+ *
+ * The packets are written to a local socket pair, drained by another thread. Each workload is written:
+ * <ul>
+ * <li>with separate writes for the frame meta and the packet (the previous behavior);</li>
+ * <li>with a single gather write per packet;</li>
+ * <li>with a single gather write per packet, and coalescing of the small packets.</li>
+ * </ul>
+ */
+public final class WriteBenchmark {
+
+    private static final int PACKET_COUNT = 20_000;
+    private static final long COALESCE_WINDOW_US = 20_000;
+
+    private static final int MODE_SEPARATE = 0;
+    private static final int MODE_GATHER = 1;
+    private static final int MODE_COALESCE = 2;
+    private static final String[] MODE_NAMES = {"separate writes", "gather write", "gather write + coalescing"};
+
+    private WriteBenchmark() {
+        // not instantiable
+    }
+
+    public static void main(String... args) throws Exception {
+        // 5 ms Opus packets (about 160 bytes at 256 kbps), and video packets
+        runWorkload("audio 5 ms, 160 bytes", 160, 5_000);
+        runWorkload("video 60 fps, 20000 bytes", 20_000, 16_667);
+    }
+
+    private static void runWorkload(String name, int packetSize, long ptsStepUs) throws Exception {
+        System.out.println(name + ":");
+        for (int mode = MODE_SEPARATE; mode <= MODE_COALESCE; ++mode) {
+            run(mode, packetSize, ptsStepUs);
+        }
+    }
+
+    private static void run(int mode, int packetSize, long ptsStepUs) throws Exception {
+        FileDescriptor writeFd = new FileDescriptor();
+        FileDescriptor readFd = new FileDescriptor();
+        Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_STREAM, 0, writeFd, readFd);
+
+        Thread drainer = new Thread(() -> drain(readFd), "drainer");
+        drainer.start();
+
+        ByteBuffer packet = ByteBuffer.allocateDirect(packetSize);
+        long syscalls;
+        long start = System.nanoTime();
+        try {
+            if (mode == MODE_SEPARATE) {
+                syscalls = writeSeparately(writeFd, packet, ptsStepUs);
+            } else {
+                Streamer streamer = new Streamer(writeFd, AudioCodec.OPUS, false, true);
+                if (mode == MODE_COALESCE) {
+                    streamer.enableCoalescing(COALESCE_WINDOW_US);
+                }
+                for (int i = 0; i < PACKET_COUNT; ++i) {
+                    packet.clear();
+                    streamer.writePacket(packet, i * ptsStepUs, false, false);
+                }
+                streamer.flushCoalesced();
+                syscalls = streamer.getSyscallCount();
+            }
+        } finally {
+            Os.shutdown(writeFd, OsConstants.SHUT_WR);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        drainer.join();
+        Os.close(writeFd);
+        Os.close(readFd);
+
+        float perPacket = (float) syscalls / PACKET_COUNT;
+        float realtimeSyscallsPerSecond = perPacket * 1_000_000f / ptsStepUs;
+        System.out.println(String.format(Locale.US, "  %-26s %d packets in %d ms, %d syscalls (%.0f/s), %.2f per packet, %.0f/s in real time",
+                MODE_NAMES[mode], PACKET_COUNT, elapsedNs / 1_000_000, syscalls, syscalls * 1e9 / elapsedNs, perPacket,
+                realtimeSyscallsPerSecond));
+    }
+
+    private static long writeSeparately(FileDescriptor fd, ByteBuffer packet, long ptsStepUs) throws IOException {
+        GatherWriter writer = new GatherWriter(fd, 1);
+        ByteBuffer header = ByteBuffer.allocate(12);
+        for (int i = 0; i < PACKET_COUNT; ++i) {
+            header.clear();
+            Streamer.putFrameMeta(header, packet.capacity(), i * ptsStepUs, false, false);
+            header.flip();
+            writer.add(header);
+            writer.flush();
+            packet.clear();
+            writer.add(packet);
+            writer.flush();
+        }
+        return writer.getSyscallCount();
+    }
+
+    private static void drain(FileDescriptor fd) {
+        byte[] buffer = new byte[256 * 1024];
+        try {
+            while (Os.read(fd, buffer, 0, buffer.length) > 0) {
+                // discard
+            }
+        } catch (ErrnoException | IOException e) {
+            System.err.println("Drain error: " + e.getMessage());
+        }
+    }
+}
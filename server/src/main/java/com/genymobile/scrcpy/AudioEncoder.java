@@ -13,6 +13,7 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public final class AudioEncoder implements AsyncProcessor {
 
@@ -104,7 +105,19 @@ public final class AudioEncoder implements AsyncProcessor {
         streamer.writeAudioHeader();
 
         while (!Thread.currentThread().isInterrupted()) {
-            OutputTask task = outputTasks.take();
+            OutputTask task;
+            long deadlineNs = streamer.getCoalescingDeadlineNs();
+            if (deadlineNs != -1) {
+                // Do not hold the coalesced packets beyond the window if the stream pauses
+                long timeoutNs = deadlineNs - System.nanoTime();
+                task = timeoutNs > 0 ? outputTasks.poll(timeoutNs, TimeUnit.NANOSECONDS) : null;
+                if (task == null) {
+                    streamer.flushCoalesced();
+                    continue;
+                }
+            } else {
+                task = outputTasks.take();
+            }
             ByteBuffer buffer = mediaCodec.getOutputBuffer(task.index);
             try {
                 streamer.writePacket(buffer, task.bufferInfo);
@@ -123,7 +136,7 @@ public final class AudioEncoder implements AsyncProcessor {
             } catch (IOException e) {
                 Ln.e("Audio encoding error", e);
             } finally {
-                Ln.d("Audio encoder stopped");
+                Ln.d("Audio encoder stopped (" + streamer.getPacketCount() + " packets, " + streamer.getSyscallCount() + " write syscalls)");
             }
         });
         thread.start();
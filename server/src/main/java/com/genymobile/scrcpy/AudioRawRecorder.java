@@ -55,7 +55,7 @@ public final class AudioRawRecorder implements AsyncProcessor {
             } catch (IOException e) {
                 Ln.e("Audio recording error", e);
             } finally {
-                Ln.d("Audio recorder stopped");
+                Ln.d("Audio recorder stopped (" + streamer.getPacketCount() + " packets, " + streamer.getSyscallCount() + " write syscalls)");
             }
         });
         thread.start();
@@ -0,0 +1,39 @@
+package com.genymobile.scrcpy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Per-session token required from the clients of the network transports (WebSocket and direct TCP), which are not protected by adb.
+ */
+public final class AuthToken {
+
+    private AuthToken() {
+        // not instantiable
+    }
+
+    /**
+     * Return the token of the session: the {@code auth_token} option if set, else the scid (8 hex digits, as formatted by the client), or
+     * {@code null} if there is none.
+     * <p>
+     * The scid is only accepted for the servers listening on a loopback address: a server reachable from the network requires an explicit
+     * {@code auth_token}.
+     */
+    public static String get(Options options) {
+        if (options.getAuthToken() != null) {
+            return options.getAuthToken();
+        }
+        int scid = options.getScid();
+        return scid != -1 ? String.format("%08x", scid) : null;
+    }
+
+    /**
+     * Compare a token received from a client to the expected one, in constant time.
+     */
+    public static boolean matches(String expected, String actual) {
+        if (actual == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+    }
+}
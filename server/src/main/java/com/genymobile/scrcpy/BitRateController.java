@@ -0,0 +1,125 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Adapt the video bit rate to the throughput of the connection.
+ * <p>
+ * The congestion is detected from the time spent blocked writing to the socket and from the amount of encoded data waiting to be
+ * written. The bit rate is decreased multiplicatively on congestion, and increased additively once the connection has been stable for a
+ * while.
+ */
+public final class BitRateController {
+
+    private static final long WINDOW_NS = 500_000_000; // 500ms
+
+    // Congested if the writer was blocked more than this ratio of the window
+    private static final float CONGESTED_BLOCKED_RATIO = 0.3f;
+    // Stable if the writer was blocked less than this ratio of the window
+    private static final float STABLE_BLOCKED_RATIO = 0.1f;
+    // Congested if the pending data exceeds this duration at the current bit rate
+    private static final int CONGESTED_PENDING_MS = 150;
+
+    private static final float DECREASE_FACTOR = 0.75f;
+    private static final int INCREASE_STEPS = 20; // from min to max
+    private static final int STABLE_WINDOWS_BEFORE_INCREASE = 4;
+
+    private int minBitRate;
+    private int maxBitRate;
+    private volatile int bitRate; // read from other threads to report the current value
+
+    private long windowStartNs = -1;
+    private long windowStartBlockedNs;
+    private int windowMaxPendingBytes;
+    private int stableWindows;
+
+    public BitRateController(int initialBitRate, int minBitRate, int maxBitRate) {
+        if (minBitRate <= 0 || maxBitRate < minBitRate) {
+            throw new IllegalArgumentException("Invalid bit rate bounds: [" + minBitRate + ", " + maxBitRate + "]");
+        }
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.bitRate = clamp(initialBitRate);
+    }
+
+    private int clamp(int value) {
+        return Math.max(minBitRate, Math.min(maxBitRate, value));
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public synchronized int getMinBitRate() {
+        return minBitRate;
+    }
+
+    public synchronized int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    /**
+     * Change the upper bound of the bit rate (the lower bound is decreased if necessary).
+     */
+    public synchronized void setMaxBitRate(int newMaxBitRate) {
+        maxBitRate = newMaxBitRate;
+        if (minBitRate > newMaxBitRate) {
+            minBitRate = newMaxBitRate;
+        }
+        bitRate = clamp(bitRate);
+    }
+
+    /**
+     * Notify that a packet has been written.
+     *
+     * @param nowNs the current time (in {@link System#nanoTime()} base)
+     * @param totalBlockedNs the total time spent blocked writing packets since the beginning of the stream
+     * @param pendingBytes the amount of encoded data waiting to be written
+     * @return the new bit rate if it must be changed, or 0 if it must be kept as is
+     */
+    public synchronized int onPacketWritten(long nowNs, long totalBlockedNs, int pendingBytes) {
+        if (windowStartNs == -1) {
+            startWindow(nowNs, totalBlockedNs);
+        }
+
+        if (pendingBytes > windowMaxPendingBytes) {
+            windowMaxPendingBytes = pendingBytes;
+        }
+
+        long elapsedNs = nowNs - windowStartNs;
+        if (elapsedNs < WINDOW_NS) {
+            return 0;
+        }
+
+        float blockedRatio = (float) (totalBlockedNs - windowStartBlockedNs) / elapsedNs;
+        long pendingLimitBytes = (long) bitRate / 8 * CONGESTED_PENDING_MS / 1000;
+        boolean congested = blockedRatio > CONGESTED_BLOCKED_RATIO || windowMaxPendingBytes > pendingLimitBytes;
+        boolean stable = blockedRatio < STABLE_BLOCKED_RATIO && windowMaxPendingBytes < pendingLimitBytes / 4;
+
+        startWindow(nowNs, totalBlockedNs);
+
+        int newBitRate = bitRate;
+        if (congested) {
+            stableWindows = 0;
+            newBitRate = clamp((int) (bitRate * DECREASE_FACTOR));
+        } else if (stable) {
+            if (++stableWindows >= STABLE_WINDOWS_BEFORE_INCREASE) {
+                stableWindows = 0;
+                newBitRate = clamp(bitRate + Math.max(1, (maxBitRate - minBitRate) / INCREASE_STEPS));
+            }
+        } else {
+            stableWindows = 0;
+        }
+
+        if (newBitRate == bitRate) {
+            return 0;
+        }
+
+        bitRate = newBitRate;
+        return newBitRate;
+    }
+
+    private void startWindow(long nowNs, long totalBlockedNs) {
+        windowStartNs = nowNs;
+        windowStartBlockedNs = totalBlockedNs;
+        windowMaxPendingBytes = 0;
+    }
+}
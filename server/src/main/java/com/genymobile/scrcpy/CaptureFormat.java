@@ -0,0 +1,38 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Format of a capture file, containing the data written by a {@link Streamer} and the time it was written (see {@link CaptureWriter}).
+ * <p>
+ * Format (big-endian):
+ *
+ * <pre>
+ *     header:  "SCRCPCAP" [version: u32] [wall-clock start time in ms: u64]
+ *     records: [time in ns since the start: u64] [flags: u8] [length: u32] [data: length bytes]
+ *     index:   [count: u32] count * ([record offset: u64] [offset of the last config record, or -1: u64] [time in ns: u64])
+ *     trailer: [index offset: u64] "SCRCPIDX"
+ * </pre>
+ *
+ * The concatenation of the record data is exactly the stream written to the socket (codec meta, frame meta and packets). The index lists
+ * the key frame records; it is written on close, so a capture interrupted abruptly has no index, but its records can still be read.
+ * <p>
+ * The capture files are read by the replay tool (in {@code src/replay}), which is not part of the server, and shares only this class.
+ */
+public final class CaptureFormat {
+
+    public static final long MAGIC = 0x5343524350434150L; // "SCRCPCAP" in ASCII
+    public static final long INDEX_MAGIC = 0x5343524350494458L; // "SCRCPIDX" in ASCII
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 20;
+    public static final int RECORD_HEADER_SIZE = 13;
+    public static final int INDEX_ENTRY_SIZE = 24;
+    public static final int TRAILER_SIZE = 16;
+
+    public static final int FLAG_META = 1; // codec meta or disable code
+    public static final int FLAG_CONFIG = 2;
+    public static final int FLAG_KEY_FRAME = 4;
+
+    private CaptureFormat() {
+        // not instantiable
+    }
+}
@@ -0,0 +1,241 @@
+package com.genymobile.scrcpy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Write a capture file (see {@link CaptureFormat}) of the data written by a {@link Streamer}, with the time it was written.
+ * <p>
+ * The records are copied into a bounded queue, and written to the file by a dedicated thread: the streaming thread never waits for the
+ * storage. If the storage is too slow and the queue is full, the records are dropped (and counted) until the next key frame.
+ */
+public final class CaptureWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    private static final class Record {
+        private long timeNs;
+        private int flags;
+        private byte[] data = new byte[0];
+        private int length;
+    }
+
+    private final int maxPendingBytes;
+    private final long startNs;
+    private final Thread thread;
+
+    // Only accessed by the writer thread (then by close() once it has terminated)
+    private final DataOutputStream out;
+    private long offset;
+    private long lastConfigOffset = -1;
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private final DataOutputStream indexOut = new DataOutputStream(index);
+    private int indexCount;
+
+    // All the fields below are accessed with the lock held
+    private final ArrayDeque<Record> pending = new ArrayDeque<>();
+    private final ArrayDeque<Record> recycled = new ArrayDeque<>();
+    private int pendingBytes; // queued or being written
+    private boolean waitKeyFrame; // a record has been dropped, the following ones could not be decoded
+    private long droppedRecords;
+    private IOException error; // the writer thread failed
+    private boolean started;
+    private boolean closed;
+
+    public CaptureWriter(File file) throws IOException {
+        this(file, System.nanoTime(), DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param startNs         the start of the capture, in the {@link System#nanoTime()} time base
+     * @param maxPendingBytes the maximum size of the records not written yet
+     */
+    CaptureWriter(File file, long startNs, int maxPendingBytes) throws IOException {
+        this.maxPendingBytes = maxPendingBytes;
+        this.startNs = startNs;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        out.writeLong(CaptureFormat.MAGIC);
+        out.writeInt(CaptureFormat.VERSION);
+        out.writeLong(System.currentTimeMillis());
+        offset = CaptureFormat.HEADER_SIZE;
+        thread = new Thread(this::runWriter, "capture-writer");
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        started = true;
+        thread.start();
+    }
+
+    /**
+     * Queue a record containing the concatenation of the remaining bytes of the parts (the {@code null} parts are ignored).
+     * <p>
+     * The data is copied: the positions of the parts are not modified, and the buffers may be reused as soon as this method returns.
+     *
+     * @param timeNs the time at which the data is written, in the {@link System#nanoTime()} time base
+     * @param flags a combination of {@link CaptureFormat#FLAG_META}, {@link CaptureFormat#FLAG_CONFIG} and {@link CaptureFormat#FLAG_KEY_FRAME}
+     * @throws IOException if the writer thread failed to write the file
+     */
+    public synchronized void writeRecord(long timeNs, int flags, ByteBuffer... parts) throws IOException {
+        if (error != null) {
+            throw new IOException("Could not write the capture file", error);
+        }
+        if (closed) {
+            throw new IOException("Capture file closed");
+        }
+
+        boolean keyFrame = (flags & CaptureFormat.FLAG_KEY_FRAME) != 0;
+        if (waitKeyFrame && !keyFrame && (flags & (CaptureFormat.FLAG_META | CaptureFormat.FLAG_CONFIG)) == 0) {
+            ++droppedRecords;
+            return;
+        }
+
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            if (part != null) {
+                length += part.remaining();
+            }
+        }
+
+        if (pendingBytes + length > maxPendingBytes) {
+            ++droppedRecords;
+            waitKeyFrame = true;
+            return;
+        }
+        if (keyFrame) {
+            waitKeyFrame = false;
+        }
+
+        Record record = recycled.poll();
+        if (record == null) {
+            record = new Record();
+        }
+        if (record.data.length < length) {
+            record.data = new byte[length];
+        }
+        int position = 0;
+        for (ByteBuffer part : parts) {
+            if (part != null) {
+                int size = part.remaining();
+                part.duplicate().get(record.data, position, size);
+                position += size;
+            }
+        }
+        record.timeNs = Math.max(timeNs - startNs, 0);
+        record.flags = flags;
+        record.length = length;
+
+        pending.add(record);
+        pendingBytes += length;
+        notify();
+    }
+
+    /**
+     * Return the number of records dropped because the queue was full (or because they followed a dropped record).
+     */
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                Record record;
+                synchronized (this) {
+                    while (pending.isEmpty() && !closed) {
+                        wait();
+                    }
+                    record = pending.poll();
+                }
+                if (record == null) {
+                    // Closed, and all the records have been written
+                    break;
+                }
+
+                write(record);
+
+                synchronized (this) {
+                    pendingBytes -= record.length;
+                    recycled.add(record);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                error = e;
+                pending.clear();
+            }
+        } catch (InterruptedException e) {
+            // stop
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        out.writeLong(record.timeNs);
+        out.writeByte(record.flags);
+        out.writeInt(record.length);
+        out.write(record.data, 0, record.length);
+
+        if ((record.flags & CaptureFormat.FLAG_CONFIG) != 0) {
+            lastConfigOffset = offset;
+        }
+        if ((record.flags & CaptureFormat.FLAG_KEY_FRAME) != 0) {
+            indexOut.writeLong(offset);
+            indexOut.writeLong(lastConfigOffset);
+            indexOut.writeLong(record.timeNs);
+            ++indexCount;
+        }
+        offset += CaptureFormat.RECORD_HEADER_SIZE + record.length;
+    }
+
+    /**
+     * Write the pending records and the index, then close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        boolean join;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            join = started;
+            notify();
+        }
+
+        try {
+            if (join) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing the capture file", e);
+                }
+            }
+
+            IOException e;
+            synchronized (this) {
+                e = error;
+            }
+            if (e != null) {
+                throw e;
+            }
+
+            out.writeInt(indexCount);
+            index.writeTo(out);
+            out.writeLong(offset);
+            out.writeLong(CaptureFormat.INDEX_MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.genymobile.scrcpy;
+
+import java.io.IOException;
+
+/**
+ * Bidirectional channel with a client controlling the device.
+ */
+public interface ControlChannel {
+    /**
+     * Wait for the next control message.
+     */
+    ControlMessage receiveControlMessage() throws IOException;
+
+    void sendDeviceMessage(DeviceMessage msg) throws IOException;
+}
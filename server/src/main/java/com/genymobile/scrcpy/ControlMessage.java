@@ -17,9 +17,20 @@ public final class ControlMessage {
     public static final int TYPE_SET_CLIPBOARD = 9;
     public static final int TYPE_SET_SCREEN_POWER_MODE = 10;
     public static final int TYPE_ROTATE_DEVICE = 11;
+    public static final int TYPE_REQUEST_KEY_FRAME = 12;
+    public static final int TYPE_SET_VIDEO_SETTINGS = 13;
+    public static final int TYPE_SAVE_REPLAY = 14;
+    public static final int TYPE_CAPTURE_SCREENSHOT = 15;
+    public static final int TYPE_GET_LATENCY_STATS = 16;
 
     public static final long SEQUENCE_INVALID = 0;
 
+    // For TYPE_SET_VIDEO_SETTINGS, a negative value means that the setting must not be changed
+    public static final int VIDEO_SETTING_UNCHANGED = -1;
+
+    public static final int IMAGE_FORMAT_PNG = 0;
+    public static final int IMAGE_FORMAT_JPEG = 1;
+
     public static final int COPY_KEY_NONE = 0;
     public static final int COPY_KEY_COPY = 1;
     public static final int COPY_KEY_CUT = 2;
@@ -40,6 +51,11 @@ public final class ControlMessage {
     private boolean paste;
     private int repeat;
     private long sequence;
+    private int maxSize;
+    private int videoBitRate;
+    private int maxFps;
+    private int imageFormat; // IMAGE_FORMAT_*
+    private int quality;
 
     private ControlMessage() {
     }
@@ -117,6 +133,55 @@ public final class ControlMessage {
         return msg;
     }
 
+    /**
+     * @param maxSize the new max size, or {@link #VIDEO_SETTING_UNCHANGED}
+     * @param videoBitRate the new video bit rate, or {@link #VIDEO_SETTING_UNCHANGED}
+     * @param maxFps the new max fps, or {@link #VIDEO_SETTING_UNCHANGED}
+     */
+    public static ControlMessage createSetVideoSettings(int maxSize, int videoBitRate, int maxFps) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_SET_VIDEO_SETTINGS;
+        msg.maxSize = maxSize;
+        msg.videoBitRate = videoBitRate;
+        msg.maxFps = maxFps;
+        return msg;
+    }
+
+    /**
+     * @param path the device path of the MP4 file, or an empty string for a default path
+     */
+    public static ControlMessage createSaveReplay(String path) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_SAVE_REPLAY;
+        msg.text = path;
+        return msg;
+    }
+
+    /**
+     * @param imageFormat the compression format, {@link #IMAGE_FORMAT_PNG} or {@link #IMAGE_FORMAT_JPEG}
+     * @param quality the JPEG quality (1-100), or 0 for the default
+     * @param maxSize the max size of the image, or 0 for the display size
+     */
+    public static ControlMessage createCaptureScreenshot(long sequence, int imageFormat, int quality, int maxSize) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_CAPTURE_SCREENSHOT;
+        msg.sequence = sequence;
+        msg.imageFormat = imageFormat;
+        msg.quality = quality;
+        msg.maxSize = maxSize;
+        return msg;
+    }
+
+    /**
+     * @param sequence the sequence number, copied to the {@link DeviceMessage#TYPE_LATENCY_STATS} reply
+     */
+    public static ControlMessage createGetLatencyStats(long sequence) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_GET_LATENCY_STATS;
+        msg.sequence = sequence;
+        return msg;
+    }
+
     public static ControlMessage createEmpty(int type) {
         ControlMessage msg = new ControlMessage();
         msg.type = type;
@@ -186,4 +251,24 @@ public final class ControlMessage {
     public long getSequence() {
         return sequence;
     }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getVideoBitRate() {
+        return videoBitRate;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public int getImageFormat() {
+        return imageFormat;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
 }
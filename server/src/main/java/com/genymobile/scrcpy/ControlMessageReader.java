@@ -15,6 +15,9 @@ public class ControlMessageReader {
     static final int SET_SCREEN_POWER_MODE_PAYLOAD_LENGTH = 1;
     static final int GET_CLIPBOARD_LENGTH = 1;
     static final int SET_CLIPBOARD_FIXED_PAYLOAD_LENGTH = 9;
+    static final int SET_VIDEO_SETTINGS_PAYLOAD_LENGTH = 12;
+    static final int CAPTURE_SCREENSHOT_PAYLOAD_LENGTH = 12;
+    static final int GET_LATENCY_STATS_PAYLOAD_LENGTH = 8;
 
     private static final int MESSAGE_MAX_SIZE = 1 << 18; // 256k
 
@@ -47,6 +50,25 @@ public class ControlMessageReader {
         buffer.flip();
     }
 
+    /**
+     * Return the number of bytes which may be appended by {@link #readFrom(ByteBuffer)}.
+     */
+    public int getFreeSpace() {
+        return rawBuffer.length - buffer.remaining();
+    }
+
+    /**
+     * Append the bytes received from a source which is not a stream (for example a WebSocket message).
+     */
+    public void readFrom(ByteBuffer input) {
+        if (input.remaining() > getFreeSpace()) {
+            throw new IllegalStateException("Not enough space, call next() to consume");
+        }
+        buffer.compact();
+        buffer.put(input);
+        buffer.flip();
+    }
+
     public ControlMessage next() {
         if (!buffer.hasRemaining()) {
             return null;
@@ -80,10 +102,23 @@ public class ControlMessageReader {
             case ControlMessage.TYPE_SET_SCREEN_POWER_MODE:
                 msg = parseSetScreenPowerMode();
                 break;
+            case ControlMessage.TYPE_SET_VIDEO_SETTINGS:
+                msg = parseSetVideoSettings();
+                break;
+            case ControlMessage.TYPE_SAVE_REPLAY:
+                msg = parseSaveReplay();
+                break;
+            case ControlMessage.TYPE_CAPTURE_SCREENSHOT:
+                msg = parseCaptureScreenshot();
+                break;
+            case ControlMessage.TYPE_GET_LATENCY_STATS:
+                msg = parseGetLatencyStats();
+                break;
             case ControlMessage.TYPE_EXPAND_NOTIFICATION_PANEL:
             case ControlMessage.TYPE_EXPAND_SETTINGS_PANEL:
             case ControlMessage.TYPE_COLLAPSE_PANELS:
             case ControlMessage.TYPE_ROTATE_DEVICE:
+            case ControlMessage.TYPE_REQUEST_KEY_FRAME:
                 msg = ControlMessage.createEmpty(type);
                 break;
             default:
@@ -193,6 +228,43 @@ public class ControlMessageReader {
         return ControlMessage.createSetScreenPowerMode(mode);
     }
 
+    private ControlMessage parseSetVideoSettings() {
+        if (buffer.remaining() < SET_VIDEO_SETTINGS_PAYLOAD_LENGTH) {
+            return null;
+        }
+        int maxSize = buffer.getInt();
+        int videoBitRate = buffer.getInt();
+        int maxFps = buffer.getInt();
+        return ControlMessage.createSetVideoSettings(maxSize, videoBitRate, maxFps);
+    }
+
+    private ControlMessage parseSaveReplay() {
+        String path = parseString();
+        if (path == null) {
+            return null;
+        }
+        return ControlMessage.createSaveReplay(path);
+    }
+
+    private ControlMessage parseCaptureScreenshot() {
+        if (buffer.remaining() < CAPTURE_SCREENSHOT_PAYLOAD_LENGTH) {
+            return null;
+        }
+        long sequence = buffer.getLong();
+        int imageFormat = Binary.toUnsigned(buffer.get());
+        int quality = Binary.toUnsigned(buffer.get());
+        int maxSize = Binary.toUnsigned(buffer.getShort());
+        return ControlMessage.createCaptureScreenshot(sequence, imageFormat, quality, maxSize);
+    }
+
+    private ControlMessage parseGetLatencyStats() {
+        if (buffer.remaining() < GET_LATENCY_STATS_PAYLOAD_LENGTH) {
+            return null;
+        }
+        long sequence = buffer.getLong();
+        return ControlMessage.createGetLatencyStats(sequence);
+    }
+
     private static Position readPosition(ByteBuffer buffer) {
         int x = buffer.getInt();
         int y = buffer.getInt();
@@ -27,7 +27,8 @@ public class Controller implements AsyncProcessor {
     private Thread thread;
 
     private final Device device;
-    private final DesktopConnection connection;
+    private final ControlChannel connection;
+    private final ScreenEncoder screenEncoder;
     private final DeviceMessageSender sender;
     private final boolean clipboardAutosync;
     private final boolean powerOn;
@@ -41,15 +42,27 @@ public class Controller implements AsyncProcessor {
 
     private boolean keepPowerModeOff;
 
-    public Controller(Device device, DesktopConnection connection, boolean clipboardAutosync, boolean powerOn) {
+    private ReplayBuffer replayBuffer; // null if disabled
+    private ScreenCapture screenCapture; // null if disabled
+
+    public Controller(Device device, ControlChannel connection, ScreenEncoder screenEncoder, boolean clipboardAutosync, boolean powerOn) {
         this.device = device;
         this.connection = connection;
+        this.screenEncoder = screenEncoder;
         this.clipboardAutosync = clipboardAutosync;
         this.powerOn = powerOn;
         initPointers();
         sender = new DeviceMessageSender(connection);
     }
 
+    public void setReplayBuffer(ReplayBuffer replayBuffer) {
+        this.replayBuffer = replayBuffer;
+    }
+
+    public void setScreenCapture(ScreenCapture screenCapture) {
+        this.screenCapture = screenCapture;
+    }
+
     private void initPointers() {
         for (int i = 0; i < PointersState.MAX_POINTERS; ++i) {
             MotionEvent.PointerProperties props = new MotionEvent.PointerProperties();
@@ -172,6 +185,28 @@ public class Controller implements AsyncProcessor {
             case ControlMessage.TYPE_ROTATE_DEVICE:
                 Device.rotateDevice();
                 break;
+            case ControlMessage.TYPE_REQUEST_KEY_FRAME:
+                screenEncoder.requestKeyFrame();
+                break;
+            case ControlMessage.TYPE_SET_VIDEO_SETTINGS:
+                screenEncoder.setVideoSettings(msg.getMaxSize(), msg.getVideoBitRate(), msg.getMaxFps());
+                break;
+            case ControlMessage.TYPE_SAVE_REPLAY:
+                if (replayBuffer != null) {
+                    replayBuffer.save(msg.getText());
+                } else {
+                    Ln.w("Replay buffer disabled, enable it with replay_buffer");
+                }
+                break;
+            case ControlMessage.TYPE_CAPTURE_SCREENSHOT:
+                if (screenCapture != null) {
+                    // Captured asynchronously, the controller keeps handling the events meanwhile
+                    screenCapture.capture(msg, sender);
+                }
+                break;
+            case ControlMessage.TYPE_GET_LATENCY_STATS:
+                sender.pushLatencyStats(DeviceMessage.createLatencyStats(msg.getSequence(), screenEncoder.getLatencyStats()));
+                break;
             default:
                 // do nothing
         }
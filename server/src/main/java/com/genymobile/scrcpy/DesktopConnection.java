@@ -3,37 +3,137 @@ package com.genymobile.scrcpy;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 
 import java.io.Closeable;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
-public final class DesktopConnection implements Closeable {
+public final class DesktopConnection implements ControlChannel, Closeable {
 
     private static final int DEVICE_NAME_FIELD_LENGTH = 64;
 
     private static final String SOCKET_NAME_PREFIX = "scrcpy";
 
-    private final LocalSocket videoSocket;
+    private static final int TCP_BACKLOG = 8;
+
+    /**
+     * A connected socket: a local socket (through the adb tunnel) or a TCP socket.
+     */
+    private static final class StreamSocket implements Closeable {
+        private final LocalSocket localSocket; // null for a TCP socket
+        private final FileDescriptor fd;
+
+        private StreamSocket(LocalSocket localSocket, FileDescriptor fd) {
+            this.localSocket = localSocket;
+            this.fd = fd;
+        }
+
+        static StreamSocket local(LocalSocket localSocket) {
+            return new StreamSocket(localSocket, localSocket.getFileDescriptor());
+        }
+
+        static StreamSocket tcp(FileDescriptor fd) {
+            return new StreamSocket(null, fd);
+        }
+
+        FileDescriptor getFileDescriptor() {
+            return fd;
+        }
+
+        InputStream getInputStream() throws IOException {
+            return localSocket != null ? localSocket.getInputStream() : new FileInputStream(fd);
+        }
+
+        OutputStream getOutputStream() throws IOException {
+            return localSocket != null ? localSocket.getOutputStream() : new FileOutputStream(fd);
+        }
+
+        void shutdown() throws IOException {
+            if (localSocket != null) {
+                localSocket.shutdownInput();
+                localSocket.shutdownOutput();
+            } else {
+                try {
+                    Os.shutdown(fd, OsConstants.SHUT_RDWR);
+                } catch (ErrnoException e) {
+                    // ignore (the peer may have closed the connection)
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (localSocket != null) {
+                localSocket.close();
+            } else {
+                closeFd(fd);
+            }
+        }
+    }
+
+    private interface SocketSupplier {
+        StreamSocket next() throws IOException;
+    }
+
+    // The single socket if the streams are multiplexed
+    private final StreamSocket videoSocket;
     private final FileDescriptor videoFd;
 
-    private final LocalSocket audioSocket;
+    private final StreamSocket audioSocket;
     private final FileDescriptor audioFd;
 
-    private final LocalSocket controlSocket;
+    private final StreamSocket controlSocket;
     private final InputStream controlInputStream;
     private final OutputStream controlOutputStream;
 
+    // Additional video streams, opened after the control socket
+    private final StreamSocket[] renditionSockets;
+
+    // Additional video consumers, opened after the renditions (owned by the caller once retrieved)
+    private final List<LocalSocket> videoConsumerSockets;
+
+    // Kept open to accept late video consumers (null if disabled)
+    private final LocalServerSocket serverSocket;
+
+    // Video, audio and control streams over the video socket (null if disabled)
+    private final Multiplexer multiplexer;
+
     private final ControlMessageReader reader = new ControlMessageReader();
     private final DeviceMessageWriter writer = new DeviceMessageWriter();
 
-    private DesktopConnection(LocalSocket videoSocket, LocalSocket audioSocket, LocalSocket controlSocket) throws IOException {
-        this.videoSocket = videoSocket;
-        this.controlSocket = controlSocket;
-        this.audioSocket = audioSocket;
+    private DesktopConnection(StreamSocket[] sockets, List<LocalSocket> videoConsumerSockets, LocalServerSocket serverSocket,
+            Multiplexer multiplexer) throws IOException {
+        this.videoSocket = sockets[0];
+        this.audioSocket = sockets[1];
+        this.controlSocket = sockets[2];
+        this.renditionSockets = Arrays.copyOfRange(sockets, 3, sockets.length);
+        this.videoConsumerSockets = videoConsumerSockets;
+        this.serverSocket = serverSocket;
+        this.multiplexer = multiplexer;
+        if (multiplexer != null) {
+            boolean control = multiplexer.getStreamFd(Multiplexer.CHANNEL_CONTROL) != null;
+            controlInputStream = control ? multiplexer.getControlInputStream() : null;
+            controlOutputStream = control ? multiplexer.getControlOutputStream() : null;
+            videoFd = multiplexer.getStreamFd(Multiplexer.CHANNEL_VIDEO);
+            audioFd = multiplexer.getStreamFd(Multiplexer.CHANNEL_AUDIO);
+            return;
+        }
         if (controlSocket != null) {
             controlInputStream = controlSocket.getInputStream();
             controlOutputStream = controlSocket.getOutputStream();
@@ -60,66 +160,210 @@ public final class DesktopConnection implements Closeable {
         return SOCKET_NAME_PREFIX + String.format("_%08x", scid);
     }
 
-    public static DesktopConnection open(int scid, boolean tunnelForward, boolean audio, boolean control, boolean sendDummyByte) throws IOException {
+    /**
+     * Open the connection.
+     * <p>
+     * If {@code multiplex} is set, the video, audio and control streams share the first socket (see {@link Multiplexer}); the renditions
+     * and the video consumers still have their own sockets.
+     */
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    public static DesktopConnection open(int scid, boolean tunnelForward, boolean audio, boolean control, int renditions, int videoConsumers,
+            boolean lateVideoConsumers, boolean sendDummyByte, boolean multiplex) throws IOException {
         String socketName = getSocketName(scid);
 
-        LocalSocket videoSocket = null;
-        LocalSocket audioSocket = null;
-        LocalSocket controlSocket = null;
-        try {
-            if (tunnelForward) {
-                try (LocalServerSocket localServerSocket = new LocalServerSocket(socketName)) {
-                    videoSocket = localServerSocket.accept();
-                    if (sendDummyByte) {
-                        // send one byte so the client may read() to detect a connection error
-                        videoSocket.getOutputStream().write(0);
-                    }
-                    if (audio) {
-                        audioSocket = localServerSocket.accept();
-                    }
-                    if (control) {
-                        controlSocket = localServerSocket.accept();
+        StreamSocket[] sockets;
+        List<LocalSocket> videoConsumerSockets = new ArrayList<>();
+        LocalServerSocket serverSocket = null;
+        if (tunnelForward) {
+            LocalServerSocket localServerSocket = new LocalServerSocket(socketName);
+            try {
+                sockets = openSockets(() -> StreamSocket.local(localServerSocket.accept()), audio, control, renditions, sendDummyByte, multiplex);
+                try {
+                    for (int i = 0; i < videoConsumers; ++i) {
+                        videoConsumerSockets.add(localServerSocket.accept());
                     }
+                } catch (IOException | RuntimeException e) {
+                    closeAll(sockets, videoConsumerSockets);
+                    throw e;
                 }
+            } catch (IOException | RuntimeException e) {
+                localServerSocket.close();
+                throw e;
+            }
+            if (lateVideoConsumers) {
+                // Keep listening, video consumers may connect later
+                serverSocket = localServerSocket;
             } else {
-                videoSocket = connect(socketName);
-                if (audio) {
-                    audioSocket = connect(socketName);
-                }
-                if (control) {
-                    controlSocket = connect(socketName);
+                localServerSocket.close();
+            }
+        } else {
+            sockets = openSockets(() -> StreamSocket.local(connect(socketName)), audio, control, renditions, false, multiplex);
+            try {
+                for (int i = 0; i < videoConsumers; ++i) {
+                    videoConsumerSockets.add(connect(socketName));
                 }
+            } catch (IOException | RuntimeException e) {
+                closeAll(sockets, videoConsumerSockets);
+                throw e;
             }
-        } catch (IOException | RuntimeException e) {
-            if (videoSocket != null) {
-                videoSocket.close();
+        }
+
+        return create(sockets, videoConsumerSockets, serverSocket, audio, control, multiplex);
+    }
+
+    /**
+     * Open the connection over TCP, by listening on a port of the device, instead of the adb tunnel.
+     * <p>
+     * Each accepted connection must first send the token of the session (1 byte for its length, then the token in UTF-8) before it is
+     * assigned to a stream. The connections sending an invalid token (or not their whole token within 5 seconds) are closed, and the
+     * server keeps listening. The connections are authenticated concurrently (see {@link TcpAcceptor}), so a silent client does not block
+     * the others.
+     * <p>
+     * The video consumers are not supported.
+     *
+     * @param sendBufferSize the socket send buffer size (in bytes), or 0 for the system default
+     */
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    public static DesktopConnection openTcp(InetSocketAddress address, String token, int sendBufferSize, boolean audio, boolean control,
+            int renditions, boolean sendDummyByte, boolean multiplex) throws IOException {
+        if (!address.getAddress().isLoopbackAddress()) {
+            Ln.w("The TCP server is reachable from the network: anyone knowing the token may control the device");
+        }
+        FileDescriptor serverFd = listenTcp(address);
+        StreamSocket[] sockets;
+        try (TcpAcceptor acceptor = new TcpAcceptor(serverFd, token, sendBufferSize)) {
+            sockets = openSockets(() -> StreamSocket.tcp(acceptor.accept()), audio, control, renditions, sendDummyByte, multiplex);
+        } finally {
+            // Only the expected connections are accepted
+            closeFd(serverFd);
+        }
+
+        return create(sockets, new ArrayList<>(), null, audio, control, multiplex);
+    }
+
+    /**
+     * Open the main sockets and the rendition sockets, in order.
+     *
+     * @return the video, audio and control sockets (null if not opened) followed by the rendition sockets
+     */
+    private static StreamSocket[] openSockets(SocketSupplier supplier, boolean audio, boolean control, int renditions, boolean sendDummyByte,
+            boolean multiplex) throws IOException {
+        StreamSocket[] sockets = new StreamSocket[3 + renditions];
+        try {
+            sockets[0] = supplier.next();
+            if (sendDummyByte) {
+                // send one byte so the client may read() to detect a connection error
+                sockets[0].getOutputStream().write(0);
+            }
+            // Only one socket for the main streams if they are multiplexed
+            if (audio && !multiplex) {
+                sockets[1] = supplier.next();
             }
-            if (audioSocket != null) {
-                audioSocket.close();
+            if (control && !multiplex) {
+                sockets[2] = supplier.next();
             }
-            if (controlSocket != null) {
-                controlSocket.close();
+            for (int i = 0; i < renditions; ++i) {
+                sockets[3 + i] = supplier.next();
             }
+        } catch (IOException | RuntimeException e) {
+            closeAll(sockets, Collections.emptyList());
             throw e;
         }
+        return sockets;
+    }
 
-        return new DesktopConnection(videoSocket, audioSocket, controlSocket);
+    private static DesktopConnection create(StreamSocket[] sockets, List<LocalSocket> videoConsumerSockets, LocalServerSocket serverSocket,
+            boolean audio, boolean control, boolean multiplex) throws IOException {
+        Multiplexer multiplexer = null;
+        if (multiplex) {
+            try {
+                multiplexer = new Multiplexer(sockets[0].getFileDescriptor(), audio, control);
+            } catch (IOException e) {
+                closeAll(sockets, videoConsumerSockets);
+                if (serverSocket != null) {
+                    serverSocket.close();
+                }
+                throw e;
+            }
+            multiplexer.start();
+        }
+
+        return new DesktopConnection(sockets, videoConsumerSockets, serverSocket, multiplexer);
+    }
+
+    private static FileDescriptor listenTcp(InetSocketAddress address) throws IOException {
+        InetAddress inetAddress = address.getAddress();
+        // An IPv6 socket bound to the IPv6 wildcard address also accepts IPv4 connections
+        int domain = inetAddress instanceof Inet6Address ? OsConstants.AF_INET6 : OsConstants.AF_INET;
+        FileDescriptor fd = null;
+        try {
+            fd = Os.socket(domain, OsConstants.SOCK_STREAM, 0);
+            Os.setsockoptInt(fd, OsConstants.SOL_SOCKET, OsConstants.SO_REUSEADDR, 1);
+            Os.bind(fd, inetAddress, address.getPort());
+            Os.listen(fd, TCP_BACKLOG);
+            return fd;
+        } catch (ErrnoException | SocketException e) {
+            if (fd != null) {
+                closeFd(fd);
+            }
+            throw new IOException("Could not listen on TCP " + address, e);
+        }
+    }
+
+    static void closeFd(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // ignore
+        }
+    }
+
+    private static void closeAll(StreamSocket[] sockets, List<LocalSocket> videoConsumerSockets) {
+        for (StreamSocket socket : sockets) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        for (LocalSocket videoConsumerSocket : videoConsumerSockets) {
+            try {
+                videoConsumerSocket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
     }
 
     public void close() throws IOException {
-        videoSocket.shutdownInput();
-        videoSocket.shutdownOutput();
+        if (serverSocket != null) {
+            // Unblock accept() before closing
+            try {
+                Os.shutdown(serverSocket.getFileDescriptor(), OsConstants.SHUT_RDWR);
+            } catch (ErrnoException e) {
+                // ignore
+            }
+            serverSocket.close();
+        }
+        videoSocket.shutdown();
+        if (multiplexer != null) {
+            multiplexer.close();
+        }
         videoSocket.close();
         if (audioSocket != null) {
-            audioSocket.shutdownInput();
-            audioSocket.shutdownOutput();
+            audioSocket.shutdown();
             audioSocket.close();
         }
         if (controlSocket != null) {
-            controlSocket.shutdownInput();
-            controlSocket.shutdownOutput();
+            controlSocket.shutdown();
             controlSocket.close();
         }
+        for (StreamSocket renditionSocket : renditionSockets) {
+            renditionSocket.shutdown();
+            renditionSocket.close();
+        }
     }
 
     public void sendDeviceMeta(String deviceName) throws IOException {
@@ -141,6 +385,27 @@ public final class DesktopConnection implements Closeable {
         return audioFd;
     }
 
+    /**
+     * Return the sockets of the additional video consumers connected on start.
+     * <p>
+     * The caller is responsible for closing them.
+     */
+    public List<LocalSocket> getVideoConsumerSockets() {
+        return videoConsumerSockets;
+    }
+
+    /**
+     * Wait for a video consumer connecting after the start of the stream.
+     */
+    public LocalSocket acceptLateVideoConsumer() throws IOException {
+        return serverSocket.accept();
+    }
+
+    public FileDescriptor getRenditionFd(int index) {
+        return renditionSockets[index].getFileDescriptor();
+    }
+
+    @Override
     public ControlMessage receiveControlMessage() throws IOException {
         ControlMessage msg = reader.next();
         while (msg == null) {
@@ -150,6 +415,7 @@ public final class DesktopConnection implements Closeable {
         return msg;
     }
 
+    @Override
     public void sendDeviceMessage(DeviceMessage msg) throws IOException {
         writer.writeTo(msg, controlOutputStream);
     }
@@ -17,6 +17,8 @@ import android.view.InputEvent;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Device {
@@ -45,7 +47,7 @@ public final class Device {
     private final int lockVideoOrientation;
 
     private ScreenInfo screenInfo;
-    private RotationListener rotationListener;
+    private final List<RotationListener> rotationListeners = new ArrayList<>();
     private ClipboardListener clipboardListener;
     private final AtomicBoolean isSettingClipboard = new AtomicBoolean();
 
@@ -86,7 +88,7 @@ public final class Device {
                     screenInfo = screenInfo.withDeviceRotation(rotation);
 
                     // notify
-                    if (rotationListener != null) {
+                    for (RotationListener rotationListener : rotationListeners) {
                         rotationListener.onRotationChanged(rotation);
                     }
                 }
@@ -130,15 +132,31 @@ public final class Device {
         }
     }
 
-    public synchronized void setMaxSize(int newMaxSize) {
+    /**
+     * Change the max size of the video.
+     *
+     * @return {@code true} if the max size has changed
+     */
+    public synchronized boolean setMaxSize(int newMaxSize) {
+        if (newMaxSize == maxSize) {
+            return false;
+        }
         maxSize = newMaxSize;
         screenInfo = ScreenInfo.computeScreenInfo(screenInfo.getReverseVideoRotation(), deviceSize, crop, newMaxSize, lockVideoOrientation);
+        return true;
     }
 
     public synchronized ScreenInfo getScreenInfo() {
         return screenInfo;
     }
 
+    /**
+     * Return the screen info for a video stream having its own max size (the video size used for input events is unaffected).
+     */
+    public synchronized ScreenInfo getScreenInfo(int renditionMaxSize) {
+        return screenInfo.withMaxSize(renditionMaxSize);
+    }
+
     public int getLayerStack() {
         return layerStack;
     }
@@ -220,8 +238,12 @@ public final class Device {
         return ServiceManager.getPowerManager().isScreenOn();
     }
 
-    public synchronized void setRotationListener(RotationListener rotationListener) {
-        this.rotationListener = rotationListener;
+    public synchronized void addRotationListener(RotationListener rotationListener) {
+        rotationListeners.add(rotationListener);
+    }
+
+    public synchronized void removeRotationListener(RotationListener rotationListener) {
+        rotationListeners.remove(rotationListener);
     }
 
     public synchronized void setClipboardListener(ClipboardListener clipboardListener) {
@@ -4,12 +4,19 @@ public final class DeviceMessage {
 
     public static final int TYPE_CLIPBOARD = 0;
     public static final int TYPE_ACK_CLIPBOARD = 1;
+    public static final int TYPE_SCREENSHOT = 2;
+    public static final int TYPE_LATENCY_STATS = 3;
 
     public static final long SEQUENCE_INVALID = ControlMessage.SEQUENCE_INVALID;
 
     private int type;
     private String text;
     private long sequence;
+    private int imageFormat; // ControlMessage.IMAGE_FORMAT_*
+    private Size size;
+    private byte[] data;
+    private int length;
+    private LatencyHistogram.Summary[] latencyStats;
 
     private DeviceMessage() {
     }
@@ -28,6 +35,34 @@ public final class DeviceMessage {
         return event;
     }
 
+    /**
+     * Create a screenshot message, referencing the image data without copying it.
+     *
+     * @param data the compressed image (ignored if {@code length} is 0)
+     * @param length the length of the image, or 0 if the capture failed
+     */
+    public static DeviceMessage createScreenshot(long sequence, int imageFormat, Size size, byte[] data, int length) {
+        DeviceMessage event = new DeviceMessage();
+        event.type = TYPE_SCREENSHOT;
+        event.sequence = sequence;
+        event.imageFormat = imageFormat;
+        event.size = size;
+        event.data = data;
+        event.length = length;
+        return event;
+    }
+
+    /**
+     * @param latencyStats the summaries of the video frame latencies, indexed by {@code FrameLatencyStats.STAGE_*}
+     */
+    public static DeviceMessage createLatencyStats(long sequence, LatencyHistogram.Summary[] latencyStats) {
+        DeviceMessage event = new DeviceMessage();
+        event.type = TYPE_LATENCY_STATS;
+        event.sequence = sequence;
+        event.latencyStats = latencyStats;
+        return event;
+    }
+
     public int getType() {
         return type;
     }
@@ -39,4 +74,24 @@ public final class DeviceMessage {
     public long getSequence() {
         return sequence;
     }
+
+    public int getImageFormat() {
+        return imageFormat;
+    }
+
+    public Size getSize() {
+        return size;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public LatencyHistogram.Summary[] getLatencyStats() {
+        return latencyStats;
+    }
 }
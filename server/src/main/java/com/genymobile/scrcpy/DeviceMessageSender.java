@@ -4,7 +4,7 @@ import java.io.IOException;
 
 public final class DeviceMessageSender {
 
-    private final DesktopConnection connection;
+    private final ControlChannel connection;
 
     private Thread thread;
 
@@ -12,26 +12,57 @@ public final class DeviceMessageSender {
 
     private long ack;
 
-    public DeviceMessageSender(DesktopConnection connection) {
+    private DeviceMessage latencyStats;
+    private DeviceMessage screenshot; // pending until written
+    private boolean stopped;
+
+    public DeviceMessageSender(ControlChannel connection) {
         this.connection = connection;
     }
 
     public synchronized void pushClipboardText(String text) {
         clipboardText = text;
-        notify();
+        notifyAll();
     }
 
     public synchronized void pushAckClipboard(long sequence) {
         ack = sequence;
-        notify();
+        notifyAll();
+    }
+
+    public synchronized void pushLatencyStats(DeviceMessage msg) {
+        latencyStats = msg;
+        notifyAll();
+    }
+
+    /**
+     * Send a screenshot, and wait until it is written (the message references the image data, which may then be reused by the caller).
+     *
+     * @return {@code false} if the sender is stopped
+     */
+    public synchronized boolean sendScreenshot(DeviceMessage msg) throws InterruptedException {
+        while (screenshot != null && !stopped) {
+            wait();
+        }
+        if (stopped) {
+            return false;
+        }
+        screenshot = msg;
+        notifyAll();
+        while (screenshot == msg && !stopped) {
+            wait();
+        }
+        return screenshot != msg;
     }
 
     private void loop() throws IOException, InterruptedException {
         while (!Thread.currentThread().isInterrupted()) {
             String text;
             long sequence;
+            DeviceMessage stats;
+            DeviceMessage image;
             synchronized (this) {
-                while (ack == DeviceMessage.SEQUENCE_INVALID && clipboardText == null) {
+                while (ack == DeviceMessage.SEQUENCE_INVALID && clipboardText == null && latencyStats == null && screenshot == null) {
                     wait();
                 }
                 text = clipboardText;
@@ -39,6 +70,11 @@ public final class DeviceMessageSender {
 
                 sequence = ack;
                 ack = DeviceMessage.SEQUENCE_INVALID;
+
+                stats = latencyStats;
+                latencyStats = null;
+
+                image = screenshot;
             }
 
             if (sequence != DeviceMessage.SEQUENCE_INVALID) {
@@ -49,8 +85,20 @@ public final class DeviceMessageSender {
                 DeviceMessage event = DeviceMessage.createClipboard(text);
                 connection.sendDeviceMessage(event);
             }
+            if (stats != null) {
+                connection.sendDeviceMessage(stats);
+            }
+            if (image != null) {
+                connection.sendDeviceMessage(image);
+                synchronized (this) {
+                    // Release the caller waiting in sendScreenshot()
+                    screenshot = null;
+                    notifyAll();
+                }
+            }
         }
     }
+
     public void start() {
         thread = new Thread(() -> {
             try {
@@ -58,6 +106,10 @@ public final class DeviceMessageSender {
             } catch (IOException | InterruptedException e) {
                 // this is expected on close
             } finally {
+                synchronized (this) {
+                    stopped = true;
+                    notifyAll();
+                }
                 Ln.d("Device message sender stopped");
             }
         });
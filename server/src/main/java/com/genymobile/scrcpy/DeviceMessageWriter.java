@@ -10,10 +10,29 @@ public class DeviceMessageWriter {
     private static final int MESSAGE_MAX_SIZE = 1 << 18; // 256k
     public static final int CLIPBOARD_TEXT_MAX_LENGTH = MESSAGE_MAX_SIZE - 5; // type: 1 byte; length: 4 bytes
 
-    private final byte[] rawBuffer = new byte[MESSAGE_MAX_SIZE];
-    private final ByteBuffer buffer = ByteBuffer.wrap(rawBuffer);
+    // The screenshots may be larger than the other messages, the buffer grows on demand
+    private static final int SCREENSHOT_MESSAGE_MAX_SIZE = 1 << 24; // 16M
+    static final int SCREENSHOT_HEADER_LENGTH = 18; // type: 1 byte; sequence: 8 bytes; format: 1 byte; size: 4 bytes; length: 4 bytes
+    public static final int SCREENSHOT_DATA_MAX_LENGTH = SCREENSHOT_MESSAGE_MAX_SIZE - SCREENSHOT_HEADER_LENGTH;
+
+    private byte[] rawBuffer = new byte[MESSAGE_MAX_SIZE];
+    private ByteBuffer buffer = ByteBuffer.wrap(rawBuffer);
 
     public void writeTo(DeviceMessage msg, OutputStream output) throws IOException {
+        ByteBuffer data = serialize(msg);
+        if (data != null) {
+            output.write(rawBuffer, 0, data.remaining());
+        }
+    }
+
+    /**
+     * Serialize a message.
+     * <p>
+     * The returned buffer is only valid until the next call.
+     *
+     * @return the serialized message, or {@code null} if the message type is unknown
+     */
+    public ByteBuffer serialize(DeviceMessage msg) {
         buffer.clear();
         buffer.put((byte) msg.getType());
         switch (msg.getType()) {
@@ -23,15 +42,60 @@ public class DeviceMessageWriter {
                 int len = StringUtils.getUtf8TruncationIndex(raw, CLIPBOARD_TEXT_MAX_LENGTH);
                 buffer.putInt(len);
                 buffer.put(raw, 0, len);
-                output.write(rawBuffer, 0, buffer.position());
                 break;
             case DeviceMessage.TYPE_ACK_CLIPBOARD:
                 buffer.putLong(msg.getSequence());
-                output.write(rawBuffer, 0, buffer.position());
+                break;
+            case DeviceMessage.TYPE_SCREENSHOT:
+                int length = msg.getLength();
+                if (length > SCREENSHOT_DATA_MAX_LENGTH) {
+                    Ln.w("Screenshot too large: " + length + " bytes");
+                    length = 0; // reported as a failure
+                }
+                ensureCapacity(SCREENSHOT_HEADER_LENGTH + length);
+                buffer.putLong(msg.getSequence());
+                buffer.put((byte) msg.getImageFormat());
+                Size size = msg.getSize();
+                buffer.putShort((short) size.getWidth());
+                buffer.putShort((short) size.getHeight());
+                buffer.putInt(length);
+                if (length > 0) {
+                    buffer.put(msg.getData(), 0, length);
+                }
+                break;
+            case DeviceMessage.TYPE_LATENCY_STATS:
+                buffer.putLong(msg.getSequence());
+                LatencyHistogram.Summary[] stats = msg.getLatencyStats();
+                buffer.put((byte) stats.length);
+                for (LatencyHistogram.Summary summary : stats) {
+                    buffer.putLong(summary.getCount());
+                    // in microseconds
+                    buffer.putInt(toUnsignedInt(summary.getP50()));
+                    buffer.putInt(toUnsignedInt(summary.getP90()));
+                    buffer.putInt(toUnsignedInt(summary.getP99()));
+                    buffer.putInt(toUnsignedInt(summary.getMax()));
+                }
                 break;
             default:
                 Ln.w("Unknown device message: " + msg.getType());
-                break;
+                return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int toUnsignedInt(long value) {
+        return (int) Math.min(value, 0xFFFFFFFFL);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > rawBuffer.length) {
+            // Keep the type already written
+            byte type = rawBuffer[0];
+            rawBuffer = new byte[Math.min(Math.max(capacity, rawBuffer.length * 2), SCREENSHOT_MESSAGE_MAX_SIZE)];
+            rawBuffer[0] = type;
+            buffer = ByteBuffer.wrap(rawBuffer);
+            buffer.position(1);
         }
     }
 }
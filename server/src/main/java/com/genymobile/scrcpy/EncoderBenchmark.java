@@ -0,0 +1,264 @@
+package com.genymobile.scrcpy;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Select the fastest video encoder by encoding a short synthetic animation with each candidate.
+ * <p>
+ * The frames are drawn on the encoder input surface, with a bounded number of frames in flight, so that both the latency (from the
+ * submission of a frame to its encoded output) and the throughput are measured. The first frames (including the key frame) are not
+ * measured.
+ */
+public final class EncoderBenchmark {
+
+    private static final int WARMUP_FRAMES = 5;
+    private static final int MEASURED_FRAMES = 60;
+    private static final int MAX_FRAMES_IN_FLIGHT = 4;
+    private static final long ENCODER_TIMEOUT_NS = 3_000_000_000L; // per encoder
+    private static final long DEQUEUE_TIMEOUT_US = 10_000;
+    private static final int BAR_COUNT = 8;
+
+    public static final class Result {
+        private final String encoderName;
+        private final boolean success;
+        private final long medianLatencyUs;
+        private final long maxLatencyUs;
+        private final float fps;
+
+        private Result(String encoderName, boolean success, long medianLatencyUs, long maxLatencyUs, float fps) {
+            this.encoderName = encoderName;
+            this.success = success;
+            this.medianLatencyUs = medianLatencyUs;
+            this.maxLatencyUs = maxLatencyUs;
+            this.fps = fps;
+        }
+
+        /**
+         * Create a result from the measures.
+         *
+         * @param latenciesUs the latency of each measured frame
+         * @param elapsedUs the time to encode all the measured frames
+         */
+        public static Result create(String encoderName, long[] latenciesUs, long elapsedUs) {
+            long[] sorted = Arrays.copyOf(latenciesUs, latenciesUs.length);
+            Arrays.sort(sorted);
+            long median = sorted[sorted.length / 2];
+            long max = sorted[sorted.length - 1];
+            float fps = elapsedUs > 0 ? latenciesUs.length * 1_000_000f / elapsedUs : 0;
+            return new Result(encoderName, true, median, max, fps);
+        }
+
+        public static Result createFailure(String encoderName) {
+            return new Result(encoderName, false, 0, 0, 0);
+        }
+
+        public String getEncoderName() {
+            return encoderName;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public long getMedianLatencyUs() {
+            return medianLatencyUs;
+        }
+
+        public long getMaxLatencyUs() {
+            return maxLatencyUs;
+        }
+
+        public float getFps() {
+            return fps;
+        }
+
+        @Override
+        public String toString() {
+            if (!success) {
+                return encoderName + ": failed";
+            }
+            return encoderName + ": latency " + medianLatencyUs / 1000f + " ms (max " + maxLatencyUs / 1000f + " ms), " + fps + " fps";
+        }
+    }
+
+    private EncoderBenchmark() {
+        // not instantiable
+    }
+
+    /**
+     * Choose the encoder with the lowest latency among those fast enough, or the fastest one if none is fast enough.
+     *
+     * @param results the benchmark results
+     * @param minFps the throughput required to keep up with the stream
+     * @return the best result, or {@code null} if all the encoders failed
+     */
+    public static Result chooseBest(List<Result> results, float minFps) {
+        Result best = null;
+        boolean bestFastEnough = false;
+        for (Result result : results) {
+            if (!result.isSuccess()) {
+                continue;
+            }
+            boolean fastEnough = result.getFps() >= minFps;
+            if (best == null || (fastEnough && !bestFastEnough)) {
+                best = result;
+                bestFastEnough = fastEnough;
+            } else if (fastEnough == bestFastEnough) {
+                boolean better = fastEnough ? result.getMedianLatencyUs() < best.getMedianLatencyUs() : result.getFps() > best.getFps();
+                if (better) {
+                    best = result;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Benchmark all the encoders of the codec.
+     *
+     * @return the name of the best encoder, or {@code null} if none could be benchmarked
+     */
+    public static String run(Codec codec, Size size, int bitRate, List<CodecOption> codecOptions, int minFps) {
+        List<Result> results = new ArrayList<>();
+        for (CodecUtils.DeviceEncoder encoder : CodecUtils.listVideoEncoders()) {
+            MediaCodecInfo info = encoder.getInfo();
+            if (encoder.getCodec() != codec || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && info.isAlias())) {
+                continue;
+            }
+            Result result = benchmark(info.getName(), codec.getMimeType(), size, bitRate, codecOptions);
+            Ln.d("Encoder benchmark " + size.getWidth() + "x" + size.getHeight() + ": " + result);
+            results.add(result);
+        }
+
+        Result best = chooseBest(results, minFps);
+        if (best == null) {
+            Ln.w("Encoder benchmark: no encoder succeeded");
+            return null;
+        }
+        Ln.i("Encoder benchmark: selected '" + best.getEncoderName() + "'");
+        return best.getEncoderName();
+    }
+
+    private static Result benchmark(String encoderName, String mimeType, Size size, int bitRate, List<CodecOption> codecOptions) {
+        MediaCodec mediaCodec = null;
+        Surface surface = null;
+        boolean started = false;
+        try {
+            mediaCodec = MediaCodec.createByCodecName(encoderName);
+            mediaCodec.configure(createFormat(mimeType, size, bitRate, codecOptions), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = mediaCodec.createInputSurface();
+            mediaCodec.start();
+            started = true;
+            return encodeFrames(encoderName, mediaCodec, surface, size);
+        } catch (IOException | RuntimeException e) {
+            Ln.w("Encoder benchmark: " + encoderName + " failed: " + e.getMessage());
+            return Result.createFailure(encoderName);
+        } finally {
+            if (mediaCodec != null) {
+                if (started) {
+                    mediaCodec.stop();
+                }
+                mediaCodec.release();
+            }
+            if (surface != null) {
+                surface.release();
+            }
+        }
+    }
+
+    private static MediaFormat createFormat(String mimeType, Size size, int bitRate, List<CodecOption> codecOptions) {
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, mimeType);
+        format.setInteger(MediaFormat.KEY_WIDTH, size.getWidth());
+        format.setInteger(MediaFormat.KEY_HEIGHT, size.getHeight());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, 60);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+        // No KEY_REPEAT_PREVIOUS_FRAME_AFTER: each output must match a drawn frame
+        if (codecOptions != null) {
+            // The options may change the encoder speed (profile, level...)
+            for (CodecOption option : codecOptions) {
+                CodecUtils.setCodecOption(format, option.getKey(), option.getValue());
+            }
+        }
+        return format;
+    }
+
+    private static Result encodeFrames(String encoderName, MediaCodec mediaCodec, Surface surface, Size size) {
+        int total = WARMUP_FRAMES + MEASURED_FRAMES;
+        long[] submitNs = new long[total];
+        long[] latenciesUs = new long[MEASURED_FRAMES];
+        long measureStartNs = 0;
+        long lastOutputNs = 0;
+        int submitted = 0;
+        int received = 0;
+
+        Paint paint = new Paint();
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        long deadline = System.nanoTime() + ENCODER_TIMEOUT_NS;
+        while (received < total) {
+            if (System.nanoTime() >= deadline) {
+                Ln.w("Encoder benchmark: " + encoderName + " timeout (" + received + "/" + total + " frames)");
+                return Result.createFailure(encoderName);
+            }
+
+            boolean canSubmit = submitted < total && submitted - received < MAX_FRAMES_IN_FLIGHT;
+            if (canSubmit) {
+                drawFrame(surface, paint, size, submitted);
+                submitNs[submitted++] = System.nanoTime();
+            }
+
+            // Do not wait if another frame may be submitted
+            int outputBufferId = mediaCodec.dequeueOutputBuffer(bufferInfo, canSubmit ? 0 : DEQUEUE_TIMEOUT_US);
+            if (outputBufferId >= 0) {
+                boolean config = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                mediaCodec.releaseOutputBuffer(outputBufferId, false);
+                if (!config) {
+                    // The frames are output in order (no B-frames are requested)
+                    long now = System.nanoTime();
+                    if (received >= WARMUP_FRAMES) {
+                        latenciesUs[received - WARMUP_FRAMES] = (now - submitNs[received]) / 1000;
+                    } else if (received == WARMUP_FRAMES - 1) {
+                        measureStartNs = now;
+                    }
+                    lastOutputNs = now;
+                    ++received;
+                }
+            }
+        }
+
+        return Result.create(encoderName, latenciesUs, (lastOutputNs - measureStartNs) / 1000);
+    }
+
+    private static void drawFrame(Surface surface, Paint paint, Size size, int index) {
+        Canvas canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? surface.lockHardwareCanvas() : surface.lockCanvas(null);
+        try {
+            int width = size.getWidth();
+            int height = size.getHeight();
+            canvas.drawColor(0xff000000 | (index * 0x030507) & 0xffffff);
+            // Moving bars, so that every frame differs from the previous one
+            int barWidth = width / BAR_COUNT;
+            for (int i = 0; i < BAR_COUNT; ++i) {
+                paint.setColor(0xff000000 | ((i + 1) * 0x1f3f5f) & 0xffffff);
+                int x = (i * barWidth + index * 16 * (i + 1)) % width;
+                int y = (index * 8 * (i + 1)) % height;
+                canvas.drawRect(x, 0, x + barWidth / 2f, height, paint);
+                canvas.drawRect(0, y, width, y + height / (2f * BAR_COUNT), paint);
+            }
+        } finally {
+            surface.unlockCanvasAndPost(canvas);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.genymobile.scrcpy;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Persistent cache of the encoder profiles, so that the capabilities are probed only once and the known failures are not retried.
+ * <p>
+ * It also records the encoder selected by {@link EncoderBenchmark} for each codec and video size.
+ * <p>
+ * The cache is a properties file, invalidated if the build fingerprint changes (a system update may change the encoders).
+ */
+public final class EncoderCache {
+
+    private static final String DEFAULT_PATH = "/data/local/tmp/scrcpy-encoders.properties";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_PREFERRED_ENCODER_PREFIX = "preferred/";
+    private static final String VERSION = "1"; // of the profile format
+
+    private static EncoderCache defaultCache;
+
+    private final File file;
+    private final String fingerprint;
+    private final Properties properties = new Properties();
+
+    public EncoderCache(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        load();
+    }
+
+    /**
+     * Return the cache shared by all the encoders of the server.
+     */
+    public static synchronized EncoderCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new EncoderCache(new File(DEFAULT_PATH), Build.FINGERPRINT);
+        }
+        return defaultCache;
+    }
+
+    private void load() {
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (FileNotFoundException e) {
+            // not cached yet
+        } catch (IOException | IllegalArgumentException e) {
+            Ln.w("Could not read encoder cache: " + e.getMessage());
+            properties.clear();
+        }
+
+        if (!VERSION.equals(properties.getProperty(KEY_VERSION)) || !fingerprint.equals(properties.getProperty(KEY_FINGERPRINT))) {
+            properties.clear();
+        }
+    }
+
+    private static String getKey(String encoderName, String mimeType) {
+        return encoderName + '/' + mimeType;
+    }
+
+    /**
+     * Return the cached profile of an encoder for a mime type.
+     *
+     * @return the profile, or {@code null} if not cached
+     */
+    public synchronized EncoderProfile get(String encoderName, String mimeType) {
+        String value = properties.getProperty(getKey(encoderName, mimeType));
+        return value != null ? EncoderProfile.parse(value) : null;
+    }
+
+    /**
+     * Store the profile of an encoder for a mime type, and write the cache file.
+     *
+     * @return {@code true} if the cache file has been written
+     */
+    public synchronized boolean put(String encoderName, String mimeType, EncoderProfile profile) {
+        properties.setProperty(getKey(encoderName, mimeType), profile.format());
+        return store();
+    }
+
+    private static String getPreferredEncoderKey(String mimeType, Size size) {
+        // The encoders generally accept both orientations
+        int major = Math.max(size.getWidth(), size.getHeight());
+        int minor = Math.min(size.getWidth(), size.getHeight());
+        return KEY_PREFERRED_ENCODER_PREFIX + mimeType + '/' + major + 'x' + minor;
+    }
+
+    /**
+     * Return the encoder selected by a previous benchmark for a mime type and a video size.
+     *
+     * @return the encoder name, or {@code null} if not cached
+     */
+    public synchronized String getPreferredEncoder(String mimeType, Size size) {
+        return properties.getProperty(getPreferredEncoderKey(mimeType, size));
+    }
+
+    /**
+     * Store the encoder selected by a benchmark for a mime type and a video size, and write the cache file.
+     *
+     * @return {@code true} if the cache file has been written
+     */
+    public synchronized boolean putPreferredEncoder(String mimeType, Size size, String encoderName) {
+        properties.setProperty(getPreferredEncoderKey(mimeType, size), encoderName);
+        return store();
+    }
+
+    private boolean store() {
+        properties.setProperty(KEY_VERSION, VERSION);
+        properties.setProperty(KEY_FINGERPRINT, fingerprint);
+
+        // Write atomically, a concurrent server must never read a partial file
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                properties.store(out, "scrcpy encoder profiles");
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            return true;
+        } catch (IOException e) {
+            Ln.w("Could not write encoder cache: " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.genymobile.scrcpy;
+
+import android.media.MediaCodecInfo;
+
+import java.util.Arrays;
+
+/**
+ * Capabilities of a video encoder, and the max size known to work on the device.
+ * <p>
+ * A profile is persisted by {@link EncoderCache}, so that the following sessions can choose a working configuration on the first try.
+ */
+public final class EncoderProfile {
+
+    private final Size maxSize; // upper bounds of the supported widths and heights
+    private final Size alignment;
+    private final int maxFps;
+    private final int maxBitRate;
+    private final int bitrateModes; // bit mask of (1 << MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*)
+    private final int[] profiles; // MediaCodecInfo.CodecProfileLevel values
+    private final int workingMaxSize; // the max size which worked after an encoding failure, 0 if unknown
+
+    public EncoderProfile(Size maxSize, Size alignment, int maxFps, int maxBitRate, int bitrateModes, int[] profiles, int workingMaxSize) {
+        this.maxSize = maxSize;
+        this.alignment = alignment;
+        this.maxFps = maxFps;
+        this.maxBitRate = maxBitRate;
+        this.bitrateModes = bitrateModes;
+        this.profiles = profiles;
+        this.workingMaxSize = workingMaxSize;
+    }
+
+    /**
+     * Probe the capabilities of an encoder (this does not instantiate any codec).
+     */
+    public static EncoderProfile probe(MediaCodecInfo info, String mimeType) {
+        MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(mimeType);
+        MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+        MediaCodecInfo.EncoderCapabilities encoder = capabilities.getEncoderCapabilities();
+
+        int bitrateModes = 0;
+        int[] modes = {
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR,
+        };
+        for (int mode : modes) {
+            if (encoder.isBitrateModeSupported(mode)) {
+                bitrateModes |= 1 << mode;
+            }
+        }
+
+        MediaCodecInfo.CodecProfileLevel[] profileLevels = capabilities.profileLevels;
+        int[] profiles = new int[profileLevels.length];
+        int count = 0;
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : profileLevels) {
+            if (!contains(profiles, count, profileLevel.profile)) {
+                profiles[count++] = profileLevel.profile;
+            }
+        }
+
+        Size maxSize = new Size(video.getSupportedWidths().getUpper(), video.getSupportedHeights().getUpper());
+        Size alignment = new Size(video.getWidthAlignment(), video.getHeightAlignment());
+        return new EncoderProfile(maxSize, alignment, video.getSupportedFrameRates().getUpper(), video.getBitrateRange().getUpper(), bitrateModes,
+                Arrays.copyOf(profiles, count), 0);
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; ++i) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Size getMaxSize() {
+        return maxSize;
+    }
+
+    public Size getAlignment() {
+        return alignment;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    public boolean isBitrateModeSupported(int mode) {
+        return (bitrateModes & (1 << mode)) != 0;
+    }
+
+    public boolean isProfileSupported(int profile) {
+        return contains(profiles, profiles.length, profile);
+    }
+
+    public int getWorkingMaxSize() {
+        return workingMaxSize;
+    }
+
+    public EncoderProfile withWorkingMaxSize(int newWorkingMaxSize) {
+        return new EncoderProfile(maxSize, alignment, maxFps, maxBitRate, bitrateModes, profiles, newWorkingMaxSize);
+    }
+
+    /**
+     * Indicate whether the encoder may accept this size (the width and height ranges apply to the largest and the smallest dimensions, since
+     * the encoders generally accept both orientations).
+     */
+    public boolean isSizeSupported(Size size) {
+        int major = Math.max(size.getWidth(), size.getHeight());
+        int minor = Math.min(size.getWidth(), size.getHeight());
+        int maxMajor = Math.max(maxSize.getWidth(), maxSize.getHeight());
+        int maxMinor = Math.min(maxSize.getWidth(), maxSize.getHeight());
+        return major <= maxMajor && minor <= maxMinor;
+    }
+
+    /**
+     * Choose the max size to apply before the first encoding attempt, to avoid the failures already known.
+     *
+     * @param videoSize the video size which would be encoded
+     * @param fallbacks the max size fallbacks, in descending order
+     * @return the max size to apply, or 0 to keep the video size
+     */
+    public int chooseMaxSize(Size videoSize, int[] fallbacks) {
+        int major = Math.max(videoSize.getWidth(), videoSize.getHeight());
+        if (workingMaxSize != 0 && major > workingMaxSize) {
+            // This size already failed on this device
+            return workingMaxSize;
+        }
+
+        if (isSizeSupported(videoSize)) {
+            return 0;
+        }
+
+        for (int value : fallbacks) {
+            if (value < major) {
+                // Keep the aspect ratio (like ScreenInfo, without the rounding)
+                int minor = (int) ((long) Math.min(videoSize.getWidth(), videoSize.getHeight()) * value / major);
+                if (isSizeSupported(new Size(value, minor))) {
+                    return value;
+                }
+            }
+        }
+        // No better choice, let the encoder fail
+        return 0;
+    }
+
+    /**
+     * Serialize to a compact string, parsed by {@link #parse(String)}.
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(maxSize.getWidth()).append(',').append(maxSize.getHeight()).append(',').append(alignment.getWidth()).append(',')
+                .append(alignment.getHeight()).append(',').append(maxFps).append(',').append(maxBitRate).append(',').append(bitrateModes).append(',')
+                .append(workingMaxSize).append(',');
+        for (int i = 0; i < profiles.length; ++i) {
+            if (i != 0) {
+                builder.append(';');
+            }
+            builder.append(profiles[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Parse a profile serialized by {@link #format()}.
+     *
+     * @return the profile, or {@code null} if the value is invalid
+     */
+    public static EncoderProfile parse(String value) {
+        String[] tokens = value.split(",", -1);
+        if (tokens.length != 9) {
+            return null;
+        }
+        try {
+            int[] values = new int[8];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = Integer.parseInt(tokens[i]);
+            }
+            String[] profileTokens = tokens[8].isEmpty() ? new String[0] : tokens[8].split(";");
+            int[] profiles = new int[profileTokens.length];
+            for (int i = 0; i < profiles.length; ++i) {
+                profiles[i] = Integer.parseInt(profileTokens[i]);
+            }
+            Size maxSize = new Size(values[0], values[1]);
+            Size alignment = new Size(values[2], values[3]);
+            return new EncoderProfile(maxSize, alignment, values[4], values[5], values[6], profiles, values[7]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "max " + maxSize.getWidth() + "x" + maxSize.getHeight() + " (alignment " + alignment.getWidth() + "x" + alignment.getHeight()
+                + "), max fps " + maxFps + ", max bit rate " + maxBitRate + ", bit rate modes " + bitrateModes + ", profiles "
+                + Arrays.toString(profiles)
+                + (workingMaxSize != 0 ? ", working max size " + workingMaxSize : "");
+    }
+}
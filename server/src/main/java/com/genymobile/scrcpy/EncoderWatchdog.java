@@ -0,0 +1,138 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Detect an encoder which does not produce any output anymore.
+ * <p>
+ * Since the encoder repeats the previous frame when the display does not change (KEY_REPEAT_PREVIOUS_FRAME_AFTER), a working encoder
+ * always produces output at least every repeat delay. If nothing is produced for the stall timeout, a sync frame is requested first; if
+ * there is still no output after another stall timeout, the encoding session must be reset.
+ */
+public final class EncoderWatchdog {
+
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_REQUEST_SYNC_FRAME = 1;
+    public static final int ACTION_RESET = 2;
+
+    private final long stallTimeoutNs;
+
+    // The timeout of the current session, never less than twice the repeat delay
+    private long sessionTimeoutNs;
+    private long lastOutputNs; // or session start
+    private long stallStartNs = -1; // the last output before the current stall, -1 if not stalled
+    private boolean syncFrameRequested;
+    private boolean resetRequested;
+
+    private int stallCount;
+    private int resetCount;
+    private int recoveryCount;
+    private long totalRecoveryNs;
+    private long maxRecoveryNs;
+
+    public EncoderWatchdog(long stallTimeoutNs) {
+        if (stallTimeoutNs <= 0) {
+            throw new IllegalArgumentException("Invalid stall timeout: " + stallTimeoutNs);
+        }
+        this.stallTimeoutNs = stallTimeoutNs;
+    }
+
+    /**
+     * Notify that a new encoding session starts.
+     * <p>
+     * A stall is not over until the encoder produces a packet, so the recovery time of a stall includes the reset.
+     *
+     * @param repeatDelayUs the repeat delay configured for the session
+     */
+    public synchronized void onSessionStarted(long nowNs, long repeatDelayUs) {
+        sessionTimeoutNs = Math.max(stallTimeoutNs, 2 * repeatDelayUs * 1000);
+        lastOutputNs = nowNs;
+        syncFrameRequested = false;
+        resetRequested = false;
+    }
+
+    /**
+     * Notify that the encoder produced a packet.
+     */
+    public synchronized void onOutput(long nowNs) {
+        if (stallStartNs != -1) {
+            long recoveryNs = nowNs - stallStartNs;
+            ++recoveryCount;
+            totalRecoveryNs += recoveryNs;
+            if (recoveryNs > maxRecoveryNs) {
+                maxRecoveryNs = recoveryNs;
+            }
+            stallStartNs = -1;
+        }
+        lastOutputNs = nowNs;
+        syncFrameRequested = false;
+        resetRequested = false;
+    }
+
+    /**
+     * Notify that the display is not active (e.g. the screen is off): the absence of output is expected.
+     */
+    public synchronized void onInactive(long nowNs) {
+        lastOutputNs = nowNs;
+        stallStartNs = -1;
+        syncFrameRequested = false;
+        resetRequested = false;
+    }
+
+    /**
+     * Indicate whether the encoder has not produced any output for the stall timeout.
+     */
+    public synchronized boolean isStalled(long nowNs) {
+        return nowNs - lastOutputNs >= sessionTimeoutNs;
+    }
+
+    /**
+     * Return the action to execute (each action is returned only once per session).
+     *
+     * @return {@link #ACTION_NONE}, {@link #ACTION_REQUEST_SYNC_FRAME} or {@link #ACTION_RESET}
+     */
+    public synchronized int check(long nowNs) {
+        long elapsedNs = nowNs - lastOutputNs;
+        if (elapsedNs < sessionTimeoutNs) {
+            return ACTION_NONE;
+        }
+        if (stallStartNs == -1) {
+            stallStartNs = lastOutputNs;
+            ++stallCount;
+        }
+        if (!syncFrameRequested) {
+            syncFrameRequested = true;
+            return ACTION_REQUEST_SYNC_FRAME;
+        }
+        if (!resetRequested && elapsedNs >= 2 * sessionTimeoutNs) {
+            resetRequested = true;
+            ++resetCount;
+            return ACTION_RESET;
+        }
+        return ACTION_NONE;
+    }
+
+    public synchronized int getStallCount() {
+        return stallCount;
+    }
+
+    public synchronized int getResetCount() {
+        return resetCount;
+    }
+
+    /**
+     * Return the number of stalls over (the encoder produced a packet again, possibly after a reset).
+     */
+    public synchronized int getRecoveryCount() {
+        return recoveryCount;
+    }
+
+    /**
+     * Return the mean time from the last output before a stall to the first output after it.
+     */
+    public synchronized long getMeanRecoveryNs() {
+        return recoveryCount > 0 ? totalRecoveryNs / recoveryCount : 0;
+    }
+
+    public synchronized long getMaxRecoveryNs() {
+        return maxRecoveryNs;
+    }
+}
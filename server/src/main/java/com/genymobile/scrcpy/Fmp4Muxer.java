@@ -0,0 +1,739 @@
+package com.genymobile.scrcpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Package a stream into fragmented MP4 (an init segment, then "moof" + "mdat" fragments), as expected by Media Source Extensions.
+ * <p>
+ * The output contains a single track. Supported codecs: H.264, H.265, AAC and Opus.
+ * <p>
+ * A new fragment starts on each video key frame, and once the fragment duration is reached. The buffers are reused from one fragment to the
+ * next: no object is allocated per sample.
+ */
+public final class Fmp4Muxer {
+
+    private static final int TRACK_ID = 1;
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int AUDIO_TIMESCALE = AudioCapture.SAMPLE_RATE;
+
+    // Used for the last sample of a fragment when the next one is not known yet
+    private static final int DEFAULT_VIDEO_SAMPLE_DURATION = VIDEO_TIMESCALE / 60;
+    private static final int DEFAULT_AUDIO_SAMPLE_DURATION = AUDIO_TIMESCALE / 50; // 20 ms
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000; // sample_depends_on = 2 (does not depend on other samples)
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000; // sample_depends_on = 1, sample_is_non_sync_sample = 1
+
+    private static final int TFHD_FLAG_DEFAULT_BASE_IS_MOOF = 0x020000;
+    // data offset, sample duration, sample size and sample flags present
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    private static final int TRUN_ENTRY_SIZE = 12;
+    private static final int FRAGMENT_HEADER_MAX_SIZE = 128; // without the trun entries
+
+    private static final int H264_NAL_SPS = 7;
+    private static final int H264_NAL_PPS = 8;
+    private static final int H265_NAL_VPS = 32;
+    private static final int H265_NAL_SPS = 33;
+    private static final int H265_NAL_PPS = 34;
+
+    private static final int[] MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private final Codec codec;
+    private final boolean video;
+    private final int timescale;
+    private final long fragmentDuration; // in timescale units
+
+    private Size videoSize;
+    private boolean initialized; // true once the init segment has been written
+    private int sequenceNumber;
+
+    // Samples of the current fragment
+    private ByteBuffer mdat = ByteBuffer.allocate(256 * 1024);
+    private long[] samplePts = new long[64]; // in timescale units
+    private int[] sampleSizes = new int[64];
+    private int[] sampleFlags = new int[64];
+    private int sampleCount;
+
+    private long lastPts = -1;
+    private int lastSampleDuration;
+
+    private ByteBuffer output = ByteBuffer.allocate(256 * 1024);
+
+    // Segments (init segment or fragments) written to the output by the last call: at most the pending fragment and a new one
+    private final int[] segmentOffsets = new int[2];
+    private final boolean[] segmentInit = new boolean[2];
+    private final boolean[] segmentKey = new boolean[2]; // fragment starting with a sync sample
+    private int segmentCount;
+
+    /**
+     * @param fragmentDurationUs the target duration of a fragment, or 0 to write each sample in its own fragment (lowest latency)
+     */
+    public Fmp4Muxer(Codec codec, long fragmentDurationUs) {
+        if (!isSupported(codec)) {
+            throw new IllegalArgumentException("Codec not supported in fMP4: " + codec.getName());
+        }
+        this.codec = codec;
+        video = codec.getType() == Codec.Type.VIDEO;
+        timescale = video ? VIDEO_TIMESCALE : AUDIO_TIMESCALE;
+        fragmentDuration = fragmentDurationUs * timescale / 1_000_000;
+        lastSampleDuration = video ? DEFAULT_VIDEO_SAMPLE_DURATION : DEFAULT_AUDIO_SAMPLE_DURATION;
+    }
+
+    public static boolean isSupported(Codec codec) {
+        return codec == VideoCodec.H264 || codec == VideoCodec.H265 || codec == AudioCodec.AAC || codec == AudioCodec.OPUS;
+    }
+
+    /**
+     * Set the video size, written in the next init segment (on the next config packet).
+     */
+    public void setVideoSize(Size videoSize) {
+        this.videoSize = videoSize;
+    }
+
+    /**
+     * Package a packet.
+     * <p>
+     * The position of the packet buffer is not changed.
+     *
+     * @return the data to write (valid until the next call), or {@code null} if the packet is buffered in the current fragment
+     */
+    public ByteBuffer mux(ByteBuffer data, long pts, boolean config, boolean keyFrame) throws IOException {
+        output.clear();
+        segmentCount = 0;
+
+        if (config) {
+            if (sampleCount > 0) {
+                writeFragment(lastSampleDuration);
+            }
+            // A new config (on encoder restart) requires a new init segment, which MSE accepts in the middle of a stream
+            writeInitSegment(data);
+            initialized = true;
+        } else if (initialized) {
+            long time = pts * timescale / 1_000_000;
+            if (sampleCount > 0 && video && keyFrame) {
+                // Start each fragment with a key frame, so that a client may start decoding from any fragment
+                writeFragment(getDuration(samplePts[sampleCount - 1], time));
+            }
+
+            addSample(data, time, !video || keyFrame);
+
+            if (samplePts[sampleCount - 1] + lastSampleDuration - samplePts[0] >= fragmentDuration) {
+                // Do not wait for the next sample to know the exact duration of the last one
+                writeFragment(lastSampleDuration);
+            }
+        } // else the samples could not be decoded without the config
+
+        output.flip();
+        return output.hasRemaining() ? output : null;
+    }
+
+    /**
+     * Return the number of segments (init segment or fragments) in the data returned by the last call to {@link #mux}.
+     * <p>
+     * A key frame may be returned in a later call than the one which received it (once its fragment is complete), and the data returned
+     * on a key frame may contain the previous fragment.
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Return the offset of a segment, relative to the start of the data returned by the last call to {@link #mux}.
+     */
+    public int getSegmentOffset(int index) {
+        return segmentOffsets[index];
+    }
+
+    public boolean isInitSegment(int index) {
+        return segmentInit[index];
+    }
+
+    /**
+     * Indicate whether a segment is a fragment starting with a sync sample (a client may start decoding from it).
+     */
+    public boolean isKeyFragment(int index) {
+        return segmentKey[index];
+    }
+
+    private void addSegment(boolean init, boolean key) {
+        segmentOffsets[segmentCount] = output.position();
+        segmentInit[segmentCount] = init;
+        segmentKey[segmentCount] = key;
+        ++segmentCount;
+    }
+
+    private static int getDuration(long pts, long nextPts) {
+        return (int) Math.max(0, nextPts - pts);
+    }
+
+    private void addSample(ByteBuffer data, long time, boolean sync) {
+        if (sampleCount == samplePts.length) {
+            int capacity = sampleCount * 2;
+            samplePts = Arrays.copyOf(samplePts, capacity);
+            sampleSizes = Arrays.copyOf(sampleSizes, capacity);
+            sampleFlags = Arrays.copyOf(sampleFlags, capacity);
+        }
+
+        if (lastPts != -1) {
+            lastSampleDuration = getDuration(lastPts, time);
+        }
+        lastPts = time;
+
+        int start = mdat.position();
+        if (video) {
+            // The 3-byte start codes are replaced by 4-byte lengths
+            mdat = ensureCapacity(mdat, data.remaining() + data.remaining() / 3 + 4);
+            writeLengthPrefixed(data, mdat);
+        } else {
+            mdat = ensureCapacity(mdat, data.remaining());
+            copy(data, data.position(), data.limit(), mdat);
+        }
+
+        samplePts[sampleCount] = time;
+        sampleSizes[sampleCount] = mdat.position() - start;
+        sampleFlags[sampleCount] = sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        ++sampleCount;
+    }
+
+    private void writeFragment(int lastDuration) {
+        output = ensureCapacity(output, FRAGMENT_HEADER_MAX_SIZE + sampleCount * TRUN_ENTRY_SIZE + mdat.position());
+        addSegment(false, sampleFlags[0] == SAMPLE_FLAGS_SYNC);
+
+        int moof = beginBox("moof");
+
+        int mfhd = beginFullBox("mfhd", 0, 0);
+        output.putInt(++sequenceNumber);
+        endBox(mfhd);
+
+        int traf = beginBox("traf");
+        int tfhd = beginFullBox("tfhd", 0, TFHD_FLAG_DEFAULT_BASE_IS_MOOF);
+        output.putInt(TRACK_ID);
+        endBox(tfhd);
+        int tfdt = beginFullBox("tfdt", 1, 0);
+        output.putLong(samplePts[0]); // baseMediaDecodeTime
+        endBox(tfdt);
+        int trun = beginFullBox("trun", 0, TRUN_FLAGS);
+        output.putInt(sampleCount);
+        int dataOffsetPosition = output.position();
+        output.putInt(0); // data_offset, set below
+        for (int i = 0; i < sampleCount; ++i) {
+            int duration = i + 1 < sampleCount ? getDuration(samplePts[i], samplePts[i + 1]) : lastDuration;
+            output.putInt(duration);
+            output.putInt(sampleSizes[i]);
+            output.putInt(sampleFlags[i]);
+        }
+        endBox(trun);
+        endBox(traf);
+        endBox(moof);
+
+        // The data offset is relative to the start of the moof (default-base-is-moof), the data starts after the mdat header
+        output.putInt(dataOffsetPosition, output.position() - moof + 8);
+
+        output.putInt(8 + mdat.position());
+        putFourCc("mdat");
+        mdat.flip();
+        output.put(mdat);
+        mdat.clear();
+
+        sampleCount = 0;
+    }
+
+    private void writeInitSegment(ByteBuffer config) throws IOException {
+        output = ensureCapacity(output, 1024 + 2 * config.remaining());
+        addSegment(true, false);
+
+        int ftyp = beginBox("ftyp");
+        putFourCc("isom"); // major brand
+        output.putInt(0x200); // minor version
+        putFourCc("isom");
+        putFourCc("iso6");
+        putFourCc("mp41");
+        endBox(ftyp);
+
+        int moov = beginBox("moov");
+
+        int mvhd = beginFullBox("mvhd", 0, 0);
+        output.putInt(0); // creation_time
+        output.putInt(0); // modification_time
+        output.putInt(1000); // timescale
+        output.putInt(0); // duration (unknown)
+        output.putInt(0x00010000); // rate
+        output.putShort((short) 0x0100); // volume
+        putZeros(10); // reserved
+        putMatrix();
+        putZeros(24); // pre_defined
+        output.putInt(TRACK_ID + 1); // next_track_ID
+        endBox(mvhd);
+
+        int trak = beginBox("trak");
+        int tkhd = beginFullBox("tkhd", 0, 0x3); // track_enabled | track_in_movie
+        output.putInt(0); // creation_time
+        output.putInt(0); // modification_time
+        output.putInt(TRACK_ID);
+        output.putInt(0); // reserved
+        output.putInt(0); // duration (unknown)
+        putZeros(8); // reserved
+        output.putShort((short) 0); // layer
+        output.putShort((short) 0); // alternate_group
+        output.putShort((short) (video ? 0 : 0x0100)); // volume
+        output.putShort((short) 0); // reserved
+        putMatrix();
+        output.putInt(video ? getVideoWidth() << 16 : 0);
+        output.putInt(video ? getVideoHeight() << 16 : 0);
+        endBox(tkhd);
+
+        int mdia = beginBox("mdia");
+        int mdhd = beginFullBox("mdhd", 0, 0);
+        output.putInt(0); // creation_time
+        output.putInt(0); // modification_time
+        output.putInt(timescale);
+        output.putInt(0); // duration (unknown)
+        output.putShort((short) 0x55C4); // language: "und"
+        output.putShort((short) 0); // pre_defined
+        endBox(mdhd);
+
+        int hdlr = beginFullBox("hdlr", 0, 0);
+        output.putInt(0); // pre_defined
+        putFourCc(video ? "vide" : "soun");
+        putZeros(12); // reserved
+        output.put((video ? "VideoHandler" : "SoundHandler").getBytes(StandardCharsets.US_ASCII));
+        output.put((byte) 0);
+        endBox(hdlr);
+
+        int minf = beginBox("minf");
+        if (video) {
+            int vmhd = beginFullBox("vmhd", 0, 1);
+            putZeros(8); // graphicsmode, opcolor
+            endBox(vmhd);
+        } else {
+            int smhd = beginFullBox("smhd", 0, 0);
+            putZeros(4); // balance, reserved
+            endBox(smhd);
+        }
+
+        int dinf = beginBox("dinf");
+        int dref = beginFullBox("dref", 0, 0);
+        output.putInt(1); // entry_count
+        int url = beginFullBox("url ", 0, 1); // self-contained
+        endBox(url);
+        endBox(dref);
+        endBox(dinf);
+
+        int stbl = beginBox("stbl");
+        int stsd = beginFullBox("stsd", 0, 0);
+        output.putInt(1); // entry_count
+        writeSampleEntry(config);
+        endBox(stsd);
+        // The samples are described in the fragments
+        int stts = beginFullBox("stts", 0, 0);
+        output.putInt(0);
+        endBox(stts);
+        int stsc = beginFullBox("stsc", 0, 0);
+        output.putInt(0);
+        endBox(stsc);
+        int stsz = beginFullBox("stsz", 0, 0);
+        output.putInt(0); // sample_size
+        output.putInt(0); // sample_count
+        endBox(stsz);
+        int stco = beginFullBox("stco", 0, 0);
+        output.putInt(0);
+        endBox(stco);
+        endBox(stbl);
+
+        endBox(minf);
+        endBox(mdia);
+        endBox(trak);
+
+        int mvex = beginBox("mvex");
+        int trex = beginFullBox("trex", 0, 0);
+        output.putInt(TRACK_ID);
+        output.putInt(1); // default_sample_description_index
+        output.putInt(0); // default_sample_duration
+        output.putInt(0); // default_sample_size
+        output.putInt(0); // default_sample_flags
+        endBox(trex);
+        endBox(mvex);
+
+        endBox(moov);
+    }
+
+    private int getVideoWidth() {
+        return videoSize != null ? videoSize.getWidth() : 0;
+    }
+
+    private int getVideoHeight() {
+        return videoSize != null ? videoSize.getHeight() : 0;
+    }
+
+    private void writeSampleEntry(ByteBuffer config) throws IOException {
+        if (video) {
+            int entry = beginBox(codec == VideoCodec.H264 ? "avc1" : "hvc1");
+            putZeros(6); // reserved
+            output.putShort((short) 1); // data_reference_index
+            putZeros(16); // pre_defined, reserved
+            output.putShort((short) getVideoWidth());
+            output.putShort((short) getVideoHeight());
+            output.putInt(0x00480000); // horizresolution: 72 dpi
+            output.putInt(0x00480000); // vertresolution: 72 dpi
+            output.putInt(0); // reserved
+            output.putShort((short) 1); // frame_count
+            putZeros(32); // compressorname
+            output.putShort((short) 0x0018); // depth
+            output.putShort((short) -1); // pre_defined
+            if (codec == VideoCodec.H264) {
+                writeAvcC(config);
+            } else {
+                writeHvcC(config);
+            }
+            endBox(entry);
+        } else {
+            int entry = beginBox(codec == AudioCodec.AAC ? "mp4a" : "Opus");
+            putZeros(6); // reserved
+            output.putShort((short) 1); // data_reference_index
+            putZeros(8); // reserved
+            output.putShort((short) AudioCapture.CHANNELS);
+            output.putShort((short) 16); // samplesize
+            putZeros(4); // pre_defined, reserved
+            output.putInt(AudioCapture.SAMPLE_RATE << 16); // 16.16 fixed-point (unsigned)
+            if (codec == AudioCodec.AAC) {
+                writeEsds(config);
+            } else {
+                writeDOps(config);
+            }
+            endBox(entry);
+        }
+    }
+
+    private void writeAvcC(ByteBuffer config) throws IOException {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (byte[] nal : splitNals(config)) {
+            int type = nal[0] & 0x1f;
+            if (type == H264_NAL_SPS) {
+                sps.add(nal);
+            } else if (type == H264_NAL_PPS) {
+                pps.add(nal);
+            }
+        }
+        if (sps.isEmpty() || sps.get(0).length < 4) {
+            throw new IOException("No SPS in H.264 config packet");
+        }
+
+        byte[] firstSps = sps.get(0);
+        int avcC = beginBox("avcC");
+        output.put((byte) 1); // configurationVersion
+        output.put(firstSps[1]); // AVCProfileIndication
+        output.put(firstSps[2]); // profile_compatibility
+        output.put(firstSps[3]); // AVCLevelIndication
+        output.put((byte) 0xff); // reserved (6 bits), lengthSizeMinusOne = 3
+        output.put((byte) (0xe0 | sps.size())); // reserved (3 bits), numOfSequenceParameterSets
+        putNals(sps);
+        output.put((byte) pps.size());
+        putNals(pps);
+        endBox(avcC);
+    }
+
+    private void writeHvcC(ByteBuffer config) throws IOException {
+        List<byte[]> vps = new ArrayList<>();
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (byte[] nal : splitNals(config)) {
+            int type = (nal[0] >> 1) & 0x3f;
+            if (type == H265_NAL_VPS) {
+                vps.add(nal);
+            } else if (type == H265_NAL_SPS) {
+                sps.add(nal);
+            } else if (type == H265_NAL_PPS) {
+                pps.add(nal);
+            }
+        }
+        if (sps.isEmpty()) {
+            throw new IOException("No SPS in H.265 config packet");
+        }
+
+        // The general profile_tier_level (12 bytes) follows the 2-byte NAL header and 1 byte (sps_video_parameter_set_id,
+        // sps_max_sub_layers_minus1 and sps_temporal_id_nesting_flag)
+        byte[] rbsp = unescapeRbsp(sps.get(0), 2, 13);
+        if (rbsp == null) {
+            throw new IOException("Invalid H.265 SPS");
+        }
+
+        int hvcC = beginBox("hvcC");
+        output.put((byte) 1); // configurationVersion
+        output.put(rbsp, 1, 12); // general profile space, tier, profile, compatibility flags, constraint flags and level
+        output.putShort((short) 0xf000); // reserved (4 bits), min_spatial_segmentation_idc
+        output.put((byte) 0xfc); // reserved (6 bits), parallelismType
+        output.put((byte) 0xfd); // reserved (6 bits), chromaFormat = 1 (4:2:0)
+        output.put((byte) 0xf8); // reserved (5 bits), bitDepthLumaMinus8 = 0
+        output.put((byte) 0xf8); // reserved (5 bits), bitDepthChromaMinus8 = 0
+        output.putShort((short) 0); // avgFrameRate
+        // constantFrameRate = 0, numTemporalLayers = 1, temporalIdNested = 1, lengthSizeMinusOne = 3
+        output.put((byte) ((1 << 3) | (1 << 2) | 3));
+        output.put((byte) 3); // numOfArrays
+        putNalArray(H265_NAL_VPS, vps);
+        putNalArray(H265_NAL_SPS, sps);
+        putNalArray(H265_NAL_PPS, pps);
+        endBox(hvcC);
+    }
+
+    private void putNalArray(int type, List<byte[]> nals) {
+        output.put((byte) (0x80 | type)); // array_completeness = 1
+        output.putShort((short) nals.size());
+        putNals(nals);
+    }
+
+    private void putNals(List<byte[]> nals) {
+        for (byte[] nal : nals) {
+            output.putShort((short) nal.length);
+            output.put(nal);
+        }
+    }
+
+    private void writeEsds(ByteBuffer config) {
+        // The config packet contains the AudioSpecificConfig
+        int ascLength = config.remaining();
+
+        int esds = beginFullBox("esds", 0, 0);
+        output.put((byte) 0x03); // ES_DescrTag
+        output.put((byte) (23 + ascLength));
+        output.putShort((short) 0); // ES_ID
+        output.put((byte) 0); // flags
+        output.put((byte) 0x04); // DecoderConfigDescrTag
+        output.put((byte) (15 + ascLength));
+        output.put((byte) 0x40); // objectTypeIndication: MPEG-4 audio
+        output.put((byte) 0x15); // streamType: audio (5 << 2), upStream = 0, reserved = 1
+        putZeros(3); // bufferSizeDB
+        output.putInt(0); // maxBitrate
+        output.putInt(0); // avgBitrate
+        output.put((byte) 0x05); // DecSpecificInfoTag
+        output.put((byte) ascLength);
+        copy(config, config.position(), config.limit(), output);
+        output.put((byte) 0x06); // SLConfigDescrTag
+        output.put((byte) 1);
+        output.put((byte) 0x02); // predefined: reserved for use in MP4 files
+        endBox(esds);
+    }
+
+    private void writeDOps(ByteBuffer config) throws IOException {
+        // The config packet contains the OpusHead (little-endian), the dOps box contains the same fields in big-endian
+        int p = config.position();
+        if (config.remaining() < 19 || config.getLong(p) != 0x4f70757348656164L) { // "OpusHead"
+            throw new IOException("Invalid OPUS header");
+        }
+        int channels = config.get(p + 9) & 0xff;
+        int family = config.get(p + 18) & 0xff;
+
+        int dOps = beginBox("dOps");
+        output.put((byte) 0); // Version
+        output.put((byte) channels); // OutputChannelCount
+        output.putShort((short) readLe16(config, p + 10)); // PreSkip
+        output.putInt(readLe16(config, p + 12) | readLe16(config, p + 14) << 16); // InputSampleRate
+        output.putShort((short) readLe16(config, p + 16)); // OutputGain
+        output.put((byte) family); // ChannelMappingFamily
+        if (family != 0) {
+            // StreamCount, CoupledCount, ChannelMapping
+            int end = p + 21 + channels;
+            if (config.limit() < end) {
+                throw new IOException("Invalid OPUS header channel mapping");
+            }
+            copy(config, p + 19, end, output);
+        }
+        endBox(dOps);
+    }
+
+    private static int readLe16(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8;
+    }
+
+    /**
+     * Split an Annex B byte stream into NAL units.
+     */
+    static List<byte[]> splitNals(ByteBuffer data) {
+        List<byte[]> nals = new ArrayList<>();
+        int limit = data.limit();
+        int start = findStartCode(data, data.position(), limit);
+        while (start != -1) {
+            int next = findStartCode(data, start, limit);
+            int end = next != -1 ? next - 3 : limit;
+            end = trimTrailingZeros(data, start, end);
+            if (end > start) {
+                byte[] nal = new byte[end - start];
+                for (int i = 0; i < nal.length; ++i) {
+                    nal[i] = data.get(start + i);
+                }
+                nals.add(nal);
+            }
+            start = next;
+        }
+        return nals;
+    }
+
+    /**
+     * Copy an Annex B byte stream, replacing the start codes by the 4-byte length of each NAL unit.
+     */
+    static void writeLengthPrefixed(ByteBuffer data, ByteBuffer to) {
+        int limit = data.limit();
+        int start = findStartCode(data, data.position(), limit);
+        if (start == -1) {
+            // Not Annex B, consider the packet as a single NAL unit
+            to.putInt(data.remaining());
+            copy(data, data.position(), limit, to);
+            return;
+        }
+        while (start != -1) {
+            int next = findStartCode(data, start, limit);
+            int end = next != -1 ? next - 3 : limit;
+            end = trimTrailingZeros(data, start, end);
+            if (end > start) {
+                to.putInt(end - start);
+                copy(data, start, end, to);
+            }
+            start = next;
+        }
+    }
+
+    /**
+     * Indicate whether an Annex B key frame contains the parameter sets (VPS or SPS) before its first slice.
+     * <p>
+     * Only the NAL units before the first slice are inspected, so this does not scan the whole frame.
+     *
+     * @return {@code false} if the codec is neither H.264 nor H.265
+     */
+    static boolean containsParameterSets(Codec codec, ByteBuffer data) {
+        if (codec != VideoCodec.H264 && codec != VideoCodec.H265) {
+            return false;
+        }
+        int limit = data.limit();
+        int start = findStartCode(data, data.position(), limit);
+        while (start != -1 && start < limit) {
+            int header = data.get(start) & 0xff;
+            if (codec == VideoCodec.H264) {
+                int type = header & 0x1f;
+                if (type == H264_NAL_SPS) {
+                    return true;
+                }
+                if (type >= 1 && type <= 5) {
+                    // first slice
+                    return false;
+                }
+            } else {
+                int type = (header >> 1) & 0x3f;
+                if (type == H265_NAL_VPS || type == H265_NAL_SPS) {
+                    return true;
+                }
+                if (type < H265_NAL_VPS) {
+                    // first VCL NAL unit
+                    return false;
+                }
+            }
+            start = findStartCode(data, start, limit);
+        }
+        return false;
+    }
+
+    /**
+     * Return the position following the next start code (00 00 01), or -1.
+     */
+    static int findStartCode(ByteBuffer data, int from, int limit) {
+        for (int i = from; i + 2 < limit; ++i) {
+            if (data.get(i + 2) == 1 && data.get(i + 1) == 0 && data.get(i) == 0) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    static int trimTrailingZeros(ByteBuffer data, int start, int end) {
+        // A NAL unit never ends with a zero byte, they belong to the next start code (4-byte start code or trailing_zero_8bits)
+        while (end > start && data.get(end - 1) == 0) {
+            --end;
+        }
+        return end;
+    }
+
+    /**
+     * Remove the emulation prevention bytes from the start of a NAL unit.
+     *
+     * @return the first {@code count} bytes of the RBSP following {@code offset}, or {@code null} if the NAL unit is too short
+     */
+    private static byte[] unescapeRbsp(byte[] nal, int offset, int count) {
+        byte[] rbsp = new byte[count];
+        int zeros = 0;
+        int j = 0;
+        for (int i = offset; i < nal.length && j < count; ++i) {
+            if (zeros >= 2 && nal[i] == 3) {
+                // emulation_prevention_three_byte
+                zeros = 0;
+                continue;
+            }
+            zeros = nal[i] == 0 ? zeros + 1 : 0;
+            rbsp[j++] = nal[i];
+        }
+        return j == count ? rbsp : null;
+    }
+
+    /**
+     * Copy a range of a buffer, without changing its position and without allocation.
+     */
+    private static void copy(ByteBuffer from, int start, int end, ByteBuffer to) {
+        int position = from.position();
+        int limit = from.limit();
+        from.limit(end);
+        from.position(start);
+        to.put(from);
+        from.limit(limit);
+        from.position(position);
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        // Grow geometrically, to allocate rarely
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + needed);
+        ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+
+    private int beginBox(String type) {
+        int start = output.position();
+        output.putInt(0); // size, set by endBox()
+        putFourCc(type);
+        return start;
+    }
+
+    private int beginFullBox(String type, int version, int flags) {
+        int start = beginBox(type);
+        output.putInt(version << 24 | flags);
+        return start;
+    }
+
+    private void endBox(int start) {
+        output.putInt(start, output.position() - start);
+    }
+
+    private void putFourCc(String type) {
+        for (int i = 0; i < 4; ++i) {
+            output.put((byte) type.charAt(i));
+        }
+    }
+
+    private void putZeros(int count) {
+        for (int i = 0; i < count; ++i) {
+            output.put((byte) 0);
+        }
+    }
+
+    private void putMatrix() {
+        for (int value : MATRIX) {
+            output.putInt(value);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Latency histograms of the video frames, per pipeline stage.
+ * <p>
+ * The encoder input timestamps (the frame PTS) are in the {@link System#nanoTime()} time base (CLOCK_MONOTONIC), so the latencies can be
+ * measured relative to the PTS:
+ * <ul>
+ * <li>encode: from the PTS to the encoder output (composition and encoding);</li>
+ * <li>write: from the encoder output to the end of {@link Streamer#writePacket(java.nio.ByteBuffer, long, boolean, boolean)} (queuing
+ * and socket write);</li>
+ * <li>total: from the PTS to the end of the write.</li>
+ * </ul>
+ * The PTS of a repeated frame is computed by the encoder, so its latencies are not meaningful: only the new frames should be recorded.
+ */
+public final class FrameLatencyStats {
+
+    public static final int STAGE_ENCODE = 0;
+    public static final int STAGE_WRITE = 1;
+    public static final int STAGE_TOTAL = 2;
+    public static final int STAGE_COUNT = 3;
+
+    private static final String[] STAGE_NAMES = {"encode", "write", "total"};
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+
+    public FrameLatencyStats() {
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the latencies of a frame.
+     *
+     * @param ptsUs the frame PTS (in microseconds)
+     * @param outputTimeNs the time at which the frame has been output by the encoder
+     * @param writtenTimeNs the time at which the frame has been written
+     */
+    public void onFrameWritten(long ptsUs, long outputTimeNs, long writtenTimeNs) {
+        long outputTimeUs = outputTimeNs / 1000;
+        long writtenTimeUs = writtenTimeNs / 1000;
+        histograms[STAGE_ENCODE].record(outputTimeUs - ptsUs);
+        histograms[STAGE_WRITE].record(writtenTimeUs - outputTimeUs);
+        histograms[STAGE_TOTAL].record(writtenTimeUs - ptsUs);
+    }
+
+    /**
+     * Return the summary of each stage, indexed by {@code STAGE_*}.
+     */
+    public LatencyHistogram.Summary[] getSummaries() {
+        LatencyHistogram.Summary[] summaries = new LatencyHistogram.Summary[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            summaries[i] = histograms[i].getSummary();
+        }
+        return summaries;
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram.Summary[] summaries = getSummaries();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            if (i != 0) {
+                builder.append("; ");
+            }
+            builder.append(STAGE_NAMES[i]).append(": ").append(summaries[i]);
+        }
+        return builder.toString();
+    }
+}
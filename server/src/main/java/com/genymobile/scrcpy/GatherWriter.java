@@ -0,0 +1,130 @@
+package com.genymobile.scrcpy;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Write several buffers with a single {@code writev()} syscall (if the socket accepts all the bytes at once).
+ * <p>
+ * The buffers are referenced, not copied: they must not be modified until {@link #flush()} returns. Their positions are not updated.
+ */
+public final class GatherWriter {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final FileDescriptor fd;
+
+    // Os.writev() accepts byte[] and direct ByteBuffer elements; the offsets are absolute. It writes all the array elements, so the unused
+    // slots reference an empty buffer.
+    private final Object[] buffers;
+    private final int[] offsets;
+    private final int[] byteCounts;
+    private int count;
+    private int pendingBytes;
+
+    private long syscallCount;
+
+    public GatherWriter(FileDescriptor fd, int maxBuffers) {
+        this.fd = fd;
+        buffers = new Object[maxBuffers];
+        offsets = new int[maxBuffers];
+        byteCounts = new int[maxBuffers];
+        Arrays.fill(buffers, EMPTY);
+    }
+
+    /**
+     * Add the remaining bytes of a buffer to the next write (the pending buffers are flushed first if there is no room left).
+     */
+    public void add(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (length == 0) {
+            return;
+        }
+        if (count == buffers.length) {
+            flush();
+        }
+        if (buffer.isDirect()) {
+            buffers[count] = buffer;
+            offsets[count] = buffer.position();
+        } else if (buffer.hasArray()) {
+            buffers[count] = buffer.array();
+            offsets[count] = buffer.arrayOffset() + buffer.position();
+        } else {
+            // Read-only heap buffer, the array is not accessible
+            byte[] copy = new byte[length];
+            buffer.duplicate().get(copy);
+            buffers[count] = copy;
+            offsets[count] = 0;
+        }
+        byteCounts[count] = length;
+        ++count;
+        pendingBytes += length;
+    }
+
+    public void add(byte[] data, int offset, int length) throws IOException {
+        add(ByteBuffer.wrap(data, offset, length));
+    }
+
+    public int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Write all the pending buffers.
+     */
+    public void flush() throws IOException {
+        int first = 0;
+        while (pendingBytes > 0) {
+            int w;
+            try {
+                w = Os.writev(fd, buffers, offsets, byteCounts);
+                ++syscallCount;
+            } catch (ErrnoException e) {
+                ++syscallCount;
+                if (e.errno != OsConstants.EINTR) {
+                    clear();
+                    throw new IOException(e);
+                }
+                continue;
+            }
+            pendingBytes -= w;
+
+            // Skip the buffers written entirely, and advance in the partially written one
+            while (w > 0) {
+                if (w >= byteCounts[first]) {
+                    w -= byteCounts[first];
+                    byteCounts[first] = 0;
+                    ++first;
+                } else {
+                    offsets[first] += w;
+                    byteCounts[first] -= w;
+                    w = 0;
+                }
+            }
+        }
+        clear();
+    }
+
+    private void clear() {
+        for (int i = 0; i < count; ++i) {
+            buffers[i] = EMPTY;
+            offsets[i] = 0;
+            byteCounts[i] = 0;
+        }
+        count = 0;
+        pendingBytes = 0;
+    }
+
+    /**
+     * Return the number of syscalls executed (including the interrupted and partial writes).
+     */
+    public long getSyscallCount() {
+        return syscallCount;
+    }
+}
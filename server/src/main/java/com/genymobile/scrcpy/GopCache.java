@@ -0,0 +1,131 @@
+package com.genymobile.scrcpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache of the last codec config packet and of the packets of the current group of pictures (since the last key frame).
+ * <p>
+ * Replaying the cache to a consumer joining the stream mid-way allows to start decoding immediately, without waiting for the next key frame.
+ * <p>
+ * If the current GOP exceeds the maximum size or the maximum number of packets, it is dropped, and the cache is not usable until the next
+ * key frame.
+ */
+public final class GopCache {
+
+    public interface PacketConsumer {
+        void accept(ByteBuffer data, long pts, boolean config, boolean keyFrame) throws IOException;
+    }
+
+    private static final class CachedPacket {
+        private byte[] data;
+        private int size;
+        private long pts;
+        private boolean keyFrame;
+
+        private void set(ByteBuffer from, long pts, boolean keyFrame) {
+            size = from.remaining();
+            if (data == null || data.length < size) {
+                data = new byte[size];
+            }
+            from.duplicate().get(data, 0, size);
+            this.pts = pts;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    private final int maxBytes;
+    private final int maxPackets;
+
+    private byte[] config;
+    private final List<CachedPacket> gop = new ArrayList<>();
+    private int gopBytes;
+    // false if the current GOP is incomplete (no key frame yet, or dropped because it was too big)
+    private boolean valid;
+
+    // packets of the previous GOPs, reused to avoid allocations
+    private final ArrayDeque<CachedPacket> recycled = new ArrayDeque<>();
+
+    public GopCache(int maxBytes, int maxPackets) {
+        this.maxBytes = maxBytes;
+        this.maxPackets = maxPackets;
+    }
+
+    /**
+     * Add a packet of the stream.
+     * <p>
+     * The buffer position is not changed.
+     */
+    public void add(ByteBuffer data, long pts, boolean isConfig, boolean keyFrame) {
+        if (isConfig) {
+            // A new config starts a new stream, the previous packets could not be decoded with it
+            config = new byte[data.remaining()];
+            data.duplicate().get(config);
+            clearGop();
+            valid = false;
+            return;
+        }
+
+        if (keyFrame) {
+            clearGop();
+            valid = true;
+        } else if (!valid) {
+            return;
+        }
+
+        if (gopBytes + data.remaining() > maxBytes || gop.size() == maxPackets) {
+            // Too big to be cached, wait for the next key frame
+            clearGop();
+            valid = false;
+            return;
+        }
+
+        CachedPacket packet = recycled.poll();
+        if (packet == null) {
+            packet = new CachedPacket();
+        }
+        packet.set(data, pts, keyFrame);
+        gop.add(packet);
+        gopBytes += packet.size;
+    }
+
+    private void clearGop() {
+        recycled.addAll(gop);
+        gop.clear();
+        gopBytes = 0;
+    }
+
+    /**
+     * Indicate whether a new consumer could start decoding from the cached packets.
+     */
+    public boolean isValid() {
+        return config != null && valid;
+    }
+
+    /**
+     * Replay the config packet and the current GOP.
+     * <p>
+     * If the cache is not valid, only the config packet (if any) is replayed.
+     */
+    public void replay(PacketConsumer consumer) throws IOException {
+        if (config != null) {
+            consumer.accept(ByteBuffer.wrap(config), 0, true, false);
+        }
+        if (valid) {
+            for (CachedPacket packet : gop) {
+                consumer.accept(ByteBuffer.wrap(packet.data, 0, packet.size), packet.pts, false, packet.keyFrame);
+            }
+        }
+    }
+
+    public int getPacketCount() {
+        return gop.size();
+    }
+
+    public int getGopBytes() {
+        return gopBytes;
+    }
+}
@@ -0,0 +1,159 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Detect a static screen from the timestamps of the encoded frames.
+ * <p>
+ * When no new frame is rendered, the encoder repeats the previous one after a fixed delay (KEY_REPEAT_PREVIOUS_FRAME_AFTER), with a
+ * timestamp exactly incremented by that delay. A frame is therefore considered repeated if its timestamp follows the previous one by
+ * exactly the repeat delay of the current encoding session.
+ * <p>
+ * The screen is idle once only repeated frames have been produced for the idle timeout. It becomes active again on the first new frame.
+ * <p>
+ * Restoring the normal repeat delay requires to restart the encoder, which produces a new config packet and a key frame. Since the new
+ * frames are encoded immediately whatever the repeat delay, this restart is deferred until the activity settles (the first repeated frame
+ * of the idle session, i.e. no new frame for the idle repeat delay), so that it never delays the frames following a user interaction.
+ * <p>
+ * The bytes saved while idle are estimated from the size of the last repeated frame before becoming idle, minus the bytes actually
+ * produced while idle (including the key frames caused by the encoder restarts).
+ */
+public final class IdleDetector {
+
+    private final long activeRepeatDelayUs;
+    private final long idleRepeatDelayUs;
+    private final long idleTimeoutUs;
+
+    private long repeatDelayUs; // of the current encoding session
+    private boolean idle;
+    private long lastPts = -1; // -1 at the beginning of an encoding session
+    private long lastNewFramePts;
+    private long latestPts; // not reset between sessions
+    private boolean leftIdle; // the encoding session has been restarted after leaving the idle state
+    private boolean restartPending; // active, but the encoding session still has the idle repeat delay
+
+    private long idleStartPts;
+    private int idleFrameSize; // size of the last repeated frame before becoming idle
+    private long idleUs;
+    private long idleBytes; // produced while idle
+    private long avoidedBytes; // estimated, for the completed idle periods
+    private int idleCount;
+
+    public IdleDetector(long activeRepeatDelayUs, long idleRepeatDelayUs, long idleTimeoutUs) {
+        if (activeRepeatDelayUs <= 0 || idleRepeatDelayUs <= activeRepeatDelayUs || idleTimeoutUs <= 0) {
+            throw new IllegalArgumentException("Invalid idle detector parameters");
+        }
+        this.activeRepeatDelayUs = activeRepeatDelayUs;
+        this.idleRepeatDelayUs = idleRepeatDelayUs;
+        this.idleTimeoutUs = idleTimeoutUs;
+        this.repeatDelayUs = activeRepeatDelayUs;
+    }
+
+    /**
+     * Return the repeat delay to configure for the next encoding session, according to the current state.
+     */
+    public synchronized long getRepeatDelayUs() {
+        return idle ? idleRepeatDelayUs : activeRepeatDelayUs;
+    }
+
+    /**
+     * Notify that a new encoding session starts, configured with the delay returned by {@link #getRepeatDelayUs()}.
+     */
+    public synchronized void onSessionStarted() {
+        repeatDelayUs = getRepeatDelayUs();
+        lastPts = -1;
+        restartPending = false;
+    }
+
+    /**
+     * Notify that a frame (not a config packet) has been written.
+     *
+     * @param pts the presentation timestamp of the frame (in microseconds)
+     * @param size the frame size (in bytes)
+     * @return {@code true} if the encoding must be restarted with the repeat delay of the new state
+     */
+    public synchronized boolean onFrame(long pts, int size) {
+        boolean sessionStart = lastPts == -1;
+        boolean repeated = !sessionStart && pts - lastPts == repeatDelayUs;
+        lastPts = pts;
+        latestPts = pts;
+
+        if (idle) {
+            if (sessionStart || repeated) {
+                // The first frame of a session is not caused by a content change, but by the new encoder surface
+                idleBytes += size;
+                return false;
+            }
+            idle = false;
+            long durationUs = pts - idleStartPts;
+            idleUs += durationUs;
+            avoidedBytes += durationUs / activeRepeatDelayUs * idleFrameSize;
+            lastNewFramePts = pts;
+            // Restart once the activity settles
+            restartPending = true;
+            return false;
+        }
+
+        if (restartPending) {
+            if (repeated) {
+                restartPending = false;
+                leftIdle = true;
+                return true;
+            }
+            lastNewFramePts = pts;
+            return false;
+        }
+
+        if (sessionStart) {
+            if (leftIdle) {
+                // The key frame of the restarted session is a cost of the idle mode
+                leftIdle = false;
+                idleBytes += size;
+            }
+            lastNewFramePts = pts;
+            return false;
+        }
+
+        if (!repeated) {
+            lastNewFramePts = pts;
+            return false;
+        }
+
+        if (pts - lastNewFramePts >= idleTimeoutUs) {
+            idle = true;
+            idleStartPts = pts;
+            // After the idle timeout, the quality has converged: the last repeated frame is representative of the frames avoided
+            idleFrameSize = size;
+            ++idleCount;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Return the number of times the screen became idle.
+     */
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * Return the total duration spent idle (in microseconds).
+     */
+    public synchronized long getIdleUs() {
+        return idle ? idleUs + latestPts - idleStartPts : idleUs;
+    }
+
+    /**
+     * Return the estimated number of bytes saved by the idle mode (may be negative if the screen becomes idle too often).
+     */
+    public synchronized long getSavedBytes() {
+        long avoided = avoidedBytes;
+        if (idle) {
+            avoided += (latestPts - idleStartPts) / activeRepeatDelayUs * idleFrameSize;
+        }
+        return avoided - idleBytes;
+    }
+}
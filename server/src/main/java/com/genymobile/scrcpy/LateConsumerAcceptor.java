@@ -0,0 +1,63 @@
+package com.genymobile.scrcpy;
+
+import android.net.LocalSocket;
+
+import java.io.IOException;
+
+/**
+ * Accept video consumers connecting after the start of the stream, and add them to the video fan-out.
+ */
+public final class LateConsumerAcceptor implements AsyncProcessor {
+
+    private final DesktopConnection connection;
+    private final VideoFanOut fanOut;
+
+    private Thread thread;
+
+    public LateConsumerAcceptor(DesktopConnection connection, VideoFanOut fanOut) {
+        this.connection = connection;
+        this.fanOut = fanOut;
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            LocalSocket socket;
+            try {
+                socket = connection.acceptLateVideoConsumer();
+            } catch (IOException e) {
+                // the server socket is closed
+                return;
+            }
+
+            try {
+                fanOut.addConsumer(socket);
+            } catch (IOException e) {
+                Ln.w("Could not initialize late video consumer: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        thread = new Thread(() -> {
+            try {
+                acceptLoop();
+            } finally {
+                Ln.d("Late consumer acceptor stopped");
+            }
+        }, "late-consumers");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        // The accept() call is unblocked by closing the connection
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Histogram of latencies (in microseconds), with a fixed memory footprint.
+ * <p>
+ * The values are counted in log-linear buckets: exact below 64 µs, then 32 buckets per power of two (a relative error below 3.2%). The
+ * values above {@link #MAX_VALUE_US} are counted in the last bucket, but the max is exact.
+ */
+public final class LatencyHistogram {
+
+    public static final long MAX_VALUE_US = (1 << 25) - 1; // about 33 seconds
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE_US) + 1;
+
+    /**
+     * Summary of a histogram.
+     */
+    public static final class Summary {
+        private final long count;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        public Summary(long count, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "p50 " + formatMs(p50) + " ms, p90 " + formatMs(p90) + " ms, p99 " + formatMs(p99) + " ms, max " + formatMs(max) + " ms ("
+                    + count + " frames)";
+        }
+
+        private static String formatMs(long us) {
+            return String.valueOf(us / 1000f);
+        }
+    }
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long max;
+
+    static int getBucketIndex(long valueUs) {
+        if (valueUs < 2 * SUB_BUCKET_COUNT) {
+            return (int) valueUs;
+        }
+        // Keep the SUB_BUCKET_BITS + 1 most significant bits
+        int shift = 63 - Long.numberOfLeadingZeros(valueUs) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT * (shift + 1) + (int) (valueUs >> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * Return the highest value counted in a bucket.
+     */
+    static long getBucketMaxValue(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long low = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    /**
+     * Record a latency (negative values are counted as 0).
+     */
+    public synchronized void record(long valueUs) {
+        if (valueUs < 0) {
+            valueUs = 0;
+        }
+        ++buckets[getBucketIndex(Math.min(valueUs, MAX_VALUE_US))];
+        ++count;
+        if (valueUs > max) {
+            max = valueUs;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Return the value below which the percentage of recorded values falls (rounded up to the bucket upper bound, and never more than
+     * the max).
+     *
+     * @param percentile the percentage, in ]0; 100]
+     * @return the value, or 0 if nothing has been recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(getBucketMaxValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    public synchronized Summary getSummary() {
+        return new Summary(count, getPercentile(50), getPercentile(90), getPercentile(99), max);
+    }
+}
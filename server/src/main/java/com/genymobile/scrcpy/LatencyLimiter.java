@@ -0,0 +1,96 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Bound the latency of the video stream when the writer falls behind.
+ * <p>
+ * When a packet has been pending for longer than the latency budget, the non-key packets are dropped until the next key frame, and a sync
+ * frame is requested to the encoder, so that the stream recovers to real time.
+ */
+public final class LatencyLimiter {
+
+    // If the requested sync frame does not come, request it again after this delay
+    private static final long SYNC_FRAME_RETRY_NS = 500_000_000; // 500ms
+
+    private final long maxLatencyNs;
+
+    private boolean dropping;
+    private boolean syncFrameRequested;
+    private long lastSyncFrameRequestNs;
+
+    private long droppedPackets;
+    private long droppedBytes;
+    private long recoveries;
+
+    public LatencyLimiter(long maxLatencyNs) {
+        this.maxLatencyNs = maxLatencyNs;
+    }
+
+    /**
+     * Decide whether a packet must be written or dropped.
+     *
+     * @param nowNs the current time (in {@link System#nanoTime()} base)
+     * @param outputTimeNs the time at which the packet has been produced by the encoder (before it is queued)
+     * @param size the packet size
+     * @param config {@code true} for a codec config packet
+     * @param keyFrame {@code true} for a key frame
+     * @return {@code true} if the packet must be dropped
+     */
+    public boolean shouldDrop(long nowNs, long outputTimeNs, int size, boolean config, boolean keyFrame) {
+        if (config) {
+            // config packets are required to decode, never drop them
+            return false;
+        }
+
+        if (keyFrame) {
+            // the stream can be decoded again from this packet
+            dropping = false;
+            return false;
+        }
+
+        if (!dropping && nowNs - outputTimeNs > maxLatencyNs) {
+            dropping = true;
+            ++recoveries;
+            requestSyncFrame(nowNs);
+        }
+
+        if (dropping) {
+            if (nowNs - lastSyncFrameRequestNs > SYNC_FRAME_RETRY_NS) {
+                requestSyncFrame(nowNs);
+            }
+            ++droppedPackets;
+            droppedBytes += size;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void requestSyncFrame(long nowNs) {
+        syncFrameRequested = true;
+        lastSyncFrameRequestNs = nowNs;
+    }
+
+    /**
+     * Return whether a sync frame must be requested to the encoder, and reset the request.
+     */
+    public boolean consumeSyncFrameRequest() {
+        boolean result = syncFrameRequested;
+        syncFrameRequested = false;
+        return result;
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Return the number of times the latency budget has been exceeded.
+     */
+    public long getRecoveries() {
+        return recoveries;
+    }
+}
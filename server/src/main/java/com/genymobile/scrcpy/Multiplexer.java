@@ -0,0 +1,305 @@
+package com.genymobile.scrcpy;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multiplex the video, audio and control streams over a single socket.
+ * <p>
+ * Each stream is written to (and read from) its own local socket pair, exactly as it would be on a dedicated socket. The multiplexer
+ * forwards the data as frames tagged with their channel:
+ *
+ * <pre>
+ *     [channel: u8][length: u32 big-endian][payload: length bytes]
+ * </pre>
+ *
+ * The data is read by chunks of at most {@link #MAX_CHUNK_SIZE} bytes, and the pending channels are served by priority (control, then
+ * audio, then video), so that an audio packet never waits for a whole video key frame.
+ * <p>
+ * In the other direction, only the control channel is accepted.
+ */
+public final class Multiplexer {
+
+    public static final int CHANNEL_VIDEO = 0;
+    public static final int CHANNEL_AUDIO = 1;
+    public static final int CHANNEL_CONTROL = 2;
+    private static final int CHANNEL_COUNT = 3;
+
+    // The first channels are served first
+    private static final int[] PRIORITIES = {CHANNEL_CONTROL, CHANNEL_AUDIO, CHANNEL_VIDEO};
+    private static final String[] CHANNEL_NAMES = {"video", "audio", "control"};
+
+    static final int HEADER_SIZE = 5;
+    static final int MAX_CHUNK_SIZE = 16 * 1024;
+
+    private final FileDescriptor socketFd;
+
+    // For each channel, the end used by the streams and the end read by the multiplexer (null if the channel is disabled)
+    private final FileDescriptor[] streamFds = new FileDescriptor[CHANNEL_COUNT];
+    private final FileDescriptor[] muxFds = new FileDescriptor[CHANNEL_COUNT];
+
+    private final long[] frameCounts = new long[CHANNEL_COUNT];
+    private final long[] byteCounts = new long[CHANNEL_COUNT];
+
+    private Thread outputThread;
+    private Thread inputThread;
+
+    public Multiplexer(FileDescriptor socketFd, boolean audio, boolean control) throws IOException {
+        this.socketFd = socketFd;
+        try {
+            createChannel(CHANNEL_VIDEO);
+            if (audio) {
+                createChannel(CHANNEL_AUDIO);
+            }
+            if (control) {
+                createChannel(CHANNEL_CONTROL);
+            }
+        } catch (ErrnoException e) {
+            closeChannels();
+            throw new IOException(e);
+        }
+    }
+
+    private void createChannel(int channel) throws ErrnoException {
+        FileDescriptor streamFd = new FileDescriptor();
+        FileDescriptor muxFd = new FileDescriptor();
+        Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_STREAM, 0, streamFd, muxFd);
+        streamFds[channel] = streamFd;
+        muxFds[channel] = muxFd;
+    }
+
+    /**
+     * Return the file descriptor to use for the stream of a channel, or {@code null} if the channel is disabled.
+     */
+    public FileDescriptor getStreamFd(int channel) {
+        return streamFds[channel];
+    }
+
+    public InputStream getControlInputStream() {
+        return new FileInputStream(streamFds[CHANNEL_CONTROL]);
+    }
+
+    public OutputStream getControlOutputStream() {
+        return new FileOutputStream(streamFds[CHANNEL_CONTROL]);
+    }
+
+    public void start() {
+        outputThread = new Thread(() -> {
+            try {
+                runOutput();
+            } catch (IOException e) {
+                if (!IO.isBrokenPipe(e)) {
+                    Ln.e("Multiplexer error", e);
+                }
+            } finally {
+                // The client is gone: make the streams fail
+                shutdownChannels();
+                Ln.d("Multiplexer stopped");
+            }
+        }, "multiplexer");
+        outputThread.start();
+
+        if (muxFds[CHANNEL_CONTROL] != null) {
+            inputThread = new Thread(() -> {
+                try {
+                    demux(new FileInputStream(socketFd), new FileOutputStream(muxFds[CHANNEL_CONTROL]));
+                } catch (IOException e) {
+                    // Expected on close
+                    Ln.d("Demultiplexer stopped: " + e.getMessage());
+                } finally {
+                    shutdown(muxFds[CHANNEL_CONTROL], OsConstants.SHUT_WR);
+                }
+            }, "demultiplexer");
+            inputThread.start();
+        }
+    }
+
+    private void runOutput() throws IOException {
+        List<Integer> channels = new ArrayList<>();
+        for (int channel : PRIORITIES) {
+            if (muxFds[channel] != null) {
+                channels.add(channel);
+            }
+        }
+
+        byte[] buffer = new byte[HEADER_SIZE + MAX_CHUNK_SIZE];
+        while (!channels.isEmpty()) {
+            StructPollfd[] pollFds = new StructPollfd[channels.size()];
+            for (int i = 0; i < pollFds.length; ++i) {
+                pollFds[i] = new StructPollfd();
+                pollFds[i].fd = muxFds[channels.get(i)];
+                pollFds[i].events = (short) OsConstants.POLLIN;
+            }
+
+            // Serve the channels by priority until none has pending data
+            while (poll(pollFds)) {
+                int index = selectReady(pollFds);
+                int channel = channels.get(index);
+                int r = read(muxFds[channel], buffer, HEADER_SIZE, MAX_CHUNK_SIZE);
+                if (r <= 0) {
+                    // The stream is closed, stop polling it
+                    channels.remove(index);
+                    break;
+                }
+                putFrameHeader(buffer, channel, r);
+                IO.writeFully(socketFd, buffer, 0, HEADER_SIZE + r);
+                ++frameCounts[channel];
+                byteCounts[channel] += r;
+            }
+        }
+    }
+
+    private static boolean poll(StructPollfd[] pollFds) throws IOException {
+        while (true) {
+            try {
+                return Os.poll(pollFds, -1) > 0;
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    private static int selectReady(StructPollfd[] pollFds) {
+        // The poll fds are in priority order
+        for (int i = 0; i < pollFds.length; ++i) {
+            if (pollFds[i].revents != 0) {
+                return i;
+            }
+        }
+        throw new AssertionError("No channel ready");
+    }
+
+    private static int read(FileDescriptor fd, byte[] buffer, int offset, int len) throws IOException {
+        while (true) {
+            try {
+                return Os.read(fd, buffer, offset, len);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ECONNRESET) {
+                    return -1;
+                }
+                if (e.errno != OsConstants.EINTR) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    static void putFrameHeader(byte[] buffer, int channel, int length) {
+        buffer[0] = (byte) channel;
+        buffer[1] = (byte) (length >>> 24);
+        buffer[2] = (byte) (length >>> 16);
+        buffer[3] = (byte) (length >>> 8);
+        buffer[4] = (byte) length;
+    }
+
+    /**
+     * Forward the payload of the frames received from the client to the control stream, until the end of the input.
+     */
+    static void demux(InputStream input, OutputStream control) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        byte[] buffer = new byte[MAX_CHUNK_SIZE];
+        while (true) {
+            int channel;
+            try {
+                channel = in.readUnsignedByte();
+            } catch (EOFException e) {
+                // end of the input between frames
+                return;
+            }
+            int length = in.readInt();
+            if (channel != CHANNEL_CONTROL) {
+                throw new IOException("Unexpected channel from the client: " + channel);
+            }
+            if (length < 0) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            while (length > 0) {
+                int len = Math.min(length, buffer.length);
+                in.readFully(buffer, 0, len);
+                control.write(buffer, 0, len);
+                length -= len;
+            }
+            control.flush();
+        }
+    }
+
+    private void shutdownChannels() {
+        for (FileDescriptor fd : muxFds) {
+            if (fd != null) {
+                shutdown(fd, OsConstants.SHUT_RDWR);
+            }
+        }
+    }
+
+    private static void shutdown(FileDescriptor fd, int how) {
+        try {
+            Os.shutdown(fd, how);
+        } catch (ErrnoException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Stop the multiplexer once the socket is shut down, and release the channels.
+     */
+    public void close() {
+        // Unblock the output thread, waiting for data from the streams
+        for (FileDescriptor fd : streamFds) {
+            if (fd != null) {
+                shutdown(fd, OsConstants.SHUT_RDWR);
+            }
+        }
+        try {
+            if (outputThread != null) {
+                outputThread.join();
+            }
+            if (inputThread != null) {
+                inputThread.join();
+            }
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        closeChannels();
+
+        StringBuilder builder = new StringBuilder("Multiplexer:");
+        for (int channel = 0; channel < CHANNEL_COUNT; ++channel) {
+            if (muxFds[channel] != null) {
+                builder.append(' ').append(CHANNEL_NAMES[channel]).append(' ').append(frameCounts[channel]).append(" frames (")
+                        .append(byteCounts[channel]).append(" bytes)");
+            }
+        }
+        Ln.d(builder.toString());
+    }
+
+    private void closeChannels() {
+        for (int channel = 0; channel < CHANNEL_COUNT; ++channel) {
+            close(streamFds[channel]);
+            close(muxFds[channel]);
+        }
+    }
+
+    private static void close(FileDescriptor fd) {
+        if (fd != null && fd.valid()) {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException e) {
+                // ignore
+            }
+        }
+    }
+}
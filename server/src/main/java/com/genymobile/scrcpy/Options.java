@@ -2,6 +2,7 @@ package com.genymobile.scrcpy;
 
 import android.graphics.Rect;
 
+import java.util.Collections;
 import java.util.List;
 
 public class Options {
@@ -13,6 +14,24 @@ public class Options {
     private VideoCodec videoCodec = VideoCodec.H264;
     private AudioCodec audioCodec = AudioCodec.OPUS;
     private int videoBitRate = 8000000;
+    private boolean adaptiveBitRate;
+    private int minVideoBitRate = 500000;
+    private int maxVideoBitRate; // 0 means videoBitRate
+    private int maxVideoLatency; // ms, 0 means unbounded
+    private int idleTimeout; // ms without new frames before reducing the frame repetition, 0 means disabled
+    private List<Rendition> videoRenditions = Collections.emptyList(); // additional video streams
+    private Rendition thumbnail; // null if disabled
+    private boolean thumbnailOnly; // the main video stream is the thumbnail, instead of an additional stream
+    private int videoConsumers; // additional consumers of the main video stream, connected on start
+    private boolean lateVideoConsumers; // accept video consumers after the start of the stream (tunnel forward only)
+    private int websocketPort; // 0 means disabled
+    private String websocketBind; // address to listen on, null for loopback
+    private List<String> websocketOrigins = Collections.emptyList(); // browser origins allowed in addition to the loopback ones
+    private String authToken; // token required by the network transports, null to use the scid
+    private boolean fmp4; // package the streams into fragmented MP4
+    private int fmp4FragmentDuration; // ms, 0 means one fragment per packet
+    private int replayBuffer; // seconds of video to keep in memory for instant replay, 0 means disabled
+    private int replayBufferSize = 64; // MB
     private int audioBitRate = 128000;
     private int maxFps;
     private int lockVideoOrientation = -1;
@@ -30,6 +49,22 @@ public class Options {
     private boolean powerOffScreenOnClose;
     private boolean clipboardAutosync = true;
     private boolean downsizeOnError = true;
+    private boolean encoderCache; // persist the encoder profiles in /data/local/tmp
+    private boolean videoEncoderBenchmark; // select the video encoder by benchmark if none is specified
+    private int latencyLogInterval; // in ms, 0 to only log the frame latencies at the end
+    private int audioCoalesceWindow; // in ms, 0 to write each audio packet immediately
+    private boolean prependConfig; // write the video config packet again before each key frame
+    private boolean encoderPrependConfig; // request the encoder to include the parameter sets in each key frame (Android 10+)
+    private int stallTimeout; // in ms, 0 to disable the encoder stall watchdog
+    private boolean lowLatency; // low-latency encoder mode (Android 11+, if supported) and partial frames written immediately
+    private boolean multiplex; // video, audio and control streams over a single socket
+    private int tcpPort; // listen for direct TCP connections instead of the adb tunnel, 0 if disabled
+    private String tcpBind; // address to listen on, null for loopback
+    private int tcpSendBuffer; // in KB, 0 for the system default
+    private int rtpPort; // send the video over RTP/UDP, 0 if disabled
+    private String rtpBind; // address to listen on, null for loopback
+    private String rtpHost; // the only host allowed to receive the RTP stream, null to accept the first peer
+    private String captureFile; // path of the capture file of the video stream, null if disabled
     private boolean cleanup = true;
     private boolean powerOn = true;
 
@@ -98,6 +133,150 @@ public class Options {
         this.videoBitRate = videoBitRate;
     }
 
+    public boolean getAdaptiveBitRate() {
+        return adaptiveBitRate;
+    }
+
+    public void setAdaptiveBitRate(boolean adaptiveBitRate) {
+        this.adaptiveBitRate = adaptiveBitRate;
+    }
+
+    public int getMinVideoBitRate() {
+        return minVideoBitRate;
+    }
+
+    public void setMinVideoBitRate(int minVideoBitRate) {
+        this.minVideoBitRate = minVideoBitRate;
+    }
+
+    public int getMaxVideoBitRate() {
+        return maxVideoBitRate != 0 ? maxVideoBitRate : videoBitRate;
+    }
+
+    public void setMaxVideoBitRate(int maxVideoBitRate) {
+        this.maxVideoBitRate = maxVideoBitRate;
+    }
+
+    public int getMaxVideoLatency() {
+        return maxVideoLatency;
+    }
+
+    public void setMaxVideoLatency(int maxVideoLatency) {
+        this.maxVideoLatency = maxVideoLatency;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public List<Rendition> getVideoRenditions() {
+        return videoRenditions;
+    }
+
+    public void setVideoRenditions(List<Rendition> videoRenditions) {
+        this.videoRenditions = videoRenditions;
+    }
+
+    public Rendition getThumbnail() {
+        return thumbnail;
+    }
+
+    public void setThumbnail(Rendition thumbnail) {
+        this.thumbnail = thumbnail;
+    }
+
+    public boolean getThumbnailOnly() {
+        return thumbnailOnly;
+    }
+
+    public void setThumbnailOnly(boolean thumbnailOnly) {
+        this.thumbnailOnly = thumbnailOnly;
+    }
+
+    public int getVideoConsumers() {
+        return videoConsumers;
+    }
+
+    public void setVideoConsumers(int videoConsumers) {
+        this.videoConsumers = videoConsumers;
+    }
+
+    public boolean getLateVideoConsumers() {
+        return lateVideoConsumers;
+    }
+
+    public void setLateVideoConsumers(boolean lateVideoConsumers) {
+        this.lateVideoConsumers = lateVideoConsumers;
+    }
+
+    public int getWebsocketPort() {
+        return websocketPort;
+    }
+
+    public void setWebsocketPort(int websocketPort) {
+        this.websocketPort = websocketPort;
+    }
+
+    public String getWebsocketBind() {
+        return websocketBind;
+    }
+
+    public void setWebsocketBind(String websocketBind) {
+        this.websocketBind = websocketBind;
+    }
+
+    public List<String> getWebsocketOrigins() {
+        return websocketOrigins;
+    }
+
+    public void setWebsocketOrigins(List<String> websocketOrigins) {
+        this.websocketOrigins = websocketOrigins;
+    }
+
+    public String getAuthToken() {
+        return authToken;
+    }
+
+    public void setAuthToken(String authToken) {
+        this.authToken = authToken;
+    }
+
+    public boolean getFmp4() {
+        return fmp4;
+    }
+
+    public void setFmp4(boolean fmp4) {
+        this.fmp4 = fmp4;
+    }
+
+    public int getFmp4FragmentDuration() {
+        return fmp4FragmentDuration;
+    }
+
+    public void setFmp4FragmentDuration(int fmp4FragmentDuration) {
+        this.fmp4FragmentDuration = fmp4FragmentDuration;
+    }
+
+    public int getReplayBuffer() {
+        return replayBuffer;
+    }
+
+    public void setReplayBuffer(int replayBuffer) {
+        this.replayBuffer = replayBuffer;
+    }
+
+    public int getReplayBufferSize() {
+        return replayBufferSize;
+    }
+
+    public void setReplayBufferSize(int replayBufferSize) {
+        this.replayBufferSize = replayBufferSize;
+    }
+
     public int getAudioBitRate() {
         return audioBitRate;
     }
@@ -226,6 +405,134 @@ public class Options {
         this.downsizeOnError = downsizeOnError;
     }
 
+    public boolean getEncoderCache() {
+        return encoderCache;
+    }
+
+    public void setEncoderCache(boolean encoderCache) {
+        this.encoderCache = encoderCache;
+    }
+
+    public boolean getVideoEncoderBenchmark() {
+        return videoEncoderBenchmark;
+    }
+
+    public void setVideoEncoderBenchmark(boolean videoEncoderBenchmark) {
+        this.videoEncoderBenchmark = videoEncoderBenchmark;
+    }
+
+    public int getLatencyLogInterval() {
+        return latencyLogInterval;
+    }
+
+    public void setLatencyLogInterval(int latencyLogInterval) {
+        this.latencyLogInterval = latencyLogInterval;
+    }
+
+    public int getAudioCoalesceWindow() {
+        return audioCoalesceWindow;
+    }
+
+    public void setAudioCoalesceWindow(int audioCoalesceWindow) {
+        this.audioCoalesceWindow = audioCoalesceWindow;
+    }
+
+    public boolean getPrependConfig() {
+        return prependConfig;
+    }
+
+    public void setPrependConfig(boolean prependConfig) {
+        this.prependConfig = prependConfig;
+    }
+
+    public boolean getEncoderPrependConfig() {
+        return encoderPrependConfig;
+    }
+
+    public void setEncoderPrependConfig(boolean encoderPrependConfig) {
+        this.encoderPrependConfig = encoderPrependConfig;
+    }
+
+    public int getStallTimeout() {
+        return stallTimeout;
+    }
+
+    public void setStallTimeout(int stallTimeout) {
+        this.stallTimeout = stallTimeout;
+    }
+
+    public boolean getLowLatency() {
+        return lowLatency;
+    }
+
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+    }
+
+    public boolean getMultiplex() {
+        return multiplex;
+    }
+
+    public void setMultiplex(boolean multiplex) {
+        this.multiplex = multiplex;
+    }
+
+    public int getTcpPort() {
+        return tcpPort;
+    }
+
+    public void setTcpPort(int tcpPort) {
+        this.tcpPort = tcpPort;
+    }
+
+    public String getTcpBind() {
+        return tcpBind;
+    }
+
+    public void setTcpBind(String tcpBind) {
+        this.tcpBind = tcpBind;
+    }
+
+    public int getTcpSendBuffer() {
+        return tcpSendBuffer;
+    }
+
+    public void setTcpSendBuffer(int tcpSendBuffer) {
+        this.tcpSendBuffer = tcpSendBuffer;
+    }
+
+    public int getRtpPort() {
+        return rtpPort;
+    }
+
+    public void setRtpPort(int rtpPort) {
+        this.rtpPort = rtpPort;
+    }
+
+    public String getRtpBind() {
+        return rtpBind;
+    }
+
+    public void setRtpBind(String rtpBind) {
+        this.rtpBind = rtpBind;
+    }
+
+    public String getRtpHost() {
+        return rtpHost;
+    }
+
+    public void setRtpHost(String rtpHost) {
+        this.rtpHost = rtpHost;
+    }
+
+    public String getCaptureFile() {
+        return captureFile;
+    }
+
+    public void setCaptureFile(String captureFile) {
+        this.captureFile = captureFile;
+    }
+
     public boolean getCleanup() {
         return cleanup;
     }
@@ -0,0 +1,113 @@
+package com.genymobile.scrcpy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Accumulate small packets (with their frame meta) to write them with a single syscall.
+ * <p>
+ * The packets are copied, since the codec buffers are released once written. The pending packets must be written before the first one
+ * gets older than the latency window: as soon as the next expected packet (predicted from the interval between the last packets) would
+ * fall outside the window in media time (the PTS of the stream, which is continuous for audio), or once the window has elapsed in wall
+ * clock time. Since no packet may arrive to trigger the latter (if the stream pauses), the caller must also flush at
+ * {@link #getDeadlineNs()}.
+ */
+public final class PacketCoalescer {
+
+    private final ByteBuffer buffer;
+    private final int maxPacketSize;
+    private final long windowUs;
+
+    private int packetCount; // pending
+    private long firstPts;
+    private long firstTimeNs;
+    private long lastPts = -1;
+    private long interval; // between the last two packets appended
+
+    /**
+     * @param capacity the max number of pending bytes
+     * @param maxPacketSize the max size of a packet (including its frame meta) to coalesce
+     * @param windowUs the max latency added to the first pending packet
+     */
+    public PacketCoalescer(int capacity, int maxPacketSize, long windowUs) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+        this.maxPacketSize = maxPacketSize;
+        this.windowUs = windowUs;
+    }
+
+    /**
+     * Indicate whether a packet is small enough to be coalesced.
+     */
+    public boolean accepts(int size) {
+        return size <= maxPacketSize;
+    }
+
+    /**
+     * Indicate whether a packet may be appended without exceeding the capacity.
+     */
+    public boolean hasRoom(int size) {
+        return buffer.position() + size <= buffer.capacity();
+    }
+
+    /**
+     * Append a packet (the buffers positions are not modified).
+     *
+     * @param header the frame meta, or {@code null}
+     * @param data the packet data
+     */
+    public void append(ByteBuffer header, ByteBuffer data, long pts, long nowNs) {
+        if (packetCount == 0) {
+            firstPts = pts;
+            firstTimeNs = nowNs;
+        }
+        if (lastPts != -1 && pts > lastPts) {
+            interval = pts - lastPts;
+        }
+        lastPts = pts;
+        if (header != null) {
+            buffer.put(header.duplicate());
+        }
+        buffer.put(data.duplicate());
+        ++packetCount;
+    }
+
+    /**
+     * Indicate whether the pending packets must be written now.
+     *
+     * @param pts the PTS of the last packet appended
+     */
+    public boolean isDue(long pts, long nowNs) {
+        // The next packet is expected at pts + interval: do not wait for it if it would exceed the window
+        return packetCount > 0 && (pts + interval - firstPts > windowUs || pts - firstPts >= windowUs
+                || (nowNs - firstTimeNs) / 1000 >= windowUs);
+    }
+
+    /**
+     * Return the wall clock time (in {@link System#nanoTime()} base) at which the pending packets must be written even if no other packet
+     * is appended, or -1 if there are no pending packets.
+     */
+    public long getDeadlineNs() {
+        return packetCount > 0 ? firstTimeNs + windowUs * 1000 : -1;
+    }
+
+    public boolean isEmpty() {
+        return packetCount == 0;
+    }
+
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Return the pending bytes, valid until the next call to {@link #clear()} or {@code append()}.
+     */
+    public ByteBuffer getPending() {
+        ByteBuffer pending = buffer.duplicate();
+        pending.flip();
+        return pending;
+    }
+
+    public void clear() {
+        buffer.clear();
+        packetCount = 0;
+    }
+}
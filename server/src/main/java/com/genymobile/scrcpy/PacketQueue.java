@@ -0,0 +1,294 @@
+package com.genymobile.scrcpy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of encoded packets, used to hand off packets from the encoder to the thread writing them to the socket.
+ * <p>
+ * Packets are copied out of the MediaCodec output buffers, so that the codec buffers can be released immediately. The packet buffers are
+ * recycled, so that no allocation happens once the queue has warmed up.
+ */
+public final class PacketQueue {
+
+    public static final class Packet {
+        private ByteBuffer data;
+        private long pts;
+        private boolean config;
+        private boolean keyFrame;
+        private boolean partial;
+        private long enqueueTimeNs;
+        private long outputTimeNs;
+
+        private Packet(int capacity) {
+            data = ByteBuffer.allocateDirect(capacity);
+        }
+
+        private void prepare(int size) {
+            if (data.capacity() < size) {
+                // Grow by 50% to avoid reallocating on every slightly bigger packet
+                data = ByteBuffer.allocateDirect(Math.max(size, data.capacity() * 3 / 2));
+            }
+            data.clear();
+        }
+
+        public void set(ByteBuffer from, long pts, boolean config, boolean keyFrame) {
+            prepare(from.remaining());
+            data.put(from);
+            data.flip();
+            this.pts = pts;
+            this.config = config;
+            this.keyFrame = keyFrame;
+            partial = false;
+            // Before the producer may block on a full queue
+            outputTimeNs = System.nanoTime();
+        }
+
+        /**
+         * Append the next part of a partial frame.
+         */
+        public void append(ByteBuffer from) {
+            int size = data.remaining() + from.remaining();
+            if (data.capacity() < size) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(size, data.capacity() * 3 / 2));
+                grown.put(data);
+                data = grown;
+            } else {
+                data.compact();
+            }
+            data.put(from);
+            data.flip();
+            outputTimeNs = System.nanoTime();
+        }
+
+        /**
+         * Mark the packet as a part of a frame, not the last one.
+         */
+        public void setPartial(boolean partial) {
+            this.partial = partial;
+        }
+
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        public long getPts() {
+            return pts;
+        }
+
+        public boolean isConfig() {
+            return config;
+        }
+
+        public boolean isKeyFrame() {
+            return keyFrame;
+        }
+
+        public boolean isPartial() {
+            return partial;
+        }
+
+        /**
+         * Return the time (in {@link System#nanoTime()} base) at which the packet has been queued.
+         */
+        public long getEnqueueTimeNs() {
+            return enqueueTimeNs;
+        }
+
+        /**
+         * Return the time (in {@link System#nanoTime()} base) at which the packet has been copied out of the encoder.
+         */
+        public long getOutputTimeNs() {
+            return outputTimeNs;
+        }
+    }
+
+    private static final int INITIAL_PACKET_CAPACITY = 64 * 1024;
+
+    private final Packet[] packets;
+    private int head;
+    private int count;
+    private int pendingBytes;
+
+    private final ArrayDeque<Packet> recycled = new ArrayDeque<>();
+
+    private boolean open = true;
+    private boolean signaled;
+
+    private int maxCount;
+    private long producerBlockedNs;
+
+    public PacketQueue(int capacity) {
+        packets = new Packet[capacity];
+    }
+
+    /**
+     * Return an unused packet, to be filled and passed to {@link #put(Packet)}.
+     */
+    public synchronized Packet obtain() {
+        Packet packet = recycled.poll();
+        if (packet == null) {
+            packet = new Packet(INITIAL_PACKET_CAPACITY);
+        }
+        return packet;
+    }
+
+    /**
+     * Give back a packet returned by {@link #take()} once it has been consumed.
+     */
+    public synchronized void recycle(Packet packet) {
+        recycled.add(packet);
+    }
+
+    /**
+     * Queue a packet, blocking while the queue is full.
+     * <p>
+     * If the queue is closed, the packet is recycled immediately.
+     *
+     * @return {@code true} if the packet has been queued, {@code false} if the queue is closed
+     */
+    public synchronized boolean put(Packet packet) throws InterruptedException {
+        if (open && count == packets.length) {
+            long start = System.nanoTime();
+            while (open && count == packets.length) {
+                wait();
+            }
+            producerBlockedNs += System.nanoTime() - start;
+        }
+
+        if (!open) {
+            recycled.add(packet);
+            return false;
+        }
+
+        enqueue(packet);
+        return true;
+    }
+
+    /**
+     * Queue a packet if the queue is not full, without blocking.
+     * <p>
+     * If the packet is not queued, the caller keeps its ownership (it may recycle it).
+     *
+     * @return {@code true} if the packet has been queued, {@code false} if the queue is full or closed
+     */
+    public synchronized boolean offer(Packet packet) {
+        if (!open || count == packets.length) {
+            return false;
+        }
+
+        enqueue(packet);
+        return true;
+    }
+
+    private void enqueue(Packet packet) {
+        packet.enqueueTimeNs = System.nanoTime();
+        packets[(head + count) % packets.length] = packet;
+        ++count;
+        pendingBytes += packet.data.remaining();
+        if (count > maxCount) {
+            maxCount = count;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Return the next packet, blocking while the queue is empty.
+     *
+     * @return the next packet, or {@code null} if {@link #signal()} has been called while the queue was empty
+     */
+    public synchronized Packet take() throws InterruptedException {
+        while (count == 0 && !signaled) {
+            wait();
+        }
+        return dequeue();
+    }
+
+    /**
+     * Return the next packet, blocking while the queue is empty for at most {@code timeoutMs}.
+     *
+     * @return the next packet, or {@code null} on timeout or if {@link #signal()} has been called while the queue was empty
+     */
+    public synchronized Packet take(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        while (count == 0 && !signaled) {
+            long remainingMs = (deadline - System.nanoTime()) / 1_000_000;
+            if (remainingMs <= 0) {
+                return null;
+            }
+            wait(remainingMs);
+        }
+        return dequeue();
+    }
+
+    private Packet dequeue() {
+        if (count == 0) {
+            signaled = false;
+            return null;
+        }
+        Packet packet = packets[head];
+        packets[head] = null;
+        head = (head + 1) % packets.length;
+        --count;
+        pendingBytes -= packet.data.remaining();
+        notifyAll();
+        return packet;
+    }
+
+    /**
+     * Wake up the consumer, so that it may check its state even if no packet is available.
+     */
+    public synchronized void signal() {
+        signaled = true;
+        notifyAll();
+    }
+
+    /**
+     * Open or close the queue.
+     * <p>
+     * Closing the queue recycles all pending packets and unblocks the producer, any packet queued while it is closed is dropped.
+     */
+    public synchronized void setOpen(boolean open) {
+        this.open = open;
+        if (!open) {
+            while (count > 0) {
+                recycled.add(packets[head]);
+                packets[head] = null;
+                head = (head + 1) % packets.length;
+                --count;
+            }
+            pendingBytes = 0;
+            signaled = false;
+        }
+        notifyAll();
+    }
+
+    public int getCapacity() {
+        return packets.length;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Return the total size of the packets pending in the queue.
+     */
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Return the maximum number of packets pending in the queue since it has been created.
+     */
+    public synchronized int getMaxSize() {
+        return maxCount;
+    }
+
+    /**
+     * Return the total time the producer has been blocked because the queue was full.
+     */
+    public synchronized long getProducerBlockedNs() {
+        return producerBlockedNs;
+    }
+}
@@ -0,0 +1,23 @@
+package com.genymobile.scrcpy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Additional destination of the packets written by a {@link Streamer}.
+ * <p>
+ * The methods are called from the streaming thread, they must never block.
+ */
+public interface PacketSink {
+    /**
+     * Called once the stream header has been written.
+     *
+     * @param codec the codec of the stream
+     * @param videoSize the video size, or {@code null} for an audio stream
+     */
+    void onStreamStarted(Codec codec, Size videoSize);
+
+    /**
+     * Called for each packet written. The buffer position must not be changed.
+     */
+    void onPacket(ByteBuffer data, long pts, boolean config, boolean keyFrame);
+}
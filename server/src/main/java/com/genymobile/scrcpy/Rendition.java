@@ -0,0 +1,122 @@
+package com.genymobile.scrcpy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Additional video stream of the same display, encoded concurrently with its own size and bit rate.
+ * <p>
+ * A thumbnail is a rendition tuned for tiny sizes and very low frame rates (for example for dashboards showing many devices).
+ */
+public final class Rendition {
+
+    public static final int DEFAULT_THUMBNAIL_MAX_SIZE = 160;
+    public static final int DEFAULT_THUMBNAIL_MAX_FPS = 2;
+
+    // For the automatic thumbnail bit rate
+    private static final float THUMBNAIL_BITS_PER_PIXEL = 0.25f;
+    private static final int MIN_THUMBNAIL_BIT_RATE = 16_000;
+
+    private final int maxSize;
+    private final int bitRate;
+    private final int maxFps;
+    private final boolean thumbnail;
+
+    public Rendition(int maxSize, int bitRate, int maxFps) {
+        this(maxSize, bitRate, maxFps, false);
+    }
+
+    /**
+     * @param bitRate the bit rate, or 0 for an automatic bit rate (only for a thumbnail)
+     */
+    public Rendition(int maxSize, int bitRate, int maxFps, boolean thumbnail) {
+        this.maxSize = maxSize;
+        this.bitRate = bitRate;
+        this.maxFps = maxFps;
+        this.thumbnail = thumbnail;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public boolean isThumbnail() {
+        return thumbnail;
+    }
+
+    /**
+     * Parse a list of renditions.
+     * <p>
+     * Format: "maxSize:bitRate[:maxFps]" separated by commas, for example "1024:2000000,480:500000:15".
+     */
+    public static List<Rendition> parse(String renditions) {
+        List<Rendition> result = new ArrayList<>();
+        if (renditions.isEmpty()) {
+            return result;
+        }
+
+        for (String rendition : renditions.split(",")) {
+            result.add(parseRendition(rendition));
+        }
+        return result;
+    }
+
+    private static Rendition parseRendition(String rendition) {
+        String[] tokens = rendition.split(":");
+        if (tokens.length != 2 && tokens.length != 3) {
+            throw new IllegalArgumentException("Rendition must contain 2 or 3 values separated by colons: \"" + rendition + "\"");
+        }
+
+        int maxSize = Integer.parseInt(tokens[0]) & ~7; // multiple of 8
+        int bitRate = Integer.parseInt(tokens[1]);
+        if (bitRate <= 0) {
+            throw new IllegalArgumentException("Rendition bit rate must be positive: \"" + rendition + "\"");
+        }
+        int maxFps = tokens.length == 3 ? Integer.parseInt(tokens[2]) : 0;
+        return new Rendition(maxSize, bitRate, maxFps);
+    }
+
+    /**
+     * Parse a thumbnail.
+     * <p>
+     * Format: "[maxSize[:bitRate[:maxFps]]]", for example "160" or "120:0:1". A bit rate of 0 means automatic (computed from the video size
+     * and the frame rate).
+     */
+    public static Rendition parseThumbnail(String thumbnail) {
+        String[] tokens = thumbnail.isEmpty() ? new String[0] : thumbnail.split(":");
+        if (tokens.length > 3) {
+            throw new IllegalArgumentException("Thumbnail must contain at most 3 values separated by colons: \"" + thumbnail + "\"");
+        }
+
+        int maxSize = tokens.length > 0 ? Integer.parseInt(tokens[0]) & ~7 : DEFAULT_THUMBNAIL_MAX_SIZE; // multiple of 8
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Thumbnail max size must be positive: \"" + thumbnail + "\"");
+        }
+        int bitRate = tokens.length > 1 ? Integer.parseInt(tokens[1]) : 0;
+        if (bitRate < 0) {
+            throw new IllegalArgumentException("Thumbnail bit rate may not be negative: \"" + thumbnail + "\"");
+        }
+        int maxFps = tokens.length > 2 ? Integer.parseInt(tokens[2]) : DEFAULT_THUMBNAIL_MAX_FPS;
+        if (maxFps <= 0) {
+            // An unlimited frame rate would defeat the purpose of a thumbnail
+            throw new IllegalArgumentException("Thumbnail max fps must be positive: \"" + thumbnail + "\"");
+        }
+        return new Rendition(maxSize, bitRate, maxFps, true);
+    }
+
+    /**
+     * Compute the automatic bit rate of a thumbnail.
+     */
+    public static int computeThumbnailBitRate(Size videoSize, int maxFps) {
+        long pixelsPerSecond = (long) videoSize.getWidth() * videoSize.getHeight() * maxFps;
+        return (int) Math.max(MIN_THUMBNAIL_BIT_RATE, Math.min(Integer.MAX_VALUE, (long) (pixelsPerSecond * THUMBNAIL_BITS_PER_PIXEL)));
+    }
+}
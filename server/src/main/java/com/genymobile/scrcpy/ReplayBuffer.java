@@ -0,0 +1,449 @@
+package com.genymobile.scrcpy;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keep the last packets of the video and audio streams in memory, to save them to an MP4 file on request ("instant replay").
+ * <p>
+ * The packets are those already produced for the main streams: this costs no additional encoding. They are copied into a ring buffer
+ * allocated once on start, so the memory is bounded whatever the session length. The oldest packets are evicted a whole GOP at a time, so
+ * that the buffer always starts with a video key frame.
+ * <p>
+ * Saving is done on a separate thread, while the recording continues. The packets not saved yet are never overwritten: if the buffer is
+ * full during the save, the new packets are dropped instead (until the next key frame).
+ */
+public final class ReplayBuffer {
+
+    private static final String DEFAULT_DIRECTORY = "/data/local/tmp";
+
+    private static final int TRACK_VIDEO = 0;
+    private static final int TRACK_AUDIO = 1;
+
+    // Metadata entries per second of replay (video and audio packets), the byte size is bounded separately
+    private static final int PACKETS_PER_SECOND = 200;
+
+    private static final long OPUS_SEEK_PRE_ROLL_NS = 80_000_000;
+
+    private final long maxDurationUs;
+    private final ByteBuffer data; // pre-allocated ring of packet data
+
+    // Packet metadata, indexed by sequence number modulo the capacity
+    private final long[] pts;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final byte[] tracks;
+    private final boolean[] keyFrames;
+
+    // All the fields below are accessed with the lock held
+    private long first; // sequence number of the oldest packet (always a video key frame)
+    private long next; // sequence number of the next packet
+    private int head; // offset in data where the next packet is written
+    private long streamStart; // sequence number of the first packet encoded with the current video config
+
+    private Codec videoCodec;
+    private Size videoSize;
+    private byte[] videoConfig;
+    private Codec audioCodec;
+    private byte[] audioConfig;
+
+    private boolean waitKeyFrame = true;
+    private long droppedPackets;
+
+    private boolean saving;
+    private long pinned = -1; // sequence number of the first packet not read yet by the save in progress
+
+    private final PacketSink videoSink = new TrackSink(TRACK_VIDEO);
+    private final PacketSink audioSink = new TrackSink(TRACK_AUDIO);
+
+    private final class TrackSink implements PacketSink {
+        private final int track;
+
+        private TrackSink(int track) {
+            this.track = track;
+        }
+
+        @Override
+        public void onStreamStarted(Codec codec, Size size) {
+            setStream(track, codec, size);
+        }
+
+        @Override
+        public void onPacket(ByteBuffer buffer, long packetPts, boolean config, boolean keyFrame) {
+            add(track, buffer, packetPts, config, keyFrame);
+        }
+    }
+
+    /**
+     * @param maxDurationUs the minimum duration to keep (the buffer always starts on a key frame, so it may be slightly longer)
+     * @param maxBytes the size of the buffer, allocated immediately
+     */
+    public ReplayBuffer(long maxDurationUs, int maxBytes) {
+        this.maxDurationUs = maxDurationUs;
+        data = ByteBuffer.allocateDirect(maxBytes);
+        int capacity = (int) Math.min(Integer.MAX_VALUE / 2, maxDurationUs / 1_000_000 * PACKETS_PER_SECOND + 1024);
+        pts = new long[capacity];
+        offsets = new int[capacity];
+        sizes = new int[capacity];
+        tracks = new byte[capacity];
+        keyFrames = new boolean[capacity];
+    }
+
+    public PacketSink getVideoSink() {
+        return videoSink;
+    }
+
+    public PacketSink getAudioSink() {
+        return audioSink;
+    }
+
+    private int index(long seq) {
+        return (int) (seq % pts.length);
+    }
+
+    private boolean isEmpty() {
+        return first == next;
+    }
+
+    private synchronized void setStream(int track, Codec codec, Size size) {
+        if (track == TRACK_VIDEO) {
+            videoCodec = codec;
+            videoSize = size;
+        } else {
+            audioCodec = codec;
+        }
+    }
+
+    synchronized void add(int track, ByteBuffer buffer, long packetPts, boolean config, boolean keyFrame) {
+        if (config) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            if (track == TRACK_VIDEO) {
+                if (videoConfig != null && !Arrays.equals(videoConfig, bytes)) {
+                    // The encoder has been restarted with another configuration (e.g. on rotation), the previous packets could not be muxed in
+                    // the same track, so they will not be saved
+                    streamStart = next;
+                    waitKeyFrame = true;
+                }
+                videoConfig = bytes;
+            } else {
+                audioConfig = bytes;
+            }
+            return;
+        }
+
+        if (track == TRACK_VIDEO) {
+            if (waitKeyFrame && !keyFrame) {
+                ++droppedPackets;
+                return;
+            }
+        } else if (isEmpty() || audioConfig == null) {
+            // The replay starts with a video key frame
+            return;
+        }
+
+        int size = buffer.remaining();
+        if (size == 0 || size > data.capacity()) {
+            drop(track);
+            return;
+        }
+
+        if (track == TRACK_VIDEO && keyFrame) {
+            evictOldGops(packetPts);
+        }
+
+        int offset;
+        while ((offset = allocate(size)) == -1 || next - first == pts.length) {
+            if (!evictGop()) {
+                // The packets are pinned by the save in progress
+                drop(track);
+                return;
+            }
+            if (isEmpty() && (track != TRACK_VIDEO || !keyFrame)) {
+                // The buffer is too small for a single GOP
+                drop(track);
+                return;
+            }
+        }
+
+        // Copy without changing the buffer position
+        int position = buffer.position();
+        data.limit(offset + size);
+        data.position(offset);
+        data.put(buffer);
+        buffer.position(position);
+
+        int i = index(next);
+        pts[i] = packetPts;
+        offsets[i] = offset;
+        sizes[i] = size;
+        tracks[i] = (byte) track;
+        keyFrames[i] = keyFrame;
+        head = offset + size;
+        ++next;
+
+        if (track == TRACK_VIDEO) {
+            waitKeyFrame = false;
+        }
+    }
+
+    private void drop(int track) {
+        ++droppedPackets;
+        if (track == TRACK_VIDEO) {
+            // The next video packets could not be decoded
+            waitKeyFrame = true;
+        }
+    }
+
+    /**
+     * Return the offset where a packet of the given size may be written, or -1 if there is not enough space.
+     */
+    private int allocate(int size) {
+        if (isEmpty()) {
+            head = 0;
+            return size <= data.capacity() ? 0 : -1;
+        }
+
+        int tail = offsets[index(first)];
+        if (head > tail) {
+            // The used range is [tail, head)
+            if (data.capacity() - head >= size) {
+                return head;
+            }
+            return tail >= size ? 0 : -1;
+        }
+
+        // The used range wraps around, the free range is [head, tail)
+        return tail - head >= size ? head : -1;
+    }
+
+    /**
+     * Return the sequence number of the first video key frame after the oldest packet, or -1.
+     */
+    private long findNextGop() {
+        for (long seq = first + 1; seq < next; ++seq) {
+            int i = index(seq);
+            if (tracks[i] == TRACK_VIDEO && keyFrames[i]) {
+                return seq;
+            }
+        }
+        return -1;
+    }
+
+    private boolean canEvictUntil(long seq) {
+        return pinned == -1 || seq <= pinned;
+    }
+
+    /**
+     * Evict the oldest GOPs not needed to keep the max duration.
+     */
+    private void evictOldGops(long newKeyFramePts) {
+        long nextGop;
+        while ((nextGop = findNextGop()) != -1 && newKeyFramePts - pts[index(nextGop)] >= maxDurationUs && canEvictUntil(nextGop)) {
+            first = nextGop;
+        }
+    }
+
+    private boolean evictGop() {
+        long nextGop = findNextGop();
+        long end = nextGop != -1 ? nextGop : next;
+        if (!canEvictUntil(end)) {
+            return false;
+        }
+        first = end;
+        return true;
+    }
+
+    /**
+     * Save the current content to an MP4 file, asynchronously.
+     *
+     * @param path the device path of the file, or an empty string for a default path in /data/local/tmp
+     */
+    public void save(String path) {
+        synchronized (this) {
+            if (saving) {
+                Ln.w("Replay save already in progress, request ignored");
+                return;
+            }
+            saving = true;
+        }
+
+        String filePath = path.isEmpty() ? getDefaultPath() : path;
+        new Thread(() -> {
+            try {
+                saveTo(filePath);
+            } finally {
+                synchronized (this) {
+                    saving = false;
+                    pinned = -1;
+                }
+            }
+        }, "replay-save").start();
+    }
+
+    private static String getDefaultPath() {
+        String date = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        return DEFAULT_DIRECTORY + "/scrcpy-replay-" + date + ".mp4";
+    }
+
+    private void saveTo(String path) {
+        long from;
+        long to;
+        MediaFormat videoFormat;
+        MediaFormat audioFormat;
+        synchronized (this) {
+            if (next <= Math.max(first, streamStart) || videoConfig == null) {
+                Ln.w("Replay buffer empty, nothing to save");
+                return;
+            }
+            from = Math.max(first, streamStart);
+            to = next;
+            pinned = from;
+            videoFormat = createVideoFormat();
+            audioFormat = audioConfig != null ? createAudioFormat() : null;
+        }
+
+        MediaMuxer muxer = null;
+        boolean started = false;
+        try {
+            muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int videoTrack = muxer.addTrack(videoFormat);
+            int audioTrack = -1;
+            if (audioFormat != null) {
+                try {
+                    audioTrack = muxer.addTrack(audioFormat);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    Ln.w("Audio not supported in the replay: " + e.getMessage());
+                }
+            }
+            muxer.start();
+            started = true;
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            long basePts = -1;
+            long lastPts = 0;
+            int count = 0;
+            for (long seq = from; seq < to; ++seq) {
+                int track;
+                long packetPts;
+                boolean keyFrame;
+                synchronized (this) {
+                    int i = index(seq);
+                    track = tracks[i];
+                    packetPts = pts[i];
+                    keyFrame = keyFrames[i];
+                    if (buffer.capacity() < sizes[i]) {
+                        buffer = ByteBuffer.allocateDirect(sizes[i]);
+                    }
+                    buffer.clear();
+                    data.limit(offsets[i] + sizes[i]);
+                    data.position(offsets[i]);
+                    buffer.put(data);
+                    buffer.flip();
+                    // This packet may now be overwritten
+                    pinned = seq + 1;
+                }
+
+                if (basePts == -1) {
+                    if (track != TRACK_VIDEO) {
+                        // Start on the first video key frame
+                        continue;
+                    }
+                    basePts = packetPts;
+                }
+                long relativePts = packetPts - basePts;
+                if (relativePts < 0 || (track == TRACK_AUDIO && audioTrack == -1)) {
+                    continue;
+                }
+
+                bufferInfo.set(0, buffer.remaining(), relativePts, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(track == TRACK_VIDEO ? videoTrack : audioTrack, buffer, bufferInfo);
+                lastPts = Math.max(lastPts, relativePts);
+                ++count;
+            }
+
+            Ln.i("Replay saved to " + path + " (" + count + " packets, " + lastPts / 1000 + " ms)");
+        } catch (IOException | RuntimeException e) {
+            Ln.e("Could not save the replay to " + path, e);
+        } finally {
+            if (muxer != null) {
+                if (started) {
+                    try {
+                        muxer.stop();
+                    } catch (IllegalStateException e) {
+                        Ln.e("Could not finalize the replay file", e);
+                    }
+                }
+                muxer.release();
+            }
+        }
+    }
+
+    private MediaFormat createVideoFormat() {
+        int width = videoSize != null ? videoSize.getWidth() : 0;
+        int height = videoSize != null ? videoSize.getHeight() : 0;
+        MediaFormat format = MediaFormat.createVideoFormat(videoCodec.getMimeType(), width, height);
+        if (videoCodec == VideoCodec.H264) {
+            // Like the output format of MediaCodec: the SPS in csd-0, the PPS in csd-1
+            ByteBuffer sps = ByteBuffer.allocate(videoConfig.length);
+            ByteBuffer pps = ByteBuffer.allocate(videoConfig.length);
+            List<byte[]> nals = Fmp4Muxer.splitNals(ByteBuffer.wrap(videoConfig));
+            for (byte[] nal : nals) {
+                ByteBuffer target = (nal[0] & 0x1f) == 7 ? sps : pps;
+                target.putInt(1); // start code
+                target.put(nal);
+            }
+            sps.flip();
+            pps.flip();
+            format.setByteBuffer("csd-0", sps);
+            format.setByteBuffer("csd-1", pps);
+        } else {
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(videoConfig));
+        }
+        return format;
+    }
+
+    private MediaFormat createAudioFormat() {
+        MediaFormat format = MediaFormat.createAudioFormat(audioCodec.getMimeType(), AudioCapture.SAMPLE_RATE, AudioCapture.CHANNELS);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(audioConfig));
+        if (audioCodec == AudioCodec.OPUS && audioConfig.length >= 12) {
+            // csd-1: pre-skip and csd-2: seek pre-roll, in nanoseconds (native order)
+            int preSkip = (audioConfig[10] & 0xff) | (audioConfig[11] & 0xff) << 8;
+            ByteBuffer csd1 = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            csd1.putLong(preSkip * 1_000_000_000L / AudioCapture.SAMPLE_RATE);
+            csd1.flip();
+            ByteBuffer csd2 = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            csd2.putLong(OPUS_SEEK_PRE_ROLL_NS);
+            csd2.flip();
+            format.setByteBuffer("csd-1", csd1);
+            format.setByteBuffer("csd-2", csd2);
+        }
+        return format;
+    }
+
+    synchronized int getPacketCount() {
+        return (int) (next - first);
+    }
+
+    /**
+     * Return the pts of the oldest packet, or -1 if the buffer is empty.
+     */
+    synchronized long getFirstPts() {
+        return isEmpty() ? -1 : pts[index(first)];
+    }
+
+    synchronized long getDroppedPackets() {
+        return droppedPackets;
+    }
+}
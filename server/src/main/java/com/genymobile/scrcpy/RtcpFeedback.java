@@ -0,0 +1,172 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Handle the RTCP feedback of an RTP video receiver.
+ * <p>
+ * The lost packets are not retransmitted: a key frame is requested on a Picture Loss Indication, a Full Intra Request, a Generic NACK,
+ * or when the cumulative number of packets lost reported by a receiver report increases. The key frame requests are rate-limited, since
+ * a key frame itself takes a round trip to be received.
+ */
+public final class RtcpFeedback {
+
+    private static final int PT_SR = 200;
+    private static final int PT_RR = 201;
+    private static final int PT_RTPFB = 205;
+    private static final int PT_PSFB = 206;
+
+    private static final int FMT_NACK = 1;
+    private static final int FMT_PLI = 1;
+    private static final int FMT_FIR = 4;
+
+    private static final int REPORT_BLOCK_SIZE = 24;
+
+    private final int ssrc;
+    private final long minKeyFrameIntervalNs;
+
+    private boolean keyFrameRequested;
+    private long lastKeyFrameRequestNs;
+    private boolean pending; // a key frame is needed, but was requested too recently
+
+    private long packetsLost = -1; // unknown
+    private int pliCount;
+    private int nackCount;
+    private int keyFrameRequestCount;
+
+    /**
+     * @param ssrc the SSRC of the RTP stream (the feedback for other sources is ignored)
+     * @param minKeyFrameIntervalNs the min interval between two key frame requests
+     */
+    public RtcpFeedback(int ssrc, long minKeyFrameIntervalNs) {
+        this.ssrc = ssrc;
+        this.minKeyFrameIntervalNs = minKeyFrameIntervalNs;
+    }
+
+    /**
+     * Handle a (compound) RTCP packet.
+     *
+     * @return {@code true} if a key frame must be requested now
+     */
+    public boolean onRtcpPacket(byte[] data, int length, long nowNs) {
+        int offset = 0;
+        while (offset + 4 <= length) {
+            int version = (data[offset] & 0xff) >> 6;
+            if (version != 2) {
+                // Not RTCP
+                break;
+            }
+            int count = data[offset] & 0x1f; // report count or feedback message type
+            int packetType = data[offset + 1] & 0xff;
+            int packetLength = 4 * (readU16(data, offset + 2) + 1);
+            if (offset + packetLength > length) {
+                // Truncated
+                break;
+            }
+            onPacket(data, offset, packetLength, packetType, count);
+            offset += packetLength;
+        }
+        return consumeKeyFrameRequest(nowNs);
+    }
+
+    private void onPacket(byte[] data, int offset, int length, int packetType, int count) {
+        switch (packetType) {
+            case PT_SR:
+                // The report blocks follow the 20-byte sender info
+                onReportBlocks(data, offset + 28, offset + length, count);
+                break;
+            case PT_RR:
+                onReportBlocks(data, offset + 8, offset + length, count);
+                break;
+            case PT_RTPFB:
+                if (count == FMT_NACK && isMediaSource(data, offset, length)) {
+                    ++nackCount;
+                    keyFrameRequested = true;
+                }
+                break;
+            case PT_PSFB:
+                if ((count == FMT_PLI || count == FMT_FIR) && isMediaSource(data, offset, length)) {
+                    ++pliCount;
+                    keyFrameRequested = true;
+                }
+                break;
+            default:
+                // ignore (SDES, BYE, APP...)
+                break;
+        }
+    }
+
+    private boolean isMediaSource(byte[] data, int offset, int length) {
+        // For a FIR, the media source SSRC is 0 and the target is in the FCI
+        if (length < 12) {
+            return false;
+        }
+        int mediaSsrc = readInt(data, offset + 8);
+        return mediaSsrc == ssrc || mediaSsrc == 0;
+    }
+
+    private void onReportBlocks(byte[] data, int offset, int end, int count) {
+        for (int i = 0; i < count && offset + REPORT_BLOCK_SIZE <= end; ++i, offset += REPORT_BLOCK_SIZE) {
+            if (readInt(data, offset) != ssrc) {
+                continue;
+            }
+            // Signed 24-bit
+            long lost = (data[offset + 5] << 16) | (data[offset + 6] & 0xff) << 8 | (data[offset + 7] & 0xff);
+            if (packetsLost != -1 && lost > packetsLost) {
+                keyFrameRequested = true;
+            }
+            packetsLost = Math.max(lost, 0);
+        }
+    }
+
+    private boolean consumeKeyFrameRequest(long nowNs) {
+        if (!keyFrameRequested && !pending) {
+            return false;
+        }
+        keyFrameRequested = false;
+        if (keyFrameRequestCount > 0 && nowNs - lastKeyFrameRequestNs < minKeyFrameIntervalNs) {
+            // Requested again once the interval has elapsed
+            pending = true;
+            return false;
+        }
+        pending = false;
+        lastKeyFrameRequestNs = nowNs;
+        ++keyFrameRequestCount;
+        return true;
+    }
+
+    /**
+     * Indicate whether a key frame request has been delayed by the rate limit, and may be requested now.
+     */
+    public boolean pollDelayedKeyFrameRequest(long nowNs) {
+        return pending && consumeKeyFrameRequest(nowNs);
+    }
+
+    /**
+     * Return the cumulative number of packets lost reported by the receiver, or -1 if unknown.
+     */
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    /**
+     * Return the number of Picture Loss Indications and Full Intra Requests received.
+     */
+    public int getPliCount() {
+        return pliCount;
+    }
+
+    public int getNackCount() {
+        return nackCount;
+    }
+
+    public int getKeyFrameRequestCount() {
+        return keyFrameRequestCount;
+    }
+
+    private static int readU16(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+}
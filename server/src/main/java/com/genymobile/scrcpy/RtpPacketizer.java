@@ -0,0 +1,263 @@
+package com.genymobile.scrcpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packetize H.264 (RFC 6184) or H.265 (RFC 7798) access units into RTP packets.
+ * <p>
+ * Each NAL unit is sent in a single NAL unit packet if it fits. The consecutive small NAL units (typically the parameter sets) are
+ * aggregated (STAP-A for H.264, AP for H.265), and the NAL units too large for a packet are fragmented (FU-A for H.264, FU for H.265).
+ * The marker bit is set on the last packet of each access unit.
+ * <p>
+ * The packets are built in a single reusable buffer, valid only during the call to {@link Output#onRtpPacket(byte[], int)}.
+ */
+public final class RtpPacketizer {
+
+    public interface Output {
+        void onRtpPacket(byte[] data, int length) throws IOException;
+    }
+
+    public static final int HEADER_SIZE = 12;
+    public static final int CLOCK_RATE = 90_000;
+
+    private static final int H264_STAP_A = 24;
+    private static final int H264_FU_A = 28;
+    private static final int H265_AP = 48;
+    private static final int H265_FU = 49;
+
+    private final boolean h265;
+    private final int payloadType;
+    private final int ssrc;
+    private final byte[] packet;
+
+    private int sequence;
+
+    // Aggregation packet being built (its payload starts after the RTP header)
+    private int aggregatedCount;
+    private int aggregatedLength; // the RTP payload length, including the aggregation header
+    // The last NAL unit aggregated, sent as a single NAL unit packet if it is alone
+    private ByteBuffer lastNalData;
+    private int lastNalStart;
+    private int lastNalEnd;
+
+    /**
+     * @param maxPacketSize the max size of the RTP packets (including the RTP header)
+     */
+    public RtpPacketizer(Codec codec, int payloadType, int ssrc, int maxPacketSize) {
+        if (codec != VideoCodec.H264 && codec != VideoCodec.H265) {
+            throw new IllegalArgumentException("RTP packetization not supported for " + codec.getName());
+        }
+        h265 = codec == VideoCodec.H265;
+        this.payloadType = payloadType;
+        this.ssrc = ssrc;
+        packet = new byte[maxPacketSize];
+    }
+
+    public static boolean isSupported(Codec codec) {
+        return codec == VideoCodec.H264 || codec == VideoCodec.H265;
+    }
+
+    private int getNalHeaderSize() {
+        return h265 ? 2 : 1;
+    }
+
+    /**
+     * Return the sequence number of the next packet.
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Packetize an access unit (Annex B), optionally preceded by a config packet (the parameter sets).
+     *
+     * @param config the config packet to send in the same access unit, or {@code null}
+     * @param frame the frame
+     */
+    public void packetize(ByteBuffer config, ByteBuffer frame, long ptsUs, Output output) throws IOException {
+        int timestamp = (int) (ptsUs * CLOCK_RATE / 1_000_000);
+        if (config != null) {
+            addNals(config, timestamp, false, output);
+        }
+        addNals(frame, timestamp, true, output);
+        // In case the frame contains no NAL unit
+        flushAggregate(timestamp, true, output);
+    }
+
+    /**
+     * @param lastBuffer {@code true} if the last NAL unit of the buffer is the last one of the access unit
+     */
+    private void addNals(ByteBuffer data, int timestamp, boolean lastBuffer, Output output) throws IOException {
+        int limit = data.limit();
+        int start = Fmp4Muxer.findStartCode(data, data.position(), limit);
+        if (start == -1) {
+            // Not Annex B, consider the packet as a single NAL unit
+            addNal(data, data.position(), limit, timestamp, lastBuffer, output);
+            return;
+        }
+
+        // Each NAL unit is added once the next one is found, to know which one is the last
+        int pendingStart = -1;
+        int pendingEnd = -1;
+        while (start != -1) {
+            int next = Fmp4Muxer.findStartCode(data, start, limit);
+            int end = next != -1 ? next - 3 : limit;
+            end = Fmp4Muxer.trimTrailingZeros(data, start, end);
+            if (end - start > getNalHeaderSize()) {
+                if (pendingStart != -1) {
+                    addNal(data, pendingStart, pendingEnd, timestamp, false, output);
+                }
+                pendingStart = start;
+                pendingEnd = end;
+            }
+            start = next;
+        }
+        if (pendingStart != -1) {
+            addNal(data, pendingStart, pendingEnd, timestamp, lastBuffer, output);
+        }
+    }
+
+    /**
+     * @param last {@code true} if this is the last NAL unit of the access unit (its last packet has the marker bit set)
+     */
+    private void addNal(ByteBuffer data, int start, int end, int timestamp, boolean last, Output output) throws IOException {
+        int size = end - start;
+        int maxPayloadSize = packet.length - HEADER_SIZE;
+        int aggregationHeaderSize = getNalHeaderSize();
+        if (aggregatedCount > 0 && aggregatedLength + 2 + size > maxPayloadSize) {
+            flushAggregate(timestamp, false, output);
+        }
+        if (aggregationHeaderSize + 2 + size <= maxPayloadSize) {
+            // Small enough to be aggregated (with its 16-bit size)
+            if (aggregatedCount == 0) {
+                aggregatedLength = aggregationHeaderSize;
+            }
+            int offset = HEADER_SIZE + aggregatedLength;
+            packet[offset] = (byte) (size >> 8);
+            packet[offset + 1] = (byte) size;
+            copy(data, start, end, packet, offset + 2);
+            aggregatedLength += 2 + size;
+            ++aggregatedCount;
+            lastNalData = data;
+            lastNalStart = start;
+            lastNalEnd = end;
+            if (last) {
+                flushAggregate(timestamp, true, output);
+            }
+            return;
+        }
+
+        // The pending aggregated NAL units must be sent first, in order
+        flushAggregate(timestamp, false, output);
+        if (size <= maxPayloadSize) {
+            copy(data, start, end, packet, HEADER_SIZE);
+            send(timestamp, last, size, output);
+        } else {
+            fragment(data, start, end, timestamp, last, output);
+        }
+    }
+
+    /**
+     * Send the pending aggregated NAL units, if any.
+     *
+     * @param marker {@code true} if this is the last packet of the access unit
+     */
+    private void flushAggregate(int timestamp, boolean marker, Output output) throws IOException {
+        if (aggregatedCount == 0) {
+            return;
+        }
+
+        if (aggregatedCount == 1) {
+            // A single NAL unit packet is enough
+            copy(lastNalData, lastNalStart, lastNalEnd, packet, HEADER_SIZE);
+            send(timestamp, marker, lastNalEnd - lastNalStart, output);
+        } else {
+            int payload = HEADER_SIZE;
+            int first = payload + getNalHeaderSize() + 2; // the header of the first aggregated NAL unit
+            if (h265) {
+                // Keep the F bit, the layer id and the temporal id of the first NAL unit (the same for all NAL units of an access unit
+                // produced by a single-layer encoder)
+                packet[payload] = (byte) ((packet[first] & 0x81) | (H265_AP << 1));
+                packet[payload + 1] = packet[first + 1];
+            } else {
+                // The NRI must be the highest of the aggregated NAL units
+                int nri = 0;
+                int offset = payload + 1;
+                for (int i = 0; i < aggregatedCount; ++i) {
+                    int size = (packet[offset] & 0xff) << 8 | (packet[offset + 1] & 0xff);
+                    nri = Math.max(nri, packet[offset + 2] & 0x60);
+                    offset += 2 + size;
+                }
+                packet[payload] = (byte) (nri | H264_STAP_A);
+            }
+            send(timestamp, marker, aggregatedLength, output);
+        }
+        aggregatedCount = 0;
+        lastNalData = null;
+    }
+
+    private void fragment(ByteBuffer data, int start, int end, int timestamp, boolean marker, Output output) throws IOException {
+        int nalHeaderSize = getNalHeaderSize();
+        int fuHeaderSize = nalHeaderSize + 1;
+        int maxFragmentSize = packet.length - HEADER_SIZE - fuHeaderSize;
+
+        int payload = HEADER_SIZE;
+        int nalType;
+        if (h265) {
+            int header0 = data.get(start) & 0xff;
+            nalType = (header0 >> 1) & 0x3f;
+            packet[payload] = (byte) ((header0 & 0x81) | (H265_FU << 1));
+            packet[payload + 1] = data.get(start + 1);
+        } else {
+            int header = data.get(start) & 0xff;
+            nalType = header & 0x1f;
+            packet[payload] = (byte) ((header & 0xe0) | H264_FU_A);
+        }
+
+        // The NAL unit header is not sent, it is reconstructed from the FU indicator and header
+        int offset = start + nalHeaderSize;
+        boolean first = true;
+        while (offset < end) {
+            int fragmentSize = Math.min(maxFragmentSize, end - offset);
+            boolean last = offset + fragmentSize == end;
+            int fuHeader = nalType;
+            if (first) {
+                fuHeader |= 0x80;
+            }
+            if (last) {
+                fuHeader |= 0x40;
+            }
+            packet[payload + nalHeaderSize] = (byte) fuHeader;
+            copy(data, offset, offset + fragmentSize, packet, payload + fuHeaderSize);
+            send(timestamp, marker && last, fuHeaderSize + fragmentSize, output);
+            offset += fragmentSize;
+            first = false;
+        }
+    }
+
+    private void send(int timestamp, boolean marker, int payloadLength, Output output) throws IOException {
+        packet[0] = (byte) 0x80; // version 2, no padding, no extension, no CSRC
+        packet[1] = (byte) ((marker ? 0x80 : 0) | payloadType);
+        packet[2] = (byte) (sequence >> 8);
+        packet[3] = (byte) sequence;
+        putInt(packet, 4, timestamp);
+        putInt(packet, 8, ssrc);
+        sequence = (sequence + 1) & 0xffff;
+        output.onRtpPacket(packet, HEADER_SIZE + payloadLength);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static void copy(ByteBuffer data, int start, int end, byte[] to, int offset) {
+        ByteBuffer source = data.duplicate();
+        source.limit(end);
+        source.position(start);
+        source.get(to, offset, end - start);
+    }
+}
@@ -0,0 +1,194 @@
+package com.genymobile.scrcpy;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Send the video stream over RTP/UDP, to the address from which the client sends its RTCP packets.
+ * <p>
+ * The client starts the stream by sending any datagram (typically an RTCP receiver report) to the port. The stream then starts on the
+ * next key frame, which is requested immediately. The destination is locked to this first peer (which must be on the configured host, if
+ * any): the datagrams from any other address are ignored. The config packet (the parameter sets) is sent in the same access unit as every key
+ * frame. The lost packets are never retransmitted: the RTCP feedback triggers key frame requests (see {@link RtcpFeedback}).
+ */
+public final class RtpStream implements PacketSink, AsyncProcessor {
+
+    // Fits in the MTU of usual links, including the IP and UDP headers and a VPN overhead
+    private static final int MAX_PACKET_SIZE = 1200;
+    private static final int PAYLOAD_TYPE = 96; // dynamic
+    private static final long MIN_KEY_FRAME_INTERVAL_NS = 500_000_000;
+    private static final int RECEIVE_BUFFER_SIZE = 1500;
+
+    private final DatagramSocket socket;
+    private final InetAddress allowedHost; // null to accept the first peer from any host
+    private final Runnable keyFrameRequester;
+    private final int ssrc;
+    private final RtcpFeedback feedback; // only accessed by the receiver thread
+
+    // Only accessed by the streaming thread
+    private RtpPacketizer packetizer; // null until the stream is started, or if the codec is not supported
+    private ByteBuffer config; // copy of the last config packet, null if none
+    private final DatagramPacket datagram = new DatagramPacket(new byte[0], 0);
+    private long packetsSent;
+    private long bytesSent;
+    private int sendErrors;
+
+    private volatile SocketAddress destination; // null until the client sends a datagram, then never changed
+    private volatile boolean waitingKeyFrame = true;
+    private int rejectedDatagrams; // only accessed by the receiver thread
+
+    private Thread thread;
+
+    /**
+     * @param address     the local address to bind
+     * @param allowedHost the only host allowed to receive the stream, or null to accept the first peer
+     */
+    public RtpStream(InetSocketAddress address, InetAddress allowedHost, Runnable keyFrameRequester) throws IOException {
+        if (!address.getAddress().isLoopbackAddress() && allowedHost == null) {
+            Ln.w("The RTP stream is reachable from the network: the first peer to send a datagram receives the video");
+        }
+        socket = new DatagramSocket(address);
+        this.allowedHost = allowedHost;
+        this.keyFrameRequester = keyFrameRequester;
+        ssrc = (int) (Math.random() * 0x1_0000_0000L);
+        feedback = new RtcpFeedback(ssrc, MIN_KEY_FRAME_INTERVAL_NS);
+    }
+
+    @Override
+    public void onStreamStarted(Codec codec, Size videoSize) {
+        if (RtpPacketizer.isSupported(codec)) {
+            packetizer = new RtpPacketizer(codec, PAYLOAD_TYPE, ssrc, MAX_PACKET_SIZE);
+        } else {
+            Ln.w("RTP not supported for codec " + codec.getName());
+        }
+    }
+
+    @Override
+    public void onPacket(ByteBuffer data, long pts, boolean config, boolean keyFrame) {
+        if (packetizer == null) {
+            return;
+        }
+
+        if (config) {
+            int size = data.remaining();
+            if (this.config == null || this.config.capacity() < size) {
+                this.config = ByteBuffer.allocate(size);
+            }
+            this.config.clear();
+            this.config.put(data.duplicate());
+            this.config.flip();
+            return;
+        }
+
+        SocketAddress dest = destination;
+        if (dest == null) {
+            return;
+        }
+        if (waitingKeyFrame) {
+            if (!keyFrame) {
+                return;
+            }
+            waitingKeyFrame = false;
+        }
+
+        datagram.setSocketAddress(dest);
+        ByteBuffer frameConfig = keyFrame && this.config != null ? this.config.duplicate() : null;
+        try {
+            packetizer.packetize(frameConfig, data.duplicate(), pts, this::send);
+        } catch (IOException e) {
+            if (sendErrors++ == 0) {
+                // Log only the first error, the client may just be gone
+                Ln.w("Could not send RTP packet: " + e.getMessage());
+            }
+        }
+    }
+
+    private void send(byte[] packet, int length) throws IOException {
+        datagram.setData(packet, 0, length);
+        socket.send(datagram);
+        ++packetsSent;
+        bytesSent += length;
+    }
+
+    @Override
+    public void start() {
+        thread = new Thread(() -> {
+            try {
+                receive();
+            } catch (IOException e) {
+                // Expected on close
+            } finally {
+                Ln.d("RTP: " + packetsSent + " packets (" + bytesSent + " bytes), " + feedback.getPliCount() + " PLI/FIR, "
+                        + feedback.getNackCount() + " NACK, " + feedback.getPacketsLost() + " packets lost, "
+                        + feedback.getKeyFrameRequestCount() + " key frames requested, " + rejectedDatagrams + " datagrams rejected");
+            }
+        }, "rtp-feedback");
+        thread.start();
+    }
+
+    private void receive() throws IOException {
+        byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        // Wake up to send the key frame requests delayed by the rate limit
+        socket.setSoTimeout((int) (MIN_KEY_FRAME_INTERVAL_NS / 1_000_000));
+        while (true) {
+            packet.setLength(buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                if (feedback.pollDelayedKeyFrameRequest(System.nanoTime())) {
+                    keyFrameRequester.run();
+                }
+                continue;
+            }
+
+            SocketAddress from = packet.getSocketAddress();
+            if (destination == null) {
+                if (allowedHost != null && !allowedHost.equals(packet.getAddress())) {
+                    reject(from);
+                    continue;
+                }
+                Ln.i("RTP destination: " + from);
+                destination = from;
+                // The receiver cannot decode anything before a key frame
+                keyFrameRequester.run();
+                continue;
+            }
+            if (!from.equals(destination)) {
+                // Never retarget the stream
+                reject(from);
+                continue;
+            }
+
+            if (feedback.onRtcpPacket(buffer, packet.getLength(), System.nanoTime())) {
+                keyFrameRequester.run();
+            }
+        }
+    }
+
+    private void reject(SocketAddress from) {
+        if (rejectedDatagrams++ == 0) {
+            // Log only the first one, the others are counted
+            Ln.w("RTP: ignoring datagram from " + from);
+        }
+    }
+
+    @Override
+    public void stop() {
+        // Unblock receive()
+        socket.close();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+}
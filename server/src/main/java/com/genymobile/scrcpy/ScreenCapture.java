@@ -0,0 +1,272 @@
+package com.genymobile.scrcpy;
+
+import com.genymobile.scrcpy.wrappers.SurfaceControl;
+
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Capture still images of the display on request, while the video stream continues.
+ * <p>
+ * The image is rendered by a second virtual display into an {@link ImageReader}, at the requested size. The reader surface is attached
+ * to the display only during a capture, so that the display is not composited between captures. The virtual display, the reader, the
+ * bitmap and the compression buffer are reused by the following captures (the reader is recreated only if the size changes).
+ * <p>
+ * The captures are executed on a dedicated thread, one at a time, and the result is sent as a device message.
+ */
+public final class ScreenCapture implements AsyncProcessor {
+
+    private static final long IMAGE_TIMEOUT_MS = 1000;
+    private static final long IMAGE_POLL_INTERVAL_MS = 2;
+    private static final int DEFAULT_JPEG_QUALITY = 90;
+    private static final int MAX_PENDING_REQUESTS = 16;
+
+    private static final class Request {
+        private final ControlMessage msg;
+        private final DeviceMessageSender sender;
+
+        Request(ControlMessage msg, DeviceMessageSender sender) {
+            this.msg = msg;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * Give access to the internal buffer, to send the compressed image without copying it.
+     */
+    private static final class ImageBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private final Device device;
+
+    // Accessed with the lock held
+    private final Queue<Request> requests = new ArrayDeque<>();
+    private boolean stopped;
+
+    private Thread thread;
+
+    // Only accessed from the capture thread
+    private IBinder display;
+    private ImageReader imageReader;
+    private Bitmap bitmap;
+    private ByteBuffer packedPixels; // only used if the image rows are padded
+    private final ImageBuffer output = new ImageBuffer();
+
+    public ScreenCapture(Device device) {
+        this.device = device;
+    }
+
+    /**
+     * Request a capture (may be called from any thread).
+     *
+     * @param msg the {@link ControlMessage#TYPE_CAPTURE_SCREENSHOT} message
+     * @param sender the sender to reply to
+     */
+    public synchronized void capture(ControlMessage msg, DeviceMessageSender sender) {
+        if (requests.size() >= MAX_PENDING_REQUESTS) {
+            Ln.w("Too many pending screenshot requests, ignoring");
+            return;
+        }
+        requests.add(new Request(msg, sender));
+        notify();
+    }
+
+    private void loop() throws InterruptedException {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                while (requests.isEmpty() && !stopped) {
+                    wait();
+                }
+                if (stopped) {
+                    return;
+                }
+                request = requests.poll();
+            }
+
+            ControlMessage msg = request.msg;
+            Size size = null;
+            int length = 0;
+            try {
+                long start = SystemClock.uptimeMillis();
+                size = capture(msg.getMaxSize());
+                if (size != null) {
+                    length = compress(msg.getImageFormat(), msg.getQuality());
+                    Ln.d("Screenshot " + size.getWidth() + "x" + size.getHeight() + " captured in " + (SystemClock.uptimeMillis() - start)
+                            + " ms (" + length + " bytes)");
+                } else {
+                    Ln.w("Screenshot timeout");
+                }
+            } catch (RuntimeException e) {
+                Ln.e("Could not capture screenshot", e);
+                length = 0;
+            }
+
+            if (length == 0) {
+                // Report the failure, so that the client does not wait forever
+                size = new Size(0, 0);
+            }
+            DeviceMessage screenshot = DeviceMessage.createScreenshot(msg.getSequence(), msg.getImageFormat(), size, output.getBuffer(), length);
+            // Wait until it is written before reusing the buffer
+            request.sender.sendScreenshot(screenshot);
+        }
+    }
+
+    /**
+     * Render the display into the bitmap.
+     *
+     * @return the image size, or {@code null} on timeout
+     */
+    private Size capture(int maxSize) {
+        ScreenInfo screenInfo = device.getScreenInfo(maxSize & ~7); // multiple of 8, like the video size
+        Size videoSize = screenInfo.getVideoSize();
+        int width = videoSize.getWidth();
+        int height = videoSize.getHeight();
+
+        if (imageReader == null || imageReader.getWidth() != width || imageReader.getHeight() != height) {
+            if (imageReader != null) {
+                imageReader.close();
+            }
+            imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+        }
+        if (display == null) {
+            display = ScreenEncoder.createDisplay("scrcpy-capture");
+        }
+
+        // Discard any image left from a previous capture
+        Image image = imageReader.acquireLatestImage();
+        if (image != null) {
+            image.close();
+        }
+
+        // Attaching the surface makes the display render the current content
+        Rect unlockedVideoRect = screenInfo.getUnlockedVideoSize().toRect();
+        ScreenEncoder.setDisplaySurface(display, imageReader.getSurface(), screenInfo.getVideoRotation(), screenInfo.getContentRect(),
+                unlockedVideoRect, device.getLayerStack());
+        try {
+            long deadline = SystemClock.uptimeMillis() + IMAGE_TIMEOUT_MS;
+            while ((image = imageReader.acquireLatestImage()) == null) {
+                if (SystemClock.uptimeMillis() >= deadline) {
+                    return null;
+                }
+                SystemClock.sleep(IMAGE_POLL_INTERVAL_MS);
+            }
+        } finally {
+            detachSurface();
+        }
+
+        try {
+            copyToBitmap(image, width, height);
+        } finally {
+            image.close();
+        }
+        return videoSize;
+    }
+
+    private void detachSurface() {
+        SurfaceControl.openTransaction();
+        try {
+            SurfaceControl.setDisplaySurface(display, null);
+        } finally {
+            SurfaceControl.closeTransaction();
+        }
+    }
+
+    private void copyToBitmap(Image image, int width, int height) {
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer pixels = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int rowLength = width * 4; // RGBA_8888, as the bitmap memory layout
+        if (rowStride == rowLength) {
+            bitmap.copyPixelsFromBuffer(pixels);
+            return;
+        }
+
+        // The rows are padded, pack them
+        int packedLength = rowLength * height;
+        if (packedPixels == null || packedPixels.capacity() < packedLength) {
+            packedPixels = ByteBuffer.allocateDirect(packedLength);
+        }
+        packedPixels.clear();
+        for (int y = 0; y < height; ++y) {
+            pixels.limit(y * rowStride + rowLength);
+            pixels.position(y * rowStride);
+            packedPixels.put(pixels);
+        }
+        packedPixels.flip();
+        bitmap.copyPixelsFromBuffer(packedPixels);
+    }
+
+    private int compress(int imageFormat, int quality) {
+        output.reset();
+        if (imageFormat == ControlMessage.IMAGE_FORMAT_JPEG) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality > 0 ? Math.min(quality, 100) : DEFAULT_JPEG_QUALITY, output);
+        } else {
+            // The quality is ignored for PNG
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, output);
+        }
+        return output.size();
+    }
+
+    private void release() {
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        if (display != null) {
+            SurfaceControl.destroyDisplay(display);
+            display = null;
+        }
+    }
+
+    @Override
+    public void start() {
+        thread = new Thread(() -> {
+            try {
+                loop();
+            } catch (InterruptedException e) {
+                // stopped
+            } finally {
+                release();
+                Ln.d("Screen capture stopped");
+            }
+        }, "ScreenCapture");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            notify();
+        }
+        if (thread != null) {
+            // Also wake up the thread waiting for a screenshot to be sent
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+}
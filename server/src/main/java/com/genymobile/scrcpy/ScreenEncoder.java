@@ -6,8 +6,13 @@ import android.graphics.Rect;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.annotation.TargetApi;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.view.Surface;
 
@@ -16,71 +21,300 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class ScreenEncoder implements Device.RotationListener {
+public class ScreenEncoder implements Device.RotationListener, AsyncProcessor {
 
     private static final int DEFAULT_I_FRAME_INTERVAL = 10; // seconds
+    // At a very low frame rate, the key frames are a large part of the stream
+    private static final int THUMBNAIL_I_FRAME_INTERVAL = 30; // seconds
     private static final int REPEAT_FRAME_DELAY_US = 100_000; // repeat after 100ms
+    private static final int IDLE_REPEAT_FRAME_DELAY_US = 2_000_000; // repeat after 2s while the screen is idle
     private static final String KEY_MAX_FPS_TO_ENCODER = "max-fps-to-encoder";
+    private static final int BENCHMARK_MIN_FPS = 60; // if no max fps is requested
 
     // Keep the values in descending order
     private static final int[] MAX_SIZE_FALLBACK = {2560, 1920, 1600, 1280, 1024, 800};
     private static final int MAX_CONSECUTIVE_ERRORS = 3;
 
-    private final AtomicBoolean rotationChanged = new AtomicBoolean();
+    // Number of encoded packets which may be pending between the encoder and the writer before the encoder is blocked
+    private static final int PACKET_QUEUE_CAPACITY = 16;
+    private static final int DRAIN_TIMEOUT_US = 100_000;
+    private static final int WATCHDOG_POLL_MS = 100;
+
+    // Set on rotation or when the video settings change, the encoding must be restarted
+    private final AtomicBoolean restartRequested = new AtomicBoolean();
+
+    private final PacketQueue packetQueue = new PacketQueue(PACKET_QUEUE_CAPACITY);
+
+    // Written by the thread receiving the MediaCodec output, read by the writer thread
+    private volatile IllegalStateException codecError;
+    private volatile boolean endOfStream;
+    private volatile boolean draining;
+
+    // The codec currently started, accessed with the lock held
+    private MediaCodec runningCodec;
 
     private final Device device;
     private final Streamer streamer;
+    // For an additional rendition, the max size is independent of the device max size (used for the main video stream and input events)
+    private final boolean rendition;
+    private volatile int renditionMaxSize;
     private final String encoderName;
     private final List<CodecOption> codecOptions;
-    private final int videoBitRate;
-    private final int maxFps;
+    // May be changed at runtime from the controller thread
+    private volatile int videoBitRate;
+    private volatile int maxFps;
     private final boolean downsizeOnError;
+    private final BitRateController bitRateController; // null if the bit rate is not adaptive
+    private final LatencyLimiter latencyLimiter; // null if the latency is not bounded
+    private final IdleDetector idleDetector; // null if the idle mode is disabled
+    // Time to write the first new frame after an idle period
+    private int wakeUpCount;
+    private long totalWakeUpLatencyUs;
+    private long maxWakeUpLatencyUs;
+    private final boolean thumbnail; // tiny size and very low frame rate
+    private final long repeatDelayUs; // while the screen is active
+    private final boolean encoderPrependConfig;
+    private final EncoderWatchdog watchdog; // null if disabled
+    private final boolean lowLatency; // low-latency encoder mode (if supported) and partial frames
+
+    // Only accessed by the thread receiving the encoder output
+    private boolean forwardPartialFrames; // otherwise, the parts of a frame are merged
+    private PacketQueue.Packet pendingPartialPacket; // the parts of the current frame received so far, if merged
+
+    // Only accessed by the writer thread
+    private boolean inPartialFrame; // the last packet written is a part of a frame, not the last one
+    private boolean droppingFrame; // the parts of the current frame are dropped
+    private int partialFrameSize; // the size of the parts of the current frame written so far
+
+    private final boolean encoderBenchmark; // select the encoder by benchmark if none is specified
+    private final EncoderCache encoderCache; // null if disabled
+    private EncoderProfile encoderProfile; // null if unknown
+    private String encoderProfileKey; // the encoder name, to store the profile
+    private int fallbackMaxSize; // the max size set after an encoding failure, 0 if none
+
+    private final FrameLatencyStats latencyStats = new FrameLatencyStats();
+    private final long latencyLogIntervalNs; // 0 if the latencies are only logged at the end
+    private long lastLatencyLogNs;
+    // To recognize the repeated frames, whose latencies are not meaningful
+    private long sessionRepeatDelayUs;
+    private long lastFramePts;
 
     private boolean firstFrameSent;
     private int consecutiveErrors;
+    private int consecutiveStallResets; // without any frame written in between
+    private long startTime; // to measure the time to the first frame
+
+    private Thread thread; // only used for additional renditions
+
+    public ScreenEncoder(Device device, Streamer streamer, Options options) {
+        this(device, streamer, options, null);
+    }
 
-    public ScreenEncoder(Device device, Streamer streamer, int videoBitRate, int maxFps, List<CodecOption> codecOptions, String encoderName,
-            boolean downsizeOnError) {
+    /**
+     * Create an encoder for the main video stream (if {@code rendition} is {@code null}) or for an additional rendition of the same display.
+     */
+    public ScreenEncoder(Device device, Streamer streamer, Options options, Rendition rendition) {
         this.device = device;
         this.streamer = streamer;
-        this.videoBitRate = videoBitRate;
-        this.maxFps = maxFps;
-        this.codecOptions = codecOptions;
-        this.encoderName = encoderName;
-        this.downsizeOnError = downsizeOnError;
+        this.rendition = rendition != null;
+        int maxVideoBitRate;
+        if (rendition != null) {
+            this.renditionMaxSize = rendition.getMaxSize();
+            this.videoBitRate = rendition.getBitRate();
+            this.maxFps = rendition.getMaxFps();
+            maxVideoBitRate = videoBitRate;
+        } else {
+            this.videoBitRate = options.getVideoBitRate();
+            this.maxFps = options.getMaxFps();
+            maxVideoBitRate = options.getMaxVideoBitRate();
+        }
+        this.thumbnail = rendition != null ? rendition.isThumbnail() : options.getThumbnailOnly();
+        if (thumbnail) {
+            if (videoBitRate == 0) {
+                videoBitRate = Rendition.computeThumbnailBitRate(getScreenInfo().getVideoSize(), maxFps);
+                Ln.i("Thumbnail bit rate: " + videoBitRate);
+            }
+            // Repeating the frames more often than the max fps would only produce frames to drop
+            repeatDelayUs = Math.max(REPEAT_FRAME_DELAY_US, 1_000_000 / maxFps);
+        } else {
+            repeatDelayUs = REPEAT_FRAME_DELAY_US;
+        }
+        this.codecOptions = options.getVideoCodecOptions();
+        this.encoderName = options.getVideoEncoder();
+        this.downsizeOnError = options.getDownsizeOnError();
+        this.encoderCache = options.getEncoderCache() ? EncoderCache.getDefault() : null;
+        // The renditions are encoded concurrently, a benchmark would be disturbed by the main stream
+        this.encoderBenchmark = options.getVideoEncoderBenchmark() && rendition == null;
+        // The thumbnail bit rate is negligible, it does not need to adapt to the connection
+        if (options.getAdaptiveBitRate() && !thumbnail) {
+            int minVideoBitRate = Math.min(options.getMinVideoBitRate(), maxVideoBitRate);
+            bitRateController = new BitRateController(videoBitRate, minVideoBitRate, maxVideoBitRate);
+        } else {
+            bitRateController = null;
+        }
+        int maxVideoLatency = options.getMaxVideoLatency();
+        latencyLimiter = maxVideoLatency > 0 ? new LatencyLimiter(maxVideoLatency * 1_000_000L) : null;
+        int idleTimeout = options.getIdleTimeout();
+        idleDetector = idleTimeout > 0 ? new IdleDetector(repeatDelayUs, IDLE_REPEAT_FRAME_DELAY_US, idleTimeout * 1000L) : null;
+        latencyLogIntervalNs = options.getLatencyLogInterval() * 1_000_000L;
+        boolean prependConfigSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+        if (options.getEncoderPrependConfig() && !prependConfigSupported) {
+            Ln.w("The encoder cannot prepend the parameter sets to the key frames before Android 10");
+        }
+        encoderPrependConfig = options.getEncoderPrependConfig() && prependConfigSupported;
+        lowLatency = options.getLowLatency();
+        int stallTimeout = options.getStallTimeout();
+        watchdog = stallTimeout > 0 ? new EncoderWatchdog(stallTimeout * 1_000_000L) : null;
     }
 
     @Override
     public void onRotationChanged(int rotation) {
-        rotationChanged.set(true);
+        requestRestart();
+    }
+
+    private void requestRestart() {
+        restartRequested.set(true);
+        // Wake up the writer, so that it restarts encoding immediately
+        packetQueue.signal();
+    }
+
+    public boolean consumeRestartRequest() {
+        return restartRequested.getAndSet(false);
     }
 
-    public boolean consumeRotationChange() {
-        return rotationChanged.getAndSet(false);
+    private ScreenInfo getScreenInfo() {
+        return rendition ? device.getScreenInfo(renditionMaxSize) : device.getScreenInfo();
+    }
+
+    private boolean setMaxSize(int maxSize) {
+        if (rendition) {
+            if (maxSize == renditionMaxSize) {
+                return false;
+            }
+            renditionMaxSize = maxSize;
+            return true;
+        }
+        return device.setMaxSize(maxSize);
+    }
+
+    @Override
+    public void start() {
+        thread = new Thread(() -> {
+            try {
+                streamScreen();
+            } catch (ConfigurationException e) {
+                // Do not print stack trace, a user-friendly error-message has already been logged
+            } catch (IOException e) {
+                // Broken pipe is expected on close, because the socket is closed by the client
+                if (!IO.isBrokenPipe(e)) {
+                    Ln.e("Video rendition encoding error", e);
+                }
+            } finally {
+                Ln.d("Video rendition stopped");
+            }
+        }, "ScreenEncoder-rendition");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        if (thread != null) {
+            // Wake up the writer waiting for the next packet
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
     }
 
     public void streamScreen() throws IOException, ConfigurationException {
+        startTime = SystemClock.uptimeMillis();
         Codec codec = streamer.getCodec();
-        MediaCodec mediaCodec = createMediaCodec(codec, encoderName);
-        MediaFormat format = createFormat(codec.getMimeType(), videoBitRate, maxFps, codecOptions);
-        IBinder display = createDisplay();
-        device.setRotationListener(this);
+        String name = encoderName;
+        if (name == null && encoderBenchmark) {
+            name = selectEncoderByBenchmark(codec);
+        }
+        MediaCodec mediaCodec = createMediaCodec(codec, name);
+        if (encoderCache != null) {
+            loadEncoderProfile(mediaCodec, codec.getMimeType());
+        }
+        boolean encoderLowLatency = lowLatency && isLowLatencySupported(mediaCodec, codec.getMimeType());
+        if (lowLatency) {
+            // The parts are merged if the streamer could not write them (it is configured before streaming)
+            forwardPartialFrames = streamer.supportsPartialFrames();
+            Ln.d("Low-latency encoder mode: " + (encoderLowLatency ? "enabled" : "not supported") + ", partial frames: "
+                    + (forwardPartialFrames ? "forwarded" : "merged"));
+        }
+        IBinder display = createDisplay("scrcpy");
+        device.addRotationListener(this);
+
+        // Since Android 6, the encoder output is received asynchronously on a dedicated thread (like in AudioEncoder). Before, a separate
+        // thread drains the encoder synchronously. In both cases, the current thread only writes the packets to the socket.
+        HandlerThread mediaCodecThread = null;
+        Handler mediaCodecHandler = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mediaCodecThread = new HandlerThread("ScreenEncoder");
+            mediaCodecThread.start();
+            mediaCodecHandler = new Handler(mediaCodecThread.getLooper());
+        }
 
-        streamer.writeVideoHeader(device.getScreenInfo().getVideoSize());
+        streamer.writeVideoHeader(getScreenInfo().getVideoSize());
 
         boolean alive;
         try {
             do {
-                ScreenInfo screenInfo = device.getScreenInfo();
+                ScreenInfo screenInfo = getScreenInfo();
                 Rect contentRect = screenInfo.getContentRect();
 
+                // The settings may have changed since the previous encoding session (on restart, keep the bit rate adapted to the
+                // connection)
+                sessionRepeatDelayUs = repeatDelayUs;
+                if (idleDetector != null) {
+                    // While the screen is idle, back off the frame repetition
+                    sessionRepeatDelayUs = idleDetector.getRepeatDelayUs();
+                    idleDetector.onSessionStarted();
+                }
+                lastFramePts = -1;
+                // The remaining parts of a frame interrupted by an error (or by the end of the previous session) will never be written
+                streamer.endPartialFrame();
+                inPartialFrame = false;
+                droppingFrame = false;
+                partialFrameSize = 0;
+                MediaFormat format = createFormat(codec.getMimeType(), getVideoBitRate(), maxFps, sessionRepeatDelayUs, thumbnail, codecOptions);
+
                 // include the locked video orientation
                 Rect videoRect = screenInfo.getVideoSize().toRect();
                 format.setInteger(MediaFormat.KEY_WIDTH, videoRect.width());
                 format.setInteger(MediaFormat.KEY_HEIGHT, videoRect.height());
+                if (encoderPrependConfig) {
+                    // Encoders may ignore it (prepend_config writes the config packet again if needed)
+                    format.setInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES, 1);
+                }
+                if (encoderLowLatency) {
+                    format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+                }
+                // The size may change on rotation (used to package the next config packet)
+                streamer.setVideoSize(screenInfo.getVideoSize());
 
                 Surface surface = null;
+                Thread drainThread = null;
                 try {
+                    codecError = null;
+                    endOfStream = false;
+                    packetQueue.setOpen(true);
+                    if (pendingPartialPacket != null) {
+                        // The incomplete frame of the previous session
+                        packetQueue.recycle(pendingPartialPacket);
+                        pendingPartialPacket = null;
+                    }
+
+                    if (mediaCodecHandler != null) {
+                        setCallback(mediaCodec, mediaCodecHandler);
+                    }
                     mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
                     surface = mediaCodec.createInputSurface();
 
@@ -91,18 +325,41 @@ public class ScreenEncoder implements Device.RotationListener {
                     setDisplaySurface(display, surface, videoRotation, contentRect, unlockedVideoRect, layerStack);
 
                     mediaCodec.start();
+                    setRunningCodec(mediaCodec);
+                    if (mediaCodecHandler == null) {
+                        drainThread = startDrainThread(mediaCodec);
+                    }
+                    if (watchdog != null) {
+                        watchdog.onSessionStarted(System.nanoTime(), sessionRepeatDelayUs);
+                    }
 
                     alive = encode(mediaCodec, streamer);
+
+                    setRunningCodec(null);
+                    packetQueue.setOpen(false);
+                    stopDrainThread(drainThread);
+                    drainThread = null;
                     // do not call stop() on exception, it would trigger an IllegalStateException
                     mediaCodec.stop();
+                } catch (EncoderStalledException e) {
+                    // Not a size problem: restart at the same size, without downsizing nor recording any size failure
+                    if (++consecutiveStallResets >= MAX_CONSECUTIVE_ERRORS) {
+                        throw e;
+                    }
+                    Ln.w("Resetting the stalled encoder...");
+                    alive = true;
                 } catch (IllegalStateException | IllegalArgumentException e) {
                     Ln.e("Encoding error: " + e.getClass().getName() + ": " + e.getMessage());
-                    if (!prepareRetry(device, screenInfo)) {
+                    if (!prepareRetry(screenInfo)) {
                         throw e;
                     }
                     Ln.i("Retrying...");
                     alive = true;
                 } finally {
+                    setRunningCodec(null);
+                    // Unblock the producer and drop the pending packets, they belong to the previous encoding session
+                    packetQueue.setOpen(false);
+                    stopDrainThread(drainThread);
                     mediaCodec.reset();
                     if (surface != null) {
                         surface.release();
@@ -111,12 +368,24 @@ public class ScreenEncoder implements Device.RotationListener {
             } while (alive);
         } finally {
             mediaCodec.release();
-            device.setRotationListener(null);
+            device.removeRotationListener(this);
             SurfaceControl.destroyDisplay(display);
+            if (mediaCodecThread != null) {
+                Looper looper = mediaCodecThread.getLooper();
+                if (looper != null) {
+                    looper.quitSafely();
+                }
+                try {
+                    mediaCodecThread.join();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            logStats();
         }
     }
 
-    private boolean prepareRetry(Device device, ScreenInfo screenInfo) {
+    private boolean prepareRetry(ScreenInfo screenInfo) {
         if (firstFrameSent) {
             ++consecutiveErrors;
             if (consecutiveErrors >= MAX_CONSECUTIVE_ERRORS) {
@@ -145,10 +414,64 @@ public class ScreenEncoder implements Device.RotationListener {
 
         // Retry with a smaller device size
         Ln.i("Retrying with -m" + newMaxSize + "...");
-        device.setMaxSize(newMaxSize);
+        setMaxSize(newMaxSize);
+        fallbackMaxSize = newMaxSize;
         return true;
     }
 
+    private String selectEncoderByBenchmark(Codec codec) {
+        Size videoSize = getScreenInfo().getVideoSize();
+        // The benchmark result is always recorded (even if encoder_cache is disabled), it is too expensive to run on every session
+        EncoderCache cache = EncoderCache.getDefault();
+        String name = cache.getPreferredEncoder(codec.getMimeType(), videoSize);
+        if (name != null) {
+            Ln.i("Using encoder '" + name + "' (from a previous benchmark)");
+            return name;
+        }
+
+        int minFps = maxFps > 0 ? maxFps : BENCHMARK_MIN_FPS;
+        name = EncoderBenchmark.run(codec, videoSize, getVideoBitRate(), codecOptions, minFps);
+        if (name != null) {
+            cache.putPreferredEncoder(codec.getMimeType(), videoSize, name);
+        }
+        return name;
+    }
+
+    private void loadEncoderProfile(MediaCodec mediaCodec, String mimeType) {
+        encoderProfileKey = mediaCodec.getName();
+        encoderProfile = encoderCache.get(encoderProfileKey, mimeType);
+        if (encoderProfile != null) {
+            Ln.d("Encoder profile (cached): " + encoderProfile);
+        } else {
+            try {
+                encoderProfile = EncoderProfile.probe(mediaCodec.getCodecInfo(), mimeType);
+            } catch (RuntimeException e) {
+                Ln.w("Could not probe the encoder capabilities: " + e.getMessage());
+                return;
+            }
+            Ln.d("Encoder profile (probed): " + encoderProfile);
+            encoderCache.put(encoderProfileKey, mimeType, encoderProfile);
+        }
+
+        if (downsizeOnError) {
+            // Do not wait for the failures already known
+            int maxSize = encoderProfile.chooseMaxSize(getScreenInfo().getVideoSize(), MAX_SIZE_FALLBACK);
+            if (maxSize != 0) {
+                Ln.i("Using -m" + maxSize + " (from the encoder profile)");
+                setMaxSize(maxSize);
+            }
+        }
+    }
+
+    private void onFirstFrame(String mimeType) {
+        Ln.d((rendition ? "Video rendition" : "Video") + ": first frame after " + (SystemClock.uptimeMillis() - startTime) + " ms");
+        if (encoderProfile != null && fallbackMaxSize != 0 && fallbackMaxSize != encoderProfile.getWorkingMaxSize()) {
+            // Start directly with this max size in the next sessions
+            encoderProfile = encoderProfile.withWorkingMaxSize(fallbackMaxSize);
+            encoderCache.put(encoderProfileKey, mimeType, encoderProfile);
+        }
+    }
+
     private static int chooseMaxSizeFallback(Size failedSize) {
         int currentMaxSize = Math.max(failedSize.getWidth(), failedSize.getHeight());
         for (int value : MAX_SIZE_FALLBACK) {
@@ -162,38 +485,399 @@ public class ScreenEncoder implements Device.RotationListener {
     }
 
     private boolean encode(MediaCodec codec, Streamer streamer) throws IOException {
-        boolean eof = false;
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        // A restart is deferred until the last part of the current frame has been written
+        while (inPartialFrame || !consumeRestartRequest()) {
+            IllegalStateException error = codecError;
+            if (error != null) {
+                // handled like a synchronous encoding error by the caller
+                throw error;
+            }
 
-        while (!consumeRotationChange() && !eof) {
-            int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, -1);
+            PacketQueue.Packet packet;
             try {
-                if (consumeRotationChange()) {
-                    // must restart encoding with new size
-                    break;
+                // With the watchdog, wake up periodically to detect an encoder which does not produce any output anymore
+                packet = watchdog != null ? packetQueue.take(WATCHDOG_POLL_MS) : packetQueue.take();
+            } catch (InterruptedException e) {
+                return false;
+            }
+
+            if (packet == null) {
+                // woken up without any packet: restart request, codec error, end of stream or watchdog timeout
+                if (endOfStream) {
+                    return false;
                 }
+                if (watchdog != null) {
+                    checkStall(codec);
+                }
+                continue;
+            }
 
-                eof = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
-                if (outputBufferId >= 0) {
-                    ByteBuffer codecBuffer = codec.getOutputBuffer(outputBufferId);
+            if (watchdog != null) {
+                watchdog.onOutput(System.nanoTime());
+            }
 
-                    boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
-                    if (!isConfig) {
-                        // If this is not a config packet, then it contains a frame
-                        firstFrameSent = true;
-                        consecutiveErrors = 0;
+            try {
+                // The parts of a frame are dropped or written together
+                boolean continuation = inPartialFrame;
+                inPartialFrame = packet.isPartial();
+                boolean drop = continuation ? droppingFrame : mustDrop(codec, packet);
+                droppingFrame = drop && packet.isPartial();
+                if (drop) {
+                    continue;
+                }
+
+                if (!packet.isConfig()) {
+                    // If this is not a config packet, then it contains a frame
+                    if (!firstFrameSent) {
+                        onFirstFrame(streamer.getCodec().getMimeType());
                     }
+                    firstFrameSent = true;
+                    consecutiveErrors = 0;
+                    consecutiveStallResets = 0;
+                }
 
-                    streamer.writePacket(codecBuffer, bufferInfo);
+                int size = packet.getData().remaining();
+                streamer.writePacket(packet.getData(), packet.getPts(), packet.isConfig(), packet.isKeyFrame(), packet.isPartial());
+                if (packet.isPartial()) {
+                    partialFrameSize += size;
+                } else if (!packet.isConfig()) {
+                    // The frame is complete
+                    recordLatency(packet);
+                    int frameSize = partialFrameSize + size;
+                    partialFrameSize = 0;
+                    if (idleDetector != null) {
+                        onFrameForIdle(packet.getPts(), frameSize);
+                    }
                 }
             } finally {
-                if (outputBufferId >= 0) {
-                    codec.releaseOutputBuffer(outputBufferId, false);
+                packetQueue.recycle(packet);
+            }
+
+            if (bitRateController != null) {
+                long now = System.nanoTime();
+                int newBitRate = bitRateController.onPacketWritten(now, streamer.getWriteBlockedNs(), packetQueue.getPendingBytes());
+                if (newBitRate != 0) {
+                    setVideoBitRate(codec, newBitRate);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void checkStall(MediaCodec codec) {
+        long now = System.nanoTime();
+        if (!watchdog.isStalled(now)) {
+            return;
+        }
+        if (!Device.isScreenOn()) {
+            // The display is not refreshed while the screen is off, there is nothing to encode
+            watchdog.onInactive(now);
+            return;
+        }
+
+        String name = rendition ? "Video rendition (max size " + renditionMaxSize + ")" : "Video";
+        switch (watchdog.check(now)) {
+            case EncoderWatchdog.ACTION_REQUEST_SYNC_FRAME:
+                Ln.w(name + " encoder stalled, requesting a sync frame");
+                requestSyncFrame(codec);
+                break;
+            case EncoderWatchdog.ACTION_RESET:
+                // the caller resets the codec and retries at the same size
+                throw new EncoderStalledException();
+            default:
+                break;
+        }
+    }
+
+    private void recordLatency(PacketQueue.Packet packet) {
+        long now = System.nanoTime();
+        long pts = packet.getPts();
+        boolean repeated = lastFramePts != -1 && pts - lastFramePts == sessionRepeatDelayUs;
+        lastFramePts = pts;
+        if (!repeated) {
+            latencyStats.onFrameWritten(pts, packet.getOutputTimeNs(), now);
+        }
+
+        if (latencyLogIntervalNs > 0 && now - lastLatencyLogNs >= latencyLogIntervalNs) {
+            lastLatencyLogNs = now;
+            Ln.i((rendition ? "Video rendition (max size " + renditionMaxSize + ")" : "Video") + " latency: " + latencyStats);
+        }
+    }
+
+    /**
+     * Return the frame latency summaries since the start, indexed by {@code FrameLatencyStats.STAGE_*} (may be called from any thread).
+     */
+    public LatencyHistogram.Summary[] getLatencyStats() {
+        return latencyStats.getSummaries();
+    }
+
+    private void onFrameForIdle(long pts, int frameSize) {
+        boolean wasIdle = idleDetector.isIdle();
+        boolean restart = idleDetector.onFrame(pts, frameSize);
+
+        String name = rendition ? "Video rendition (max size " + renditionMaxSize + ")" : "Screen";
+        if (!wasIdle && idleDetector.isIdle()) {
+            Ln.i(name + " idle, frame repetition reduced");
+        } else if (wasIdle && !idleDetector.isIdle()) {
+            // Time from the capture of the first new frame to its write, to compare with the video latency
+            long latencyUs = System.nanoTime() / 1000 - pts;
+            ++wakeUpCount;
+            totalWakeUpLatencyUs += latencyUs;
+            maxWakeUpLatencyUs = Math.max(maxWakeUpLatencyUs, latencyUs);
+            Ln.i(name + " active (first frame written in " + latencyUs / 1000 + " ms), idle mode saved " + idleDetector.getSavedBytes()
+                    + " bytes so far");
+        }
+
+        if (restart) {
+            // The repeat delay can only be changed by reconfiguring the encoder (the idle detector defers it when leaving the idle state)
+            requestRestart();
+        }
+    }
+
+    private boolean mustDrop(MediaCodec codec, PacketQueue.Packet packet) {
+        if (latencyLimiter == null) {
+            return false;
+        }
+
+        int size = packet.getData().remaining();
+        // The output time is set before the producer may block on a full queue, so that the blocked time counts as latency
+        boolean drop = latencyLimiter.shouldDrop(System.nanoTime(), packet.getOutputTimeNs(), size, packet.isConfig(), packet.isKeyFrame());
+        if (latencyLimiter.consumeSyncFrameRequest()) {
+            Ln.d("Video latency exceeded, requesting a sync frame");
+            requestSyncFrame(codec);
+        }
+        return drop;
+    }
+
+    private synchronized void setRunningCodec(MediaCodec codec) {
+        runningCodec = codec;
+    }
+
+    /**
+     * Request the encoder to produce a key frame as soon as possible.
+     * <p>
+     * This may be called from any thread. It is ignored if the encoder is not running (a new encoding session starts with a key frame
+     * anyway).
+     */
+    public synchronized void requestKeyFrame() {
+        if (runningCodec != null) {
+            Ln.d("Key frame requested");
+            try {
+                requestSyncFrame(runningCodec);
+            } catch (IllegalStateException e) {
+                // the codec failed, it will be reset by the encoding thread
+                Ln.w("Could not request a key frame: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void requestSyncFrame(MediaCodec codec) {
+        Bundle bundle = new Bundle();
+        bundle.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        codec.setParameters(bundle);
+    }
+
+    /**
+     * Change the video settings of the running session.
+     * <p>
+     * The bit rate is applied immediately. A change of the max size or the max fps restarts the encoding, but the virtual display is kept.
+     *
+     * @param newMaxSize the new max size, or a negative value to keep it unchanged
+     * @param newBitRate the new video bit rate, or a negative value to keep it unchanged
+     * @param newMaxFps the new max fps, or a negative value to keep it unchanged
+     */
+    public void setVideoSettings(int newMaxSize, int newBitRate, int newMaxFps) {
+        if (newBitRate > 0 && newBitRate != videoBitRate) {
+            Ln.i("Video bit rate changed: " + newBitRate);
+            videoBitRate = newBitRate;
+            if (bitRateController != null) {
+                // The requested bit rate becomes the upper bound of the adaptive bit rate
+                bitRateController.setMaxBitRate(newBitRate);
+            }
+            applyVideoBitRate(getVideoBitRate());
+        }
+
+        boolean restart = false;
+        if (newMaxFps >= 0 && newMaxFps != maxFps) {
+            Ln.i("Max fps changed: " + newMaxFps);
+            maxFps = newMaxFps;
+            restart = true;
+        }
+
+        if (newMaxSize >= 0) {
+            int maxSize = newMaxSize & ~7; // multiple of 8
+            if (setMaxSize(maxSize)) {
+                Ln.i("Max size changed: " + maxSize);
+                restart = true;
+            }
+        }
+
+        if (restart) {
+            requestRestart();
+        }
+    }
+
+    private synchronized void applyVideoBitRate(int bitRate) {
+        if (runningCodec != null) {
+            try {
+                setVideoBitRate(runningCodec, bitRate);
+            } catch (IllegalStateException e) {
+                // the codec failed, it will be reset by the encoding thread (and the new bit rate will be used)
+                Ln.w("Could not change the video bit rate: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Return the current target video bit rate.
+     */
+    public int getVideoBitRate() {
+        return bitRateController != null ? bitRateController.getBitRate() : videoBitRate;
+    }
+
+    private static void setVideoBitRate(MediaCodec codec, int bitRate) {
+        Ln.d("Video bit rate: " + bitRate);
+        Bundle bundle = new Bundle();
+        bundle.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        codec.setParameters(bundle);
+    }
+
+    /**
+     * Copy an output buffer to the packet queue and release it, so that the encoder never waits for the socket.
+     * <p>
+     * Called from the thread receiving the encoder output.
+     */
+    private void queueOutputBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) throws InterruptedException {
+        PacketQueue.Packet packet = null;
+        try {
+            if (bufferInfo.size > 0) {
+                ByteBuffer codecBuffer = codec.getOutputBuffer(index);
+                // Never set before Android 8
+                boolean isPartial = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+                if (pendingPartialPacket != null) {
+                    pendingPartialPacket.append(codecBuffer);
+                    if (!isPartial) {
+                        packet = pendingPartialPacket;
+                        pendingPartialPacket = null;
+                    }
+                } else {
+                    boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                    boolean isKeyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                    PacketQueue.Packet part = packetQueue.obtain();
+                    part.set(codecBuffer, bufferInfo.presentationTimeUs, isConfig, isKeyFrame);
+                    if (isPartial && !forwardPartialFrames) {
+                        // Merge the next parts until the end of the frame
+                        pendingPartialPacket = part;
+                    } else {
+                        part.setPartial(isPartial);
+                        packet = part;
+                    }
                 }
             }
+        } finally {
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        if (packet != null) {
+            packetQueue.put(packet);
+        }
+
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            endOfStream = true;
+            packetQueue.signal();
+        }
+    }
+
+    private void onCodecError(IllegalStateException e) {
+        codecError = e;
+        packetQueue.signal();
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setCallback(MediaCodec mediaCodec, Handler handler) {
+        mediaCodec.setCallback(new EncoderCallback(), handler);
+    }
+
+    private Thread startDrainThread(MediaCodec codec) {
+        draining = true;
+        Thread drainThread = new Thread(() -> {
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            try {
+                while (draining) {
+                    int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, DRAIN_TIMEOUT_US);
+                    if (outputBufferId >= 0) {
+                        queueOutputBuffer(codec, outputBufferId, bufferInfo);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (IllegalStateException e) {
+                if (draining) {
+                    onCodecError(e);
+                }
+            }
+        }, "ScreenEncoder");
+        drainThread.start();
+        return drainThread;
+    }
+
+    private void stopDrainThread(Thread thread) {
+        if (thread != null) {
+            draining = false;
+            try {
+                // The dequeue timeout guarantees that the thread terminates quickly
+                thread.join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void logStats() {
+        long packetCount = streamer.getPacketCount();
+        long blockedMs = streamer.getWriteBlockedNs() / 1_000_000;
+        long maxBlockedMs = streamer.getMaxWriteBlockedNs() / 1_000_000;
+        long producerBlockedMs = packetQueue.getProducerBlockedNs() / 1_000_000;
+        String name = rendition ? "Video rendition (max size " + renditionMaxSize + ")" : "Video";
+        Ln.d(name + ": " + packetCount + " packets (" + streamer.getByteCount() + " bytes), max queue depth " + packetQueue.getMaxSize() + "/"
+                + PACKET_QUEUE_CAPACITY + ", blocked in writePacket() " + blockedMs + " ms (max " + maxBlockedMs + " ms), encoder blocked "
+                + producerBlockedMs + " ms, " + streamer.getSyscallCount() + " write syscalls, bit rate " + getVideoBitRate());
+        if (latencyLimiter != null) {
+            Ln.d(name + " latency exceeded " + latencyLimiter.getRecoveries() + " times, dropped " + latencyLimiter.getDroppedPackets() + " packets ("
+                    + latencyLimiter.getDroppedBytes() + " bytes)");
+        }
+        Ln.d(name + " latency: " + latencyStats);
+        long repeatedConfigCount = streamer.getRepeatedConfigCount();
+        if (repeatedConfigCount > 0) {
+            Ln.d(name + ": config packet written again before " + repeatedConfigCount + " key frames");
+        }
+        if (watchdog != null && watchdog.getStallCount() > 0) {
+            Ln.d(name + " encoder stalled " + watchdog.getStallCount() + " times (" + watchdog.getResetCount() + " resets), recovered "
+                    + watchdog.getRecoveryCount() + " times in " + watchdog.getMeanRecoveryNs() / 1_000_000 + " ms on average (max "
+                    + watchdog.getMaxRecoveryNs() / 1_000_000 + " ms)");
+        }
+        if (idleDetector != null) {
+            Ln.d(name + " idle " + idleDetector.getIdleCount() + " times (" + idleDetector.getIdleUs() / 1000 + " ms), saved "
+                    + idleDetector.getSavedBytes() + " bytes");
+            if (wakeUpCount > 0) {
+                Ln.d(name + " first frame after idle written in " + totalWakeUpLatencyUs / wakeUpCount / 1000 + " ms on average (max "
+                        + maxWakeUpLatencyUs / 1000 + " ms)");
+            }
         }
+    }
 
-        return !eof;
+    private static boolean isLowLatencySupported(MediaCodec mediaCodec, String mimeType) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return false;
+        }
+        try {
+            MediaCodecInfo.CodecCapabilities capabilities = mediaCodec.getCodecInfo().getCapabilitiesForType(mimeType);
+            return capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency);
+        } catch (RuntimeException e) {
+            Ln.w("Could not check the low-latency support: " + e.getMessage());
+            return false;
+        }
     }
 
     private static MediaCodec createMediaCodec(Codec codec, String encoderName) throws IOException, ConfigurationException {
@@ -211,16 +895,21 @@ public class ScreenEncoder implements Device.RotationListener {
         return mediaCodec;
     }
 
-    private static MediaFormat createFormat(String videoMimeType, int bitRate, int maxFps, List<CodecOption> codecOptions) {
+    private static MediaFormat createFormat(String videoMimeType, int bitRate, int maxFps, long repeatDelayUs, boolean thumbnail,
+            List<CodecOption> codecOptions) {
         MediaFormat format = new MediaFormat();
         format.setString(MediaFormat.KEY_MIME, videoMimeType);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         // must be present to configure the encoder, but does not impact the actual frame rate, which is variable
         format.setInteger(MediaFormat.KEY_FRAME_RATE, 60);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, DEFAULT_I_FRAME_INTERVAL);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, thumbnail ? THUMBNAIL_I_FRAME_INTERVAL : DEFAULT_I_FRAME_INTERVAL);
+        if (thumbnail && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Do not compete with the realtime encoders (the thumbnail is not latency-sensitive)
+            format.setInteger(MediaFormat.KEY_PRIORITY, 1); // best effort
+        }
         // display the very first frame, and recover from bad quality when no new frames
-        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, REPEAT_FRAME_DELAY_US); // µs
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, repeatDelayUs); // µs
         if (maxFps > 0) {
             // The key existed privately before Android 10:
             // <https://android.googlesource.com/platform/frameworks/base/+/625f0aad9f7a259b6881006ad8710adce57d1384%5E%21/>
@@ -240,15 +929,15 @@ public class ScreenEncoder implements Device.RotationListener {
         return format;
     }
 
-    private static IBinder createDisplay() {
+    static IBinder createDisplay(String name) {
         // Since Android 12 (preview), secure displays could not be created with shell permissions anymore.
         // On Android 12 preview, SDK_INT is still R (not S), but CODENAME is "S".
         boolean secure = Build.VERSION.SDK_INT < Build.VERSION_CODES.R || (Build.VERSION.SDK_INT == Build.VERSION_CODES.R && !"S"
                 .equals(Build.VERSION.CODENAME));
-        return SurfaceControl.createDisplay("scrcpy", secure);
+        return SurfaceControl.createDisplay(name, secure);
     }
 
-    private static void setDisplaySurface(IBinder display, Surface surface, int orientation, Rect deviceRect, Rect displayRect, int layerStack) {
+    static void setDisplaySurface(IBinder display, Surface surface, int orientation, Rect deviceRect, Rect displayRect, int layerStack) {
         SurfaceControl.openTransaction();
         try {
             SurfaceControl.setDisplaySurface(display, surface);
@@ -258,4 +947,43 @@ public class ScreenEncoder implements Device.RotationListener {
             SurfaceControl.closeTransaction();
         }
     }
+
+    /**
+     * Thrown by the watchdog to reset a stalled encoder, distinguished from the encoding errors (which may be caused by the video size).
+     */
+    private static final class EncoderStalledException extends IllegalStateException {
+        EncoderStalledException() {
+            super("Encoder stalled");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // the input is a Surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+            try {
+                queueOutputBuffer(codec, index, bufferInfo);
+            } catch (InterruptedException e) {
+                // ignore
+            } catch (IllegalStateException e) {
+                // the codec has been stopped concurrently by the writer thread
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Ln.e("MediaCodec error", e);
+            onCodecError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            // ignore
+        }
+    }
 }
@@ -80,6 +80,20 @@ public final class ScreenInfo {
         return new ScreenInfo(newContentRect, newUnlockedVideoSize, newDeviceRotation, lockedVideoOrientation);
     }
 
+    /**
+     * Return the screen info for the same content scaled to another max size.
+     *
+     * @param maxSize the max size (0 for no limit)
+     * @return the screen info
+     */
+    public ScreenInfo withMaxSize(int maxSize) {
+        Size newUnlockedVideoSize = computeVideoSize(contentRect.width(), contentRect.height(), maxSize);
+        if (newUnlockedVideoSize.equals(unlockedVideoSize)) {
+            return this;
+        }
+        return new ScreenInfo(contentRect, newUnlockedVideoSize, deviceRotation, lockedVideoOrientation);
+    }
+
     public static ScreenInfo computeScreenInfo(int rotation, Size deviceSize, Rect crop, int maxSize, int lockedVideoOrientation) {
         if (lockedVideoOrientation == Device.LOCK_VIDEO_ORIENTATION_INITIAL) {
             // The user requested to lock the video orientation to the current orientation
@@ -1,11 +1,16 @@
 package com.genymobile.scrcpy;
 
 import android.graphics.Rect;
+import android.net.LocalSocket;
 import android.os.BatteryManager;
 import android.os.Build;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -65,11 +70,52 @@ public final class Server {
 
         Thread initThread = startInitThread(options);
 
-        int scid = options.getScid();
         boolean tunnelForward = options.isTunnelForward();
         boolean control = options.getControl();
         boolean audio = options.getAudio();
-        boolean sendDummyByte = options.getSendDummyByte();
+        List<Rendition> videoRenditions = options.getVideoRenditions();
+        Rendition thumbnail = options.getThumbnail();
+        if (thumbnail != null && !options.getThumbnailOnly()) {
+            // The thumbnail is streamed on an additional socket, after the other renditions
+            videoRenditions = new ArrayList<>(videoRenditions);
+            videoRenditions.add(thumbnail);
+        }
+        int videoConsumers = options.getVideoConsumers();
+        boolean lateVideoConsumers = options.getLateVideoConsumers();
+        if (lateVideoConsumers && !tunnelForward) {
+            Ln.w("Late video consumers are only supported in tunnel forward mode");
+            lateVideoConsumers = false;
+        }
+        int tcpPort = options.getTcpPort();
+        if (tcpPort != 0 && (videoConsumers > 0 || lateVideoConsumers)) {
+            throw new ConfigurationException("Video consumers are not supported over TCP");
+        }
+        String authToken = AuthToken.get(options);
+        if (options.getWebsocketPort() != 0 && authToken == null) {
+            throw new ConfigurationException("The WebSocket server requires an auth_token (or a scid)");
+        }
+        if (tcpPort != 0 && authToken == null) {
+            throw new ConfigurationException("The TCP server requires an auth_token (or a scid)");
+        }
+        if (options.getAuthToken() == null && (isReachableFromNetwork(options.getWebsocketPort(), options.getWebsocketBind())
+                || isReachableFromNetwork(tcpPort, options.getTcpBind()))) {
+            // The scid (31 random bits) is too weak to protect a server reachable from the network
+            throw new ConfigurationException("A server listening on a non-loopback address requires an explicit auth_token");
+        }
+        int rtpPort = options.getRtpPort();
+        if (rtpPort != 0 && !RtpPacketizer.isSupported(options.getVideoCodec())) {
+            throw new ConfigurationException("Video codec not supported over RTP: " + options.getVideoCodec().getName());
+        }
+        boolean fmp4 = options.getFmp4();
+        long fmp4FragmentDurationUs = options.getFmp4FragmentDuration() * 1000L;
+        if (fmp4) {
+            if (!Fmp4Muxer.isSupported(options.getVideoCodec())) {
+                throw new ConfigurationException("Video codec not supported in fMP4: " + options.getVideoCodec().getName());
+            }
+            if (audio && !Fmp4Muxer.isSupported(options.getAudioCodec())) {
+                throw new ConfigurationException("Audio codec not supported in fMP4: " + options.getAudioCodec().getName());
+            }
+        }
 
         Workarounds.prepareMainLooper();
 
@@ -94,13 +140,80 @@ public final class Server {
 
         List<AsyncProcessor> asyncProcessors = new ArrayList<>();
 
-        try (DesktopConnection connection = DesktopConnection.open(scid, tunnelForward, audio, control, sendDummyByte)) {
+        CaptureWriter capture = null;
+        if (options.getCaptureFile() != null) {
+            capture = new CaptureWriter(new File(options.getCaptureFile()));
+            capture.start();
+        }
+
+        try (DesktopConnection connection = openConnection(options, audio, control, videoRenditions.size(), videoConsumers,
+                lateVideoConsumers)) {
             if (options.getSendDeviceMeta()) {
                 connection.sendDeviceMeta(Device.getDeviceName());
             }
 
+            Streamer videoStreamer = new Streamer(connection.getVideoFd(), options.getVideoCodec(), options.getSendCodecMeta(),
+                    options.getSendFrameMeta());
+            if (fmp4) {
+                videoStreamer.enableFmp4(fmp4FragmentDurationUs);
+            }
+            if (options.getPrependConfig()) {
+                videoStreamer.enablePrependConfig();
+            }
+            if (options.getLowLatency()) {
+                videoStreamer.enablePartialFrames();
+            }
+            if (capture != null) {
+                videoStreamer.enableCapture(capture);
+            }
+            ScreenEncoder screenEncoder = new ScreenEncoder(device, videoStreamer, options);
+
+            if (videoConsumers > 0 || lateVideoConsumers) {
+                VideoFanOut fanOut = new VideoFanOut(videoStreamer, screenEncoder::requestKeyFrame);
+                for (LocalSocket socket : connection.getVideoConsumerSockets()) {
+                    fanOut.addConsumer(socket);
+                }
+                videoStreamer.addSink(fanOut);
+                asyncProcessors.add(fanOut);
+                if (lateVideoConsumers) {
+                    asyncProcessors.add(new LateConsumerAcceptor(connection, fanOut));
+                }
+            }
+
+            ReplayBuffer replayBuffer = null;
+            if (options.getReplayBuffer() > 0) {
+                replayBuffer = new ReplayBuffer(options.getReplayBuffer() * 1_000_000L, options.getReplayBufferSize() * 1024 * 1024);
+                videoStreamer.addSink(replayBuffer.getVideoSink());
+            }
+
+            int websocketPort = options.getWebsocketPort();
+            WebSocketStream videoWebSocketStream = null;
+            WebSocketStream audioWebSocketStream = null;
+            if (websocketPort != 0) {
+                videoWebSocketStream = new WebSocketStream(options.getSendCodecMeta(), options.getSendFrameMeta(),
+                        screenEncoder::requestKeyFrame);
+                videoStreamer.addSink(videoWebSocketStream);
+                if (audio) {
+                    audioWebSocketStream = new WebSocketStream(options.getSendCodecMeta(), options.getSendFrameMeta(), null);
+                }
+            }
+
+            if (rtpPort != 0) {
+                InetSocketAddress address = new InetSocketAddress(getBindAddress(options.getRtpBind()), rtpPort);
+                InetAddress rtpHost = options.getRtpHost() != null ? InetAddress.getByName(options.getRtpHost()) : null;
+                RtpStream rtpStream = new RtpStream(address, rtpHost, screenEncoder::requestKeyFrame);
+                videoStreamer.addSink(rtpStream);
+                asyncProcessors.add(rtpStream);
+            }
+
+            ScreenCapture screenCapture = null;
             if (control) {
-                Controller controller = new Controller(device, connection, options.getClipboardAutosync(), options.getPowerOn());
+                screenCapture = new ScreenCapture(device);
+                asyncProcessors.add(screenCapture);
+
+                Controller controller = new Controller(device, connection, screenEncoder, options.getClipboardAutosync(), options.getPowerOn());
+                controller.setReplayBuffer(replayBuffer);
+                controller.setScreenCapture(screenCapture);
                 device.setClipboardListener(text -> controller.getSender().pushClipboardText(text));
                 asyncProcessors.add(controller);
             }
@@ -109,6 +222,19 @@ public final class Server {
                 AudioCodec audioCodec = options.getAudioCodec();
                 Streamer audioStreamer = new Streamer(connection.getAudioFd(), audioCodec, options.getSendCodecMeta(),
                         options.getSendFrameMeta());
+                if (fmp4) {
+                    audioStreamer.enableFmp4(fmp4FragmentDurationUs);
+                }
+                int audioCoalesceWindow = options.getAudioCoalesceWindow();
+                if (audioCoalesceWindow > 0) {
+                    audioStreamer.enableCoalescing(audioCoalesceWindow * 1000L);
+                }
+                if (replayBuffer != null) {
+                    audioStreamer.addSink(replayBuffer.getAudioSink());
+                }
+                if (audioWebSocketStream != null) {
+                    audioStreamer.addSink(audioWebSocketStream);
+                }
                 AsyncProcessor audioRecorder;
                 if (audioCodec == AudioCodec.RAW) {
                     audioRecorder = new AudioRawRecorder(audioStreamer);
@@ -119,10 +245,19 @@ public final class Server {
                 asyncProcessors.add(audioRecorder);
             }
 
-            Streamer videoStreamer = new Streamer(connection.getVideoFd(), options.getVideoCodec(), options.getSendCodecMeta(),
-                    options.getSendFrameMeta());
-            ScreenEncoder screenEncoder = new ScreenEncoder(device, videoStreamer, options.getVideoBitRate(), options.getMaxFps(),
-                    options.getVideoCodecOptions(), options.getVideoEncoder(), options.getDownsizeOnError());
+            if (websocketPort != 0) {
+                InetSocketAddress address = new InetSocketAddress(getBindAddress(options.getWebsocketBind()), websocketPort);
+                WebSocketServer webSocketServer = new WebSocketServer(address, authToken, options.getWebsocketOrigins(), videoWebSocketStream,
+                        audioWebSocketStream, control ? device : null, screenEncoder);
+                webSocketServer.setScreenCapture(screenCapture);
+                asyncProcessors.add(webSocketServer);
+            }
+
+            for (int i = 0; i < videoRenditions.size(); ++i) {
+                // Each additional rendition has its own virtual display, encoder and socket
+                Streamer renditionStreamer = videoStreamer.newStreamer(connection.getRenditionFd(i));
+                asyncProcessors.add(new ScreenEncoder(device, renditionStreamer, options, videoRenditions.get(i)));
+            }
 
             for (AsyncProcessor asyncProcessor : asyncProcessors) {
                 asyncProcessor.start();
@@ -152,9 +287,47 @@ public final class Server {
             } catch (InterruptedException e) {
                 // ignore
             }
+
+            if (capture != null) {
+                try {
+                    capture.close();
+                } catch (IOException e) {
+                    Ln.w("Could not close the capture file: " + e.getMessage());
+                }
+                long droppedRecords = capture.getDroppedRecords();
+                if (droppedRecords > 0) {
+                    Ln.w("Capture: " + droppedRecords + " records dropped (the storage was too slow)");
+                }
+            }
         }
     }
 
+    /**
+     * Return the address to listen on, the loopback address if none is configured.
+     */
+    private static InetAddress getBindAddress(String address) throws IOException {
+        return address != null ? InetAddress.getByName(address) : InetAddress.getLoopbackAddress();
+    }
+
+    private static boolean isReachableFromNetwork(int port, String bindAddress) throws IOException {
+        return port != 0 && !getBindAddress(bindAddress).isLoopbackAddress();
+    }
+
+    private static DesktopConnection openConnection(Options options, boolean audio, boolean control, int renditions, int videoConsumers,
+            boolean lateVideoConsumers) throws IOException {
+        boolean sendDummyByte = options.getSendDummyByte();
+        boolean multiplex = options.getMultiplex();
+        int tcpPort = options.getTcpPort();
+        if (tcpPort != 0) {
+            InetSocketAddress address = new InetSocketAddress(getBindAddress(options.getTcpBind()), tcpPort);
+            Ln.i("Listening on TCP " + address);
+            return DesktopConnection.openTcp(address, AuthToken.get(options), options.getTcpSendBuffer() * 1024, audio, control, renditions,
+                    sendDummyByte, multiplex);
+        }
+        return DesktopConnection.open(options.getScid(), options.isTunnelForward(), audio, control, renditions, videoConsumers, lateVideoConsumers,
+                sendDummyByte, multiplex);
+    }
+
     private static Thread startInitThread(final Options options) {
         Thread thread = new Thread(() -> initAndCleanUp(options));
         thread.start();
@@ -221,6 +394,183 @@ public final class Server {
                     int videoBitRate = Integer.parseInt(value);
                     options.setVideoBitRate(videoBitRate);
                     break;
+                case "adaptive_bit_rate":
+                    boolean adaptiveBitRate = Boolean.parseBoolean(value);
+                    options.setAdaptiveBitRate(adaptiveBitRate);
+                    break;
+                case "min_video_bit_rate":
+                    int minVideoBitRate = Integer.parseInt(value);
+                    if (minVideoBitRate <= 0) {
+                        throw new IllegalArgumentException("min_video_bit_rate must be positive: " + minVideoBitRate);
+                    }
+                    options.setMinVideoBitRate(minVideoBitRate);
+                    break;
+                case "max_video_bit_rate":
+                    int maxVideoBitRate = Integer.parseInt(value);
+                    options.setMaxVideoBitRate(maxVideoBitRate);
+                    break;
+                case "max_video_latency":
+                    int maxVideoLatency = Integer.parseInt(value);
+                    if (maxVideoLatency < 0) {
+                        throw new IllegalArgumentException("max_video_latency may not be negative: " + maxVideoLatency);
+                    }
+                    options.setMaxVideoLatency(maxVideoLatency);
+                    break;
+                case "idle_timeout":
+                    int idleTimeout = Integer.parseInt(value);
+                    if (idleTimeout < 0) {
+                        throw new IllegalArgumentException("idle_timeout may not be negative: " + idleTimeout);
+                    }
+                    options.setIdleTimeout(idleTimeout);
+                    break;
+                case "latency_log_interval":
+                    int latencyLogInterval = Integer.parseInt(value);
+                    if (latencyLogInterval < 0) {
+                        throw new IllegalArgumentException("latency_log_interval may not be negative: " + latencyLogInterval);
+                    }
+                    options.setLatencyLogInterval(latencyLogInterval);
+                    break;
+                case "audio_coalesce_window":
+                    int audioCoalesceWindow = Integer.parseInt(value);
+                    if (audioCoalesceWindow < 0) {
+                        throw new IllegalArgumentException("audio_coalesce_window may not be negative: " + audioCoalesceWindow);
+                    }
+                    options.setAudioCoalesceWindow(audioCoalesceWindow);
+                    break;
+                case "prepend_config":
+                    boolean prependConfig = Boolean.parseBoolean(value);
+                    options.setPrependConfig(prependConfig);
+                    break;
+                case "encoder_prepend_config":
+                    boolean encoderPrependConfig = Boolean.parseBoolean(value);
+                    options.setEncoderPrependConfig(encoderPrependConfig);
+                    break;
+                case "stall_timeout":
+                    int stallTimeout = Integer.parseInt(value);
+                    if (stallTimeout < 0) {
+                        throw new IllegalArgumentException("stall_timeout may not be negative: " + stallTimeout);
+                    }
+                    options.setStallTimeout(stallTimeout);
+                    break;
+                case "low_latency":
+                    boolean lowLatency = Boolean.parseBoolean(value);
+                    options.setLowLatency(lowLatency);
+                    break;
+                case "multiplex":
+                    boolean multiplex = Boolean.parseBoolean(value);
+                    options.setMultiplex(multiplex);
+                    break;
+                case "tcp_port":
+                    int tcpPort = Integer.parseInt(value);
+                    if (tcpPort < 0 || tcpPort > 0xffff) {
+                        throw new IllegalArgumentException("Invalid tcp_port: " + tcpPort);
+                    }
+                    options.setTcpPort(tcpPort);
+                    break;
+                case "tcp_bind":
+                    if (!value.isEmpty()) {
+                        options.setTcpBind(value);
+                    }
+                    break;
+                case "tcp_send_buffer":
+                    int tcpSendBuffer = Integer.parseInt(value);
+                    if (tcpSendBuffer < 0) {
+                        throw new IllegalArgumentException("tcp_send_buffer may not be negative: " + tcpSendBuffer);
+                    }
+                    options.setTcpSendBuffer(tcpSendBuffer);
+                    break;
+                case "capture_file":
+                    if (!value.isEmpty()) {
+                        options.setCaptureFile(value);
+                    }
+                    break;
+                case "rtp_bind":
+                    if (!value.isEmpty()) {
+                        options.setRtpBind(value);
+                    }
+                    break;
+                case "rtp_host":
+                    if (!value.isEmpty()) {
+                        options.setRtpHost(value);
+                    }
+                    break;
+                case "rtp_port":
+                    int rtpPort = Integer.parseInt(value);
+                    if (rtpPort < 0 || rtpPort > 0xffff) {
+                        throw new IllegalArgumentException("Invalid rtp_port: " + rtpPort);
+                    }
+                    options.setRtpPort(rtpPort);
+                    break;
+                case "video_consumers":
+                    int videoConsumers = Integer.parseInt(value);
+                    if (videoConsumers < 0) {
+                        throw new IllegalArgumentException("video_consumers may not be negative: " + videoConsumers);
+                    }
+                    options.setVideoConsumers(videoConsumers);
+                    break;
+                case "late_video_consumers":
+                    boolean lateVideoConsumers = Boolean.parseBoolean(value);
+                    options.setLateVideoConsumers(lateVideoConsumers);
+                    break;
+                case "websocket_bind":
+                    if (!value.isEmpty()) {
+                        options.setWebsocketBind(value);
+                    }
+                    break;
+                case "websocket_origins":
+                    if (!value.isEmpty()) {
+                        options.setWebsocketOrigins(Arrays.asList(value.split(",")));
+                    }
+                    break;
+                case "auth_token":
+                    if (!value.isEmpty()) {
+                        options.setAuthToken(value);
+                    }
+                    break;
+                case "websocket_port":
+                    int websocketPort = Integer.parseInt(value);
+                    if (websocketPort < 0 || websocketPort > 0xffff) {
+                        throw new IllegalArgumentException("Invalid websocket_port: " + websocketPort);
+                    }
+                    options.setWebsocketPort(websocketPort);
+                    break;
+                case "fmp4":
+                    boolean fmp4 = Boolean.parseBoolean(value);
+                    options.setFmp4(fmp4);
+                    break;
+                case "fmp4_fragment_duration":
+                    int fmp4FragmentDuration = Integer.parseInt(value);
+                    if (fmp4FragmentDuration < 0) {
+                        throw new IllegalArgumentException("fmp4_fragment_duration may not be negative: " + fmp4FragmentDuration);
+                    }
+                    options.setFmp4FragmentDuration(fmp4FragmentDuration);
+                    break;
+                case "replay_buffer":
+                    int replayBuffer = Integer.parseInt(value);
+                    if (replayBuffer < 0) {
+                        throw new IllegalArgumentException("replay_buffer may not be negative: " + replayBuffer);
+                    }
+                    options.setReplayBuffer(replayBuffer);
+                    break;
+                case "replay_buffer_size":
+                    int replayBufferSize = Integer.parseInt(value);
+                    if (replayBufferSize <= 0 || replayBufferSize > 1024) {
+                        throw new IllegalArgumentException("Invalid replay_buffer_size (in MB): " + replayBufferSize);
+                    }
+                    options.setReplayBufferSize(replayBufferSize);
+                    break;
+                case "video_renditions":
+                    List<Rendition> videoRenditions = Rendition.parse(value);
+                    options.setVideoRenditions(videoRenditions);
+                    break;
+                case "thumbnail":
+                    Rendition thumbnail = Rendition.parseThumbnail(value);
+                    options.setThumbnail(thumbnail);
+                    break;
+                case "thumbnail_only":
+                    boolean thumbnailOnly = Boolean.parseBoolean(value);
+                    options.setThumbnailOnly(thumbnailOnly);
+                    break;
                 case "audio_bit_rate":
                     int audioBitRate = Integer.parseInt(value);
                     options.setAudioBitRate(audioBitRate);
@@ -286,6 +636,14 @@ public final class Server {
                     boolean downsizeOnError = Boolean.parseBoolean(value);
                     options.setDownsizeOnError(downsizeOnError);
                     break;
+                case "encoder_cache":
+                    boolean encoderCache = Boolean.parseBoolean(value);
+                    options.setEncoderCache(encoderCache);
+                    break;
+                case "video_encoder_benchmark":
+                    boolean videoEncoderBenchmark = Boolean.parseBoolean(value);
+                    options.setVideoEncoderBenchmark(videoEncoderBenchmark);
+                    break;
                 case "cleanup":
                     boolean cleanup = Boolean.parseBoolean(value);
                     options.setCleanup(cleanup);
@@ -333,6 +691,18 @@ public final class Server {
             }
         }
 
+        if (options.getThumbnailOnly()) {
+            Rendition thumbnail = options.getThumbnail();
+            if (thumbnail == null) {
+                thumbnail = Rendition.parseThumbnail("");
+                options.setThumbnail(thumbnail);
+            }
+            // The main video stream is the thumbnail (so that the input events are mapped to its size)
+            options.setMaxSize(thumbnail.getMaxSize());
+            options.setVideoBitRate(thumbnail.getBitRate()); // 0 means automatic
+            options.setMaxFps(thumbnail.getMaxFps());
+        }
+
         return options;
     }
 
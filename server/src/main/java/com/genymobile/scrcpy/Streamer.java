@@ -5,11 +5,14 @@ import android.media.MediaCodec;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class Streamer {
 
     private static final long PACKET_FLAG_CONFIG = 1L << 63;
     private static final long PACKET_FLAG_KEY_FRAME = 1L << 62;
+    private static final long PACKET_FLAG_PARTIAL = 1L << 61;
 
     private static final long AOPUSHDR = 0x5244485355504F41L; // "AOPUSHDR" in ASCII (little-endian)
 
@@ -18,39 +21,185 @@ public final class Streamer {
     private final boolean sendCodecMeta;
     private final boolean sendFrameMeta;
 
+    private static final int COALESCE_CAPACITY = 16 * 1024;
+    private static final int COALESCE_MAX_PACKET_SIZE = 4 * 1024;
+
     private final ByteBuffer headerBuffer = ByteBuffer.allocate(12);
+    private final ByteBuffer configHeaderBuffer = ByteBuffer.allocate(12);
+    // The frame meta and the packet are written with a single syscall (and the coalesced packets, if any)
+    private final GatherWriter writer;
+
+    // Accumulate the small packets to write them together (null if disabled)
+    private PacketCoalescer coalescer;
+    private long coalesceWindowUs;
+
+    // Write the last config packet again before each key frame which does not contain its parameter sets
+    private boolean prependConfig;
+    private ByteBuffer lastConfig; // null if none
+    private boolean lastPacketConfig; // the config packet has just been written
+
+    // Write the parts of a frame as soon as the encoder outputs them (the frame meta indicates the parts which are not the last one)
+    private boolean partialFrames;
+    private boolean lastPacketPartial; // the next packet continues the same frame
+    private long lastPartialPts; // pts of the frame in progress, if lastPacketPartial
+
+    // Package the stream into fragmented MP4 instead of the raw stream (null if disabled)
+    private Fmp4Muxer fmp4Muxer;
+    private long fmp4FragmentDurationUs;
+
+    // Additional destinations of the stream
+    private final List<PacketSink> sinks = new ArrayList<>();
+
+    // Copy of the data written, with the time it was written (null if disabled)
+    private CaptureWriter capture;
+
+    // Only written from the streaming thread (with the lock held)
+    private long packetCount;
+    private long byteCount;
+    private long writeBlockedNs;
+    private long maxWriteBlockedNs;
+    private long repeatedConfigCount;
 
     public Streamer(FileDescriptor fd, Codec codec, boolean sendCodecMeta, boolean sendFrameMeta) {
         this.fd = fd;
         this.codec = codec;
         this.sendCodecMeta = sendCodecMeta;
         this.sendFrameMeta = sendFrameMeta;
+        // coalesced packets, repeated config packet with its frame meta, packet with its frame meta
+        writer = new GatherWriter(fd, 5);
     }
 
     public Codec getCodec() {
         return codec;
     }
-    public void writeAudioHeader() throws IOException {
-        if (sendCodecMeta) {
+
+    /**
+     * Write the stream as fragmented MP4 (the codec meta and frame meta are not written).
+     *
+     * @param fragmentDurationUs the target duration of a fragment, or 0 to write each packet in its own fragment
+     */
+    public synchronized void enableFmp4(long fragmentDurationUs) {
+        fmp4FragmentDurationUs = fragmentDurationUs;
+        fmp4Muxer = new Fmp4Muxer(codec, fragmentDurationUs);
+    }
+
+    /**
+     * Coalesce the small packets (not the config packets) to write them together, adding at most {@code windowUs} of latency.
+     * <p>
+     * The pending packets are written as soon as the next expected packet would fall outside the window. If no packet arrives (for
+     * example if the stream pauses), the caller must call {@link #flushCoalesced()} at {@link #getCoalescingDeadlineNs()}.
+     * <p>
+     * This is ignored for fragmented MP4, which is already written by fragments.
+     */
+    public synchronized void enableCoalescing(long windowUs) {
+        coalesceWindowUs = windowUs;
+        coalescer = new PacketCoalescer(COALESCE_CAPACITY, COALESCE_MAX_PACKET_SIZE, windowUs);
+    }
+
+    /**
+     * Write the last config packet again before every key frame (unless the key frame already contains the parameter sets), so that
+     * the stream can be decoded from any key frame.
+     * <p>
+     * This is ignored for fragmented MP4, where the config is in the initialization segment.
+     */
+    public synchronized void enablePrependConfig() {
+        prependConfig = true;
+    }
+
+    /**
+     * Accept the partial frames (the encoder output buffers containing only a part of a frame), and write them immediately.
+     * <p>
+     * This requires the frame meta, and is not supported for fragmented MP4 or with sinks (which expect complete frames).
+     */
+    public synchronized void enablePartialFrames() {
+        partialFrames = true;
+    }
+
+    /**
+     * Indicate whether partial frames may be passed to {@link #writePacket(ByteBuffer, long, boolean, boolean, boolean)}.
+     * <p>
+     * Otherwise, the parts must be merged before writing the frame.
+     */
+    public synchronized boolean supportsPartialFrames() {
+        return partialFrames && sendFrameMeta && fmp4Muxer == null && sinks.isEmpty();
+    }
+
+    /**
+     * Create a streamer with the same configuration (without the sinks) writing to another file descriptor.
+     */
+    public synchronized Streamer newStreamer(FileDescriptor otherFd) {
+        Streamer streamer = new Streamer(otherFd, codec, sendCodecMeta, sendFrameMeta);
+        if (fmp4Muxer != null) {
+            streamer.enableFmp4(fmp4FragmentDurationUs);
+        }
+        if (coalescer != null) {
+            streamer.enableCoalescing(coalesceWindowUs);
+        }
+        if (prependConfig) {
+            streamer.enablePrependConfig();
+        }
+        if (partialFrames) {
+            streamer.enablePartialFrames();
+        }
+        return streamer;
+    }
+
+    /**
+     * Forward the stream written to an additional destination.
+     */
+    public synchronized void addSink(PacketSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Write a copy of the data written to the socket to a capture file (see {@link CaptureFormat}).
+     * <p>
+     * The capture is disabled on the first error, without stopping the stream.
+     */
+    public synchronized void enableCapture(CaptureWriter capture) {
+        this.capture = capture;
+    }
+
+    public synchronized void writeAudioHeader() throws IOException {
+        if (sendCodecMeta && fmp4Muxer == null) {
             ByteBuffer buffer = ByteBuffer.allocate(4);
             buffer.putInt(codec.getId());
             buffer.flip();
+            capture(System.nanoTime(), CaptureFormat.FLAG_META, buffer);
             IO.writeFully(fd, buffer);
         }
+        for (PacketSink sink : sinks) {
+            sink.onStreamStarted(codec, null);
+        }
     }
 
-    public void writeVideoHeader(Size videoSize) throws IOException {
-        if (sendCodecMeta) {
+    public synchronized void writeVideoHeader(Size videoSize) throws IOException {
+        if (fmp4Muxer != null) {
+            fmp4Muxer.setVideoSize(videoSize);
+        } else if (sendCodecMeta) {
             ByteBuffer buffer = ByteBuffer.allocate(12);
-            buffer.putInt(codec.getId());
-            buffer.putInt(videoSize.getWidth());
-            buffer.putInt(videoSize.getHeight());
+            putVideoHeader(buffer, codec, videoSize);
             buffer.flip();
+            capture(System.nanoTime(), CaptureFormat.FLAG_META, buffer);
             IO.writeFully(fd, buffer);
         }
+        for (PacketSink sink : sinks) {
+            sink.onStreamStarted(codec, videoSize);
+        }
+    }
+
+    /**
+     * Notify the video size of the current encoding session, which may change on rotation.
+     */
+    public synchronized void setVideoSize(Size videoSize) {
+        if (fmp4Muxer != null) {
+            fmp4Muxer.setVideoSize(videoSize);
+        }
     }
 
     public void writeDisableStream(boolean error) throws IOException {
+        // The code must follow the packets already written
+        flushCoalesced();
         // Writing a specific code as codec-id means that the device disables the stream
         //   code 0: it explicitly disables the stream (because it could not capture audio), scrcpy should continue mirroring video only
         //   code 1: a configuration error occurred, scrcpy must be stopped
@@ -58,19 +207,122 @@ public final class Streamer {
         if (error) {
             code[3] = 1;
         }
+        capture(System.nanoTime(), CaptureFormat.FLAG_META, ByteBuffer.wrap(code));
         IO.writeFully(fd, code, 0, code.length);
     }
 
     public void writePacket(ByteBuffer buffer, long pts, boolean config, boolean keyFrame) throws IOException {
+        writePacket(buffer, pts, config, keyFrame, false);
+    }
+
+    /**
+     * Terminate the frame in progress, if its last part has not been written yet.
+     * <p>
+     * Its remaining parts will never be written (for example, the encoder is restarted): an empty last part is written, so that the client
+     * does not append the next packets (typically a new config packet) to this frame.
+     */
+    public synchronized void endPartialFrame() throws IOException {
+        if (lastPacketPartial) {
+            writePacket(ByteBuffer.allocate(0), lastPartialPts, false, false, false);
+        }
+    }
+
+    /**
+     * Write a packet.
+     *
+     * @param partial {@code true} if the packet is a part of a frame, not the last one (only if {@link #supportsPartialFrames()})
+     */
+    public synchronized void writePacket(ByteBuffer buffer, long pts, boolean config, boolean keyFrame, boolean partial)
+            throws IOException {
+        // The following parts of a frame are not key frames by themselves
+        boolean continuation = lastPacketPartial;
+        lastPacketPartial = partial;
+        lastPartialPts = pts;
+
         if (config && codec == AudioCodec.OPUS) {
             fixOpusConfigPacket(buffer);
         }
 
-        if (sendFrameMeta) {
-            writeFrameMeta(fd, buffer.remaining(), pts, config, keyFrame);
+        int position = buffer.position();
+        int size = buffer.remaining();
+        long start = System.nanoTime();
+
+        if (fmp4Muxer != null) {
+            ByteBuffer data = fmp4Muxer.mux(buffer, pts, config, keyFrame);
+            if (data != null) {
+                captureFmp4(start, data);
+                writer.add(data);
+                writer.flush();
+            }
+        } else {
+            ByteBuffer header = null;
+            if (sendFrameMeta) {
+                header = prepareFrameMeta(size, pts, config, keyFrame, partial);
+            }
+
+            ByteBuffer repeatedConfig = prependConfig && !continuation ? getConfigToPrepend(buffer, config, keyFrame) : null;
+            ByteBuffer repeatedConfigHeader = null;
+            if (repeatedConfig != null && sendFrameMeta) {
+                configHeaderBuffer.clear();
+                putFrameMeta(configHeaderBuffer, repeatedConfig.remaining(), 0, true, false);
+                configHeaderBuffer.flip();
+                repeatedConfigHeader = configHeaderBuffer;
+            }
+
+            // The same bytes as written to the socket, whether they are coalesced or not
+            // Only the first part of a key frame is a point from which the stream may be decoded
+            capture(start, getCaptureFlags(config, keyFrame && !continuation), repeatedConfigHeader, repeatedConfig, header, buffer);
+
+            int totalSize = size + (header != null ? header.remaining() : 0);
+            if (coalescer != null && !config && repeatedConfig == null && coalescer.accepts(totalSize)) {
+                if (!coalescer.hasRoom(totalSize)) {
+                    flushCoalesced();
+                }
+                coalescer.append(header, buffer, pts, start);
+                if (coalescer.isDue(pts, start)) {
+                    flushCoalesced();
+                }
+            } else {
+                if (coalescer != null && !coalescer.isEmpty()) {
+                    // Write the pending packets first, in the same syscall
+                    writer.add(coalescer.getPending());
+                }
+                if (repeatedConfig != null) {
+                    if (repeatedConfigHeader != null) {
+                        writer.add(repeatedConfigHeader);
+                    }
+                    writer.add(repeatedConfig);
+                    ++repeatedConfigCount;
+                }
+                if (header != null) {
+                    writer.add(header);
+                }
+                writer.add(buffer);
+                try {
+                    writer.flush();
+                } finally {
+                    if (coalescer != null) {
+                        coalescer.clear();
+                    }
+                }
+            }
         }
 
-        IO.writeFully(fd, buffer);
+        long blockedNs = System.nanoTime() - start;
+        writeBlockedNs += blockedNs;
+        if (blockedNs > maxWriteBlockedNs) {
+            maxWriteBlockedNs = blockedNs;
+        }
+        ++packetCount;
+        byteCount += size;
+
+        if (!sinks.isEmpty()) {
+            // The buffer position is not reliably updated by the write, restore it so that the sinks get the whole packet
+            buffer.position(position);
+            for (PacketSink sink : sinks) {
+                sink.onPacket(buffer, pts, config, keyFrame);
+            }
+        }
     }
 
     public void writePacket(ByteBuffer codecBuffer, MediaCodec.BufferInfo bufferInfo) throws IOException {
@@ -80,9 +332,152 @@ public final class Streamer {
         writePacket(codecBuffer, pts, config, keyFrame);
     }
 
-    private void writeFrameMeta(FileDescriptor fd, int packetSize, long pts, boolean config, boolean keyFrame) throws IOException {
+    public synchronized long getPacketCount() {
+        return packetCount;
+    }
+
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Return the total time spent in {@link #writePacket(ByteBuffer, long, boolean, boolean)}, i.e. blocked on the socket.
+     */
+    public synchronized long getWriteBlockedNs() {
+        return writeBlockedNs;
+    }
+
+    public synchronized long getMaxWriteBlockedNs() {
+        return maxWriteBlockedNs;
+    }
+
+    /**
+     * Return the wall clock time (in {@link System#nanoTime()} base) at which the pending coalesced packets must be written, or -1 if
+     * there are none.
+     */
+    public synchronized long getCoalescingDeadlineNs() {
+        return coalescer != null ? coalescer.getDeadlineNs() : -1;
+    }
+
+    /**
+     * Write the pending coalesced packets, if any.
+     */
+    public synchronized void flushCoalesced() throws IOException {
+        if (coalescer != null && !coalescer.isEmpty()) {
+            writer.add(coalescer.getPending());
+            try {
+                writer.flush();
+            } finally {
+                coalescer.clear();
+            }
+        }
+    }
+
+    private static int getCaptureFlags(boolean config, boolean keyFrame) {
+        if (config) {
+            return CaptureFormat.FLAG_CONFIG;
+        }
+        return keyFrame ? CaptureFormat.FLAG_KEY_FRAME : 0;
+    }
+
+    /**
+     * Capture the data returned by the muxer, one record per segment, flagged according to the segments actually written (a key frame
+     * may be written later than the packet which contains it).
+     */
+    private void captureFmp4(long timeNs, ByteBuffer data) {
+        if (capture == null) {
+            return;
+        }
+        int count = fmp4Muxer.getSegmentCount();
+        for (int i = 0; i < count; ++i) {
+            ByteBuffer segment = data.duplicate();
+            if (i + 1 < count) {
+                segment.limit(data.position() + fmp4Muxer.getSegmentOffset(i + 1));
+            }
+            segment.position(data.position() + fmp4Muxer.getSegmentOffset(i));
+            int flags = fmp4Muxer.isInitSegment(i) ? CaptureFormat.FLAG_CONFIG : fmp4Muxer.isKeyFragment(i) ? CaptureFormat.FLAG_KEY_FRAME : 0;
+            capture(timeNs, flags, segment);
+        }
+    }
+
+    private synchronized void capture(long timeNs, int flags, ByteBuffer... parts) {
+        if (capture == null) {
+            return;
+        }
+        try {
+            capture.writeRecord(timeNs, flags, parts);
+        } catch (IOException e) {
+            Ln.e("Could not write the capture file, capture disabled", e);
+            capture = null;
+        }
+    }
+
+    /**
+     * Return the config packet to write before the current packet, or {@code null}.
+     */
+    private ByteBuffer getConfigToPrepend(ByteBuffer buffer, boolean config, boolean keyFrame) {
+        boolean afterConfig = lastPacketConfig;
+        lastPacketConfig = config;
+        if (config) {
+            // Keep a copy, the codec buffer is released once written
+            int size = buffer.remaining();
+            if (lastConfig == null || lastConfig.capacity() < size) {
+                lastConfig = ByteBuffer.allocateDirect(size);
+            }
+            lastConfig.clear();
+            lastConfig.put(buffer.duplicate());
+            lastConfig.flip();
+            return null;
+        }
+        if (!keyFrame || afterConfig || lastConfig == null || Fmp4Muxer.containsParameterSets(codec, buffer)) {
+            return null;
+        }
+        return lastConfig.duplicate();
+    }
+
+    /**
+     * Return the number of config packets written again before a key frame.
+     */
+    public synchronized long getRepeatedConfigCount() {
+        return repeatedConfigCount;
+    }
+
+    /**
+     * Return the number of write syscalls for the packets.
+     */
+    public synchronized long getSyscallCount() {
+        return writer.getSyscallCount();
+    }
+
+    private ByteBuffer prepareFrameMeta(int packetSize, long pts, boolean config, boolean keyFrame, boolean partial) {
         headerBuffer.clear();
+        putFrameMeta(headerBuffer, packetSize, pts, config, keyFrame, partial);
+        headerBuffer.flip();
+        return headerBuffer;
+    }
 
+    /**
+     * Write the video header (codec metadata) as sent on the socket.
+     */
+    public static void putVideoHeader(ByteBuffer buffer, Codec codec, Size videoSize) {
+        buffer.putInt(codec.getId());
+        buffer.putInt(videoSize.getWidth());
+        buffer.putInt(videoSize.getHeight());
+    }
+
+    /**
+     * Write the frame meta (12 bytes) as sent on the socket before each packet.
+     */
+    public static void putFrameMeta(ByteBuffer buffer, int packetSize, long pts, boolean config, boolean keyFrame) {
+        putFrameMeta(buffer, packetSize, pts, config, keyFrame, false);
+    }
+
+    /**
+     * Write the frame meta of a packet which may be a part of a frame.
+     *
+     * @param partial {@code true} if the packet is a part of a frame, not the last one
+     */
+    public static void putFrameMeta(ByteBuffer buffer, int packetSize, long pts, boolean config, boolean keyFrame, boolean partial) {
         long ptsAndFlags;
         if (config) {
             ptsAndFlags = PACKET_FLAG_CONFIG; // non-media data packet
@@ -91,12 +486,13 @@ public final class Streamer {
             if (keyFrame) {
                 ptsAndFlags |= PACKET_FLAG_KEY_FRAME;
             }
+            if (partial) {
+                ptsAndFlags |= PACKET_FLAG_PARTIAL;
+            }
         }
 
-        headerBuffer.putLong(ptsAndFlags);
-        headerBuffer.putInt(packetSize);
-        headerBuffer.flip();
-        IO.writeFully(fd, headerBuffer);
+        buffer.putLong(ptsAndFlags);
+        buffer.putInt(packetSize);
     }
 
     private static void fixOpusConfigPacket(ByteBuffer buffer) throws IOException {
@@ -0,0 +1,204 @@
+package com.genymobile.scrcpy;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accept the TCP connections sending the expected token.
+ * <p>
+ * A single thread polls the listening socket and all the connections not authenticated yet, so that a client sending nothing (or its
+ * token byte by byte) never blocks the others. Each connection must send its whole token within 5 seconds after it is accepted, and at
+ * most {@link #MAX_PENDING} connections may be authenticating at a time. When several connections are readable, they are served in the
+ * order they were accepted.
+ */
+final class TcpAcceptor implements Closeable {
+
+    private static final int AUTH_TIMEOUT_MS = 5000;
+    private static final int MAX_PENDING = 8;
+    private static final int MAX_TOKEN_MESSAGE_SIZE = 1 + 255;
+
+    private static final class PendingClient {
+        private final FileDescriptor fd;
+        private final long deadline;
+        private final byte[] data = new byte[MAX_TOKEN_MESSAGE_SIZE];
+        private int length;
+
+        PendingClient(FileDescriptor fd, long deadline) {
+            this.fd = fd;
+            this.deadline = deadline;
+        }
+    }
+
+    private final FileDescriptor serverFd;
+    private final String token;
+    private final int sendBufferSize;
+
+    // In the order they were accepted, so also by deadline
+    private final List<PendingClient> pendingClients = new ArrayList<>();
+
+    /**
+     * @param sendBufferSize the socket send buffer size (in bytes), or 0 for the system default
+     */
+    TcpAcceptor(FileDescriptor serverFd, String token, int sendBufferSize) {
+        this.serverFd = serverFd;
+        this.token = token;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Return the next connection which sent the expected token.
+     */
+    FileDescriptor accept() throws IOException {
+        while (true) {
+            long now = SystemClock.uptimeMillis();
+            expire(now);
+
+            List<PendingClient> polled = new ArrayList<>(pendingClients);
+            StructPollfd[] pollFds = new StructPollfd[1 + polled.size()];
+            pollFds[0] = new StructPollfd();
+            pollFds[0].fd = serverFd;
+            // Do not accept more connections until some pending ones are authenticated or rejected
+            pollFds[0].events = polled.size() < MAX_PENDING ? (short) OsConstants.POLLIN : 0;
+            for (int i = 0; i < polled.size(); ++i) {
+                pollFds[1 + i] = new StructPollfd();
+                pollFds[1 + i].fd = polled.get(i).fd;
+                pollFds[1 + i].events = (short) OsConstants.POLLIN;
+            }
+
+            int timeout = polled.isEmpty() ? -1 : (int) (polled.get(0).deadline - now);
+            poll(pollFds, timeout);
+
+            for (int i = 0; i < polled.size(); ++i) {
+                if (pollFds[1 + i].revents != 0) {
+                    PendingClient client = polled.get(i);
+                    if (read(client)) {
+                        pendingClients.remove(client);
+                        return configure(client.fd);
+                    }
+                }
+            }
+
+            if ((pollFds[0].revents & OsConstants.POLLIN) != 0) {
+                try {
+                    FileDescriptor fd = Os.accept(serverFd, null);
+                    pendingClients.add(new PendingClient(fd, SystemClock.uptimeMillis() + AUTH_TIMEOUT_MS));
+                } catch (ErrnoException | SocketException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    private void expire(long now) {
+        while (!pendingClients.isEmpty() && pendingClients.get(0).deadline <= now) {
+            Ln.w("TCP client rejected: no token within " + AUTH_TIMEOUT_MS + " ms");
+            DesktopConnection.closeFd(pendingClients.remove(0).fd);
+        }
+    }
+
+    /**
+     * Read the available bytes of the token.
+     *
+     * @return {@code true} if the client sent the expected token, {@code false} if the token is not complete yet (or if the client has been
+     * rejected and removed)
+     */
+    private boolean read(PendingClient client) {
+        int expected = getMissingBytes(client.data, client.length);
+        int r;
+        try {
+            // The socket is readable, this does not block
+            r = Os.read(client.fd, client.data, client.length, expected);
+        } catch (ErrnoException | IOException e) {
+            reject(client, "could not read the token (" + e.getMessage() + ")");
+            return false;
+        }
+        if (r <= 0) {
+            reject(client, "connection closed");
+            return false;
+        }
+        client.length += r;
+
+        String actualToken = parseAuthToken(client.data, client.length);
+        if (actualToken == null) {
+            return false;
+        }
+        if (!AuthToken.matches(token, actualToken)) {
+            reject(client, "invalid token");
+            return false;
+        }
+        return true;
+    }
+
+    private void reject(PendingClient client, String reason) {
+        Ln.w("TCP client rejected: " + reason);
+        pendingClients.remove(client);
+        DesktopConnection.closeFd(client.fd);
+    }
+
+    private FileDescriptor configure(FileDescriptor fd) throws IOException {
+        try {
+            // The packets are written as soon as they are available, do not wait to fill a segment
+            Os.setsockoptInt(fd, OsConstants.IPPROTO_TCP, OsConstants.TCP_NODELAY, 1);
+            if (sendBufferSize > 0) {
+                // A smaller buffer reduces the data queued on the device when the network is slower than the stream
+                Os.setsockoptInt(fd, OsConstants.SOL_SOCKET, OsConstants.SO_SNDBUF, sendBufferSize);
+            }
+        } catch (ErrnoException e) {
+            DesktopConnection.closeFd(fd);
+            throw new IOException(e);
+        }
+        return fd;
+    }
+
+    private static void poll(StructPollfd[] pollFds, int timeout) throws IOException {
+        try {
+            Os.poll(pollFds, timeout);
+        } catch (ErrnoException e) {
+            // On EINTR, the caller polls again
+            if (e.errno != OsConstants.EINTR) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Return the number of bytes to read to complete the token message (1 byte for its length, then the token in UTF-8).
+     */
+    static int getMissingBytes(byte[] data, int length) {
+        if (length == 0) {
+            return 1;
+        }
+        return 1 + (data[0] & 0xff) - length;
+    }
+
+    /**
+     * Parse the token message received so far.
+     *
+     * @return the token, or {@code null} if the message is not complete
+     */
+    static String parseAuthToken(byte[] data, int length) {
+        if (length == 0 || getMissingBytes(data, length) > 0) {
+            return null;
+        }
+        return new String(data, 1, length - 1, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        for (PendingClient client : pendingClients) {
+            DesktopConnection.closeFd(client.fd);
+        }
+        pendingClients.clear();
+    }
+}
@@ -0,0 +1,225 @@
+package com.genymobile.scrcpy;
+
+import android.net.LocalSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Additional consumer of the video stream, written from its own thread through a bounded queue.
+ * <p>
+ * A consumer too slow to receive all the packets is degraded to key frames only (the other packets could not be decoded anyway once one
+ * has been dropped), until it has caught up. If it could not even receive the key frames, it is disconnected. In both cases, the other
+ * consumers are never blocked.
+ */
+public final class VideoConsumer {
+
+    private static final int QUEUE_CAPACITY = 32;
+
+    private final int id;
+    private final LocalSocket socket;
+    private final Streamer streamer; // for this consumer only
+    private final Runnable keyFrameRequester;
+
+    private static final class PreloadedPacket {
+        private final ByteBuffer data;
+        private final long pts;
+        private final boolean config;
+        private final boolean keyFrame;
+
+        private PreloadedPacket(ByteBuffer data, long pts, boolean config, boolean keyFrame) {
+            this.data = data;
+            this.pts = pts;
+            this.config = config;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    private final PacketQueue queue = new PacketQueue(QUEUE_CAPACITY);
+    // Packets to write before the live packets (the GOP cache replay, bounded by the cache), not bounded by the queue capacity
+    private final ArrayDeque<PreloadedPacket> preload = new ArrayDeque<>();
+
+    private Thread thread;
+    private volatile boolean disconnected;
+
+    // Written by the producer only
+    private volatile boolean keyFrameOnly;
+    private volatile long droppedPackets;
+    private volatile long droppedBytes;
+    private volatile long keyFrameOnlyCount;
+
+    // Set when entering key-frame-only mode, consumed by the writer thread once it has caught up
+    private final AtomicBoolean keyFrameRequestPending = new AtomicBoolean();
+
+    /**
+     * @param mainStreamer the streamer of the main video stream, the consumer gets a streamer with the same configuration
+     */
+    public VideoConsumer(int id, LocalSocket socket, Streamer mainStreamer, Runnable keyFrameRequester) {
+        this.id = id;
+        this.socket = socket;
+        this.streamer = mainStreamer.newStreamer(socket.getFileDescriptor());
+        this.keyFrameRequester = keyFrameRequester;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Add a packet to write before the live packets.
+     * <p>
+     * Must be called before {@link #start(Size)}.
+     */
+    public void preload(ByteBuffer data, long pts, boolean config, boolean keyFrame) {
+        // Exact-size copy: the queue packets are direct buffers sized for the largest packets
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        preload.add(new PreloadedPacket(copy, pts, config, keyFrame));
+    }
+
+    /**
+     * Start in key-frame-only mode, if the preloaded packets do not allow to decode the next ones.
+     */
+    public void waitForKeyFrame() {
+        keyFrameOnly = true;
+    }
+
+    /**
+     * Submit a live packet, without blocking.
+     * <p>
+     * Called from the thread writing the main video stream. The buffer position is not changed.
+     */
+    public void submit(ByteBuffer data, long pts, boolean config, boolean keyFrame) {
+        if (disconnected) {
+            return;
+        }
+
+        if (keyFrameOnly && !config && !keyFrame) {
+            drop(data.remaining());
+            return;
+        }
+
+        boolean caughtUp = queue.size() == 0;
+
+        PacketQueue.Packet packet = queue.obtain();
+        packet.set(data.duplicate(), pts, config, keyFrame);
+        if (!queue.offer(packet)) {
+            queue.recycle(packet);
+            if (config || keyFrameOnly) {
+                // The config packet could not be dropped, and a consumer which could not receive the key frames could not recover
+                Ln.w("Video consumer #" + id + " too slow, disconnecting");
+                disconnect();
+                return;
+            }
+
+            drop(data.remaining());
+            Ln.d("Video consumer #" + id + " too slow, sending key frames only");
+            keyFrameOnly = true;
+            ++keyFrameOnlyCount;
+            keyFrameRequestPending.set(true);
+            return;
+        }
+
+        if (keyFrameOnly && keyFrame && caughtUp) {
+            // The consumer has caught up, it may receive all the packets from this key frame
+            Ln.d("Video consumer #" + id + " resumed");
+            keyFrameOnly = false;
+        }
+    }
+
+    private void drop(int size) {
+        ++droppedPackets;
+        droppedBytes += size;
+    }
+
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    private void disconnect() {
+        disconnected = true;
+        queue.setOpen(false);
+        queue.signal();
+        try {
+            // Unblock a pending write
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void write(Size videoSize) throws IOException, InterruptedException {
+        streamer.writeVideoHeader(videoSize);
+
+        PreloadedPacket preloaded;
+        while ((preloaded = preload.poll()) != null) {
+            streamer.writePacket(preloaded.data, preloaded.pts, preloaded.config, preloaded.keyFrame);
+        }
+
+        PacketQueue.Packet packet;
+
+        while ((packet = queue.take()) != null) {
+            try {
+                streamer.writePacket(packet.getData(), packet.getPts(), packet.isConfig(), packet.isKeyFrame());
+            } finally {
+                queue.recycle(packet);
+            }
+
+            if (keyFrameOnly && queue.size() == 0 && keyFrameRequestPending.getAndSet(false)) {
+                // Do not wait for the next periodic key frame to resume
+                keyFrameRequester.run();
+            }
+        }
+    }
+
+    public void start(Size videoSize) {
+        thread = new Thread(() -> {
+            try {
+                write(videoSize);
+            } catch (IOException e) {
+                // Broken pipe is expected on close, because the socket is closed by the client
+                if (!disconnected && !IO.isBrokenPipe(e)) {
+                    Ln.e("Video consumer #" + id + " error", e);
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } finally {
+                disconnected = true;
+                queue.setOpen(false);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                Ln.d("Video consumer #" + id + " disconnected");
+            }
+        }, "video-consumer-" + id);
+        thread.start();
+    }
+
+    public void stop() {
+        disconnect();
+    }
+
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        } else {
+            // never started
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public String getStats() {
+        return "Video consumer #" + id + ": " + streamer.getPacketCount() + " packets (" + streamer.getByteCount() + " bytes), dropped "
+                + droppedPackets + " packets (" + droppedBytes + " bytes), key frames only " + keyFrameOnlyCount + " times, max queue depth "
+                + queue.getMaxSize() + "/" + QUEUE_CAPACITY;
+    }
+}
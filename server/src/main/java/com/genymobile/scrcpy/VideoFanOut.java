@@ -0,0 +1,121 @@
+package com.genymobile.scrcpy;
+
+import android.net.LocalSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Forward the packets of the main video stream to additional consumers.
+ * <p>
+ * The main consumer still drives the encoder (its socket provides the backpressure). Each additional consumer has its own bounded queue
+ * and thread, so that a slow consumer never stalls the others (see {@link VideoConsumer}).
+ * <p>
+ * A consumer may be added at any time: it is initialized from the {@link GopCache}, so that it may start decoding immediately.
+ */
+public final class VideoFanOut implements PacketSink, AsyncProcessor {
+
+    // A GOP lasts up to the I-frame interval (10 seconds), this is enough for typical screen content
+    private static final int GOP_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+    // Replayed to each new consumer, in addition to its queue (10 seconds at 60 fps)
+    private static final int GOP_CACHE_MAX_PACKETS = 600;
+
+    private final Streamer mainStreamer;
+    private final Runnable keyFrameRequester;
+
+    // All the fields below are accessed with the lock held
+    private final GopCache gopCache = new GopCache(GOP_CACHE_MAX_BYTES, GOP_CACHE_MAX_PACKETS);
+    private final List<VideoConsumer> consumers = new ArrayList<>();
+    private final List<VideoConsumer> removedConsumers = new ArrayList<>();
+    private Size videoSize; // null until the video header is written
+    private int nextId = 1;
+    private boolean stopped;
+
+    /**
+     * @param mainStreamer the streamer of the main video stream, the consumers are written with the same configuration
+     */
+    public VideoFanOut(Streamer mainStreamer, Runnable keyFrameRequester) {
+        this.mainStreamer = mainStreamer;
+        this.keyFrameRequester = keyFrameRequester;
+    }
+
+    /**
+     * Add a consumer. The fan-out takes ownership of the socket.
+     */
+    public synchronized void addConsumer(LocalSocket socket) throws IOException {
+        if (stopped) {
+            socket.close();
+            return;
+        }
+
+        VideoConsumer consumer = new VideoConsumer(nextId++, socket, mainStreamer, keyFrameRequester);
+        gopCache.replay(consumer::preload);
+        if (!gopCache.isValid()) {
+            // The packets following could not be decoded, and do not make the new consumer wait for the next periodic key frame
+            consumer.waitForKeyFrame();
+            keyFrameRequester.run();
+        }
+
+        Ln.d("Video consumer #" + consumer.getId() + " added (" + gopCache.getPacketCount() + " packets replayed)");
+        consumers.add(consumer);
+        if (videoSize != null) {
+            consumer.start(videoSize);
+        } // else it will be started once the video size is known
+    }
+
+    @Override
+    public synchronized void onStreamStarted(Codec streamCodec, Size size) {
+        boolean mustStart = videoSize == null;
+        videoSize = size;
+        if (mustStart) {
+            for (VideoConsumer consumer : consumers) {
+                consumer.start(size);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onPacket(ByteBuffer data, long pts, boolean config, boolean keyFrame) {
+        // Never blocks on the consumers
+        gopCache.add(data, pts, config, keyFrame);
+
+        Iterator<VideoConsumer> it = consumers.iterator();
+        while (it.hasNext()) {
+            VideoConsumer consumer = it.next();
+            consumer.submit(data, pts, config, keyFrame);
+            if (consumer.isDisconnected()) {
+                it.remove();
+                removedConsumers.add(consumer);
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        // the consumers are started once added
+    }
+
+    @Override
+    public synchronized void stop() {
+        stopped = true;
+        for (VideoConsumer consumer : consumers) {
+            consumer.stop();
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        List<VideoConsumer> all;
+        synchronized (this) {
+            all = new ArrayList<>(removedConsumers);
+            all.addAll(consumers);
+        }
+        for (VideoConsumer consumer : all) {
+            consumer.join();
+            Ln.d(consumer.getStats());
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.genymobile.scrcpy;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal implementation of the WebSocket protocol (RFC 6455), server side.
+ */
+public final class WebSocket {
+
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+
+    // The frames sent by the server are not masked
+    public static final int MAX_SERVER_FRAME_HEADER_LENGTH = 10;
+    public static final int MAX_CONTROL_FRAME_PAYLOAD_LENGTH = 125;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private WebSocket() {
+        // not instantiable
+    }
+
+    public static final class HandshakeRequest {
+        private final String path;
+        private final String query; // null if none
+        private final String key;
+        private final String origin; // null if none (not a browser)
+
+        private HandshakeRequest(String path, String query, String key, String origin) {
+            this.path = path;
+            this.query = query;
+            this.key = key;
+            this.origin = origin;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        /**
+         * Return the (decoded) value of a parameter of the query string, or {@code null} if it is absent.
+         */
+        public String getQueryParameter(String name) {
+            if (query == null) {
+                return null;
+            }
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                String parameterName = equals != -1 ? parameter.substring(0, equals) : parameter;
+                if (name.equals(parameterName)) {
+                    String value = equals != -1 ? parameter.substring(equals + 1) : "";
+                    try {
+                        return URLDecoder.decode(value, "UTF-8");
+                    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Header of a frame received from a client.
+     */
+    public static final class FrameHeader {
+        private boolean fin;
+        private int opcode;
+        private boolean masked;
+        private int mask;
+        private long payloadLength;
+        private int headerLength;
+
+        public boolean isFin() {
+            return fin;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public boolean isMasked() {
+            return masked;
+        }
+
+        /**
+         * Return the payload length, negative if the most significant bit of a 64-bit length is set (see {@link #isPayloadLengthValid()}).
+         */
+        public long getPayloadLength() {
+            return payloadLength;
+        }
+
+        /**
+         * Indicate whether the payload length is valid (RFC 6455 5.2: the most significant bit must be 0) and fits in an {@code int}.
+         */
+        public boolean isPayloadLengthValid() {
+            return payloadLength >= 0 && payloadLength <= Integer.MAX_VALUE;
+        }
+
+        public int getHeaderLength() {
+            return headerLength;
+        }
+    }
+
+    /**
+     * Parse the HTTP upgrade request.
+     *
+     * @param buffer the received data (in "get" mode), consumed only if the request is complete
+     * @return the request, or {@code null} if it is not complete yet
+     * @throws IOException if the request is not a valid WebSocket upgrade request
+     */
+    public static HandshakeRequest parseHandshake(ByteBuffer buffer) throws IOException {
+        int end = findHeaderEnd(buffer);
+        if (end == -1) {
+            return null;
+        }
+
+        byte[] raw = new byte[end - buffer.position()];
+        buffer.get(raw);
+        String request = new String(raw, StandardCharsets.ISO_8859_1);
+
+        String[] lines = request.split("\r\n");
+        // request line: "GET /path HTTP/1.1"
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !"GET".equals(requestLine[0])) {
+            throw new IOException("Invalid WebSocket request: " + lines[0]);
+        }
+
+        String key = null;
+        String origin = null;
+        boolean upgrade = false;
+        for (int i = 1; i < lines.length; ++i) {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+            String value = line.substring(colon + 1).trim();
+            if ("sec-websocket-key".equals(name)) {
+                key = value;
+            } else if ("origin".equals(name)) {
+                origin = value;
+            } else if ("upgrade".equals(name)) {
+                upgrade = "websocket".equalsIgnoreCase(value);
+            }
+        }
+
+        if (!upgrade || key == null) {
+            throw new IOException("Not a WebSocket upgrade request");
+        }
+
+        String path = requestLine[1];
+        String query = null;
+        int queryStart = path.indexOf('?');
+        if (queryStart != -1) {
+            query = path.substring(queryStart + 1);
+            path = path.substring(0, queryStart);
+        }
+        return new HandshakeRequest(path, query, key, origin);
+    }
+
+    /**
+     * Indicate whether a request from the given origin is accepted.
+     * <p>
+     * The requests without origin (not from a browser) and from the loopback origins are accepted. A browser always sends the origin of
+     * the page, so a web page from another site cannot connect (cross-site WebSocket hijacking) unless its origin is explicitly allowed.
+     *
+     * @param origin the value of the {@code Origin} header, or {@code null} if absent
+     * @param allowedOrigins the additional allowed origins (e.g. "https://example.com")
+     */
+    public static boolean isOriginAllowed(String origin, List<String> allowedOrigins) {
+        if (origin == null) {
+            return true;
+        }
+        for (String allowed : allowedOrigins) {
+            if (allowed.equalsIgnoreCase(origin)) {
+                return true;
+            }
+        }
+        try {
+            String host = new URI(origin).getHost();
+            return host != null && ("localhost".equalsIgnoreCase(host) || "127.0.0.1".equals(host) || "[::1]".equals(host));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    private static int findHeaderEnd(ByteBuffer buffer) {
+        // search "\r\n\r\n"
+        for (int i = buffer.position(); i + 3 < buffer.limit(); ++i) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    public static String computeAcceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return base64(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-1 not available", e);
+        }
+    }
+
+    public static byte[] createHandshakeResponse(String key) {
+        String response = "HTTP/1.1 101 Switching Protocols\r\n" + "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n" + "Sec-WebSocket-Accept: "
+                + computeAcceptKey(key) + "\r\n\r\n";
+        return response.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public static byte[] createErrorResponse(String status) {
+        String response = "HTTP/1.1 " + status + "\r\n" + "Content-Length: 0\r\n" + "Connection: close\r\n\r\n";
+        return response.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String base64(byte[] data) {
+        StringBuilder builder = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b0 = data[i] & 0xff;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xff : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xff : 0;
+            builder.append(BASE64_ALPHABET[b0 >> 2]);
+            builder.append(BASE64_ALPHABET[(b0 & 0x3) << 4 | b1 >> 4]);
+            builder.append(i + 1 < data.length ? BASE64_ALPHABET[(b1 & 0xf) << 2 | b2 >> 6] : '=');
+            builder.append(i + 2 < data.length ? BASE64_ALPHABET[b2 & 0x3f] : '=');
+        }
+        return builder.toString();
+    }
+
+    public static int getServerFrameHeaderLength(int payloadLength) {
+        if (payloadLength < 126) {
+            return 2;
+        }
+        if (payloadLength <= 0xffff) {
+            return 4;
+        }
+        return 10;
+    }
+
+    /**
+     * Write the header of an unfragmented frame sent by the server.
+     */
+    public static void putServerFrameHeader(ByteBuffer buffer, int opcode, int payloadLength) {
+        buffer.put((byte) (0x80 | opcode)); // FIN
+        if (payloadLength < 126) {
+            buffer.put((byte) payloadLength);
+        } else if (payloadLength <= 0xffff) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) payloadLength);
+        } else {
+            buffer.put((byte) 127);
+            buffer.putLong(payloadLength);
+        }
+    }
+
+    /**
+     * Parse the header of a frame received from a client, without consuming it.
+     *
+     * @param buffer the received data (in "get" mode)
+     * @param header the header to fill
+     * @return {@code true} if the header is complete
+     */
+    public static boolean parseFrameHeader(ByteBuffer buffer, FrameHeader header) {
+        int pos = buffer.position();
+        int available = buffer.remaining();
+        if (available < 2) {
+            return false;
+        }
+
+        int b0 = buffer.get(pos) & 0xff;
+        int b1 = buffer.get(pos + 1) & 0xff;
+        boolean masked = (b1 & 0x80) != 0;
+        int len7 = b1 & 0x7f;
+
+        int headerLength = 2;
+        long payloadLength;
+        if (len7 == 126) {
+            headerLength += 2;
+            if (available < headerLength) {
+                return false;
+            }
+            payloadLength = buffer.getShort(pos + 2) & 0xffff;
+        } else if (len7 == 127) {
+            headerLength += 8;
+            if (available < headerLength) {
+                return false;
+            }
+            payloadLength = buffer.getLong(pos + 2);
+        } else {
+            payloadLength = len7;
+        }
+
+        int mask = 0;
+        if (masked) {
+            headerLength += 4;
+            if (available < headerLength) {
+                return false;
+            }
+            mask = buffer.getInt(pos + headerLength - 4);
+        }
+
+        header.fin = (b0 & 0x80) != 0;
+        header.opcode = b0 & 0x0f;
+        header.masked = masked;
+        header.mask = mask;
+        header.payloadLength = payloadLength;
+        header.headerLength = headerLength;
+        return true;
+    }
+
+    /**
+     * Unmask a payload in place.
+     */
+    public static void unmask(ByteBuffer buffer, int offset, int length, FrameHeader header) {
+        int mask = header.mask;
+        for (int i = 0; i < length; ++i) {
+            int shift = 24 - (i % 4) * 8;
+            int index = offset + i;
+            buffer.put(index, (byte) (buffer.get(index) ^ (mask >> shift)));
+        }
+    }
+}
@@ -0,0 +1,647 @@
+package com.genymobile.scrcpy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Expose the video and audio streams and the control channel over WebSocket, for browser-based clients.
+ * <p>
+ * The endpoints are "/video", "/audio" and "/control". Each binary message sent on "/video" and "/audio" contains exactly what is written on
+ * the corresponding socket: the stream header first (if codec meta is enabled), then one message per packet (with its frame meta if
+ * enabled). On "/control", the binary messages contain control messages and device messages, in the same format as the control socket.
+ * <p>
+ * The clients must pass the session token in the query string ("/video?token=..."), and the requests from browsers are only accepted from
+ * the allowed origins (see {@link WebSocket#isOriginAllowed(String, List)}); otherwise, the server answers "403 Forbidden". The number of
+ * connections is bounded, the handshake must complete within a timeout, and the large input buffer is only allocated once it is accepted.
+ * <p>
+ * All the connections are handled by a single thread with non-blocking I/O. The packets are copied directly to a bounded output buffer per
+ * client, without any allocation per packet.
+ */
+public final class WebSocketServer implements AsyncProcessor {
+
+    private static final int HANDSHAKE_MAX_SIZE = 8 * 1024;
+    private static final long HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int MAX_CLIENTS = 16;
+    // A control message may contain up to 256k of clipboard text
+    private static final int INPUT_BUFFER_SIZE = 256 * 1024 + 16;
+
+    private static final int VIDEO_OUTPUT_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int AUDIO_OUTPUT_BUFFER_SIZE = 256 * 1024;
+    private static final int CONTROL_OUTPUT_BUFFER_SIZE = 512 * 1024;
+
+    private static final int STATE_HANDSHAKE = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_CLOSING = 2; // close once the output buffer is flushed
+
+    private final String token;
+    private final List<String> allowedOrigins;
+    private final WebSocketStream videoStream;
+    private final WebSocketStream audioStream; // null if audio is disabled
+    private final Device device; // null if control is disabled
+    private final ScreenEncoder screenEncoder;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    // Only accessed from the server thread
+    private final List<Client> clients = new ArrayList<>();
+    private final WebSocket.FrameHeader frameHeader = new WebSocket.FrameHeader();
+
+    private final List<Controller> controllers = new ArrayList<>(); // accessed with the lock held
+    private ScreenCapture screenCapture; // null if disabled
+
+    private Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * @param token the token required from the clients
+     * @param allowedOrigins the origins accepted in addition to the loopback ones
+     */
+    public WebSocketServer(InetSocketAddress address, String token, List<String> allowedOrigins, WebSocketStream videoStream,
+            WebSocketStream audioStream, Device device, ScreenEncoder screenEncoder) throws IOException {
+        this.token = token;
+        this.allowedOrigins = allowedOrigins;
+        this.videoStream = videoStream;
+        this.audioStream = audioStream;
+        this.device = device;
+        this.screenEncoder = screenEncoder;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        Ln.i("WebSocket server listening on " + address);
+        if (!address.getAddress().isLoopbackAddress()) {
+            Ln.w("The WebSocket server is reachable from the network: anyone knowing the token may control the device");
+        }
+    }
+
+    /**
+     * Connection with a WebSocket client.
+     * <p>
+     * The output buffer is filled by the streaming threads (or the controller), and flushed by the server thread.
+     */
+    final class Client implements ControlChannel {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private int state = STATE_HANDSHAKE;
+
+        // "put" mode, only large enough for the handshake until the client is authenticated
+        private ByteBuffer input = ByteBuffer.allocate(HANDSHAKE_MAX_SIZE);
+        private final long acceptTimeMs = System.currentTimeMillis();
+        private ByteBuffer output; // "put" mode, accessed with the lock held, allocated on handshake
+
+        private volatile boolean closed;
+        private boolean readPaused;
+        private volatile boolean resumeRead;
+
+        // For media clients, written by the streaming thread
+        private boolean keyFrameOnly;
+        private long packets;
+        private long bytes;
+        private long droppedPackets;
+
+        // For control clients
+        private ControlMessageReader reader;
+        private DeviceMessageWriter writer;
+        private Controller controller;
+
+        private Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        private void wakeUpServer() {
+            selector.wakeup();
+        }
+
+        /**
+         * Write a binary message without blocking (called from the streaming thread).
+         *
+         * @return {@code false} if there is not enough space in the output buffer
+         */
+        synchronized boolean sendBinary(ByteBuffer header, ByteBuffer data) {
+            int headerLength = header != null ? header.remaining() : 0;
+            int payloadLength = headerLength + (data != null ? data.remaining() : 0);
+            if (closed || output.remaining() < WebSocket.getServerFrameHeaderLength(payloadLength) + payloadLength) {
+                return false;
+            }
+
+            WebSocket.putServerFrameHeader(output, WebSocket.OPCODE_BINARY, payloadLength);
+            if (header != null) {
+                int position = header.position();
+                output.put(header);
+                header.position(position);
+            }
+            if (data != null) {
+                int position = data.position();
+                output.put(data);
+                data.position(position);
+            }
+            wakeUpServer();
+            return true;
+        }
+
+        /**
+         * Write a media packet, dropping it (and possibly the following ones) if the client is too slow.
+         *
+         * @param frameMeta the frame meta to send before the packet, or {@code null}
+         * @param keyFrameRequester to request a key frame if a video packet is dropped (the following ones could not be decoded), or
+         *                          {@code null} for audio
+         */
+        synchronized void sendPacket(ByteBuffer frameMeta, ByteBuffer data, boolean config, boolean keyFrame, Runnable keyFrameRequester) {
+            if (closed) {
+                return;
+            }
+
+            boolean video = keyFrameRequester != null;
+            if (video && keyFrameOnly && !config && !keyFrame) {
+                ++droppedPackets;
+                return;
+            }
+
+            boolean caughtUp = output.position() == 0;
+            if (!sendBinary(frameMeta, data)) {
+                ++droppedPackets;
+                if (config || (video && keyFrameOnly)) {
+                    // The client could not recover
+                    Ln.w("WebSocket client too slow, disconnecting");
+                    closed = true;
+                    wakeUpServer();
+                } else if (video) {
+                    Ln.d("WebSocket client too slow, sending key frames only");
+                    keyFrameOnly = true;
+                    keyFrameRequester.run();
+                }
+                return;
+            }
+
+            ++packets;
+            bytes += data.remaining();
+            if (keyFrameOnly && keyFrame && caughtUp) {
+                keyFrameOnly = false;
+            }
+        }
+
+        synchronized void startWithKeyFrame() {
+            keyFrameOnly = true;
+        }
+
+        synchronized int getFreeOutputSpace() {
+            return output.remaining();
+        }
+
+        @Override
+        public ControlMessage receiveControlMessage() throws IOException {
+            synchronized (this) {
+                ControlMessage msg;
+                while ((msg = reader.next()) == null) {
+                    if (closed) {
+                        throw new EOFException("WebSocket closed");
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (readPaused) {
+                    // Some space is available again
+                    resumeRead = true;
+                    wakeUpServer();
+                }
+                return msg;
+            }
+        }
+
+        @Override
+        public void sendDeviceMessage(DeviceMessage msg) throws IOException {
+            synchronized (this) {
+                ByteBuffer data = writer.serialize(msg);
+                if (data == null) {
+                    return;
+                }
+                // A screenshot may be larger than the output buffer
+                ensureOutputCapacity(WebSocket.getServerFrameHeaderLength(data.remaining()) + data.remaining());
+                try {
+                    while (!sendBinary(null, data)) {
+                        if (closed) {
+                            throw new EOFException("WebSocket closed");
+                        }
+                        // Wait for the output buffer to be flushed
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        private void ensureOutputCapacity(int capacity) {
+            if (output.capacity() < capacity) {
+                ByteBuffer newOutput = ByteBuffer.allocateDirect(capacity);
+                output.flip();
+                newOutput.put(output);
+                output = newOutput;
+            }
+        }
+
+        private synchronized void sendControlFrame(int opcode, ByteBuffer payload) {
+            int length = payload != null ? payload.remaining() : 0;
+            if (output.remaining() >= WebSocket.getServerFrameHeaderLength(length) + length) {
+                WebSocket.putServerFrameHeader(output, opcode, length);
+                if (payload != null) {
+                    output.put(payload);
+                }
+            }
+        }
+
+        private void sendClose(int code) {
+            ByteBuffer payload = ByteBuffer.allocate(2);
+            payload.putShort((short) code);
+            payload.flip();
+            sendControlFrame(WebSocket.OPCODE_CLOSE, payload);
+            state = STATE_CLOSING;
+        }
+
+        /**
+         * Write the pending output (called from the server thread).
+         *
+         * @return {@code true} if some output is still pending
+         */
+        private boolean flush() throws IOException {
+            synchronized (this) {
+                if (output == null || output.position() == 0) {
+                    return false;
+                }
+                output.flip();
+                try {
+                    channel.write(output);
+                } finally {
+                    output.compact();
+                }
+                // Unblock a control message sender waiting for space
+                notifyAll();
+                return output.position() != 0;
+            }
+        }
+    }
+
+    private void loop() throws IOException {
+        while (!stopped) {
+            if (hasPendingHandshake()) {
+                // Wake up to close the clients which do not complete the handshake in time
+                selector.select(HANDSHAKE_TIMEOUT_MS);
+            } else {
+                selector.select();
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    Client client = (Client) key.attachment();
+                    try {
+                        read(client);
+                    } catch (IOException e) {
+                        Ln.d("WebSocket client error: " + e.getMessage());
+                        close(client);
+                    }
+                }
+            }
+
+            // Flush the output of all the clients (the streaming threads wake up the selector when they write)
+            long now = System.currentTimeMillis();
+            for (int i = clients.size() - 1; i >= 0; --i) {
+                Client client = clients.get(i);
+                if (client.state == STATE_HANDSHAKE && now - client.acceptTimeMs >= HANDSHAKE_TIMEOUT_MS) {
+                    Ln.w("WebSocket client rejected: handshake timeout");
+                    close(client);
+                    continue;
+                }
+                try {
+                    update(client);
+                } catch (IOException e) {
+                    Ln.d("WebSocket client error: " + e.getMessage());
+                    close(client);
+                }
+            }
+        }
+    }
+
+    private boolean hasPendingHandshake() {
+        for (Client client : clients) {
+            if (client.state == STATE_HANDSHAKE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (clients.size() >= MAX_CLIENTS) {
+            Ln.w("WebSocket client rejected: too many connections");
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+    }
+
+    private void update(Client client) throws IOException {
+        if (client.resumeRead) {
+            client.resumeRead = false;
+            client.readPaused = false;
+            // Process the data already received
+            processInput(client);
+        }
+
+        boolean pending = client.flush();
+        if (client.closed || (client.state == STATE_CLOSING && !pending)) {
+            close(client);
+            return;
+        }
+
+        int ops = (client.readPaused ? 0 : SelectionKey.OP_READ) | (pending ? SelectionKey.OP_WRITE : 0);
+        if (client.key.interestOps() != ops) {
+            client.key.interestOps(ops);
+        }
+    }
+
+    private void read(Client client) throws IOException {
+        if (!client.input.hasRemaining()) {
+            // The input buffer is full, the client sent a frame bigger than allowed
+            throw new IOException("WebSocket input buffer full");
+        }
+        int r = client.channel.read(client.input);
+        if (r == -1) {
+            throw new EOFException("WebSocket client disconnected");
+        }
+        processInput(client);
+    }
+
+    private void processInput(Client client) throws IOException {
+        ByteBuffer input = client.input;
+        input.flip();
+        try {
+            if (client.state == STATE_HANDSHAKE) {
+                WebSocket.HandshakeRequest request = WebSocket.parseHandshake(input);
+                if (request == null) {
+                    if (input.remaining() > HANDSHAKE_MAX_SIZE) {
+                        throw new IOException("WebSocket handshake too big");
+                    }
+                    return;
+                }
+                handshake(client, request);
+                if (client.state == STATE_OPEN) {
+                    // Authenticated: the frames may now be as large as a control message
+                    ByteBuffer largeInput = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+                    largeInput.put(input);
+                    largeInput.flip();
+                    client.input = largeInput;
+                    input = largeInput;
+                }
+            }
+
+            while (client.state == STATE_OPEN && !client.readPaused && WebSocket.parseFrameHeader(input, frameHeader)) {
+                if (!frameHeader.isPayloadLengthValid()) {
+                    client.sendClose(WebSocket.CLOSE_PROTOCOL_ERROR);
+                    return;
+                }
+                long payloadLength = frameHeader.getPayloadLength();
+                if (payloadLength > INPUT_BUFFER_SIZE - frameHeader.getHeaderLength()) {
+                    client.sendClose(WebSocket.CLOSE_MESSAGE_TOO_BIG);
+                    return;
+                }
+                if (input.remaining() < frameHeader.getHeaderLength() + payloadLength) {
+                    // wait for the whole frame
+                    return;
+                }
+                if (!handleFrame(client, input, (int) payloadLength)) {
+                    // not consumed
+                    return;
+                }
+            }
+        } finally {
+            input.compact();
+        }
+    }
+
+    private void handshake(Client client, WebSocket.HandshakeRequest request) {
+        String path = request.getPath();
+        if (!WebSocket.isOriginAllowed(request.getOrigin(), allowedOrigins)) {
+            Ln.w("WebSocket origin not allowed: " + request.getOrigin());
+            reject(client, "403 Forbidden");
+            return;
+        }
+        if (!AuthToken.matches(token, request.getQueryParameter("token"))) {
+            Ln.w("WebSocket client rejected: invalid token");
+            reject(client, "403 Forbidden");
+            return;
+        }
+
+        WebSocketStream stream = null;
+        int outputSize;
+        if ("/video".equals(path)) {
+            stream = videoStream;
+            outputSize = VIDEO_OUTPUT_BUFFER_SIZE;
+        } else if ("/audio".equals(path) && audioStream != null) {
+            stream = audioStream;
+            outputSize = AUDIO_OUTPUT_BUFFER_SIZE;
+        } else if ("/control".equals(path) && device != null) {
+            outputSize = CONTROL_OUTPUT_BUFFER_SIZE;
+        } else {
+            Ln.w("WebSocket endpoint not found: " + path);
+            reject(client, "404 Not Found");
+            return;
+        }
+
+        synchronized (client) {
+            client.output = ByteBuffer.allocateDirect(outputSize);
+            client.output.put(WebSocket.createHandshakeResponse(request.getKey()));
+        }
+        client.state = STATE_OPEN;
+        Ln.i("WebSocket client connected: " + path);
+
+        if (stream != null) {
+            stream.addClient(client);
+        } else {
+            client.reader = new ControlMessageReader();
+            client.writer = new DeviceMessageWriter();
+            // The clipboard is not synchronized automatically to WebSocket clients, it must be requested explicitly
+            client.controller = new Controller(device, client, screenEncoder, false, false);
+            client.controller.setScreenCapture(screenCapture);
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                controllers.add(client.controller);
+            }
+            client.controller.start();
+        }
+    }
+
+    private static void reject(Client client, String status) {
+        synchronized (client) {
+            client.output = ByteBuffer.allocate(HANDSHAKE_MAX_SIZE);
+            client.output.put(WebSocket.createErrorResponse(status));
+        }
+        client.state = STATE_CLOSING;
+    }
+
+    /**
+     * Handle a complete frame.
+     *
+     * @return {@code false} if the frame could not be consumed yet
+     */
+    private boolean handleFrame(Client client, ByteBuffer input, int payloadLength) {
+        int headerLength = frameHeader.getHeaderLength();
+        int payloadOffset = input.position() + headerLength;
+        int opcode = frameHeader.getOpcode();
+
+        if (!frameHeader.isMasked()) {
+            // RFC 6455 5.1: the server must close the connection upon receiving a frame that is not masked
+            client.sendClose(WebSocket.CLOSE_PROTOCOL_ERROR);
+            return false;
+        }
+
+        boolean isData = opcode == WebSocket.OPCODE_BINARY || opcode == WebSocket.OPCODE_CONTINUATION || opcode == WebSocket.OPCODE_TEXT;
+        if (isData && client.reader != null) {
+            synchronized (client) {
+                if (client.reader.getFreeSpace() < payloadLength) {
+                    // Wait for the controller to consume the messages already received
+                    client.readPaused = true;
+                    return false;
+                }
+                WebSocket.unmask(input, payloadOffset, payloadLength, frameHeader);
+                ByteBuffer payload = input.duplicate();
+                payload.position(payloadOffset);
+                payload.limit(payloadOffset + payloadLength);
+                // The control messages are a byte stream, the message boundaries do not matter
+                client.reader.readFrom(payload);
+                client.notifyAll();
+            }
+        } else if (opcode == WebSocket.OPCODE_PING) {
+            WebSocket.unmask(input, payloadOffset, payloadLength, frameHeader);
+            ByteBuffer payload = input.duplicate();
+            payload.position(payloadOffset);
+            payload.limit(payloadOffset + Math.min(payloadLength, WebSocket.MAX_CONTROL_FRAME_PAYLOAD_LENGTH));
+            client.sendControlFrame(WebSocket.OPCODE_PONG, payload);
+        } else if (opcode == WebSocket.OPCODE_CLOSE) {
+            client.sendClose(WebSocket.CLOSE_NORMAL);
+        } // else ignore (data sent on media endpoints, pong)
+
+        input.position(payloadOffset + payloadLength);
+        return true;
+    }
+
+    private void close(Client client) {
+        synchronized (client) {
+            client.closed = true;
+            // Wake up the controller waiting for a control message or for space in the output buffer
+            client.notifyAll();
+        }
+        if (client.key != null) {
+            client.key.cancel();
+        }
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (client.controller != null) {
+            client.controller.stop();
+        }
+        if (clients.remove(client) && client.state != STATE_HANDSHAKE) {
+            Ln.i("WebSocket client disconnected (" + client.packets + " packets, " + client.bytes + " bytes, " + client.droppedPackets
+                    + " dropped)");
+        }
+    }
+
+    /**
+     * Handle the screenshot requests received on the {@code /control} endpoint.
+     */
+    public void setScreenCapture(ScreenCapture screenCapture) {
+        this.screenCapture = screenCapture;
+    }
+
+    @Override
+    public void start() {
+        thread = new Thread(() -> {
+            try {
+                loop();
+            } catch (IOException e) {
+                Ln.e("WebSocket server error", e);
+            } finally {
+                for (int i = clients.size() - 1; i >= 0; --i) {
+                    close(clients.get(i));
+                }
+                try {
+                    serverChannel.close();
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                Ln.d("WebSocket server stopped");
+            }
+        }, "websocket");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+        List<Controller> all;
+        synchronized (this) {
+            all = new ArrayList<>(controllers);
+        }
+        for (Controller controller : all) {
+            controller.join();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.genymobile.scrcpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Forward a stream (video or audio) to the WebSocket clients connected to its endpoint.
+ * <p>
+ * The video clients joining the stream mid-way are initialized from the {@link GopCache}.
+ */
+public final class WebSocketStream implements PacketSink {
+
+    // Same as VideoFanOut
+    private static final int VIDEO_GOP_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int VIDEO_GOP_CACHE_MAX_PACKETS = 600;
+
+    private final boolean sendCodecMeta;
+    private final boolean sendFrameMeta;
+    private final Runnable keyFrameRequester; // null for audio
+
+    // All the fields below are accessed with the lock held
+    private final GopCache gopCache;
+    private final List<WebSocketServer.Client> clients = new ArrayList<>();
+    private ByteBuffer header; // null until the stream is started, or if codec meta is disabled
+    private boolean started;
+    // Reused for all the packets
+    private final ByteBuffer frameMeta = ByteBuffer.allocate(12);
+
+    /**
+     * @param keyFrameRequester to request a key frame for the video stream, or {@code null} for the audio stream
+     */
+    public WebSocketStream(boolean sendCodecMeta, boolean sendFrameMeta, Runnable keyFrameRequester) {
+        this.sendCodecMeta = sendCodecMeta;
+        this.sendFrameMeta = sendFrameMeta;
+        this.keyFrameRequester = keyFrameRequester;
+        // For audio, only the config packet is kept
+        gopCache = keyFrameRequester != null ? new GopCache(VIDEO_GOP_CACHE_MAX_BYTES, VIDEO_GOP_CACHE_MAX_PACKETS) : new GopCache(0, 0);
+    }
+
+    synchronized void addClient(WebSocketServer.Client client) {
+        clients.add(client);
+        if (!started) {
+            // The header will be sent once known
+            return;
+        }
+
+        if (header != null) {
+            client.sendBinary(header, null);
+        }
+
+        if (keyFrameRequester != null && !gopCache.isValid()) {
+            // Do not make the new client wait for the next periodic key frame
+            client.startWithKeyFrame();
+            keyFrameRequester.run();
+        }
+        try {
+            gopCache.replay((data, pts, config, keyFrame) -> send(client, data, pts, config, keyFrame));
+        } catch (IOException e) {
+            throw new AssertionError(e); // never thrown by send()
+        }
+    }
+
+    @Override
+    public synchronized void onStreamStarted(Codec codec, Size videoSize) {
+        if (sendCodecMeta) {
+            header = ByteBuffer.allocate(videoSize != null ? 12 : 4);
+            if (videoSize != null) {
+                Streamer.putVideoHeader(header, codec, videoSize);
+            } else {
+                header.putInt(codec.getId());
+            }
+            header.flip();
+            for (WebSocketServer.Client client : clients) {
+                client.sendBinary(header, null);
+            }
+        }
+        started = true;
+    }
+
+    @Override
+    public synchronized void onPacket(ByteBuffer data, long pts, boolean config, boolean keyFrame) {
+        // Never blocks on the clients
+        gopCache.add(data, pts, config, keyFrame);
+
+        // Indexed loop, to avoid an iterator allocation per packet
+        for (int i = clients.size() - 1; i >= 0; --i) {
+            WebSocketServer.Client client = clients.get(i);
+            send(client, data, pts, config, keyFrame);
+            if (client.isClosed()) {
+                clients.remove(i);
+            }
+        }
+    }
+
+    private void send(WebSocketServer.Client client, ByteBuffer data, long pts, boolean config, boolean keyFrame) {
+        ByteBuffer meta = null;
+        if (sendFrameMeta) {
+            frameMeta.clear();
+            Streamer.putFrameMeta(frameMeta, data.remaining(), pts, config, keyFrame);
+            frameMeta.flip();
+            meta = frameMeta;
+        }
+        client.sendPacket(meta, data, config, keyFrame, keyFrameRequester);
+    }
+}
@@ -0,0 +1,220 @@
+package com.genymobile.scrcpy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reader of a capture file (see {@link CaptureFormat}).
+ * <p>
+ * This class (like {@link CaptureReplay}) depends only on the Java standard library, so that it runs on any JVM.
+ */
+public final class CaptureFile implements Closeable {
+
+    public static final class Record {
+        private final long offset;
+        private final long timeNs;
+        private final int flags;
+        private final byte[] data;
+
+        private Record(long offset, long timeNs, int flags, byte[] data) {
+            this.offset = offset;
+            this.timeNs = timeNs;
+            this.flags = flags;
+            this.data = data;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Return the time at which the data was written, relative to the start of the capture.
+         */
+        public long getTimeNs() {
+            return timeNs;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    public static final class IndexEntry {
+        private final long offset;
+        private final long configOffset;
+        private final long timeNs;
+
+        IndexEntry(long offset, long configOffset, long timeNs) {
+            this.offset = offset;
+            this.configOffset = configOffset;
+            this.timeNs = timeNs;
+        }
+
+        /**
+         * Return the offset of the key frame record.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Return the offset of the last config record before the key frame, or -1 if none.
+         */
+        public long getConfigOffset() {
+            return configOffset;
+        }
+
+        public long getTimeNs() {
+            return timeNs;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final long startTimeMs;
+    private final long recordsEnd;
+    private final List<IndexEntry> index;
+
+    private final byte[] recordHeader = new byte[CaptureFormat.RECORD_HEADER_SIZE];
+    private long position = CaptureFormat.HEADER_SIZE;
+
+    public CaptureFile(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            byte[] header = new byte[CaptureFormat.HEADER_SIZE];
+            file.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            if (buffer.getLong() != CaptureFormat.MAGIC) {
+                throw new IOException("Not a capture file: " + path);
+            }
+            int version = buffer.getInt();
+            if (version != CaptureFormat.VERSION) {
+                throw new IOException("Unsupported capture file version: " + version);
+            }
+            startTimeMs = buffer.getLong();
+
+            long indexOffset = readIndexOffset();
+            if (indexOffset != -1) {
+                recordsEnd = indexOffset;
+                index = Collections.unmodifiableList(readIndex(indexOffset));
+            } else {
+                recordsEnd = file.length();
+                index = Collections.emptyList();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private long readIndexOffset() throws IOException {
+        long length = file.length();
+        if (length < CaptureFormat.HEADER_SIZE + 4 + CaptureFormat.TRAILER_SIZE) {
+            return -1;
+        }
+        byte[] trailer = new byte[CaptureFormat.TRAILER_SIZE];
+        file.seek(length - CaptureFormat.TRAILER_SIZE);
+        file.readFully(trailer);
+        ByteBuffer buffer = ByteBuffer.wrap(trailer);
+        long indexOffset = buffer.getLong();
+        if (buffer.getLong() != CaptureFormat.INDEX_MAGIC || indexOffset < CaptureFormat.HEADER_SIZE
+                || indexOffset > length - CaptureFormat.TRAILER_SIZE - 4) {
+            // No index (the capture was interrupted)
+            return -1;
+        }
+        return indexOffset;
+    }
+
+    private List<IndexEntry> readIndex(long indexOffset) throws IOException {
+        file.seek(indexOffset);
+        int count = file.readInt();
+        if (count < 0 || indexOffset + 4 + (long) count * CaptureFormat.INDEX_ENTRY_SIZE + CaptureFormat.TRAILER_SIZE != file.length()) {
+            throw new IOException("Invalid capture file index");
+        }
+        byte[] data = new byte[count * CaptureFormat.INDEX_ENTRY_SIZE];
+        file.readFully(data);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        List<IndexEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            entries.add(new IndexEntry(buffer.getLong(), buffer.getLong(), buffer.getLong()));
+        }
+        return entries;
+    }
+
+    /**
+     * Return the wall-clock time of the start of the capture, in ms since the epoch.
+     */
+    public long getStartTimeMs() {
+        return startTimeMs;
+    }
+
+    /**
+     * Return the key frame index (empty if the capture was interrupted).
+     */
+    public List<IndexEntry> getIndex() {
+        return index;
+    }
+
+    /**
+     * Return the last key frame at or before the given time, or the first one if none, or {@code null} if the index is empty.
+     */
+    public IndexEntry findKeyFrame(long timeNs) {
+        IndexEntry result = null;
+        for (IndexEntry entry : index) {
+            if (result != null && entry.getTimeNs() > timeNs) {
+                break;
+            }
+            result = entry;
+        }
+        return result;
+    }
+
+    /**
+     * Set the offset of the next record to read.
+     */
+    public void seek(long offset) {
+        position = offset;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return the record, or {@code null} at the end of the records (including an incomplete record at the end of an interrupted capture)
+     */
+    public Record readRecord() throws IOException {
+        if (position + CaptureFormat.RECORD_HEADER_SIZE > recordsEnd) {
+            return null;
+        }
+        file.seek(position);
+        file.readFully(recordHeader);
+        ByteBuffer buffer = ByteBuffer.wrap(recordHeader);
+        long timeNs = buffer.getLong();
+        int flags = buffer.get() & 0xff;
+        int length = buffer.getInt();
+        if (length < 0) {
+            throw new IOException("Invalid record length: " + length);
+        }
+        if (position + CaptureFormat.RECORD_HEADER_SIZE + length > recordsEnd) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        file.readFully(data);
+        Record record = new Record(position, timeNs, flags, data);
+        position += CaptureFormat.RECORD_HEADER_SIZE + length;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,155 @@
+package com.genymobile.scrcpy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+
+/**
+ * Replay a capture file (see {@link CaptureFormat}) over a local TCP socket, on any JVM (no device needed):
+ *
+ * <pre>
+ * ./gradlew :server:replayJar
+ * java -jar server/build/replay/scrcpy-replay.jar video.cap [--port 27183] [--speed 100] [--start 10000]
+ * </pre>
+ *
+ * It accepts a single client on localhost, writes the records at their original times divided by the speed (0 to write them as fast as
+ * possible), starting from the key frame at or before the start time (in ms), then closes the connection. The data is exactly what the
+ * streamer wrote (codec meta, frame meta and packets), so that the client reads it as a video socket without the dummy byte and the
+ * device meta.
+ */
+public final class CaptureReplay {
+
+    private static final int DEFAULT_PORT = 27183;
+
+    public static final class Result {
+        private long recordCount;
+        private long byteCount;
+        private long maxLateNs;
+
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * Return the max delay of a write from its scheduled time (if the consumer does not read fast enough).
+         */
+        public long getMaxLateNs() {
+            return maxLateNs;
+        }
+    }
+
+    private CaptureReplay() {
+        // not instantiable
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CaptureReplay <file> [--port N] [--speed X] [--start MS]");
+            System.exit(1);
+        }
+
+        File path = new File(args[0]);
+        int port = DEFAULT_PORT;
+        double speed = 1;
+        long startNs = 0;
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(value);
+                    if (speed < 0) {
+                        throw new IllegalArgumentException("Invalid speed: " + speed);
+                    }
+                    break;
+                case "--start":
+                    startNs = Long.parseLong(value) * 1_000_000;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        try (CaptureFile capture = new CaptureFile(path);
+                ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            System.out.println("Waiting for a client on port " + port);
+            try (Socket socket = serverSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                long start = System.nanoTime();
+                Result result = replay(capture, socket.getOutputStream(), speed, startNs);
+                long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+                System.out.println(String.format(Locale.US, "%d records (%d bytes) in %d ms, max late: %.1f ms", result.getRecordCount(),
+                        result.getByteCount(), elapsedMs, result.getMaxLateNs() / 1e6));
+            }
+        }
+    }
+
+    /**
+     * Write the records of a capture.
+     *
+     * @param speed the speed factor, or 0 to write the records as fast as possible
+     * @param startNs the time from which to start (from the key frame at or before it, with the codec meta and the last config)
+     */
+    public static Result replay(CaptureFile capture, OutputStream out, double speed, long startNs) throws IOException, InterruptedException {
+        Result result = new Result();
+
+        CaptureFile.IndexEntry keyFrame = startNs > 0 ? capture.findKeyFrame(startNs) : null;
+        if (keyFrame != null) {
+            // The codec meta is at the beginning of the stream
+            capture.seek(CaptureFormat.HEADER_SIZE);
+            CaptureFile.Record record;
+            while ((record = capture.readRecord()) != null && (record.getFlags() & CaptureFormat.FLAG_META) != 0) {
+                write(out, record, result);
+            }
+            if (keyFrame.getConfigOffset() != -1) {
+                capture.seek(keyFrame.getConfigOffset());
+                write(out, capture.readRecord(), result);
+            }
+            capture.seek(keyFrame.getOffset());
+        } else {
+            capture.seek(CaptureFormat.HEADER_SIZE);
+        }
+
+        long replayStartNs = System.nanoTime();
+        long firstTimeNs = -1;
+        CaptureFile.Record record;
+        while ((record = capture.readRecord()) != null) {
+            if (firstTimeNs == -1) {
+                firstTimeNs = record.getTimeNs();
+            }
+            if (speed > 0) {
+                // Schedule from the start (not from the previous write), so that the delays do not accumulate
+                long deadline = replayStartNs + (long) ((record.getTimeNs() - firstTimeNs) / speed);
+                long remainingNs = deadline - System.nanoTime();
+                if (remainingNs > 0) {
+                    Thread.sleep(remainingNs / 1_000_000, (int) (remainingNs % 1_000_000));
+                } else {
+                    result.maxLateNs = Math.max(result.maxLateNs, -remainingNs);
+                }
+            }
+            write(out, record, result);
+        }
+        out.flush();
+        return result;
+    }
+
+    private static void write(OutputStream out, CaptureFile.Record record, Result result) throws IOException {
+        byte[] data = record.getData();
+        out.write(data);
+        ++result.recordCount;
+        result.byteCount += data.length;
+    }
+}
@@ -0,0 +1,82 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BitRateControllerTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void testInitialBitRateClamped() {
+        Assert.assertEquals(4_000_000, new BitRateController(8_000_000, 1_000_000, 4_000_000).getBitRate());
+        Assert.assertEquals(1_000_000, new BitRateController(500_000, 1_000_000, 4_000_000).getBitRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new BitRateController(8_000_000, 4_000_000, 1_000_000);
+    }
+
+    @Test
+    public void testDecreaseOnBlockedWrites() {
+        BitRateController controller = new BitRateController(8_000_000, 1_000_000, 8_000_000);
+
+        Assert.assertEquals(0, controller.onPacketWritten(0, 0, 0));
+        // no decision before the end of the window
+        Assert.assertEquals(0, controller.onPacketWritten(100 * MS, 100 * MS, 0));
+        // blocked 400ms over 500ms
+        Assert.assertEquals(6_000_000, controller.onPacketWritten(500 * MS, 400 * MS, 0));
+        Assert.assertEquals(6_000_000, controller.getBitRate());
+    }
+
+    @Test
+    public void testDecreaseOnPendingData() {
+        BitRateController controller = new BitRateController(8_000_000, 1_000_000, 8_000_000);
+
+        controller.onPacketWritten(0, 0, 0);
+        // 500KB pending at 8Mbps is 500ms of data
+        controller.onPacketWritten(200 * MS, 0, 500_000);
+        Assert.assertEquals(6_000_000, controller.onPacketWritten(500 * MS, 0, 0));
+    }
+
+    @Test
+    public void testNeverBelowMin() {
+        BitRateController controller = new BitRateController(1_200_000, 1_000_000, 8_000_000);
+
+        controller.onPacketWritten(0, 0, 0);
+        Assert.assertEquals(1_000_000, controller.onPacketWritten(500 * MS, 500 * MS, 0));
+        // already at the min, nothing to change
+        Assert.assertEquals(0, controller.onPacketWritten(1000 * MS, 1000 * MS, 0));
+    }
+
+    @Test
+    public void testIncreaseWhenStable() {
+        BitRateController controller = new BitRateController(1_000_000, 1_000_000, 3_000_000);
+
+        long now = 0;
+        controller.onPacketWritten(now, 0, 0);
+        for (int i = 0; i < 3; ++i) {
+            now += 500 * MS;
+            Assert.assertEquals(0, controller.onPacketWritten(now, 0, 0));
+        }
+        now += 500 * MS;
+        // increase by (max - min) / 20
+        Assert.assertEquals(1_100_000, controller.onPacketWritten(now, 0, 0));
+    }
+
+    @Test
+    public void testSetMaxBitRate() {
+        BitRateController controller = new BitRateController(8_000_000, 1_000_000, 8_000_000);
+
+        controller.setMaxBitRate(2_000_000);
+        Assert.assertEquals(2_000_000, controller.getBitRate());
+        Assert.assertEquals(2_000_000, controller.getMaxBitRate());
+        Assert.assertEquals(1_000_000, controller.getMinBitRate());
+
+        // the min is lowered if necessary
+        controller.setMaxBitRate(500_000);
+        Assert.assertEquals(500_000, controller.getBitRate());
+        Assert.assertEquals(500_000, controller.getMinBitRate());
+    }
+}
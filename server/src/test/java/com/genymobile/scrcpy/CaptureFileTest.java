@@ -0,0 +1,230 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class CaptureFileTest {
+
+    private static final long START_NS = 1_000_000_000;
+    private static final long FRAME_NS = 10_000_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer packet(int size, int value) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; ++i) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Write a codec meta, a config packet, then 10 frames (a key frame every 4 frames), and return the stream written.
+     */
+    private static byte[] writeCapture(File file) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (CaptureWriter writer = new CaptureWriter(file, START_NS, 1024 * 1024)) {
+            writer.start();
+            ByteBuffer codecMeta = ByteBuffer.wrap(new byte[] {0, 'h', '2', '6', 0, 0, 0, 8, 0, 0, 0, 6});
+            writer.writeRecord(START_NS, CaptureFormat.FLAG_META, codecMeta);
+            stream.write(codecMeta.array(), 0, codecMeta.remaining());
+
+            for (int i = 0; i < 11; ++i) {
+                ByteBuffer header = ByteBuffer.allocate(12);
+                ByteBuffer packet = packet(10 + i, i);
+                boolean config = i == 0;
+                boolean keyFrame = i % 4 == 1;
+                Streamer.putFrameMeta(header, packet.remaining(), i * 1000, config, keyFrame);
+                header.flip();
+                int flags = config ? CaptureFormat.FLAG_CONFIG : keyFrame ? CaptureFormat.FLAG_KEY_FRAME : 0;
+                writer.writeRecord(START_NS + i * FRAME_NS, flags, header, null, packet);
+
+                // The positions are not modified
+                Assert.assertEquals(0, header.position());
+                Assert.assertEquals(0, packet.position());
+                stream.write(header.array(), 0, header.remaining());
+                byte[] data = new byte[packet.remaining()];
+                packet.get(data);
+                stream.write(data, 0, data.length);
+            }
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void testReadRecords() throws IOException {
+        File file = folder.newFile();
+        writeCapture(file);
+
+        try (CaptureFile capture = new CaptureFile(file)) {
+            CaptureFile.Record record = capture.readRecord();
+            Assert.assertEquals(CaptureFormat.FLAG_META, record.getFlags());
+            Assert.assertEquals(0, record.getTimeNs());
+            Assert.assertEquals(12, record.getData().length);
+
+            for (int i = 0; i < 11; ++i) {
+                record = capture.readRecord();
+                Assert.assertEquals(i * FRAME_NS, record.getTimeNs());
+                Assert.assertEquals(12 + 10 + i, record.getData().length);
+                Assert.assertEquals(i, record.getData()[12]);
+            }
+            Assert.assertNull(capture.readRecord());
+        }
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        File file = folder.newFile();
+        writeCapture(file);
+
+        try (CaptureFile capture = new CaptureFile(file)) {
+            List<CaptureFile.IndexEntry> index = capture.getIndex();
+            Assert.assertEquals(3, index.size());
+            long configOffset = CaptureFormat.HEADER_SIZE + CaptureFormat.RECORD_HEADER_SIZE + 12;
+            for (int i = 0; i < 3; ++i) {
+                CaptureFile.IndexEntry entry = index.get(i);
+                Assert.assertEquals((1 + 4 * i) * FRAME_NS, entry.getTimeNs());
+                Assert.assertEquals(configOffset, entry.getConfigOffset());
+                capture.seek(entry.getOffset());
+                CaptureFile.Record record = capture.readRecord();
+                Assert.assertEquals(CaptureFormat.FLAG_KEY_FRAME, record.getFlags());
+                Assert.assertEquals(entry.getTimeNs(), record.getTimeNs());
+            }
+
+            Assert.assertSame(index.get(0), capture.findKeyFrame(0));
+            Assert.assertSame(index.get(1), capture.findKeyFrame(5 * FRAME_NS));
+            Assert.assertSame(index.get(1), capture.findKeyFrame(8 * FRAME_NS));
+            Assert.assertSame(index.get(2), capture.findKeyFrame(100 * FRAME_NS));
+        }
+    }
+
+    @Test
+    public void testInterruptedCapture() throws IOException {
+        File file = folder.newFile();
+        writeCapture(file);
+
+        // Cut the file in the middle of the 4th record (the index is lost)
+        long length = CaptureFormat.HEADER_SIZE + 4 * CaptureFormat.RECORD_HEADER_SIZE + 12 + (12 + 10) + (12 + 11) + 5;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+
+        try (CaptureFile capture = new CaptureFile(file)) {
+            Assert.assertTrue(capture.getIndex().isEmpty());
+            Assert.assertNull(capture.findKeyFrame(0));
+            int count = 0;
+            while (capture.readRecord() != null) {
+                ++count;
+            }
+            Assert.assertEquals(3, count);
+        }
+    }
+
+    @Test
+    public void testDropOnOverflow() throws IOException {
+        File file = folder.newFile();
+        try (CaptureWriter writer = new CaptureWriter(file, START_NS, 100)) {
+            // The writer thread is not started yet: nothing is consumed
+            writer.writeRecord(START_NS, CaptureFormat.FLAG_CONFIG, packet(10, 0));
+            writer.writeRecord(START_NS, CaptureFormat.FLAG_KEY_FRAME, packet(40, 1));
+            writer.writeRecord(START_NS, 0, packet(40, 2));
+            // The queue is full
+            writer.writeRecord(START_NS, 0, packet(40, 3));
+            Assert.assertEquals(1, writer.getDroppedRecords());
+
+            writer.start();
+            // Not decodable after a dropped record, until the next key frame
+            writer.writeRecord(START_NS, 0, packet(5, 4));
+            Assert.assertEquals(2, writer.getDroppedRecords());
+        }
+
+        try (CaptureFile capture = new CaptureFile(file)) {
+            int count = 0;
+            while (capture.readRecord() != null) {
+                ++count;
+            }
+            Assert.assertEquals(3, count);
+            Assert.assertEquals(1, capture.getIndex().size());
+        }
+    }
+
+    @Test
+    public void testRecordsCopied() throws IOException {
+        File file = folder.newFile();
+        try (CaptureWriter writer = new CaptureWriter(file, START_NS, 1024)) {
+            ByteBuffer packet = packet(10, 1);
+            writer.writeRecord(START_NS, CaptureFormat.FLAG_KEY_FRAME, packet);
+            // The buffer may be reused as soon as the record is queued
+            packet.put(0, (byte) 2);
+            writer.start();
+        }
+
+        try (CaptureFile capture = new CaptureFile(file)) {
+            Assert.assertEquals(1, capture.readRecord().getData()[0]);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws IOException {
+        File file = folder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[100]);
+        }
+        new CaptureFile(file).close();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        File file = folder.newFile();
+        byte[] stream = writeCapture(file);
+
+        try (CaptureFile capture = new CaptureFile(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CaptureReplay.Result result = CaptureReplay.replay(capture, out, 0, 0);
+            Assert.assertEquals(12, result.getRecordCount());
+            Assert.assertEquals(stream.length, result.getByteCount());
+            Assert.assertArrayEquals(stream, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testReplayFromKeyFrame() throws Exception {
+        File file = folder.newFile();
+        writeCapture(file);
+
+        try (CaptureFile capture = new CaptureFile(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CaptureReplay.Result result = CaptureReplay.replay(capture, out, 0, 7 * FRAME_NS);
+            // The codec meta, the config, then from the key frame 5 to the end
+            Assert.assertEquals(1 + 1 + 6, result.getRecordCount());
+            byte[] data = out.toByteArray();
+            Assert.assertEquals(0, data[12 + 12]); // config packet
+            Assert.assertEquals(5, data[12 + 12 + 10 + 12]); // key frame
+        }
+    }
+
+    @Test
+    public void testReplaySpeed() throws Exception {
+        File file = folder.newFile();
+        writeCapture(file);
+
+        try (CaptureFile capture = new CaptureFile(file)) {
+            long start = System.nanoTime();
+            CaptureReplay.replay(capture, new ByteArrayOutputStream(), 10, 0);
+            long elapsedNs = System.nanoTime() - start;
+            // The last record is at 100 ms
+            Assert.assertTrue(elapsedNs >= 10 * FRAME_NS / 10);
+        }
+    }
+}
@@ -323,6 +323,115 @@ public class ControlMessageReaderTest {
         Assert.assertEquals(ControlMessage.TYPE_ROTATE_DEVICE, event.getType());
     }
 
+    @Test
+    public void testParseRequestKeyFrame() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_REQUEST_KEY_FRAME);
+
+        byte[] packet = bos.toByteArray();
+
+        reader.readFrom(new ByteArrayInputStream(packet));
+        ControlMessage event = reader.next();
+
+        Assert.assertEquals(ControlMessage.TYPE_REQUEST_KEY_FRAME, event.getType());
+    }
+
+    @Test
+    public void testParseSetVideoSettings() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_SET_VIDEO_SETTINGS);
+        dos.writeInt(1024); // max size
+        dos.writeInt(ControlMessage.VIDEO_SETTING_UNCHANGED); // video bit rate
+        dos.writeInt(30); // max fps
+
+        byte[] packet = bos.toByteArray();
+
+        // The message type (1 byte) does not count
+        Assert.assertEquals(ControlMessageReader.SET_VIDEO_SETTINGS_PAYLOAD_LENGTH, packet.length - 1);
+
+        reader.readFrom(new ByteArrayInputStream(packet));
+        ControlMessage event = reader.next();
+
+        Assert.assertEquals(ControlMessage.TYPE_SET_VIDEO_SETTINGS, event.getType());
+        Assert.assertEquals(1024, event.getMaxSize());
+        Assert.assertEquals(ControlMessage.VIDEO_SETTING_UNCHANGED, event.getVideoBitRate());
+        Assert.assertEquals(30, event.getMaxFps());
+    }
+
+    @Test
+    public void testParseSaveReplay() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_SAVE_REPLAY);
+        byte[] path = "/sdcard/a.mp4".getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(path.length);
+        dos.write(path);
+
+        byte[] packet = bos.toByteArray();
+
+        reader.readFrom(new ByteArrayInputStream(packet));
+        ControlMessage event = reader.next();
+
+        Assert.assertEquals(ControlMessage.TYPE_SAVE_REPLAY, event.getType());
+        Assert.assertEquals("/sdcard/a.mp4", event.getText());
+    }
+
+    @Test
+    public void testParseCaptureScreenshot() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_CAPTURE_SCREENSHOT);
+        dos.writeLong(0x0102030405060708L); // sequence
+        dos.writeByte(ControlMessage.IMAGE_FORMAT_JPEG);
+        dos.writeByte(80); // quality
+        dos.writeShort(1920); // max size
+
+        byte[] packet = bos.toByteArray();
+
+        // The message type (1 byte) does not count
+        Assert.assertEquals(ControlMessageReader.CAPTURE_SCREENSHOT_PAYLOAD_LENGTH, packet.length - 1);
+
+        reader.readFrom(new ByteArrayInputStream(packet));
+        ControlMessage event = reader.next();
+
+        Assert.assertEquals(ControlMessage.TYPE_CAPTURE_SCREENSHOT, event.getType());
+        Assert.assertEquals(0x0102030405060708L, event.getSequence());
+        Assert.assertEquals(ControlMessage.IMAGE_FORMAT_JPEG, event.getImageFormat());
+        Assert.assertEquals(80, event.getQuality());
+        Assert.assertEquals(1920, event.getMaxSize());
+    }
+
+    @Test
+    public void testParseGetLatencyStats() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_GET_LATENCY_STATS);
+        dos.writeLong(0x0102030405060708L); // sequence
+
+        byte[] packet = bos.toByteArray();
+
+        // The message type (1 byte) does not count
+        Assert.assertEquals(ControlMessageReader.GET_LATENCY_STATS_PAYLOAD_LENGTH, packet.length - 1);
+
+        reader.readFrom(new ByteArrayInputStream(packet));
+        ControlMessage event = reader.next();
+
+        Assert.assertEquals(ControlMessage.TYPE_GET_LATENCY_STATS, event.getType());
+        Assert.assertEquals(0x0102030405060708L, event.getSequence());
+    }
+
     @Test
     public void testMultiEvents() throws IOException {
         ControlMessageReader reader = new ControlMessageReader();
@@ -52,4 +52,86 @@ public class DeviceMessageWriterTest {
 
         Assert.assertArrayEquals(expected, actual);
     }
+
+    @Test
+    public void testSerializeScreenshot() throws IOException {
+        DeviceMessageWriter writer = new DeviceMessageWriter();
+
+        // Larger than the other messages
+        byte[] data = new byte[1 << 20];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        int length = data.length - 10;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(DeviceMessage.TYPE_SCREENSHOT);
+        dos.writeLong(0x0102030405060708L);
+        dos.writeByte(ControlMessage.IMAGE_FORMAT_PNG);
+        dos.writeShort(1080);
+        dos.writeShort(2400);
+        dos.writeInt(length);
+        dos.write(data, 0, length);
+
+        byte[] expected = bos.toByteArray();
+
+        DeviceMessage msg = DeviceMessage.createScreenshot(0x0102030405060708L, ControlMessage.IMAGE_FORMAT_PNG, new Size(1080, 2400), data,
+                length);
+        bos = new ByteArrayOutputStream();
+        writer.writeTo(msg, bos);
+
+        byte[] actual = bos.toByteArray();
+
+        Assert.assertArrayEquals(expected, actual);
+        Assert.assertEquals(DeviceMessageWriter.SCREENSHOT_HEADER_LENGTH + length, actual.length);
+    }
+
+    @Test
+    public void testSerializeScreenshotFailure() throws IOException {
+        DeviceMessageWriter writer = new DeviceMessageWriter();
+
+        DeviceMessage msg = DeviceMessage.createScreenshot(42, ControlMessage.IMAGE_FORMAT_JPEG, new Size(0, 0), null, 0);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writer.writeTo(msg, bos);
+
+        byte[] actual = bos.toByteArray();
+        Assert.assertEquals(DeviceMessageWriter.SCREENSHOT_HEADER_LENGTH, actual.length);
+        Assert.assertEquals(0, actual[actual.length - 1]); // empty image
+    }
+
+    @Test
+    public void testSerializeLatencyStats() throws IOException {
+        DeviceMessageWriter writer = new DeviceMessageWriter();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(DeviceMessage.TYPE_LATENCY_STATS);
+        dos.writeLong(0x0102030405060708L);
+        dos.writeByte(2); // stage count
+        dos.writeLong(256);
+        dos.writeInt(10000);
+        dos.writeInt(15000);
+        dos.writeInt(20000);
+        dos.writeInt(100000);
+        dos.writeLong(256);
+        dos.writeInt(1000);
+        dos.writeInt(2000);
+        dos.writeInt(3000);
+        dos.writeInt(0xFFFFFFFF); // saturated
+
+        byte[] expected = bos.toByteArray();
+
+        LatencyHistogram.Summary[] stats = {
+                new LatencyHistogram.Summary(256, 10000, 15000, 20000, 100000),
+                new LatencyHistogram.Summary(256, 1000, 2000, 3000, 1L << 40),
+        };
+        DeviceMessage msg = DeviceMessage.createLatencyStats(0x0102030405060708L, stats);
+        bos = new ByteArrayOutputStream();
+        writer.writeTo(msg, bos);
+
+        byte[] actual = bos.toByteArray();
+
+        Assert.assertArrayEquals(expected, actual);
+    }
 }
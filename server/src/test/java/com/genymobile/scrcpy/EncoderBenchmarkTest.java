@@ -0,0 +1,56 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class EncoderBenchmarkTest {
+
+    private static EncoderBenchmark.Result createResult(String name, long latencyUs, long elapsedUs) {
+        long[] latencies = new long[10];
+        Arrays.fill(latencies, latencyUs);
+        return EncoderBenchmark.Result.create(name, latencies, elapsedUs);
+    }
+
+    @Test
+    public void testCreate() {
+        long[] latencies = {9000, 1000, 3000, 2000, 20000};
+        EncoderBenchmark.Result result = EncoderBenchmark.Result.create("enc", latencies, 100_000);
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(3000, result.getMedianLatencyUs());
+        Assert.assertEquals(20000, result.getMaxLatencyUs());
+        Assert.assertEquals(50f, result.getFps(), 0.001f);
+        // the measures are not modified
+        Assert.assertEquals(9000, latencies[0]);
+    }
+
+    @Test
+    public void testChooseLowestLatency() {
+        EncoderBenchmark.Result hw = createResult("hw", 8000, 100_000); // 100 fps
+        EncoderBenchmark.Result sw = createResult("sw", 5000, 125_000); // 80 fps
+        EncoderBenchmark.Result failed = EncoderBenchmark.Result.createFailure("broken");
+        Assert.assertSame(sw, EncoderBenchmark.chooseBest(Arrays.asList(failed, hw, sw), 60));
+    }
+
+    @Test
+    public void testChooseFastEnough() {
+        EncoderBenchmark.Result hw = createResult("hw", 8000, 100_000); // 100 fps
+        EncoderBenchmark.Result sw = createResult("sw", 5000, 500_000); // 20 fps
+        Assert.assertSame(hw, EncoderBenchmark.chooseBest(Arrays.asList(sw, hw), 60));
+    }
+
+    @Test
+    public void testChooseFastestIfNoneFastEnough() {
+        EncoderBenchmark.Result a = createResult("a", 5000, 400_000); // 25 fps
+        EncoderBenchmark.Result b = createResult("b", 9000, 250_000); // 40 fps
+        Assert.assertSame(b, EncoderBenchmark.chooseBest(Arrays.asList(a, b), 60));
+    }
+
+    @Test
+    public void testChooseNone() {
+        Assert.assertNull(EncoderBenchmark.chooseBest(Collections.singletonList(EncoderBenchmark.Result.createFailure("broken")), 60));
+        Assert.assertNull(EncoderBenchmark.chooseBest(Collections.<EncoderBenchmark.Result>emptyList(), 60));
+    }
+}
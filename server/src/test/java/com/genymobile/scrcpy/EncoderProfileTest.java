@@ -0,0 +1,106 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class EncoderProfileTest {
+
+    private static final int[] FALLBACKS = {2560, 1920, 1600, 1280, 1024, 800};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static EncoderProfile createProfile(int maxWidth, int maxHeight, int workingMaxSize) {
+        return new EncoderProfile(new Size(maxWidth, maxHeight), new Size(2, 2), 120, 100_000_000, 0b110, new int[] {1, 2, 8}, workingMaxSize);
+    }
+
+    @Test
+    public void testFormatAndParse() {
+        EncoderProfile profile = createProfile(4096, 2176, 1920);
+        EncoderProfile parsed = EncoderProfile.parse(profile.format());
+
+        Assert.assertNotNull(parsed);
+        Assert.assertEquals(profile.format(), parsed.format());
+        Assert.assertEquals(4096, parsed.getMaxSize().getWidth());
+        Assert.assertEquals(2176, parsed.getMaxSize().getHeight());
+        Assert.assertEquals(120, parsed.getMaxFps());
+        Assert.assertEquals(100_000_000, parsed.getMaxBitRate());
+        Assert.assertFalse(parsed.isBitrateModeSupported(0));
+        Assert.assertTrue(parsed.isBitrateModeSupported(1));
+        Assert.assertTrue(parsed.isBitrateModeSupported(2));
+        Assert.assertTrue(parsed.isProfileSupported(8));
+        Assert.assertFalse(parsed.isProfileSupported(4));
+        Assert.assertEquals(1920, parsed.getWorkingMaxSize());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        Assert.assertNull(EncoderProfile.parse(""));
+        Assert.assertNull(EncoderProfile.parse("1,2,3"));
+        Assert.assertNull(EncoderProfile.parse("a,2,3,4,5,6,7,8,"));
+    }
+
+    @Test
+    public void testChooseMaxSizeSupported() {
+        EncoderProfile profile = createProfile(4096, 2176, 0);
+        // both orientations are accepted
+        Assert.assertEquals(0, profile.chooseMaxSize(new Size(1440, 3200), FALLBACKS));
+        Assert.assertEquals(0, profile.chooseMaxSize(new Size(3200, 1440), FALLBACKS));
+    }
+
+    @Test
+    public void testChooseMaxSizeFromCapabilities() {
+        EncoderProfile profile = createProfile(1920, 1088, 0);
+        Assert.assertEquals(1920, profile.chooseMaxSize(new Size(1440, 3200), FALLBACKS));
+        // 1920x1080 would fit, but not 1920x1200 (the minor dimension is too large)
+        Assert.assertEquals(1600, profile.chooseMaxSize(new Size(1600 * 2, 1000 * 2), FALLBACKS));
+    }
+
+    @Test
+    public void testChooseMaxSizeFromWorkingMaxSize() {
+        EncoderProfile profile = createProfile(4096, 2176, 1600);
+        Assert.assertEquals(1600, profile.chooseMaxSize(new Size(1440, 3200), FALLBACKS));
+        // already small enough
+        Assert.assertEquals(0, profile.chooseMaxSize(new Size(720, 1600), FALLBACKS));
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        File file = new File(folder.getRoot(), "encoders.properties");
+
+        EncoderCache cache = new EncoderCache(file, "build/1");
+        Assert.assertNull(cache.get("c2.enc.avc", "video/avc"));
+        Assert.assertTrue(cache.put("c2.enc.avc", "video/avc", createProfile(4096, 2176, 0)));
+
+        // reloaded from the file
+        cache = new EncoderCache(file, "build/1");
+        EncoderProfile profile = cache.get("c2.enc.avc", "video/avc");
+        Assert.assertNotNull(profile);
+        Assert.assertEquals(4096, profile.getMaxSize().getWidth());
+        Assert.assertNull(cache.get("c2.enc.avc", "video/hevc"));
+
+        // invalidated by a system update
+        cache = new EncoderCache(file, "build/2");
+        Assert.assertNull(cache.get("c2.enc.avc", "video/avc"));
+    }
+
+    @Test
+    public void testCachePreferredEncoder() {
+        File file = new File(folder.getRoot(), "encoders.properties");
+
+        EncoderCache cache = new EncoderCache(file, "build/1");
+        Assert.assertNull(cache.getPreferredEncoder("video/avc", new Size(1080, 2400)));
+        Assert.assertTrue(cache.putPreferredEncoder("video/avc", new Size(1080, 2400), "c2.android.avc.encoder"));
+
+        cache = new EncoderCache(file, "build/1");
+        // the orientation does not matter
+        Assert.assertEquals("c2.android.avc.encoder", cache.getPreferredEncoder("video/avc", new Size(2400, 1080)));
+        Assert.assertNull(cache.getPreferredEncoder("video/avc", new Size(720, 1600)));
+        Assert.assertNull(cache.getPreferredEncoder("video/hevc", new Size(1080, 2400)));
+    }
+}
@@ -0,0 +1,88 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EncoderWatchdogTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void testNoStallWhileOutput() {
+        EncoderWatchdog watchdog = new EncoderWatchdog(500 * MS);
+        watchdog.onSessionStarted(0, 100_000);
+
+        for (long t = 0; t < 5000 * MS; t += 100 * MS) {
+            watchdog.onOutput(t);
+            Assert.assertEquals(EncoderWatchdog.ACTION_NONE, watchdog.check(t + 50 * MS));
+        }
+        Assert.assertEquals(0, watchdog.getStallCount());
+    }
+
+    @Test
+    public void testSyncFrameThenReset() {
+        EncoderWatchdog watchdog = new EncoderWatchdog(500 * MS);
+        watchdog.onSessionStarted(0, 100_000);
+        watchdog.onOutput(100 * MS);
+
+        Assert.assertFalse(watchdog.isStalled(599 * MS));
+        Assert.assertEquals(EncoderWatchdog.ACTION_NONE, watchdog.check(599 * MS));
+        Assert.assertTrue(watchdog.isStalled(600 * MS));
+        Assert.assertEquals(EncoderWatchdog.ACTION_REQUEST_SYNC_FRAME, watchdog.check(600 * MS));
+        Assert.assertEquals(EncoderWatchdog.ACTION_NONE, watchdog.check(700 * MS));
+        Assert.assertEquals(EncoderWatchdog.ACTION_RESET, watchdog.check(1100 * MS));
+        Assert.assertEquals(EncoderWatchdog.ACTION_NONE, watchdog.check(1200 * MS));
+        Assert.assertEquals(1, watchdog.getStallCount());
+        Assert.assertEquals(1, watchdog.getResetCount());
+
+        // The stall is over once the new session produces a packet
+        watchdog.onSessionStarted(1300 * MS, 100_000);
+        Assert.assertEquals(0, watchdog.getRecoveryCount());
+        watchdog.onOutput(1400 * MS);
+        Assert.assertEquals(1, watchdog.getStallCount());
+        Assert.assertEquals(1, watchdog.getRecoveryCount());
+        Assert.assertEquals(1300 * MS, watchdog.getMeanRecoveryNs());
+        Assert.assertEquals(1300 * MS, watchdog.getMaxRecoveryNs());
+    }
+
+    @Test
+    public void testRecoveryBySyncFrame() {
+        EncoderWatchdog watchdog = new EncoderWatchdog(200 * MS);
+        watchdog.onSessionStarted(0, 100_000);
+
+        Assert.assertEquals(EncoderWatchdog.ACTION_REQUEST_SYNC_FRAME, watchdog.check(200 * MS));
+        watchdog.onOutput(250 * MS);
+        Assert.assertEquals(EncoderWatchdog.ACTION_NONE, watchdog.check(400 * MS));
+
+        // A new stall requests a sync frame again
+        Assert.assertEquals(EncoderWatchdog.ACTION_REQUEST_SYNC_FRAME, watchdog.check(450 * MS));
+        watchdog.onOutput(550 * MS);
+
+        Assert.assertEquals(2, watchdog.getStallCount());
+        Assert.assertEquals(0, watchdog.getResetCount());
+        Assert.assertEquals(2, watchdog.getRecoveryCount());
+        Assert.assertEquals(275 * MS, watchdog.getMeanRecoveryNs());
+        Assert.assertEquals(300 * MS, watchdog.getMaxRecoveryNs());
+    }
+
+    @Test
+    public void testTimeoutNotLessThanRepeatDelay() {
+        EncoderWatchdog watchdog = new EncoderWatchdog(500 * MS);
+        // In idle mode, the frames are repeated every 2 seconds
+        watchdog.onSessionStarted(0, 2_000_000);
+
+        Assert.assertEquals(EncoderWatchdog.ACTION_NONE, watchdog.check(3999 * MS));
+        Assert.assertEquals(EncoderWatchdog.ACTION_REQUEST_SYNC_FRAME, watchdog.check(4000 * MS));
+    }
+
+    @Test
+    public void testInactive() {
+        EncoderWatchdog watchdog = new EncoderWatchdog(500 * MS);
+        watchdog.onSessionStarted(0, 100_000);
+
+        Assert.assertTrue(watchdog.isStalled(1000 * MS));
+        watchdog.onInactive(1000 * MS);
+        Assert.assertFalse(watchdog.isStalled(1400 * MS));
+        Assert.assertEquals(0, watchdog.getStallCount());
+    }
+}
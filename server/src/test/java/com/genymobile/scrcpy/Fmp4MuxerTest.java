@@ -0,0 +1,263 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Fmp4MuxerTest {
+
+    private static final byte[] H264_CONFIG = {
+            0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1f, (byte) 0xac, 0x2b, // SPS
+            0, 0, 0, 1, 0x68, (byte) 0xee, 0x3c, (byte) 0xb0, // PPS
+    };
+
+    private static ByteBuffer frame(int nalType, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + size);
+        buffer.putInt(1); // start code
+        buffer.put((byte) nalType);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0x42);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int fourCc(String type) {
+        return ByteBuffer.wrap(type.getBytes(StandardCharsets.US_ASCII)).getInt();
+    }
+
+    /**
+     * Find a box among the boxes in [start, end), and return its position.
+     */
+    private static int findBox(ByteBuffer data, int start, int end, String type) {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = data.getInt(position);
+            Assert.assertTrue("Invalid box size", size >= 8 && position + size <= end);
+            if (data.getInt(position + 4) == fourCc(type)) {
+                return position;
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    private static int findBoxPath(ByteBuffer data, String... path) {
+        int start = data.position();
+        int end = data.limit();
+        int box = -1;
+        for (String type : path) {
+            box = findBox(data, start, end, type);
+            Assert.assertNotEquals("Box not found: " + type, -1, box);
+            end = box + data.getInt(box);
+            start = box + 8;
+        }
+        return box;
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    @Test
+    public void testInitSegment() throws IOException {
+        Fmp4Muxer muxer = new Fmp4Muxer(VideoCodec.H264, 0);
+        muxer.setVideoSize(new Size(1920, 1080));
+
+        ByteBuffer config = ByteBuffer.wrap(H264_CONFIG);
+        ByteBuffer init = muxer.mux(config, 0, true, false);
+        Assert.assertNotNull(init);
+        Assert.assertEquals(0, config.position());
+
+        int ftyp = findBoxPath(init, "ftyp");
+        Assert.assertEquals(0, ftyp);
+        int moov = findBoxPath(init, "moov");
+        // the init segment contains exactly ftyp and moov
+        Assert.assertEquals(init.limit(), moov + init.getInt(moov));
+
+        int avc1 = findBoxPath(init, "moov", "trak", "mdia", "minf", "stbl", "stsd");
+        // stsd is a full box with an entry count, the sample entry follows
+        int entry = avc1 + 16;
+        Assert.assertEquals(fourCc("avc1"), init.getInt(entry + 4));
+        Assert.assertEquals(1920, init.getShort(entry + 32));
+        Assert.assertEquals(1080, init.getShort(entry + 34));
+
+        int avcC = findBox(init, entry + 86, entry + init.getInt(entry), "avcC");
+        Assert.assertNotEquals(-1, avcC);
+        Assert.assertEquals(0x64, init.get(avcC + 9)); // profile
+        Assert.assertEquals(0x1f, init.get(avcC + 11)); // level
+        Assert.assertEquals((byte) 0xe1, init.get(avcC + 13)); // 1 SPS
+        Assert.assertEquals(6, init.getShort(avcC + 14)); // SPS length
+
+        findBoxPath(init, "moov", "mvex", "trex");
+    }
+
+    @Test
+    public void testOneFragmentPerPacket() throws IOException {
+        Fmp4Muxer muxer = new Fmp4Muxer(VideoCodec.H264, 0);
+        muxer.setVideoSize(new Size(1920, 1080));
+        muxer.mux(ByteBuffer.wrap(H264_CONFIG), 0, true, false);
+
+        ByteBuffer packet = frame(0x65, 100);
+        ByteBuffer fragment = copy(muxer.mux(packet, 1_000_000, false, true));
+        Assert.assertEquals(0, packet.position());
+
+        int tfdt = findBoxPath(fragment, "moof", "traf", "tfdt");
+        Assert.assertEquals(90000, fragment.getLong(tfdt + 12));
+
+        int trun = findBoxPath(fragment, "moof", "traf", "trun");
+        Assert.assertEquals(1, fragment.getInt(trun + 12)); // sample count
+        Assert.assertEquals(104, fragment.getInt(trun + 24)); // sample size (4-byte length + NAL)
+        Assert.assertEquals(0x02000000, fragment.getInt(trun + 28)); // sync sample
+
+        int moof = findBoxPath(fragment, "moof");
+        int mdat = findBoxPath(fragment, "mdat");
+        // data offset, relative to the moof
+        Assert.assertEquals(mdat + 8 - moof, fragment.getInt(trun + 16));
+        Assert.assertEquals(100, fragment.getInt(mdat + 8)); // NAL length
+        Assert.assertEquals(0x65, fragment.get(mdat + 12));
+    }
+
+    @Test
+    public void testFragmentStartsOnKeyFrame() throws IOException {
+        Fmp4Muxer muxer = new Fmp4Muxer(VideoCodec.H264, 10_000_000);
+        muxer.setVideoSize(new Size(1920, 1080));
+        muxer.mux(ByteBuffer.wrap(H264_CONFIG), 0, true, false);
+
+        Assert.assertNull(muxer.mux(frame(0x65, 100), 0, false, true));
+        Assert.assertNull(muxer.mux(frame(0x41, 50), 20_000, false, false));
+        Assert.assertNull(muxer.mux(frame(0x41, 50), 50_000, false, false));
+
+        // the next key frame closes the fragment
+        ByteBuffer fragment = copy(muxer.mux(frame(0x65, 100), 100_000, false, true));
+
+        int trun = findBoxPath(fragment, "moof", "traf", "trun");
+        Assert.assertEquals(3, fragment.getInt(trun + 12));
+        // the durations are known exactly from the following packets (in 90 kHz units)
+        Assert.assertEquals(1800, fragment.getInt(trun + 20));
+        Assert.assertEquals(2700, fragment.getInt(trun + 32));
+        Assert.assertEquals(4500, fragment.getInt(trun + 44));
+        Assert.assertEquals(0x01010000, fragment.getInt(trun + 52)); // non-sync sample
+
+        int mdat = findBoxPath(fragment, "mdat");
+        Assert.assertEquals(8 + 104 + 54 + 54, fragment.getInt(mdat));
+    }
+
+    @Test
+    public void testSegments() throws IOException {
+        Fmp4Muxer muxer = new Fmp4Muxer(VideoCodec.H264, 10_000_000);
+        muxer.setVideoSize(new Size(1920, 1080));
+        ByteBuffer init = copy(muxer.mux(ByteBuffer.wrap(H264_CONFIG), 0, true, false));
+        Assert.assertEquals(1, muxer.getSegmentCount());
+        Assert.assertEquals(0, muxer.getSegmentOffset(0));
+        Assert.assertTrue(muxer.isInitSegment(0));
+
+        Assert.assertNull(muxer.mux(frame(0x65, 100), 0, false, true));
+        Assert.assertEquals(0, muxer.getSegmentCount());
+        muxer.mux(frame(0x41, 50), 20_000, false, false);
+
+        // the data returned on a key frame is the previous fragment, which starts with the previous key frame
+        muxer.mux(frame(0x65, 100), 100_000, false, true);
+        Assert.assertEquals(1, muxer.getSegmentCount());
+        Assert.assertTrue(muxer.isKeyFragment(0));
+
+        // a new config closes the pending fragment (started by the key frame) before the init segment
+        ByteBuffer data = copy(muxer.mux(ByteBuffer.wrap(H264_CONFIG), 150_000, true, false));
+        Assert.assertEquals(2, muxer.getSegmentCount());
+        Assert.assertEquals(0, muxer.getSegmentOffset(0));
+        Assert.assertFalse(muxer.isInitSegment(0));
+        Assert.assertTrue(muxer.isKeyFragment(0));
+        Assert.assertTrue(muxer.isInitSegment(1));
+        Assert.assertEquals(init.remaining(), data.remaining() - muxer.getSegmentOffset(1));
+        Assert.assertEquals(fourCc("moof"), data.getInt(4));
+        Assert.assertEquals(fourCc("ftyp"), data.getInt(muxer.getSegmentOffset(1) + 4));
+    }
+
+    @Test
+    public void testNonKeyFragment() throws IOException {
+        Fmp4Muxer muxer = new Fmp4Muxer(VideoCodec.H264, 40_000);
+        muxer.setVideoSize(new Size(1920, 1080));
+        muxer.mux(ByteBuffer.wrap(H264_CONFIG), 0, true, false);
+
+        muxer.mux(frame(0x65, 100), 0, false, true);
+        Assert.assertNotNull(muxer.mux(frame(0x41, 50), 20_000, false, false));
+        Assert.assertTrue(muxer.isKeyFragment(0));
+
+        // the fragment duration is reached: the next fragment does not start with a key frame
+        Assert.assertNull(muxer.mux(frame(0x41, 50), 40_000, false, false));
+        Assert.assertNotNull(muxer.mux(frame(0x41, 50), 60_000, false, false));
+        Assert.assertEquals(1, muxer.getSegmentCount());
+        Assert.assertFalse(muxer.isKeyFragment(0));
+    }
+
+    @Test
+    public void testSamplesBeforeConfigIgnored() throws IOException {
+        Fmp4Muxer muxer = new Fmp4Muxer(VideoCodec.H264, 0);
+        Assert.assertNull(muxer.mux(frame(0x65, 100), 0, false, true));
+    }
+
+    @Test
+    public void testLengthPrefixed() {
+        // 3-byte and 4-byte start codes, with trailing zeros
+        ByteBuffer data = ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x06, 0x11, 0, 0, 1, 0x65, 0x22, 0x33, 0});
+        ByteBuffer out = ByteBuffer.allocate(32);
+        Fmp4Muxer.writeLengthPrefixed(data, out);
+        out.flip();
+
+        Assert.assertEquals(0, data.position());
+        Assert.assertEquals(2, out.getInt());
+        Assert.assertEquals(0x06, out.get());
+        Assert.assertEquals(0x11, out.get());
+        Assert.assertEquals(3, out.getInt());
+        Assert.assertEquals(0x65, out.get());
+        Assert.assertEquals(0x22, out.get());
+        Assert.assertEquals(0x33, out.get());
+        Assert.assertFalse(out.hasRemaining());
+    }
+
+    @Test
+    public void testContainsParameterSets() {
+        // IDR slice only
+        Assert.assertFalse(Fmp4Muxer.containsParameterSets(VideoCodec.H264, frame(0x65, 100)));
+
+        // AUD, SPS, PPS, IDR slice
+        ByteBuffer data = ByteBuffer.allocate(64);
+        data.put(new byte[] {0, 0, 0, 1, 0x09, 0x10});
+        data.put(H264_CONFIG);
+        data.put(frame(0x65, 20));
+        data.flip();
+        Assert.assertTrue(Fmp4Muxer.containsParameterSets(VideoCodec.H264, data));
+        Assert.assertEquals(0, data.position());
+
+        // SEI, then a non-IDR slice before any SPS
+        ByteBuffer slice = ByteBuffer.wrap(new byte[] {0, 0, 1, 0x06, 0x05, 0, 0, 1, 0x41, 0x22, 0, 0, 1, 0x67, 0x64});
+        Assert.assertFalse(Fmp4Muxer.containsParameterSets(VideoCodec.H264, slice));
+
+        // H.265: VPS (type 32), then IDR_W_RADL (type 19)
+        ByteBuffer hevc = ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x40, 0x01, 0x0c, 0, 0, 0, 1, 0x26, 0x01, (byte) 0xaf});
+        Assert.assertTrue(Fmp4Muxer.containsParameterSets(VideoCodec.H265, hevc));
+        ByteBuffer hevcIdr = ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x26, 0x01, (byte) 0xaf});
+        Assert.assertFalse(Fmp4Muxer.containsParameterSets(VideoCodec.H265, hevcIdr));
+
+        // Not inspected
+        Assert.assertFalse(Fmp4Muxer.containsParameterSets(VideoCodec.AV1, data));
+    }
+
+    @Test
+    public void testAacInitSegment() throws IOException {
+        Fmp4Muxer muxer = new Fmp4Muxer(AudioCodec.AAC, 0);
+        ByteBuffer init = muxer.mux(ByteBuffer.wrap(new byte[] {0x11, (byte) 0x90}), 0, true, false);
+        Assert.assertNotNull(init);
+        int stsd = findBoxPath(init, "moov", "trak", "mdia", "minf", "stbl", "stsd");
+        int entry = stsd + 16;
+        Assert.assertEquals(fourCc("mp4a"), init.getInt(entry + 4));
+        int esds = findBox(init, entry + 36, entry + init.getInt(entry), "esds");
+        Assert.assertNotEquals(-1, esds);
+    }
+}
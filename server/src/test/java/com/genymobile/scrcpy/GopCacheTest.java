@@ -0,0 +1,122 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class GopCacheTest {
+
+    private static ByteBuffer packet(int size, int value) {
+        byte[] data = new byte[size];
+        data[0] = (byte) value;
+        return ByteBuffer.wrap(data);
+    }
+
+    private static List<Long> replayPts(GopCache cache) throws IOException {
+        List<Long> result = new ArrayList<>();
+        cache.replay((data, pts, config, keyFrame) -> result.add(config ? -1 : pts));
+        return result;
+    }
+
+    @Test
+    public void testReplayConfigAndCurrentGop() throws IOException {
+        GopCache cache = new GopCache(1000, 100);
+
+        cache.add(packet(10, 1), 0, true, false);
+        cache.add(packet(100, 2), 1, false, true);
+        cache.add(packet(50, 3), 2, false, false);
+        // a new GOP
+        cache.add(packet(100, 4), 3, false, true);
+        cache.add(packet(50, 5), 4, false, false);
+
+        Assert.assertTrue(cache.isValid());
+        Assert.assertEquals(2, cache.getPacketCount());
+        Assert.assertEquals(150, cache.getGopBytes());
+
+        List<Long> pts = replayPts(cache);
+        Assert.assertEquals(3, pts.size());
+        Assert.assertEquals(-1, (long) pts.get(0));
+        Assert.assertEquals(3, (long) pts.get(1));
+        Assert.assertEquals(4, (long) pts.get(2));
+    }
+
+    @Test
+    public void testBufferNotConsumed() throws IOException {
+        GopCache cache = new GopCache(1000, 100);
+
+        ByteBuffer buffer = packet(10, 42);
+        cache.add(buffer, 0, true, false);
+        Assert.assertEquals(10, buffer.remaining());
+
+        cache.replay((data, pts, config, keyFrame) -> {
+            Assert.assertEquals(10, data.remaining());
+            Assert.assertEquals(42, data.get(0));
+        });
+    }
+
+    @Test
+    public void testNoKeyFrameYet() throws IOException {
+        GopCache cache = new GopCache(1000, 100);
+
+        cache.add(packet(10, 1), 0, true, false);
+        cache.add(packet(50, 2), 1, false, false);
+
+        Assert.assertFalse(cache.isValid());
+        // only the config packet
+        Assert.assertEquals(1, replayPts(cache).size());
+    }
+
+    @Test
+    public void testGopTooBig() throws IOException {
+        GopCache cache = new GopCache(200, 100);
+
+        cache.add(packet(10, 1), 0, true, false);
+        cache.add(packet(100, 2), 1, false, true);
+        cache.add(packet(150, 3), 2, false, false);
+        Assert.assertFalse(cache.isValid());
+
+        // ignored until the next key frame
+        cache.add(packet(10, 4), 3, false, false);
+        Assert.assertEquals(0, cache.getPacketCount());
+
+        cache.add(packet(100, 5), 4, false, true);
+        Assert.assertTrue(cache.isValid());
+        Assert.assertEquals(1, cache.getPacketCount());
+    }
+
+    @Test
+    public void testNewConfigInvalidatesGop() {
+        GopCache cache = new GopCache(1000, 100);
+
+        cache.add(packet(10, 1), 0, true, false);
+        cache.add(packet(100, 2), 1, false, true);
+        Assert.assertTrue(cache.isValid());
+
+        // the encoder has been restarted
+        cache.add(packet(10, 3), 0, true, false);
+        Assert.assertFalse(cache.isValid());
+        Assert.assertEquals(0, cache.getPacketCount());
+    }
+
+    @Test
+    public void testGopTooManyPackets() throws IOException {
+        GopCache cache = new GopCache(1000, 3);
+
+        cache.add(packet(10, 1), 0, true, false);
+        cache.add(packet(10, 2), 1, false, true);
+        cache.add(packet(10, 3), 2, false, false);
+        cache.add(packet(10, 4), 3, false, false);
+        Assert.assertTrue(cache.isValid());
+        cache.add(packet(10, 5), 4, false, false);
+        Assert.assertFalse(cache.isValid());
+
+        // usable again from the next key frame
+        cache.add(packet(10, 6), 5, false, true);
+        Assert.assertTrue(cache.isValid());
+        Assert.assertEquals(1, cache.getPacketCount());
+    }
+}
@@ -0,0 +1,158 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdleDetectorTest {
+
+    private static final long REPEAT_US = 100_000;
+    private static final long IDLE_REPEAT_US = 2_000_000;
+
+    @Test
+    public void testBecomeIdleAfterRepeatedFrames() {
+        IdleDetector detector = new IdleDetector(REPEAT_US, IDLE_REPEAT_US, 1_000_000);
+        detector.onSessionStarted();
+
+        Assert.assertFalse(detector.onFrame(0, 50_000));
+        Assert.assertFalse(detector.onFrame(16_000, 20_000));
+        long pts = 16_000;
+        for (int i = 0; i < 9; ++i) {
+            pts += REPEAT_US;
+            Assert.assertFalse(detector.onFrame(pts, 100));
+        }
+        Assert.assertFalse(detector.isIdle());
+
+        // 1s after the last new frame
+        pts += REPEAT_US;
+        Assert.assertTrue(detector.onFrame(pts, 100));
+        Assert.assertTrue(detector.isIdle());
+        Assert.assertEquals(IDLE_REPEAT_US, detector.getRepeatDelayUs());
+        Assert.assertEquals(1, detector.getIdleCount());
+    }
+
+    @Test
+    public void testNewFrameResetsTimeout() {
+        IdleDetector detector = new IdleDetector(REPEAT_US, IDLE_REPEAT_US, 500_000);
+        detector.onSessionStarted();
+
+        long pts = 0;
+        detector.onFrame(pts, 1000);
+        for (int i = 0; i < 4; ++i) {
+            pts += REPEAT_US;
+            Assert.assertFalse(detector.onFrame(pts, 100));
+        }
+        // a new frame, not exactly one repeat delay later
+        pts += 33_333;
+        Assert.assertFalse(detector.onFrame(pts, 1000));
+        for (int i = 0; i < 4; ++i) {
+            pts += REPEAT_US;
+            Assert.assertFalse(detector.onFrame(pts, 100));
+        }
+        Assert.assertFalse(detector.isIdle());
+    }
+
+    @Test
+    public void testActiveOnNewFrame() {
+        IdleDetector detector = new IdleDetector(REPEAT_US, IDLE_REPEAT_US, 200_000);
+        detector.onSessionStarted();
+
+        detector.onFrame(0, 1000);
+        detector.onFrame(REPEAT_US, 100);
+        Assert.assertTrue(detector.onFrame(2 * REPEAT_US, 100));
+
+        // restarted with the idle repeat delay
+        detector.onSessionStarted();
+        long pts = 3 * REPEAT_US;
+        // the first frame of the session is produced by the new surface, not by a content change
+        Assert.assertFalse(detector.onFrame(pts, 5000));
+        pts += IDLE_REPEAT_US;
+        Assert.assertFalse(detector.onFrame(pts, 100));
+        pts += IDLE_REPEAT_US;
+        Assert.assertFalse(detector.onFrame(pts, 100));
+        Assert.assertTrue(detector.isIdle());
+
+        // content change: active immediately, but no restart while the content keeps changing
+        pts += 10_000;
+        Assert.assertFalse(detector.onFrame(pts, 30_000));
+        Assert.assertFalse(detector.isIdle());
+        Assert.assertEquals(REPEAT_US, detector.getRepeatDelayUs());
+        Assert.assertEquals(pts - 2 * REPEAT_US, detector.getIdleUs());
+        for (int i = 0; i < 30; ++i) {
+            pts += 16_666;
+            Assert.assertFalse(detector.onFrame(pts, 20_000));
+        }
+
+        // the activity settles: the frame is repeated after the idle repeat delay, restart with the normal repeat delay
+        pts += IDLE_REPEAT_US;
+        Assert.assertTrue(detector.onFrame(pts, 100));
+        Assert.assertFalse(detector.isIdle());
+
+        detector.onSessionStarted();
+        pts += 20_000;
+        Assert.assertFalse(detector.onFrame(pts, 6000));
+        pts += REPEAT_US;
+        Assert.assertFalse(detector.onFrame(pts, 100));
+        Assert.assertFalse(detector.isIdle());
+    }
+
+    @Test
+    public void testIdleAgainBeforeRestart() {
+        IdleDetector detector = new IdleDetector(REPEAT_US, IDLE_REPEAT_US, 200_000);
+        detector.onSessionStarted();
+
+        detector.onFrame(0, 1000);
+        detector.onFrame(REPEAT_US, 100);
+        Assert.assertTrue(detector.onFrame(2 * REPEAT_US, 100));
+        detector.onSessionStarted();
+        long pts = 3 * REPEAT_US;
+        detector.onFrame(pts, 5000);
+
+        pts += 10_000;
+        Assert.assertFalse(detector.onFrame(pts, 30_000));
+        Assert.assertFalse(detector.isIdle());
+
+        // a restart for another reason (e.g. rotation) applies the normal repeat delay: no additional restart is needed
+        detector.onSessionStarted();
+        pts += 50_000;
+        Assert.assertFalse(detector.onFrame(pts, 6000));
+        pts += REPEAT_US;
+        Assert.assertFalse(detector.onFrame(pts, 100));
+        pts += REPEAT_US;
+        Assert.assertTrue(detector.onFrame(pts, 100));
+        Assert.assertTrue(detector.isIdle());
+    }
+
+    @Test
+    public void testSavedBytes() {
+        IdleDetector detector = new IdleDetector(REPEAT_US, IDLE_REPEAT_US, 200_000);
+        detector.onSessionStarted();
+
+        detector.onFrame(0, 1000);
+        detector.onFrame(REPEAT_US, 500);
+        Assert.assertTrue(detector.onFrame(2 * REPEAT_US, 100));
+
+        detector.onSessionStarted();
+        long pts = 2 * REPEAT_US + 10_000;
+        detector.onFrame(pts, 5000); // key frame of the idle session
+        for (int i = 0; i < 5; ++i) {
+            pts += IDLE_REPEAT_US;
+            detector.onFrame(pts, 100);
+        }
+        // 10.01s idle: 100 repeated frames of 100 bytes avoided, 5500 bytes produced
+        Assert.assertEquals(100 * 100 - 5500, detector.getSavedBytes());
+
+        pts += 50_000;
+        Assert.assertFalse(detector.onFrame(pts, 30_000));
+        // the restart is deferred until the activity settles
+        pts += IDLE_REPEAT_US;
+        Assert.assertTrue(detector.onFrame(pts, 100));
+        detector.onSessionStarted();
+        detector.onFrame(pts + 20_000, 3000); // key frame of the restored session, also a cost of the idle mode
+        Assert.assertEquals(100 * 100 - 5500 - 3000, detector.getSavedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidParameters() {
+        new IdleDetector(REPEAT_US, REPEAT_US, 1_000_000);
+    }
+}
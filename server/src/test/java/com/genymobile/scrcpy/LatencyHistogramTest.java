@@ -0,0 +1,70 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketBounds() {
+        // Every value is counted in a bucket whose upper bound is at least the value, within 1/32
+        int previousIndex = 0;
+        for (long value = 0; value <= LatencyHistogram.MAX_VALUE_US; value += 1 + value / 100) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            Assert.assertTrue(index >= previousIndex);
+            long max = LatencyHistogram.getBucketMaxValue(index);
+            Assert.assertTrue(max >= value);
+            Assert.assertTrue(max - value <= value / 32);
+            if (index > 0) {
+                Assert.assertTrue(LatencyHistogram.getBucketMaxValue(index - 1) < value);
+            }
+            previousIndex = index;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i * 1000);
+        }
+
+        LatencyHistogram.Summary summary = histogram.getSummary();
+        Assert.assertEquals(100, summary.getCount());
+        assertApprox(50_000, summary.getP50());
+        assertApprox(90_000, summary.getP90());
+        assertApprox(99_000, summary.getP99());
+        Assert.assertEquals(100_000, summary.getMax());
+    }
+
+    @Test
+    public void testOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(100_000_000);
+
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        // clamped in the last bucket, but the max is exact
+        Assert.assertEquals(LatencyHistogram.MAX_VALUE_US, histogram.getPercentile(100));
+        Assert.assertEquals(100_000_000, histogram.getSummary().getMax());
+    }
+
+    @Test
+    public void testFrameLatencyStats() {
+        FrameLatencyStats stats = new FrameLatencyStats();
+        // PTS 1s, output 1.012s, written 1.015s
+        stats.onFrameWritten(1_000_000, 1_012_000_000L, 1_015_000_000L);
+
+        LatencyHistogram.Summary[] summaries = stats.getSummaries();
+        Assert.assertEquals(FrameLatencyStats.STAGE_COUNT, summaries.length);
+        Assert.assertEquals(12_000, summaries[FrameLatencyStats.STAGE_ENCODE].getMax());
+        Assert.assertEquals(3_000, summaries[FrameLatencyStats.STAGE_WRITE].getMax());
+        Assert.assertEquals(15_000, summaries[FrameLatencyStats.STAGE_TOTAL].getMax());
+    }
+
+    private static void assertApprox(long expected, long actual) {
+        Assert.assertTrue("expected ~" + expected + " but was " + actual, actual >= expected && actual <= expected + expected / 32);
+    }
+}
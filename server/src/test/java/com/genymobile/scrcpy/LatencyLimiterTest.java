@@ -0,0 +1,57 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyLimiterTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void testNoDropWithinBudget() {
+        LatencyLimiter limiter = new LatencyLimiter(100 * MS);
+
+        Assert.assertFalse(limiter.shouldDrop(150 * MS, 100 * MS, 1000, false, false));
+        Assert.assertFalse(limiter.consumeSyncFrameRequest());
+        Assert.assertEquals(0, limiter.getDroppedPackets());
+    }
+
+    @Test
+    public void testDropUntilKeyFrame() {
+        LatencyLimiter limiter = new LatencyLimiter(100 * MS);
+
+        // late packet
+        Assert.assertTrue(limiter.shouldDrop(300 * MS, 100 * MS, 1000, false, false));
+        Assert.assertTrue(limiter.consumeSyncFrameRequest());
+        Assert.assertFalse(limiter.consumeSyncFrameRequest());
+
+        // the following non-key packets are dropped even if they are not late, they could not be decoded
+        Assert.assertTrue(limiter.shouldDrop(310 * MS, 300 * MS, 500, false, false));
+
+        // config packets are never dropped
+        Assert.assertFalse(limiter.shouldDrop(320 * MS, 100 * MS, 20, true, false));
+
+        // the key frame ends the recovery
+        Assert.assertFalse(limiter.shouldDrop(330 * MS, 320 * MS, 10000, false, true));
+        Assert.assertFalse(limiter.shouldDrop(340 * MS, 330 * MS, 500, false, false));
+
+        Assert.assertEquals(2, limiter.getDroppedPackets());
+        Assert.assertEquals(1500, limiter.getDroppedBytes());
+        Assert.assertEquals(1, limiter.getRecoveries());
+    }
+
+    @Test
+    public void testRetrySyncFrameRequest() {
+        LatencyLimiter limiter = new LatencyLimiter(100 * MS);
+
+        Assert.assertTrue(limiter.shouldDrop(300 * MS, 100 * MS, 1000, false, false));
+        Assert.assertTrue(limiter.consumeSyncFrameRequest());
+
+        Assert.assertTrue(limiter.shouldDrop(600 * MS, 590 * MS, 1000, false, false));
+        Assert.assertFalse(limiter.consumeSyncFrameRequest());
+
+        // no key frame received 500ms after the request
+        Assert.assertTrue(limiter.shouldDrop(900 * MS, 890 * MS, 1000, false, false));
+        Assert.assertTrue(limiter.consumeSyncFrameRequest());
+    }
+}
@@ -0,0 +1,64 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+public class MultiplexerTest {
+
+    private static byte[] frame(int channel, byte... payload) {
+        byte[] data = new byte[Multiplexer.HEADER_SIZE + payload.length];
+        Multiplexer.putFrameHeader(data, channel, payload.length);
+        System.arraycopy(payload, 0, data, Multiplexer.HEADER_SIZE, payload.length);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testFrameHeader() {
+        byte[] header = new byte[Multiplexer.HEADER_SIZE];
+        Multiplexer.putFrameHeader(header, Multiplexer.CHANNEL_AUDIO, 0x01020304);
+        Assert.assertArrayEquals(new byte[] {1, 1, 2, 3, 4}, header);
+    }
+
+    @Test
+    public void testDemux() throws IOException {
+        byte[] payload = new byte[Multiplexer.MAX_CHUNK_SIZE + 10];
+        payload[payload.length - 1] = 42;
+        byte[] input = concat(frame(Multiplexer.CHANNEL_CONTROL, (byte) 1, (byte) 2), frame(Multiplexer.CHANNEL_CONTROL, payload));
+
+        ByteArrayOutputStream control = new ByteArrayOutputStream();
+        Multiplexer.demux(new ByteArrayInputStream(input), control);
+
+        byte[] output = control.toByteArray();
+        Assert.assertEquals(2 + payload.length, output.length);
+        Assert.assertEquals(1, output[0]);
+        Assert.assertEquals(2, output[1]);
+        Assert.assertEquals(42, output[output.length - 1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDemuxUnexpectedChannel() throws IOException {
+        byte[] input = frame(Multiplexer.CHANNEL_VIDEO, (byte) 1);
+        Multiplexer.demux(new ByteArrayInputStream(input), new ByteArrayOutputStream());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testDemuxTruncatedFrame() throws IOException {
+        byte[] input = frame(Multiplexer.CHANNEL_CONTROL, (byte) 1, (byte) 2);
+        byte[] truncated = new byte[input.length - 1];
+        System.arraycopy(input, 0, truncated, 0, truncated.length);
+        Multiplexer.demux(new ByteArrayInputStream(truncated), new ByteArrayOutputStream());
+    }
+}
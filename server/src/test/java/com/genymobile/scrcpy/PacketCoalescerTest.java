@@ -0,0 +1,109 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class PacketCoalescerTest {
+
+    private static ByteBuffer createPacket(int size, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; ++i) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void testAppend() {
+        PacketCoalescer coalescer = new PacketCoalescer(1024, 256, 20_000);
+        Assert.assertTrue(coalescer.isEmpty());
+
+        ByteBuffer header = ByteBuffer.allocate(12);
+        Streamer.putFrameMeta(header, 100, 0, false, false);
+        header.flip();
+        ByteBuffer packet = createPacket(100, 1);
+        coalescer.append(header, packet, 0, 0);
+        // the positions are not modified
+        Assert.assertEquals(0, header.position());
+        Assert.assertEquals(0, packet.position());
+
+        coalescer.append(null, createPacket(50, 2), 5_000, 0);
+        Assert.assertEquals(2, coalescer.getPacketCount());
+
+        ByteBuffer pending = coalescer.getPending();
+        Assert.assertEquals(162, pending.remaining());
+        Assert.assertEquals(100, pending.getInt(8)); // packet size in the frame meta
+        Assert.assertEquals(1, pending.get(12));
+        Assert.assertEquals(2, pending.get(112));
+
+        coalescer.clear();
+        Assert.assertTrue(coalescer.isEmpty());
+        Assert.assertEquals(0, coalescer.getPending().remaining());
+    }
+
+    @Test
+    public void testSizeLimits() {
+        PacketCoalescer coalescer = new PacketCoalescer(300, 256, 20_000);
+        Assert.assertTrue(coalescer.accepts(256));
+        Assert.assertFalse(coalescer.accepts(257));
+
+        coalescer.append(null, createPacket(200, 0), 0, 0);
+        Assert.assertTrue(coalescer.hasRoom(100));
+        Assert.assertFalse(coalescer.hasRoom(101));
+    }
+
+    @Test
+    public void testDueByPts() {
+        PacketCoalescer coalescer = new PacketCoalescer(1024, 256, 20_000);
+        Assert.assertFalse(coalescer.isDue(0, 0));
+
+        long pts = 1_000_000;
+        for (int i = 0; i < 4; ++i) {
+            coalescer.append(null, createPacket(10, i), pts, 0);
+            Assert.assertFalse(coalescer.isDue(pts, 0));
+            pts += 5_000;
+        }
+        // 20 ms after the first packet
+        coalescer.append(null, createPacket(10, 4), pts, 0);
+        Assert.assertTrue(coalescer.isDue(pts, 0));
+    }
+
+    @Test
+    public void testDueByClock() {
+        PacketCoalescer coalescer = new PacketCoalescer(1024, 256, 20_000);
+        coalescer.append(null, createPacket(10, 0), 0, 1_000_000_000L);
+        Assert.assertFalse(coalescer.isDue(0, 1_019_000_000L));
+        // the stream did not advance, but the first packet waited too long
+        Assert.assertTrue(coalescer.isDue(0, 1_020_000_000L));
+    }
+
+    @Test
+    public void testDueByPredictedPts() {
+        // 20 ms packets with a 10 ms window: the next packet would always exceed the window
+        PacketCoalescer coalescer = new PacketCoalescer(1024, 256, 10_000);
+        coalescer.append(null, createPacket(10, 0), 0, 0);
+        // the interval is not known yet
+        Assert.assertFalse(coalescer.isDue(0, 0));
+        coalescer.append(null, createPacket(10, 1), 20_000, 0);
+        Assert.assertTrue(coalescer.isDue(20_000, 0));
+        coalescer.clear();
+
+        // a single packet is written immediately
+        coalescer.append(null, createPacket(10, 2), 40_000, 0);
+        Assert.assertTrue(coalescer.isDue(40_000, 0));
+    }
+
+    @Test
+    public void testDeadline() {
+        PacketCoalescer coalescer = new PacketCoalescer(1024, 256, 20_000);
+        Assert.assertEquals(-1, coalescer.getDeadlineNs());
+        coalescer.append(null, createPacket(10, 0), 0, 1_000_000_000L);
+        coalescer.append(null, createPacket(10, 1), 5_000, 1_005_000_000L);
+        Assert.assertEquals(1_020_000_000L, coalescer.getDeadlineNs());
+        coalescer.clear();
+        Assert.assertEquals(-1, coalescer.getDeadlineNs());
+    }
+}
@@ -0,0 +1,200 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class PacketQueueTest {
+
+    private static PacketQueue.Packet createPacket(PacketQueue queue, int size, long pts) {
+        PacketQueue.Packet packet = queue.obtain();
+        packet.set(ByteBuffer.allocate(size), pts, false, false);
+        return packet;
+    }
+
+    @Test
+    public void testFifo() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(4);
+        queue.put(createPacket(queue, 10, 1));
+        queue.put(createPacket(queue, 20, 2));
+        queue.put(createPacket(queue, 30, 3));
+
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(3, queue.getMaxSize());
+
+        PacketQueue.Packet packet = queue.take();
+        Assert.assertEquals(1, packet.getPts());
+        Assert.assertEquals(10, packet.getData().remaining());
+        queue.recycle(packet);
+
+        packet = queue.take();
+        Assert.assertEquals(2, packet.getPts());
+        Assert.assertEquals(20, packet.getData().remaining());
+        queue.recycle(packet);
+
+        queue.put(createPacket(queue, 40, 4));
+
+        Assert.assertEquals(3, queue.take().getPts());
+        Assert.assertEquals(4, queue.take().getPts());
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testOutputTimeIncludesBlockedTime() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(1);
+        queue.put(createPacket(queue, 10, 1));
+
+        PacketQueue.Packet blocked = createPacket(queue, 10, 2);
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                queue.recycle(queue.take());
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+        consumer.start();
+        // Blocks until the consumer takes the first packet
+        queue.put(blocked);
+        consumer.join();
+
+        PacketQueue.Packet packet = queue.take();
+        Assert.assertEquals(2, packet.getPts());
+        // The time spent blocked on the full queue is counted from the output time, not from the enqueue time
+        Assert.assertTrue(packet.getEnqueueTimeNs() - packet.getOutputTimeNs() >= 40_000_000);
+    }
+
+    @Test
+    public void testCopy() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(2);
+        byte[] payload = {1, 2, 3, 4, 5};
+        ByteBuffer source = ByteBuffer.wrap(payload);
+        PacketQueue.Packet packet = queue.obtain();
+        packet.set(source, 42, true, false);
+
+        // modifying the source must not impact the packet
+        payload[0] = 9;
+
+        queue.put(packet);
+        packet = queue.take();
+        Assert.assertTrue(packet.isConfig());
+        Assert.assertFalse(packet.isKeyFrame());
+        Assert.assertEquals(1, packet.getData().get(0));
+        Assert.assertEquals(5, packet.getData().remaining());
+    }
+
+    @Test
+    public void testGrowPacket() {
+        PacketQueue queue = new PacketQueue(2);
+        PacketQueue.Packet packet = queue.obtain();
+        packet.set(ByteBuffer.allocate(1 << 20), 0, false, true);
+        Assert.assertEquals(1 << 20, packet.getData().remaining());
+    }
+
+    @Test
+    public void testRecycle() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(2);
+        PacketQueue.Packet packet = createPacket(queue, 10, 1);
+        queue.put(packet);
+        queue.recycle(queue.take());
+
+        // the packet must be reused
+        Assert.assertSame(packet, queue.obtain());
+    }
+
+    @Test
+    public void testSignal() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(2);
+        queue.put(createPacket(queue, 10, 1));
+        queue.signal();
+
+        // pending packets are returned first
+        Assert.assertNotNull(queue.take());
+        Assert.assertNull(queue.take());
+    }
+
+    @Test
+    public void testTakeTimeout() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(2);
+        Assert.assertNull(queue.take(10));
+
+        queue.put(createPacket(queue, 10, 1));
+        Assert.assertEquals(1, queue.take(10).getPts());
+    }
+
+    @Test
+    public void testAppendPartialFrame() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(2);
+        PacketQueue.Packet packet = queue.obtain();
+        packet.set(ByteBuffer.wrap(new byte[] {1, 2, 3}), 42, false, true);
+        // Larger than the initial capacity
+        ByteBuffer part = ByteBuffer.allocate(100_000);
+        part.put(0, (byte) 4);
+        packet.append(part);
+        packet.append(ByteBuffer.wrap(new byte[] {5}));
+        queue.put(packet);
+
+        packet = queue.take();
+        ByteBuffer data = packet.getData();
+        Assert.assertEquals(100_004, data.remaining());
+        Assert.assertEquals(1, data.get(0));
+        Assert.assertEquals(3, data.get(2));
+        Assert.assertEquals(4, data.get(3));
+        Assert.assertEquals(5, data.get(100_003));
+        Assert.assertEquals(42, packet.getPts());
+        Assert.assertTrue(packet.isKeyFrame());
+        Assert.assertFalse(packet.isPartial());
+    }
+
+    @Test
+    public void testClose() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(1);
+        queue.put(createPacket(queue, 10, 1));
+
+        Thread producer = new Thread(() -> {
+            try {
+                // blocks until the queue is closed
+                Assert.assertFalse(queue.put(createPacket(queue, 10, 2)));
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        producer.start();
+
+        queue.setOpen(false);
+        producer.join();
+
+        Assert.assertEquals(0, queue.size());
+        Assert.assertFalse(queue.put(createPacket(queue, 10, 3)));
+
+        queue.setOpen(true);
+        Assert.assertTrue(queue.put(createPacket(queue, 10, 4)));
+        Assert.assertEquals(4, queue.take().getPts());
+    }
+
+    @Test
+    public void testOfferWhenFull() throws InterruptedException {
+        PacketQueue queue = new PacketQueue(2);
+        Assert.assertTrue(queue.offer(createPacket(queue, 10, 1)));
+        Assert.assertTrue(queue.offer(createPacket(queue, 10, 2)));
+
+        // never blocks
+        PacketQueue.Packet packet = createPacket(queue, 10, 3);
+        Assert.assertFalse(queue.offer(packet));
+        Assert.assertEquals(2, queue.size());
+
+        queue.recycle(queue.take());
+        Assert.assertTrue(queue.offer(packet));
+        Assert.assertEquals(2, queue.take().getPts());
+        Assert.assertEquals(3, queue.take().getPts());
+    }
+
+    @Test
+    public void testOfferWhenClosed() {
+        PacketQueue queue = new PacketQueue(2);
+        queue.setOpen(false);
+        Assert.assertFalse(queue.offer(createPacket(queue, 10, 1)));
+        Assert.assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,74 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class RenditionTest {
+
+    @Test
+    public void testParseEmpty() {
+        Assert.assertTrue(Rendition.parse("").isEmpty());
+    }
+
+    @Test
+    public void testParse() {
+        List<Rendition> renditions = Rendition.parse("1024:2000000,484:500000:15");
+
+        Assert.assertEquals(2, renditions.size());
+
+        Rendition rendition = renditions.get(0);
+        Assert.assertEquals(1024, rendition.getMaxSize());
+        Assert.assertEquals(2000000, rendition.getBitRate());
+        Assert.assertEquals(0, rendition.getMaxFps());
+
+        rendition = renditions.get(1);
+        Assert.assertEquals(480, rendition.getMaxSize()); // multiple of 8
+        Assert.assertEquals(500000, rendition.getBitRate());
+        Assert.assertEquals(15, rendition.getMaxFps());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingBitRate() {
+        Rendition.parse("1024");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidBitRate() {
+        Rendition.parse("1024:0");
+    }
+
+    @Test
+    public void testParseThumbnailDefaults() {
+        Rendition thumbnail = Rendition.parseThumbnail("");
+        Assert.assertTrue(thumbnail.isThumbnail());
+        Assert.assertEquals(Rendition.DEFAULT_THUMBNAIL_MAX_SIZE, thumbnail.getMaxSize());
+        Assert.assertEquals(0, thumbnail.getBitRate()); // automatic
+        Assert.assertEquals(Rendition.DEFAULT_THUMBNAIL_MAX_FPS, thumbnail.getMaxFps());
+    }
+
+    @Test
+    public void testParseThumbnail() {
+        Rendition thumbnail = Rendition.parseThumbnail("124:40000:1");
+        Assert.assertTrue(thumbnail.isThumbnail());
+        Assert.assertEquals(120, thumbnail.getMaxSize()); // multiple of 8
+        Assert.assertEquals(40000, thumbnail.getBitRate());
+        Assert.assertEquals(1, thumbnail.getMaxFps());
+
+        Assert.assertFalse(Rendition.parse("1024:2000000").get(0).isThumbnail());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseThumbnailUnlimitedFps() {
+        Rendition.parseThumbnail("160:0:0");
+    }
+
+    @Test
+    public void testThumbnailBitRate() {
+        // 0.25 bit per pixel
+        Assert.assertEquals(28160, Rendition.computeThumbnailBitRate(new Size(160, 352), 2));
+        // lower bound
+        Assert.assertEquals(16000, Rendition.computeThumbnailBitRate(new Size(64, 128), 1));
+    }
+}
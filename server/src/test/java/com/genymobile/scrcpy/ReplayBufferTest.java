@@ -0,0 +1,111 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ReplayBufferTest {
+
+    private static void add(PacketSink sink, int size, long pts, boolean keyFrame) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        sink.onPacket(buffer, pts, false, keyFrame);
+        // the position is not changed
+        Assert.assertEquals(0, buffer.position());
+    }
+
+    private static void addConfig(PacketSink sink) {
+        sink.onPacket(ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x67}), 0, true, false);
+    }
+
+    @Test
+    public void testStartOnKeyFrame() {
+        ReplayBuffer replay = new ReplayBuffer(10_000_000, 1000);
+        PacketSink video = replay.getVideoSink();
+        PacketSink audio = replay.getAudioSink();
+        addConfig(video);
+        addConfig(audio);
+
+        add(audio, 10, 0, false);
+        add(video, 100, 10_000, false);
+        Assert.assertEquals(0, replay.getPacketCount());
+
+        add(video, 100, 20_000, true);
+        add(audio, 10, 25_000, false);
+        add(video, 100, 30_000, false);
+        Assert.assertEquals(3, replay.getPacketCount());
+        Assert.assertEquals(20_000, replay.getFirstPts());
+    }
+
+    @Test
+    public void testEvictByDuration() {
+        ReplayBuffer replay = new ReplayBuffer(1_000_000, 100_000);
+        PacketSink video = replay.getVideoSink();
+        addConfig(video);
+
+        // one key frame every 500 ms
+        for (int i = 0; i < 10; ++i) {
+            add(video, 100, i * 100_000L, i % 5 == 0);
+        }
+        Assert.assertEquals(10, replay.getPacketCount());
+
+        // the first GOP is still needed to cover 1 second
+        add(video, 100, 1_000_000, true);
+        Assert.assertEquals(11, replay.getPacketCount());
+        Assert.assertEquals(0, replay.getFirstPts());
+
+        for (int i = 11; i < 15; ++i) {
+            add(video, 100, i * 100_000L, false);
+        }
+        // the GOP starting at 500 ms covers 1 second from the new key frame, the first GOP is evicted
+        add(video, 100, 1_500_000, true);
+        Assert.assertEquals(11, replay.getPacketCount());
+        Assert.assertEquals(500_000, replay.getFirstPts());
+    }
+
+    @Test
+    public void testEvictBySize() {
+        ReplayBuffer replay = new ReplayBuffer(60_000_000, 1000);
+        PacketSink video = replay.getVideoSink();
+        addConfig(video);
+
+        // GOPs of 3 packets of 100 bytes
+        for (int i = 0; i < 9; ++i) {
+            add(video, 100, i * 10_000L, i % 3 == 0);
+        }
+        Assert.assertEquals(9, replay.getPacketCount());
+
+        // not enough space, the oldest GOP is evicted
+        add(video, 200, 90_000, true);
+        Assert.assertEquals(7, replay.getPacketCount());
+        Assert.assertEquals(30_000, replay.getFirstPts());
+
+        // wrap around the end of the buffer
+        for (int i = 10; i < 30; ++i) {
+            add(video, 100, i * 10_000L, i % 3 == 0);
+            Assert.assertTrue(replay.getPacketCount() > 0);
+        }
+        Assert.assertEquals(0, replay.getDroppedPackets());
+    }
+
+    @Test
+    public void testGopBiggerThanBuffer() {
+        ReplayBuffer replay = new ReplayBuffer(60_000_000, 250);
+        PacketSink video = replay.getVideoSink();
+        addConfig(video);
+
+        add(video, 100, 0, true);
+        add(video, 100, 10_000, false);
+        // does not fit, and the GOP could not be evicted partially
+        add(video, 100, 20_000, false);
+        Assert.assertEquals(0, replay.getPacketCount());
+        Assert.assertEquals(1, replay.getDroppedPackets());
+
+        // dropped until the next key frame
+        add(video, 100, 30_000, false);
+        Assert.assertEquals(0, replay.getPacketCount());
+        add(video, 100, 40_000, true);
+        Assert.assertEquals(1, replay.getPacketCount());
+        Assert.assertEquals(40_000, replay.getFirstPts());
+    }
+}
@@ -0,0 +1,197 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RtcpFeedbackTest {
+
+    private static final int SSRC = 0x12345678;
+    private static final int RECEIVER_SSRC = 0x0badcafe;
+    private static final long INTERVAL_NS = 100_000_000;
+
+    private static byte[] pli(int mediaSsrc) {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.put((byte) (0x80 | 1)); // FMT 1
+        buffer.put((byte) 206);
+        buffer.putShort((short) 2);
+        buffer.putInt(RECEIVER_SSRC);
+        buffer.putInt(mediaSsrc);
+        return buffer.array();
+    }
+
+    private static byte[] fir() {
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        buffer.put((byte) (0x80 | 4)); // FMT 4
+        buffer.put((byte) 206);
+        buffer.putShort((short) 4);
+        buffer.putInt(RECEIVER_SSRC);
+        buffer.putInt(0);
+        buffer.putInt(SSRC); // FCI
+        buffer.putInt(0);
+        return buffer.array();
+    }
+
+    private static byte[] nack(int sequence) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put((byte) (0x80 | 1)); // FMT 1
+        buffer.put((byte) 205);
+        buffer.putShort((short) 3);
+        buffer.putInt(RECEIVER_SSRC);
+        buffer.putInt(SSRC);
+        buffer.putShort((short) sequence);
+        buffer.putShort((short) 0);
+        return buffer.array();
+    }
+
+    private static byte[] receiverReport(int ssrc, int lost) {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        buffer.put((byte) (0x80 | 1)); // 1 report block
+        buffer.put((byte) 201);
+        buffer.putShort((short) 7);
+        buffer.putInt(RECEIVER_SSRC);
+        buffer.putInt(ssrc);
+        buffer.putInt(lost & 0xffffff); // fraction lost 0
+        buffer.putInt(0); // extended highest sequence number
+        buffer.putInt(0); // jitter
+        buffer.putInt(0); // LSR
+        buffer.putInt(0); // DLSR
+        return buffer.array();
+    }
+
+    private static byte[] concat(byte[]... packets) {
+        int length = 0;
+        for (byte[] packet : packets) {
+            length += packet.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] packet : packets) {
+            buffer.put(packet);
+        }
+        return buffer.array();
+    }
+
+    private static boolean receive(RtcpFeedback feedback, byte[] packet, long nowNs) {
+        return feedback.onRtcpPacket(packet, packet.length, nowNs);
+    }
+
+    @Test
+    public void testPli() {
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+        Assert.assertTrue(receive(feedback, pli(SSRC), 0));
+        Assert.assertEquals(1, feedback.getPliCount());
+        Assert.assertEquals(1, feedback.getKeyFrameRequestCount());
+    }
+
+    @Test
+    public void testPliOtherSource() {
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+        Assert.assertFalse(receive(feedback, pli(0x11111111), 0));
+        Assert.assertEquals(0, feedback.getPliCount());
+    }
+
+    @Test
+    public void testFir() {
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+        Assert.assertTrue(receive(feedback, fir(), 0));
+    }
+
+    @Test
+    public void testNack() {
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+        Assert.assertTrue(receive(feedback, nack(42), 0));
+        Assert.assertEquals(1, feedback.getNackCount());
+    }
+
+    @Test
+    public void testReceiverReport() {
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+        // The first report gives the initial value
+        Assert.assertFalse(receive(feedback, receiverReport(SSRC, 3), 0));
+        Assert.assertEquals(3, feedback.getPacketsLost());
+        Assert.assertFalse(receive(feedback, receiverReport(SSRC, 3), INTERVAL_NS));
+        Assert.assertTrue(receive(feedback, receiverReport(SSRC, 5), 2 * INTERVAL_NS));
+        Assert.assertEquals(5, feedback.getPacketsLost());
+        // Duplicated packets may make the count negative
+        Assert.assertFalse(receive(feedback, receiverReport(SSRC, -1), 3 * INTERVAL_NS));
+        Assert.assertEquals(0, feedback.getPacketsLost());
+        // Reports about other sources are ignored
+        Assert.assertFalse(receive(feedback, receiverReport(0x11111111, 100), 4 * INTERVAL_NS));
+        Assert.assertEquals(0, feedback.getPacketsLost());
+    }
+
+    @Test
+    public void testCompound() {
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+        Assert.assertTrue(receive(feedback, concat(receiverReport(SSRC, 0), pli(SSRC)), 0));
+        Assert.assertEquals(0, feedback.getPacketsLost());
+        Assert.assertEquals(1, feedback.getPliCount());
+    }
+
+    @Test
+    public void testInvalid() {
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+        byte[] truncated = Arrays.copyOf(pli(SSRC), 8);
+        Assert.assertFalse(receive(feedback, truncated, 0));
+        Assert.assertFalse(receive(feedback, new byte[] {0, 0, 0, 0}, 0));
+        Assert.assertFalse(receive(feedback, new byte[0], 0));
+    }
+
+    @Test
+    public void testRateLimit() {
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+        Assert.assertTrue(receive(feedback, pli(SSRC), 0));
+        Assert.assertFalse(receive(feedback, pli(SSRC), INTERVAL_NS / 2));
+        Assert.assertFalse(receive(feedback, pli(SSRC), INTERVAL_NS / 2 + 1));
+        Assert.assertFalse(feedback.pollDelayedKeyFrameRequest(INTERVAL_NS - 1));
+        // The delayed requests are merged into one
+        Assert.assertTrue(feedback.pollDelayedKeyFrameRequest(INTERVAL_NS));
+        Assert.assertFalse(feedback.pollDelayedKeyFrameRequest(3 * INTERVAL_NS));
+        Assert.assertEquals(3, feedback.getPliCount());
+        Assert.assertEquals(2, feedback.getKeyFrameRequestCount());
+    }
+
+    @Test
+    public void testLossyRelay() throws IOException {
+        // The sender packetizes the frames, a relay drops a packet, and the receiver requests a key frame on the sequence gap
+        RtpPacketizer packetizer = new RtpPacketizer(VideoCodec.H264, 96, SSRC, 100);
+        RtcpFeedback feedback = new RtcpFeedback(SSRC, INTERVAL_NS);
+
+        List<Integer> received = new ArrayList<>();
+        int[] relayed = new int[1];
+        RtpPacketizer.Output relay = (data, length) -> {
+            if (relayed[0]++ == 5) {
+                // lost
+                return;
+            }
+            received.add((data[2] & 0xff) << 8 | (data[3] & 0xff));
+        };
+
+        byte[] frame = new byte[4 + 400];
+        frame[3] = 1;
+        frame[4] = 0x41;
+        Arrays.fill(frame, 5, frame.length, (byte) 0x42);
+        int keyFrameRequests = 0;
+        int expected = 0;
+        for (int i = 0; i < 3; ++i) {
+            packetizer.packetize(null, ByteBuffer.wrap(frame), i * 16_666, relay);
+
+            // The receiver checks the sequence numbers of the packets received
+            for (int sequence : received) {
+                if (sequence != expected && receive(feedback, pli(SSRC), i * INTERVAL_NS)) {
+                    ++keyFrameRequests;
+                }
+                expected = sequence + 1;
+            }
+            received.clear();
+        }
+
+        Assert.assertEquals(1, keyFrameRequests);
+        Assert.assertEquals(1, feedback.getPliCount());
+    }
+}
@@ -0,0 +1,226 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RtpPacketizerTest {
+
+    private static final int SSRC = 0x12345678;
+    private static final int MAX_PACKET_SIZE = 100;
+
+    private static final class Packets implements RtpPacketizer.Output {
+        private final List<byte[]> list = new ArrayList<>();
+
+        @Override
+        public void onRtpPacket(byte[] data, int length) {
+            Assert.assertTrue(length <= MAX_PACKET_SIZE);
+            list.add(Arrays.copyOf(data, length));
+        }
+    }
+
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; ++i) {
+            nal[i] = (byte) (i % 250 + 1); // never a start code
+        }
+        return nal;
+    }
+
+    private static byte[] h265Nal(int type, int size) {
+        byte[] nal = nal(type << 1, size);
+        nal[1] = 1; // temporal id 0
+        return nal;
+    }
+
+    private static ByteBuffer annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(new byte[] {0, 0, 0, 1}, 0, 4);
+            out.write(nal, 0, nal.length);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static int payloadType(byte[] packet, boolean h265) {
+        return h265 ? (packet[RtpPacketizer.HEADER_SIZE] >> 1) & 0x3f : packet[RtpPacketizer.HEADER_SIZE] & 0x1f;
+    }
+
+    /**
+     * Reconstruct the NAL units of the packets, as a receiver would.
+     */
+    private static List<byte[]> depacketize(List<byte[]> packets, boolean h265) {
+        int nalHeaderSize = h265 ? 2 : 1;
+        int aggregation = h265 ? 48 : 24;
+        int fragmentation = h265 ? 49 : 28;
+
+        List<byte[]> nals = new ArrayList<>();
+        ByteArrayOutputStream fragments = null;
+        for (byte[] packet : packets) {
+            int payload = RtpPacketizer.HEADER_SIZE;
+            int type = payloadType(packet, h265);
+            if (type == aggregation) {
+                int offset = payload + nalHeaderSize;
+                while (offset < packet.length) {
+                    int size = (packet[offset] & 0xff) << 8 | (packet[offset + 1] & 0xff);
+                    nals.add(Arrays.copyOfRange(packet, offset + 2, offset + 2 + size));
+                    offset += 2 + size;
+                }
+                Assert.assertEquals(packet.length, offset);
+            } else if (type == fragmentation) {
+                int fuHeader = packet[payload + nalHeaderSize] & 0xff;
+                if ((fuHeader & 0x80) != 0) {
+                    Assert.assertNull(fragments);
+                    fragments = new ByteArrayOutputStream();
+                    int nalType = fuHeader & (h265 ? 0x3f : 0x1f);
+                    if (h265) {
+                        fragments.write((packet[payload] & 0x81) | nalType << 1);
+                        fragments.write(packet[payload + 1]);
+                    } else {
+                        fragments.write((packet[payload] & 0xe0) | nalType);
+                    }
+                }
+                Assert.assertNotNull(fragments);
+                int start = payload + nalHeaderSize + 1;
+                fragments.write(packet, start, packet.length - start);
+                if ((fuHeader & 0x40) != 0) {
+                    nals.add(fragments.toByteArray());
+                    fragments = null;
+                }
+            } else {
+                nals.add(Arrays.copyOfRange(packet, payload, packet.length));
+            }
+        }
+        Assert.assertNull(fragments);
+        return nals;
+    }
+
+    private static boolean isMarker(byte[] packet) {
+        return (packet[1] & 0x80) != 0;
+    }
+
+    private static void assertNals(List<byte[]> actual, byte[]... expected) {
+        Assert.assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertArrayEquals(expected[i], actual.get(i));
+        }
+    }
+
+    @Test
+    public void testHeader() throws IOException {
+        RtpPacketizer packetizer = new RtpPacketizer(VideoCodec.H264, 96, SSRC, MAX_PACKET_SIZE);
+        Packets packets = new Packets();
+        packetizer.packetize(null, annexB(nal(0x41, 20)), 1_000_000, packets);
+
+        Assert.assertEquals(1, packets.list.size());
+        byte[] packet = packets.list.get(0);
+        Assert.assertEquals((byte) 0x80, packet[0]);
+        Assert.assertEquals((byte) (0x80 | 96), packet[1]);
+        Assert.assertEquals(0, packet[2]);
+        Assert.assertEquals(0, packet[3]);
+        ByteBuffer header = ByteBuffer.wrap(packet);
+        Assert.assertEquals(RtpPacketizer.CLOCK_RATE, header.getInt(4));
+        Assert.assertEquals(SSRC, header.getInt(8));
+        Assert.assertEquals(1, packetizer.getSequence());
+    }
+
+    @Test
+    public void testH264Aggregation() throws IOException {
+        byte[] sps = nal(0x67, 12);
+        byte[] pps = nal(0x68, 4);
+        byte[] slice = nal(0x25, 30);
+
+        RtpPacketizer packetizer = new RtpPacketizer(VideoCodec.H264, 96, SSRC, MAX_PACKET_SIZE);
+        Packets packets = new Packets();
+        packetizer.packetize(annexB(sps, pps), annexB(slice), 0, packets);
+
+        // All the NAL units fit in a single STAP-A
+        Assert.assertEquals(1, packets.list.size());
+        byte[] packet = packets.list.get(0);
+        Assert.assertEquals(24, payloadType(packet, false));
+        // The highest NRI of the aggregated NAL units
+        Assert.assertEquals(0x60, packet[RtpPacketizer.HEADER_SIZE] & 0x60);
+        Assert.assertTrue(isMarker(packet));
+        assertNals(depacketize(packets.list, false), sps, pps, slice);
+    }
+
+    @Test
+    public void testH264Fragmentation() throws IOException {
+        byte[] sps = nal(0x67, 12);
+        byte[] pps = nal(0x68, 4);
+        byte[] idr = nal(0x65, 500);
+
+        RtpPacketizer packetizer = new RtpPacketizer(VideoCodec.H264, 96, SSRC, MAX_PACKET_SIZE);
+        Packets packets = new Packets();
+        packetizer.packetize(annexB(sps, pps), annexB(idr), 0, packets);
+
+        List<byte[]> list = packets.list;
+        Assert.assertEquals(24, payloadType(list.get(0), false));
+        for (int i = 1; i < list.size(); ++i) {
+            Assert.assertEquals(28, payloadType(list.get(i), false));
+        }
+        for (int i = 0; i < list.size(); ++i) {
+            // Only the last packet of the access unit has the marker bit
+            Assert.assertEquals(i == list.size() - 1, isMarker(list.get(i)));
+            Assert.assertEquals(i, (list.get(i)[2] & 0xff) << 8 | (list.get(i)[3] & 0xff));
+        }
+        assertNals(depacketize(list, false), sps, pps, idr);
+    }
+
+    @Test
+    public void testH264SingleNalUnits() throws IOException {
+        // Too large to be aggregated together, but each one fits in a packet
+        byte[] slice1 = nal(0x41, 60);
+        byte[] slice2 = nal(0x41, 60);
+
+        RtpPacketizer packetizer = new RtpPacketizer(VideoCodec.H264, 96, SSRC, MAX_PACKET_SIZE);
+        Packets packets = new Packets();
+        packetizer.packetize(null, annexB(slice1, slice2), 0, packets);
+
+        Assert.assertEquals(2, packets.list.size());
+        Assert.assertEquals(1, payloadType(packets.list.get(0), false));
+        Assert.assertFalse(isMarker(packets.list.get(0)));
+        Assert.assertTrue(isMarker(packets.list.get(1)));
+        assertNals(depacketize(packets.list, false), slice1, slice2);
+    }
+
+    @Test
+    public void testH265() throws IOException {
+        byte[] vps = h265Nal(32, 20);
+        byte[] sps = h265Nal(33, 30);
+        byte[] pps = h265Nal(34, 6);
+        byte[] idr = h265Nal(19, 300);
+
+        RtpPacketizer packetizer = new RtpPacketizer(VideoCodec.H265, 96, SSRC, MAX_PACKET_SIZE);
+        Packets packets = new Packets();
+        packetizer.packetize(annexB(vps, sps, pps), annexB(idr), 0, packets);
+
+        List<byte[]> list = packets.list;
+        Assert.assertEquals(48, payloadType(list.get(0), true));
+        Assert.assertEquals(49, payloadType(list.get(1), true));
+        Assert.assertTrue(isMarker(list.get(list.size() - 1)));
+        assertNals(depacketize(list, true), vps, sps, pps, idr);
+    }
+
+    @Test
+    public void testSequenceWrap() throws IOException {
+        RtpPacketizer packetizer = new RtpPacketizer(VideoCodec.H264, 96, SSRC, MAX_PACKET_SIZE);
+        ByteBuffer frame = annexB(nal(0x41, 20));
+        for (int i = 0; i < 0x10001; ++i) {
+            packetizer.packetize(null, frame, 0, (data, length) -> { });
+        }
+        Assert.assertEquals(1, packetizer.getSequence());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedCodec() {
+        new RtpPacketizer(VideoCodec.AV1, 96, SSRC, MAX_PACKET_SIZE);
+    }
+}
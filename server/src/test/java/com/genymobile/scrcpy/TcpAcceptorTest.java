@@ -0,0 +1,44 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class TcpAcceptorTest {
+
+    private static byte[] tokenMessage(String token) {
+        byte[] raw = token.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[1 + raw.length];
+        data[0] = (byte) raw.length;
+        System.arraycopy(raw, 0, data, 1, raw.length);
+        return data;
+    }
+
+    @Test
+    public void testParseAuthToken() {
+        byte[] data = tokenMessage("0123abcd");
+        Assert.assertEquals("0123abcd", TcpAcceptor.parseAuthToken(data, data.length));
+        Assert.assertEquals("", TcpAcceptor.parseAuthToken(new byte[] {0}, 1));
+        Assert.assertTrue(AuthToken.matches("0123abcd", TcpAcceptor.parseAuthToken(data, data.length)));
+        byte[] other = tokenMessage("0123abce");
+        Assert.assertFalse(AuthToken.matches("0123abcd", TcpAcceptor.parseAuthToken(other, other.length)));
+    }
+
+    @Test
+    public void testParseIncompleteAuthToken() {
+        byte[] data = tokenMessage("0123abcd");
+        Assert.assertNull(TcpAcceptor.parseAuthToken(data, 0));
+        Assert.assertNull(TcpAcceptor.parseAuthToken(data, 3));
+        Assert.assertNull(TcpAcceptor.parseAuthToken(data, data.length - 1));
+    }
+
+    @Test
+    public void testMissingBytes() {
+        byte[] data = tokenMessage("0123abcd");
+        Assert.assertEquals(1, TcpAcceptor.getMissingBytes(data, 0));
+        Assert.assertEquals(8, TcpAcceptor.getMissingBytes(data, 1));
+        Assert.assertEquals(5, TcpAcceptor.getMissingBytes(data, 4));
+        Assert.assertEquals(0, TcpAcceptor.getMissingBytes(data, data.length));
+    }
+}
@@ -0,0 +1,166 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+public class WebSocketTest {
+
+    private static ByteBuffer ascii(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testAcceptKey() {
+        // example from RFC 6455 section 1.3
+        Assert.assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocket.computeAcceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void testParseHandshake() throws IOException {
+        ByteBuffer buffer = ascii("GET /video?token=x HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\nNEXT");
+
+        WebSocket.HandshakeRequest request = WebSocket.parseHandshake(buffer);
+        Assert.assertNotNull(request);
+        Assert.assertEquals("/video", request.getPath());
+        Assert.assertEquals("dGhlIHNhbXBsZSBub25jZQ==", request.getKey());
+        // the data following the request is not consumed
+        Assert.assertEquals(4, buffer.remaining());
+    }
+
+    @Test
+    public void testParseHandshakeTokenAndOrigin() throws IOException {
+        ByteBuffer buffer = ascii("GET /control?a=1&token=ab%2Bc HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+                + "Origin: https://example.com\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n");
+
+        WebSocket.HandshakeRequest request = WebSocket.parseHandshake(buffer);
+        Assert.assertEquals("/control", request.getPath());
+        Assert.assertEquals("ab+c", request.getQueryParameter("token"));
+        Assert.assertEquals("1", request.getQueryParameter("a"));
+        Assert.assertNull(request.getQueryParameter("b"));
+        Assert.assertEquals("https://example.com", request.getOrigin());
+    }
+
+    @Test
+    public void testOriginAllowed() {
+        List<String> allowed = Collections.singletonList("https://example.com");
+        // not a browser
+        Assert.assertTrue(WebSocket.isOriginAllowed(null, allowed));
+        Assert.assertTrue(WebSocket.isOriginAllowed("http://localhost:8080", allowed));
+        Assert.assertTrue(WebSocket.isOriginAllowed("http://127.0.0.1", allowed));
+        Assert.assertTrue(WebSocket.isOriginAllowed("http://[::1]:3000", allowed));
+        Assert.assertTrue(WebSocket.isOriginAllowed("https://example.com", allowed));
+        Assert.assertFalse(WebSocket.isOriginAllowed("https://evil.example", allowed));
+        Assert.assertFalse(WebSocket.isOriginAllowed("http://localhost.evil.example", allowed));
+        Assert.assertFalse(WebSocket.isOriginAllowed("null", allowed));
+    }
+
+    @Test
+    public void testAuthToken() {
+        Assert.assertTrue(AuthToken.matches("0123abcd", "0123abcd"));
+        Assert.assertFalse(AuthToken.matches("0123abcd", "0123abce"));
+        Assert.assertFalse(AuthToken.matches("0123abcd", "0123abc"));
+        Assert.assertFalse(AuthToken.matches("0123abcd", null));
+    }
+
+    @Test
+    public void testParseIncompleteHandshake() throws IOException {
+        ByteBuffer buffer = ascii("GET /video HTTP/1.1\r\nUpgrade: websocket\r\n");
+        Assert.assertNull(WebSocket.parseHandshake(buffer));
+        Assert.assertEquals(0, buffer.position());
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseInvalidHandshake() throws IOException {
+        WebSocket.parseHandshake(ascii("GET /video HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+    }
+
+    @Test
+    public void testServerFrameHeader() {
+        ByteBuffer buffer = ByteBuffer.allocate(WebSocket.MAX_SERVER_FRAME_HEADER_LENGTH);
+
+        WebSocket.putServerFrameHeader(buffer, WebSocket.OPCODE_BINARY, 125);
+        Assert.assertEquals(WebSocket.getServerFrameHeaderLength(125), buffer.position());
+        Assert.assertEquals(2, buffer.position());
+        Assert.assertEquals((byte) 0x82, buffer.get(0));
+        Assert.assertEquals(125, buffer.get(1));
+
+        buffer.clear();
+        WebSocket.putServerFrameHeader(buffer, WebSocket.OPCODE_BINARY, 126);
+        Assert.assertEquals(WebSocket.getServerFrameHeaderLength(126), buffer.position());
+        Assert.assertEquals(4, buffer.position());
+        Assert.assertEquals(126, buffer.get(1));
+        Assert.assertEquals(126, buffer.getShort(2));
+
+        buffer.clear();
+        WebSocket.putServerFrameHeader(buffer, WebSocket.OPCODE_BINARY, 65536);
+        Assert.assertEquals(WebSocket.getServerFrameHeaderLength(65536), buffer.position());
+        Assert.assertEquals(10, buffer.position());
+        Assert.assertEquals(127, buffer.get(1));
+        Assert.assertEquals(65536, buffer.getLong(2));
+    }
+
+    @Test
+    public void testParseMaskedClientFrame() {
+        byte[] payload = {1, 2, 3, 4, 5};
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+
+        ByteBuffer buffer = ByteBuffer.allocate(11);
+        buffer.put((byte) 0x82); // FIN + binary
+        buffer.put((byte) (0x80 | payload.length)); // masked
+        buffer.put(mask);
+        for (int i = 0; i < payload.length; ++i) {
+            buffer.put((byte) (payload[i] ^ mask[i % 4]));
+        }
+        buffer.flip();
+
+        WebSocket.FrameHeader header = new WebSocket.FrameHeader();
+        // incomplete header
+        ByteBuffer partial = buffer.duplicate();
+        partial.limit(4);
+        Assert.assertFalse(WebSocket.parseFrameHeader(partial, header));
+
+        Assert.assertTrue(WebSocket.parseFrameHeader(buffer, header));
+        Assert.assertTrue(header.isFin());
+        Assert.assertEquals(WebSocket.OPCODE_BINARY, header.getOpcode());
+        Assert.assertTrue(header.isMasked());
+        Assert.assertEquals(5, header.getPayloadLength());
+        Assert.assertEquals(6, header.getHeaderLength());
+        // not consumed
+        Assert.assertEquals(0, buffer.position());
+
+        WebSocket.unmask(buffer, 6, 5, header);
+        for (int i = 0; i < payload.length; ++i) {
+            Assert.assertEquals(payload[i], buffer.get(6 + i));
+        }
+    }
+
+    @Test
+    public void testParseInvalidPayloadLength() {
+        ByteBuffer buffer = ByteBuffer.allocate(14);
+        buffer.put((byte) 0x82); // FIN + binary
+        buffer.put((byte) (0x80 | 127)); // masked, 64-bit length
+        buffer.putLong(0x80000000_00000010L); // most significant bit set
+        buffer.putInt(0x12345678);
+        buffer.flip();
+
+        WebSocket.FrameHeader header = new WebSocket.FrameHeader();
+        Assert.assertTrue(WebSocket.parseFrameHeader(buffer, header));
+        Assert.assertTrue(header.getPayloadLength() < 0);
+        Assert.assertFalse(header.isPayloadLengthValid());
+
+        buffer.putLong(2, 0x1_0000_0000L); // does not fit in an int
+        Assert.assertTrue(WebSocket.parseFrameHeader(buffer, header));
+        Assert.assertFalse(header.isPayloadLengthValid());
+
+        buffer.putLong(2, 65536);
+        Assert.assertTrue(WebSocket.parseFrameHeader(buffer, header));
+        Assert.assertTrue(header.isPayloadLengthValid());
+    }
+}